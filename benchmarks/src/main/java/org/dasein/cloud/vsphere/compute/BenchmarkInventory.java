@@ -0,0 +1,195 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.List;
+
+import com.vmware.vim25.FileInfo;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualDevice;
+import com.vmware.vim25.VirtualDisk;
+import com.vmware.vim25.VirtualHardware;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import com.vmware.vim25.VmDiskFileInfo;
+import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.dasein.cloud.dc.DataCenter;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.RegionDirectory;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The inventory the conversion benchmarks run over: a simulated vCenter of the requested size, a provider
+ * connected to it with its inventory caches warmed, and the VMs, templates, disks and addresses of the inventory
+ * prebuilt so that the benchmarks measure conversion rather than property retrieval.
+ */
+@State(Scope.Benchmark)
+public class BenchmarkInventory {
+    static public final String REGION = "Datacenter-1";
+
+    static public class Disk {
+        public final VirtualDisk disk;
+        public final String      vmId;
+        public final String      dataCenterId;
+
+        Disk(@Nonnull VirtualDisk disk, @Nonnull String vmId, @Nonnull String dataCenterId) {
+            this.disk = disk;
+            this.vmId = vmId;
+            this.dataCenterId = dataCenterId;
+        }
+    }
+
+    @Param({ "100", "1000", "10000" })
+    public int vms;
+
+    private VSphereSimulator simulator;
+    private PrivateCloud     provider;
+    private Vm               vmSupport;
+    private Template         imageSupport;
+    private HardDisk         volumeSupport;
+    private RegionDirectory  directory;
+
+    private final List<com.vmware.vim25.mo.VirtualMachine> virtualMachines = new ArrayList<com.vmware.vim25.mo.VirtualMachine>();
+    private final List<com.vmware.vim25.mo.VirtualMachine> templates       = new ArrayList<com.vmware.vim25.mo.VirtualMachine>();
+    private final List<ResourcePool>                       pools           = new ArrayList<ResourcePool>();
+    private final List<VirtualHardware>                    hardware        = new ArrayList<VirtualHardware>();
+    private final List<String>                             productIds      = new ArrayList<String>();
+    private final List<String>                             ipAddresses     = new ArrayList<String>();
+    private final List<Disk>                               disks           = new ArrayList<Disk>();
+    private final List<FileInfo>                           files           = new ArrayList<FileInfo>();
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        SimInventory.Spec spec = SimInventory.Spec.getInstance()
+                .withClusters(8)
+                .withHosts(Math.max(8, vms / 50))
+                .withDatastores(Math.max(4, vms / 200))
+                .withTemplates(Math.max(4, vms / 100))
+                .withVms(vms);
+
+        simulator = VSphereSimulator.start(SimInventory.generate(spec));
+        provider = simulator.connect(REGION);
+        vmSupport = provider.getComputeServices().getVirtualMachineSupport();
+        imageSupport = provider.getComputeServices().getImageSupport();
+        volumeSupport = provider.getComputeServices().getVolumeSupport();
+
+        // warm the inventory caches the conversions read from
+        directory = provider.getDataCenterServices().getRegionDirectory();
+        for( DataCenter dc : provider.getDataCenterServices().listDataCenters(REGION) ) {
+            provider.getComputeServices().getAffinityGroupSupport().listHostSystems(dc.getProviderDataCenterId());
+        }
+        vmSupport.listProducts("ignoreme", null);
+
+        ServiceInstance instance = provider.getServiceInstance();
+
+        if( instance == null ) {
+            throw new IllegalStateException("Unable to connect to the simulator at " + simulator.getEndpoint());
+        }
+        SimInventory inventory = simulator.getInventory();
+        PrebuiltEntities prebuilt = new PrebuiltEntities(instance.getServerConnection(), inventory);
+        int n = 0;
+
+        for( SimObject object : inventory.list("VirtualMachine") ) {
+            VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)object.get("config");
+
+            if( config.isTemplate() ) {
+                templates.add(prebuilt.toVirtualMachine(object));
+                continue;
+            }
+            virtualMachines.add(prebuilt.toVirtualMachine(object));
+            hardware.add(config.getHardware());
+            productIds.add(config.getHardware().getNumCPU() + ":" + config.getHardware().getMemoryMB());
+            ipAddresses.add(toIpAddress(n++));
+
+            SimObject pool = inventory.get((ManagedObjectReference)object.get("resourcePool"));
+            SimObject cluster = (pool == null ? null : inventory.get((ManagedObjectReference)pool.get("owner")));
+            String dataCenterId = (cluster == null ? REGION + "-a" : (String)cluster.get("name"));
+
+            for( VirtualDevice device : config.getHardware().getDevice() ) {
+                if( device instanceof VirtualDisk ) {
+                    VirtualDisk disk = (VirtualDisk)device;
+                    VmDiskFileInfo file = new VmDiskFileInfo();
+
+                    disks.add(new Disk(disk, config.getInstanceUuid(), dataCenterId));
+                    file.setPath(config.getName() + ".vmdk");
+                    file.setFileSize(disk.getCapacityInKB() * 1024L);
+                    file.setCapacityKb(disk.getCapacityInKB());
+                    file.setModification(Calendar.getInstance());
+                    files.add(file);
+                }
+            }
+        }
+        for( SimObject object : inventory.list("ResourcePool") ) {
+            pools.add((ResourcePool)prebuilt.toEntity(object));
+        }
+    }
+
+    /**
+     * Generates a mix of private (10/8, 172.16/12, 192.168/16) and public addresses.
+     * @param n the index of the address
+     * @return an IPv4 address
+     */
+    static private @Nonnull String toIpAddress(int n) {
+        int a = (n >> 8) & 255;
+        int b = n & 255;
+
+        switch( n % 4 ) {
+            case 0: return "10." + a + "." + b + ".1";
+            case 1: return "172." + (16 + (n % 32)) + "." + a + "." + b;
+            case 2: return "192.168." + a + "." + b;
+            default: return "203." + a + "." + b + ".7";
+        }
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        if( provider != null ) {
+            provider.close();
+        }
+        if( simulator != null ) {
+            simulator.stop();
+        }
+    }
+
+    public @Nonnull PrivateCloud getProvider() { return provider; }
+    public @Nonnull Vm getVmSupport() { return vmSupport; }
+    public @Nonnull Template getImageSupport() { return imageSupport; }
+    public @Nonnull HardDisk getVolumeSupport() { return volumeSupport; }
+    public @Nonnull RegionDirectory getRegionDirectory() { return directory; }
+    public @Nonnull List<com.vmware.vim25.mo.VirtualMachine> getVirtualMachines() { return virtualMachines; }
+    public @Nonnull List<com.vmware.vim25.mo.VirtualMachine> getTemplates() { return templates; }
+    public @Nonnull List<ResourcePool> getResourcePools() { return pools; }
+    public @Nonnull List<VirtualHardware> getHardware() { return hardware; }
+    public @Nonnull List<String> getProductIds() { return productIds; }
+    public @Nonnull List<String> getIpAddresses() { return ipAddresses; }
+    public @Nonnull List<Disk> getDisks() { return disks; }
+    public @Nonnull List<FileInfo> getFiles() { return files; }
+}
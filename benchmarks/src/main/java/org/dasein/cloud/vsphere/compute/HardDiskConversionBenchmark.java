@@ -0,0 +1,59 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.FileInfo;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link HardDisk#toVolume} for attached disks and for disk files found by browsing datastores.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class HardDiskConversionBenchmark {
+    @Benchmark
+    public void toVolumeFromDisk(BenchmarkInventory inventory, Blackhole hole) {
+        HardDisk support = inventory.getVolumeSupport();
+
+        for( BenchmarkInventory.Disk disk : inventory.getDisks() ) {
+            hole.consume(support.toVolume(disk.disk, disk.vmId, disk.dataCenterId, BenchmarkInventory.REGION));
+        }
+    }
+
+    @Benchmark
+    public void toVolumeFromFile(BenchmarkInventory inventory, Blackhole hole) {
+        HardDisk support = inventory.getVolumeSupport();
+
+        for( FileInfo file : inventory.getFiles() ) {
+            hole.consume(support.toVolume(file, null, BenchmarkInventory.REGION));
+        }
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vmware.vim25.GuestInfo;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import com.vmware.vim25.VirtualMachineRuntimeInfo;
+import com.vmware.vim25.mo.ComputeResource;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.ServerConnection;
+import com.vmware.vim25.mo.VirtualMachine;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Managed objects whose property getters return values captured up front instead of fetching them from vCenter,
+ * so that benchmarks measure the conversion code rather than the round trips behind the lazy vijava getters.
+ */
+public class PrebuiltEntities {
+    static public class PrebuiltVm extends VirtualMachine {
+        private final String                    name;
+        private final VirtualMachineConfigInfo  config;
+        private final VirtualMachineRuntimeInfo runtime;
+        private final GuestInfo                 guest;
+        private final ManagedEntity             parent;
+        private final ResourcePool              pool;
+
+        PrebuiltVm(@Nonnull ServerConnection connection, @Nonnull SimObject vm, @Nullable ManagedEntity parent, @Nullable ResourcePool pool) {
+            super(connection, vm.getReference());
+            this.name = (String)vm.get("name");
+            this.config = (VirtualMachineConfigInfo)vm.get("config");
+            this.runtime = (VirtualMachineRuntimeInfo)vm.get("runtime");
+            this.guest = (GuestInfo)vm.get("guest");
+            this.parent = parent;
+            this.pool = pool;
+        }
+
+        @Override public String getName() { return name; }
+        @Override public VirtualMachineConfigInfo getConfig() { return config; }
+        @Override public VirtualMachineRuntimeInfo getRuntime() { return runtime; }
+        @Override public GuestInfo getGuest() { return guest; }
+        @Override public ManagedEntity getParent() { return parent; }
+        @Override public ResourcePool getResourcePool() { return pool; }
+    }
+
+    static public class PrebuiltFolder extends Folder {
+        private final String name;
+
+        PrebuiltFolder(@Nonnull ServerConnection connection, @Nonnull ManagedObjectReference mor, @Nonnull String name) {
+            super(connection, mor);
+            this.name = name;
+        }
+
+        @Override public String getName() { return name; }
+        @Override public ManagedEntity getParent() { return null; }
+    }
+
+    static public class PrebuiltComputeResource extends ComputeResource {
+        private final String name;
+
+        PrebuiltComputeResource(@Nonnull ServerConnection connection, @Nonnull ManagedObjectReference mor, @Nonnull String name) {
+            super(connection, mor);
+            this.name = name;
+        }
+
+        @Override public String getName() { return name; }
+        @Override public ManagedEntity getParent() { return null; }
+    }
+
+    static public class PrebuiltPool extends ResourcePool {
+        private final String          name;
+        private final ManagedEntity   parent;
+        private final ComputeResource owner;
+
+        PrebuiltPool(@Nonnull ServerConnection connection, @Nonnull ManagedObjectReference mor, @Nonnull String name, @Nullable ManagedEntity parent, @Nullable ComputeResource owner) {
+            super(connection, mor);
+            this.name = name;
+            this.parent = parent;
+            this.owner = owner;
+        }
+
+        @Override public String getName() { return name; }
+        @Override public ManagedEntity getParent() { return parent; }
+        @Override public ComputeResource getOwner() { return owner; }
+    }
+
+    private final ServerConnection             connection;
+    private final SimInventory                 inventory;
+    private final Map<String,ManagedEntity>    entities = new HashMap<String, ManagedEntity>();
+
+    public PrebuiltEntities(@Nonnull ServerConnection connection, @Nonnull SimInventory inventory) {
+        this.connection = connection;
+        this.inventory = inventory;
+    }
+
+    public @Nonnull PrebuiltVm toVirtualMachine(@Nonnull SimObject vm) {
+        SimObject folder = inventory.get((ManagedObjectReference)vm.get("parent"));
+        SimObject pool = inventory.get((ManagedObjectReference)vm.get("resourcePool"));
+
+        return new PrebuiltVm(connection, vm, folder == null ? null : toEntity(folder), pool == null ? null : (ResourcePool)toEntity(pool));
+    }
+
+    /**
+     * Converts a folder, cluster or resource pool, sharing the instances between the VMs that refer to them.
+     * @param object a folder, cluster or resource pool in the simulated inventory
+     * @return the prebuilt managed object
+     */
+    public @Nonnull ManagedEntity toEntity(@Nonnull SimObject object) {
+        ManagedEntity entity = entities.get(object.getId());
+
+        if( entity != null ) {
+            return entity;
+        }
+        String name = (String)object.get("name");
+
+        if( object.getType().equals("ResourcePool") ) {
+            SimObject parent = inventory.get((ManagedObjectReference)object.get("parent"));
+            SimObject owner = inventory.get((ManagedObjectReference)object.get("owner"));
+
+            entity = new PrebuiltPool(connection, object.getReference(), name, parent == null ? null : toEntity(parent), owner == null ? null : (ComputeResource)toEntity(owner));
+        }
+        else if( SimInventory.isA(object.getType(), "ComputeResource") ) {
+            entity = new PrebuiltComputeResource(connection, object.getReference(), name);
+        }
+        else {
+            entity = new PrebuiltFolder(connection, object.getReference(), name);
+        }
+        entities.put(object.getId(), entity);
+        return entity;
+    }
+}
@@ -0,0 +1,51 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.concurrent.TimeUnit;
+
+import org.dasein.cloud.vsphere.RegionDirectory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures {@link Template#toMachineImage} over the templates of the benchmark inventory.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class TemplateConversionBenchmark {
+    @Benchmark
+    public void toMachineImage(BenchmarkInventory inventory, Blackhole hole) throws Exception {
+        Template support = inventory.getImageSupport();
+        RegionDirectory directory = inventory.getRegionDirectory();
+
+        for( com.vmware.vim25.mo.VirtualMachine template : inventory.getTemplates() ) {
+            hole.consume(support.toMachineImage(template, directory));
+        }
+    }
+}
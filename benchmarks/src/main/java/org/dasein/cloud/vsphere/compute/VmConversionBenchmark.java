@@ -0,0 +1,103 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.VirtualHardware;
+import com.vmware.vim25.mo.ResourcePool;
+import org.dasein.cloud.vsphere.Dc;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+/**
+ * Measures the VM conversion paths over every VM of the benchmark inventory: {@link Vm#toServer}, {@link Vm#toStatus},
+ * the product lookups, product listing, public address classification and resource pool id resolution.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class VmConversionBenchmark {
+    @Benchmark
+    public void toServer(BenchmarkInventory inventory, Blackhole hole) throws Exception {
+        Vm support = inventory.getVmSupport();
+
+        for( com.vmware.vim25.mo.VirtualMachine vm : inventory.getVirtualMachines() ) {
+            hole.consume(support.toServer(vm, null));
+        }
+    }
+
+    @Benchmark
+    public void toStatus(BenchmarkInventory inventory, Blackhole hole) {
+        Vm support = inventory.getVmSupport();
+
+        for( com.vmware.vim25.mo.VirtualMachine vm : inventory.getVirtualMachines() ) {
+            hole.consume(support.toStatus(vm));
+        }
+    }
+
+    @Benchmark
+    public void getProductForHardware(BenchmarkInventory inventory, Blackhole hole) throws Exception {
+        Vm support = inventory.getVmSupport();
+
+        for( VirtualHardware hardware : inventory.getHardware() ) {
+            hole.consume(support.getProduct(hardware));
+        }
+    }
+
+    @Benchmark
+    public void getProductById(BenchmarkInventory inventory, Blackhole hole) throws Exception {
+        Vm support = inventory.getVmSupport();
+
+        for( String productId : inventory.getProductIds() ) {
+            hole.consume(support.getProduct(productId));
+        }
+    }
+
+    @Benchmark
+    public Object listProducts(BenchmarkInventory inventory) throws Exception {
+        return inventory.getVmSupport().listProducts("ignoreme", null);
+    }
+
+    @Benchmark
+    public void isPublicIpAddress(BenchmarkInventory inventory, Blackhole hole) {
+        Vm support = inventory.getVmSupport();
+
+        for( String ip : inventory.getIpAddresses() ) {
+            hole.consume(support.isPublicIpAddress(ip));
+        }
+    }
+
+    @Benchmark
+    public void getIdForResourcePool(BenchmarkInventory inventory, Blackhole hole) {
+        Dc dc = inventory.getProvider().getDataCenterServices();
+
+        for( ResourcePool pool : inventory.getResourcePools() ) {
+            hole.consume(dc.getIdForResourcePool(pool));
+        }
+    }
+}
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.ClusterComputeResourceSummary;
+import com.vmware.vim25.HostListSummaryQuickStats;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A snapshot of the compute capacity of every cluster in one vSphere data center, built from a single property
+ * collector retrieval of the cluster summaries and the quick stats of their hosts. Clusters report what they can
+ * offer (effective CPU and memory) but not what is in use, so usage is summed up from the hosts.
+ * @since 2015.09
+ */
+public class ClusterCapacity {
+    /**
+     * The property paths {@link #build(List)} expects when retrieving from the data center.
+     */
+    static public final String[][] PROPERTIES = new String[][] {
+            { "ClusterComputeResource", "name", "summary", "host" },
+            { "HostSystem", "summary.quickStats", "runtime.inMaintenanceMode" }
+    };
+
+    /**
+     * The capacity of one cluster. CPU figures are in MHz, memory figures in MB.
+     */
+    static public class Cluster {
+        private final String name;
+        private final long   effectiveCpu;
+        private final long   effectiveMemory;
+        private final int    cpuCores;
+        private long         usedCpu;
+        private long         usedMemory;
+
+        private Cluster(@Nonnull String name, long effectiveCpu, long effectiveMemory, int cpuCores) {
+            this.name = name;
+            this.effectiveCpu = effectiveCpu;
+            this.effectiveMemory = effectiveMemory;
+            this.cpuCores = cpuCores;
+        }
+
+        public @Nonnull String getName() {
+            return name;
+        }
+
+        public long getEffectiveCpu() {
+            return effectiveCpu;
+        }
+
+        public long getEffectiveMemory() {
+            return effectiveMemory;
+        }
+
+        public long getUsedCpu() {
+            return usedCpu;
+        }
+
+        public long getUsedMemory() {
+            return usedMemory;
+        }
+
+        public long getAvailableCpu() {
+            return Math.max(0L, effectiveCpu - usedCpu);
+        }
+
+        public long getAvailableMemory() {
+            return Math.max(0L, effectiveMemory - usedMemory);
+        }
+
+        /**
+         * @return the effective MHz of one core, for converting a virtual CPU count into a CPU demand
+         */
+        public long getCpuPerCore() {
+            return (cpuCores < 1 ? 0L : effectiveCpu / cpuCores);
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return name + " [cpu=" + usedCpu + "/" + effectiveCpu + " MHz,memory=" + usedMemory + "/" + effectiveMemory + " MB]";
+        }
+    }
+
+    static public @Nonnull ClusterCapacity build(@Nonnull List<ObjectContent> inventory) {
+        Map<String,Cluster> byHost = new HashMap<String, Cluster>();
+        List<Cluster> clusters = new ArrayList<Cluster>();
+
+        for( ObjectContent content : inventory ) {
+            if( !content.getObj().getType().equals("ClusterComputeResource") ) {
+                continue;
+            }
+            Object summary = PropertyRetriever.getValue(content, "summary");
+            String name = PropertyRetriever.getString(content, "name");
+
+            if( name == null || !(summary instanceof ClusterComputeResourceSummary) ) {
+                continue;
+            }
+            ClusterComputeResourceSummary s = (ClusterComputeResourceSummary)summary;
+            Cluster cluster = new Cluster(name, s.getEffectiveCpu(), s.getEffectiveMemory(), s.getNumCpuCores());
+
+            clusters.add(cluster);
+            for( ManagedObjectReference host : PropertyRetriever.getReferences(content, "host") ) {
+                byHost.put(PropertyRetriever.toKey(host), cluster);
+            }
+        }
+        for( ObjectContent content : inventory ) {
+            Cluster cluster = byHost.get(PropertyRetriever.toKey(content.getObj()));
+            Object stats = PropertyRetriever.getValue(content, "summary.quickStats");
+
+            // hosts in maintenance mode are not part of the effective capacity and neither is their usage
+            if( cluster == null || Boolean.TRUE.equals(PropertyRetriever.getValue(content, "runtime.inMaintenanceMode")) ) {
+                continue;
+            }
+            if( stats instanceof HostListSummaryQuickStats ) {
+                HostListSummaryQuickStats q = (HostListSummaryQuickStats)stats;
+
+                cluster.usedCpu += (q.getOverallCpuUsage() == null ? 0 : q.getOverallCpuUsage());
+                cluster.usedMemory += (q.getOverallMemoryUsage() == null ? 0 : q.getOverallMemoryUsage());
+            }
+        }
+        return new ClusterCapacity(clusters);
+    }
+
+    private final Map<String,Cluster> clusters = new HashMap<String, Cluster>();
+    private final long                timestamp;
+
+    private ClusterCapacity(@Nonnull List<Cluster> clusters) {
+        for( Cluster c : clusters ) {
+            this.clusters.put(c.getName(), c);
+        }
+        this.timestamp = System.currentTimeMillis();
+    }
+
+    /**
+     * @param name the cluster name (which is the Dasein data center ID of the cluster)
+     * @return the capacity of the cluster or <code>null</code> if the data center has no such cluster
+     */
+    public @Nullable Cluster getCluster(@Nonnull String name) {
+        return clusters.get(name);
+    }
+
+    public @Nonnull List<Cluster> listClusters() {
+        return Collections.unmodifiableList(new ArrayList<Cluster>(clusters.values()));
+    }
+
+    /**
+     * @return when the snapshot was taken
+     */
+    public long getTimestamp() {
+        return timestamp;
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import com.vmware.vim25.DatastoreHostMount;
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import org.dasein.cloud.dc.StoragePool;
+import org.dasein.util.uom.storage.Megabyte;
+import org.dasein.util.uom.storage.Storage;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Builds the storage pool view of a vSphere data center from a single property collector retrieval of every
+ * datastore's summary and host mounts along with the host and cluster names. A pool is tied to a host (affinity
+ * group) only when exactly one host mounts it and to a cluster (Dasein data center) only when all of its hosts
+ * belong to the same cluster.
+ * @since 2015.09
+ */
+public class DatastoreInventory {
+    /**
+     * The property paths {@link #build(List, String, Collection)} expects when retrieving from the data center.
+     */
+    static public final String[][] PROPERTIES = new String[][] {
+            { "Datastore", "name", "summary", "host" },
+            { "HostSystem", "name", "parent" },
+            { "ComputeResource", "name" }
+    };
+
+    static private class Pool {
+        String           name;
+        DatastoreSummary summary;
+        DatastoreHostMount[] mounts;
+    }
+
+    /**
+     * Computes the storage pools of the region.
+     * @param inventory the retrieved inventory
+     * @param regionId the region the inventory was retrieved from
+     * @param dataCenterIds the clusters known as Dasein data centers; mounts on hosts outside them are ignored
+     * @return an unmodifiable list of storage pools in the order vCenter reported the datastores
+     */
+    static public @Nonnull List<StoragePool> build(@Nonnull List<ObjectContent> inventory, @Nonnull String regionId, @Nonnull Collection<String> dataCenterIds) {
+        Map<String,String> names = new HashMap<String, String>();
+        Map<String,ManagedObjectReference> hostParents = new HashMap<String, ManagedObjectReference>();
+        Map<String,Pool> pools = new LinkedHashMap<String, Pool>();
+
+        for( ObjectContent content : inventory ) {
+            ManagedObjectReference mor = content.getObj();
+            String key = PropertyRetriever.toKey(mor);
+            String name = PropertyRetriever.getString(content, "name");
+
+            if( mor.getType().equals("Datastore") ) {
+                if( name != null && !pools.containsKey(name) ) {
+                    Pool pool = new Pool();
+                    Object mounts = PropertyRetriever.getValue(content, "host");
+
+                    pool.name = name;
+                    pool.summary = (DatastoreSummary)PropertyRetriever.getValue(content, "summary");
+                    pool.mounts = (mounts instanceof DatastoreHostMount[] ? (DatastoreHostMount[])mounts : new DatastoreHostMount[0]);
+                    pools.put(name, pool);
+                }
+                continue;
+            }
+            if( name != null ) {
+                names.put(key, name);
+            }
+            if( mor.getType().equals("HostSystem") ) {
+                ManagedObjectReference parent = PropertyRetriever.getReference(content, "parent");
+
+                if( parent != null ) {
+                    hostParents.put(key, parent);
+                }
+            }
+        }
+        Set<String> clusters = new HashSet<String>(dataCenterIds);
+        ArrayList<StoragePool> list = new ArrayList<StoragePool>();
+
+        for( Pool pool : pools.values() ) {
+            String hostName = null;
+            String dataCenterId = null;
+            int hostCount = 0;
+            boolean sameCluster = true;
+
+            for( DatastoreHostMount mount : pool.mounts ) {
+                String hostKey = PropertyRetriever.toKey(mount.getKey());
+                ManagedObjectReference parent = hostParents.get(hostKey);
+                String clusterName = (parent == null ? null : names.get(PropertyRetriever.toKey(parent)));
+
+                if( clusterName == null || !clusters.contains(clusterName) ) {
+                    continue;
+                }
+                if( hostCount == 0 ) {
+                    hostName = names.get(hostKey);
+                    dataCenterId = clusterName;
+                }
+                else if( !clusterName.equals(dataCenterId) ) {
+                    sameCluster = false;
+                }
+                hostCount++;
+            }
+            if( hostCount > 0 ) {
+                list.add(toStoragePool(pool, (hostCount == 1 ? hostName : null), (sameCluster ? dataCenterId : null), regionId));
+            }
+        }
+        return Collections.unmodifiableList(list);
+    }
+
+    static private @Nonnull StoragePool toStoragePool(@Nonnull Pool pool, @Nullable String hostName, @Nullable String dataCenterId, @Nonnull String regionId) {
+        StoragePool sp = new StoragePool();
+
+        sp.setAffinityGroupId(hostName);
+        sp.setDataCenterId(dataCenterId);
+        sp.setRegionId(regionId);
+        sp.setStoragePoolName(pool.name);
+        sp.setStoragePoolId(pool.name);
+
+        long capacityBytes = (pool.summary == null ? 0L : pool.summary.getCapacity());
+        long freeBytes = (pool.summary == null ? 0L : pool.summary.getFreeSpace());
+        long provisioned = capacityBytes-freeBytes;
+
+        sp.setCapacity((Storage<Megabyte>)new Storage<org.dasein.util.uom.storage.Byte>(capacityBytes, Storage.BYTE).convertTo(Storage.MEGABYTE));
+        sp.setFreeSpace((Storage<Megabyte>)new Storage<org.dasein.util.uom.storage.Byte>(freeBytes, Storage.BYTE).convertTo(Storage.MEGABYTE));
+        sp.setProvisioned((Storage<Megabyte>)new Storage<org.dasein.util.uom.storage.Byte>(provisioned, Storage.BYTE).convertTo(Storage.MEGABYTE));
+        return sp;
+    }
+}
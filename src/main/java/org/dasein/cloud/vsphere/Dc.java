@@ -35,18 +35,13 @@ import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.dc.*;
 
 import com.vmware.vim25.mo.Datacenter;
-import com.vmware.vim25.mo.Datastore;
 import com.vmware.vim25.mo.Folder;
-import com.vmware.vim25.mo.HostSystem;
 import com.vmware.vim25.mo.InventoryNavigator;
 import com.vmware.vim25.mo.ManagedEntity;
 import com.vmware.vim25.mo.ServiceInstance;
-import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.vsphere.metrics.OperationTrace;
 import org.dasein.cloud.util.CacheLevel;
-import org.dasein.cloud.vsphere.compute.Host;
-import org.dasein.util.uom.storage.Megabyte;
-import org.dasein.util.uom.storage.Storage;
+import org.dasein.util.uom.time.Hour;
 import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.TimePeriod;
 
@@ -55,6 +50,12 @@ import javax.annotation.Nullable;
 import javax.servlet.http.HttpServletResponse;
 
 public class Dc extends AbstractDataCenterServices<PrivateCloud> {
+    /**
+     * The cluster properties the data centers of a region and their root resource pools are read from.
+     */
+    static private final String[][] CLUSTER_PROPERTIES = new String[][] {
+            { "ClusterComputeResource", "name", "overallStatus", "resourcePool" }
+    };
 
     Dc(@Nonnull PrivateCloud cloud) {
         super(cloud);
@@ -81,7 +82,7 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
 
     @Override
     public @Nullable DataCenter getDataCenter(@Nonnull String dcId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.getDataCenter");
+        OperationTrace.begin(getProvider(), "DC.getDataCenter");
         try {
             String regionId = getContext().getRegionId();
 
@@ -96,7 +97,7 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -112,16 +113,52 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
 
     @Override
     public @Nullable Region getRegion(@Nonnull String regionId) throws InternalException, CloudException {
-        for( Region region : listRegions() ) {
-            if( region.getProviderRegionId().equals(regionId) ) {
-                return region;
-            }
+        return getRegionDirectory().getRegion(regionId);
+    }
+
+    /**
+     * Provides the cached directory of vSphere data centers, including the data center each VM, template and folder
+     * belongs to. The directory is shared by all services of this provider and rebuilt when it expires or when
+     * {@link #refreshRegionDirectory()} is called after an entity could not be found in it.
+     * @return the current region directory
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    public @Nonnull RegionDirectory getRegionDirectory() throws InternalException, CloudException {
+        return getRegionDirectoryCache().get(getContext(), new RegionDirectoryLoader()).iterator().next();
+    }
+
+    /**
+     * Rebuilds the region directory from vSphere and replaces the cached copy.
+     * @return the new region directory
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    public @Nonnull RegionDirectory refreshRegionDirectory() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "DC.refreshRegionDirectory");
+        try {
+            return getRegionDirectoryCache().reload(getContext(), new RegionDirectoryLoader()).iterator().next();
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    private @Nonnull InventoryCache<RegionDirectory> getRegionDirectoryCache() {
+        return InventoryCache.getInstance(getProvider(), "regionDirectory", RegionDirectory.class, CacheLevel.CLOUD_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
+    }
+
+    private class RegionDirectoryLoader implements InventoryCache.Loader<RegionDirectory> {
+        @Override
+        public @Nonnull Collection<RegionDirectory> load() throws CloudException, InternalException {
+            ServiceInstance instance = getServiceInstance();
+
+            return Collections.singletonList(RegionDirectory.build(PropertyRetriever.retrieve(instance, instance.getRootFolder(), RegionDirectory.PROPERTIES)));
         }
-        return null;
     }
 
     public @Nullable ResourcePool getResourcePoolFromClusterId(@Nonnull ServiceInstance service, @Nonnull String dcId) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "DC.getResourcePoolFromClusterId");
+        OperationTrace.begin(getProvider(), "DC.getResourcePoolFromClusterId");
         try {
             ServiceInstance instance = getServiceInstance();
 
@@ -135,38 +172,29 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             if( dc == null ) {
                 return null;
             }
+            for( ObjectContent content : PropertyRetriever.retrieve(instance, dc, CLUSTER_PROPERTIES) ) {
+                if( dcId.equals(PropertyRetriever.getString(content, "name")) ) {
+                    ManagedObjectReference pool = PropertyRetriever.getReference(content, "resourcePool");
 
-            ManagedEntity[] clusters;
-
-            try {
-                clusters = new InventoryNavigator(dc).searchManagedEntities("ClusterComputeResource");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No cluster support in datacenter: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
-            }
-            for( ManagedEntity entity : clusters ) {
-                ClusterComputeResource cluster = (ClusterComputeResource)entity;
-
-                if( cluster.getName().equals(dcId) ) {
-                    return cluster.getResourcePool();
+                    return (pool == null ? null : new ResourcePool(instance.getServerConnection(), pool));
                 }
             }
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     public @Nullable Datacenter getVmwareDatacenterFromVDCId(@Nonnull ServiceInstance service, @Nonnull String dcId) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "DC.getVmwareDatacenterFromVDCId");
+        OperationTrace.begin(getProvider(), "DC.getVmwareDatacenterFromVDCId");
         try {
+            ManagedObjectReference mor = getRegionDirectory().getDatacenter(dcId);
+
+            if( mor != null ) {
+                return new Datacenter(service.getServerConnection(), mor);
+            }
+            // not a known data center name (callers also pass cluster names here), so fall back to a search
             Folder rootFolder = service.getRootFolder();
 
             try {
@@ -183,45 +211,42 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
-    public @Nonnull Collection<DataCenter> listDataCenters(@Nonnull String regionId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.listDataCenters");
+    public @Nonnull Collection<DataCenter> listDataCenters(@Nonnull final String regionId) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "DC.listDataCenters");
         try {
-            Cache<DataCenter> cache = Cache.getInstance(getProvider(), "dataCenters", DataCenter.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
-            Collection<DataCenter> dcs = (Collection<DataCenter>)cache.get(getContext());
-
-            if( dcs == null ) {
-                dcs = listDataCentersFromClusters(regionId);
-                if (dcs != null && dcs.size() > 0) {
-                    cache.put(getContext(), dcs);
+            InventoryCache<DataCenter> cache = InventoryCache.getInstance(getProvider(), "dataCenters", DataCenter.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
+
+            return cache.get(getContext(), new InventoryCache.Loader<DataCenter>() {
+                @Override
+                public @Nonnull Collection<DataCenter> load() throws CloudException, InternalException {
+                    Collection<DataCenter> dcs = listDataCentersFromClusters(regionId);
+
+                    if( dcs.isEmpty() ) {
+                        // create a dummy dc based on the region (vSphere datacenter)
+                        DataCenter dc = new DataCenter();
+                        dc.setAvailable(true);
+                        dc.setActive(true);
+                        dc.setName(regionId);
+                        dc.setRegionId(regionId);
+                        dc.setProviderDataCenterId(regionId+"-a");
+                        dcs.add(dc);
+                    }
                     return dcs;
                 }
-                else {
-                    // create a dummy dc based on the region (vSphere datacenter)
-                    DataCenter dc = new DataCenter();
-                    dc.setAvailable(true);
-                    dc.setActive(true);
-                    dc.setName(regionId);
-                    dc.setRegionId(regionId);
-                    dc.setProviderDataCenterId(regionId+"-a");
-                    dcs.add(dc);
-                    cache.put(getContext(), dcs);
-                    return Collections.singletonList(dc);
-                }
-            }
-            return dcs;
+            });
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     private @Nonnull Collection<DataCenter> listDataCentersFromClusters(@Nonnull String regionId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.listDataCentersFromClusters");
+        OperationTrace.begin(getProvider(), "DC.listDataCentersFromClusters");
         try {
             ArrayList<DataCenter> dataCenters = new ArrayList<DataCenter>();
             ServiceInstance instance = getServiceInstance();
@@ -230,45 +255,36 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             if( dc == null ) {
                 throw new CloudException("No such dc: " + regionId);
             }
-
-            ManagedEntity[] clusters;
-
-            try {
-                clusters = new InventoryNavigator(dc).searchManagedEntities("ClusterComputeResource");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No cluster support in datacenter: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
-            }
-            for( ManagedEntity entity : clusters ) {
-                ClusterComputeResource cluster = (ClusterComputeResource)entity;
-                DataCenter dataCenter = toDataCenter(cluster, regionId);
+            // one retrieval for all clusters instead of reading the name and status of each cluster separately
+            for( ObjectContent content : PropertyRetriever.retrieve(instance, dc, CLUSTER_PROPERTIES) ) {
+                Object status = PropertyRetriever.getValue(content, "overallStatus");
+                DataCenter dataCenter = toDataCenter(PropertyRetriever.getString(content, "name"), status instanceof ManagedEntityStatus ? (ManagedEntityStatus)status : null, regionId);
 
                 if( dataCenter != null ) {
                     dataCenters.add(dataCenter);
                 }
-
             }
             return dataCenters;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public @Nonnull Collection<Region> listRegions() throws InternalException, CloudException {
-        return listRegionsFromVDCs();
+        OperationTrace.begin(getProvider(), "DC.listRegions");
+        try {
+            return getRegionDirectory().listRegions();
+        }
+        finally {
+            OperationTrace.end();
+        }
     }
 
     @Override
     public Collection<org.dasein.cloud.dc.ResourcePool> listResourcePools(String providerDataCenterId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.listResourcePools");
+        OperationTrace.begin(getProvider(), "DC.listResourcePools");
         try {
             ArrayList<org.dasein.cloud.dc.ResourcePool> list = new ArrayList<org.dasein.cloud.dc.ResourcePool>();
             Iterable<ResourcePool> rps;
@@ -290,12 +306,12 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             return list;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     private Collection<ResourcePool> listResourcePoolsForCluster(String providerDataCenterId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.listResourcePoolsForCluster");
+        OperationTrace.begin(getProvider(), "DC.listResourcePoolsForCluster");
         try {
             ServiceInstance instance = getServiceInstance();
             DataCenter dsdc = getDataCenter(providerDataCenterId);
@@ -342,12 +358,12 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             return list;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     private void getChildren(ResourcePool[] pools, ArrayList<ResourcePool> list) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "DC.getChildren(ResourcePool[])");
+        OperationTrace.begin(getProvider(), "DC.getChildren(ResourcePool[])");
         try {
             try {
                 for (ResourcePool r : pools) {
@@ -368,39 +384,12 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
-        }
-    }
-
-    private void getFolderChildren(Folder folder, List<Folder> list) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "DC.getFolderChildren(Folder)");
-        try {
-            try {
-                ManagedEntity[] children = folder.getChildEntity();
-                for (ManagedEntity child : children) {
-                    if (child instanceof Folder) {
-                        list.add((Folder)child);
-                        getFolderChildren((Folder)child, list);
-                    }
-                }
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No resource pool support in cluster: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
-            }
-        }
-        finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     private Collection<ResourcePool> listResourcePoolsForDatacenter(String dataCenterId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.listResourcePoolsForDatacenter");
+        OperationTrace.begin(getProvider(), "DC.listResourcePoolsForDatacenter");
         try {
             ServiceInstance instance = getServiceInstance();
             DataCenter dsdc = getDataCenter(dataCenterId);
@@ -437,13 +426,13 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             return list;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public org.dasein.cloud.dc.ResourcePool getResourcePool(String providerResourcePoolId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.getResourcePool");
+        OperationTrace.begin(getProvider(), "DC.getResourcePool");
         try {
             Iterable<DataCenter> dcs = listDataCenters(getContext().getRegionId());
 
@@ -458,59 +447,48 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public Collection<StoragePool> listStoragePools() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.listStoragePools");
+        OperationTrace.begin(getProvider(), "DC.listStoragePools");
         try {
-            Cache<StoragePool> cache = Cache.getInstance(getProvider(), "storagePools", StoragePool.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
-            Collection<StoragePool> pools = (Collection<StoragePool>)cache.get(getContext());
-
-            if( pools == null ) {
-                pools = new ArrayList<StoragePool>();
-                ArrayList<String> datastoreNames = new ArrayList<String>();
-                Host hostSupport = getProvider().getComputeServices().getAffinityGroupSupport();
-
-                for (DataCenter dataCenter : listDataCenters(getContext().getRegionId())) {
-                    boolean sameDC = false;
-                    for (HostSystem host : hostSupport.listHostSystems(dataCenter.getProviderDataCenterId())) {
-                        Iterable<Datastore> datastores = hostSupport.listDatastoresForHost(host);
-                        for (Datastore ds: datastores) {
-                            if (!datastoreNames.contains(ds.getName())) {
-                                datastoreNames.add(ds.getName());
-                                StoragePool sp = toStoragePool(ds, host.getName(), dataCenter.getProviderDataCenterId());
-                                pools.add(sp);
-                            }
-                            else {
-                                for (StoragePool storagePool: pools) {
-                                    if (storagePool.getStoragePoolName().equals(ds.getName())) {
-                                        storagePool.setAffinityGroupId(null);
-                                        if (!sameDC) {
-                                            storagePool.setDataCenterId(null);
-                                        }
-                                    }
-                                }
-                            }
-                        }
-                        sameDC = true;
-                    }
+            InventoryCache<StoragePool> cache = InventoryCache.getInstance(getProvider(), "storagePools", StoragePool.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Hour>(1, TimePeriod.HOUR), new TimePeriod<Minute>(5, TimePeriod.MINUTE));
+
+            return cache.get(getContext(), new InventoryCache.Loader<StoragePool>() {
+                @Override
+                public @Nonnull Collection<StoragePool> load() throws CloudException, InternalException {
+                    return loadStoragePools();
                 }
-                cache.put(getContext(), pools);
-            }
-            return pools;
+            });
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
+        }
+    }
+
+    private @Nonnull Collection<StoragePool> loadStoragePools() throws InternalException, CloudException {
+        ProviderContext ctx = getContext();
+        ServiceInstance instance = getServiceInstance();
+        Datacenter dc = getVmwareDatacenterFromVDCId(instance, ctx.getRegionId());
+
+        if( dc == null ) {
+            throw new CloudException("No such dc: " + ctx.getRegionId());
         }
+        ArrayList<String> dataCenterIds = new ArrayList<String>();
+
+        for( DataCenter dataCenter : listDataCenters(ctx.getRegionId()) ) {
+            dataCenterIds.add(dataCenter.getProviderDataCenterId());
+        }
+        return DatastoreInventory.build(PropertyRetriever.retrieve(instance, dc, DatastoreInventory.PROPERTIES), ctx.getRegionId(), dataCenterIds);
     }
 
     @Nonnull
     @Override
     public StoragePool getStoragePool(String providerStoragePoolId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.getStoragePool");
+        OperationTrace.begin(getProvider(), "DC.getStoragePool");
         try {
             Collection<StoragePool> pools = listStoragePools();
             for (StoragePool pool : pools) {
@@ -521,90 +499,145 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull
     @Override
     public Collection<org.dasein.cloud.dc.Folder> listVMFolders() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.listVMFolders");
+        OperationTrace.begin(getProvider(), "DC.listVMFolders");
         try {
-            ProviderContext ctx = getContext();
-            List<Folder> vsphereList = new ArrayList<Folder>();
-            List<org.dasein.cloud.dc.Folder> list = new ArrayList<org.dasein.cloud.dc.Folder>();
-
-            ServiceInstance instance = getServiceInstance();
-            Datacenter dc = getVmwareDatacenterFromVDCId(instance, ctx.getRegionId());
-
-            if( dc == null ) {
-                throw new CloudException("No such dc: " + ctx.getRegionId());
-            }
-            try {
-                Folder vmFolder = dc.getVmFolder();
-                getFolderChildren(vmFolder, vsphereList);
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No cluster support in datacenter: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
-            }
-            for (Folder folder : vsphereList) {
-                org.dasein.cloud.dc.Folder f = toFolder(folder, FolderType.VM, true);
-                if (f != null) {
-                    list.add(f);
-                }
-            }
-            return list;
+            return new ArrayList<org.dasein.cloud.dc.Folder>(getVmFolderTree().listFolders());
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull
     @Override
     public org.dasein.cloud.dc.Folder getVMFolder(String providerVMFolderId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.getVMFolder");
+        OperationTrace.begin(getProvider(), "DC.getVMFolder");
         try {
-            ProviderContext ctx = getContext();
-            ServiceInstance instance = getServiceInstance();
-            Datacenter dc = getVmwareDatacenterFromVDCId(instance, ctx.getRegionId());
+            return getVmFolderTree().getFolder(providerVMFolderId);
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
 
-            if( dc == null ) {
-                throw new CloudException("No such dc: " + ctx.getRegionId());
-            }
-            try {
-                ManagedEntity tmp = new InventoryNavigator(dc.getVmFolder()).searchManagedEntity("Folder", providerVMFolderId);
-                if (tmp != null) {
-                    org.dasein.cloud.dc.Folder folder = toFolder((Folder)tmp, FolderType.VM, true);
-                    if (folder.getId().equals(providerVMFolderId)) {
-                        return folder;
+    /**
+     * Provides the VM folder hierarchy of the current region, cached and fetched with a single retrieval.
+     * @return the folder tree below the region's VM folder
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    public @Nonnull VmFolderTree getVmFolderTree() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "DC.getVmFolderTree");
+        try {
+            InventoryCache<VmFolderTree> cache = InventoryCache.getInstance(getProvider(), "vmFolders", VmFolderTree.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
+
+            return cache.get(getContext(), new InventoryCache.Loader<VmFolderTree>() {
+                @Override
+                public @Nonnull Collection<VmFolderTree> load() throws CloudException, InternalException {
+                    ProviderContext ctx = getContext();
+                    ServiceInstance instance = getServiceInstance();
+                    Datacenter dc = getVmwareDatacenterFromVDCId(instance, ctx.getRegionId());
+
+                    if( dc == null ) {
+                        throw new CloudException("No such dc: " + ctx.getRegionId());
                     }
+                    return Collections.singletonList(VmFolderTree.build(PropertyRetriever.retrieve(instance, dc, VmFolderTree.PROPERTIES)));
+                }
+            }).iterator().next();
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * Provides the CPU and memory capacity of the clusters in the current region, cached and fetched with a single
+     * retrieval. The snapshot is kept for a few minutes only since usage moves much faster than the folder tree.
+     * @return the capacity of every cluster in the region
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    public @Nonnull ClusterCapacity getClusterCapacity() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "DC.getClusterCapacity");
+        try {
+            InventoryCache<ClusterCapacity> cache = InventoryCache.getInstance(getProvider(), "clusterCapacity", ClusterCapacity.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(5, TimePeriod.MINUTE), new TimePeriod<Minute>(5, TimePeriod.MINUTE));
+
+            return cache.get(getContext(), new InventoryCache.Loader<ClusterCapacity>() {
+                @Override
+                public @Nonnull Collection<ClusterCapacity> load() throws CloudException, InternalException {
+                    ProviderContext ctx = getContext();
+                    ServiceInstance instance = getServiceInstance();
+                    Datacenter dc = getVmwareDatacenterFromVDCId(instance, ctx.getRegionId());
+
+                    if( dc == null ) {
+                        throw new CloudException("No such dc: " + ctx.getRegionId());
+                    }
+                    return Collections.singletonList(ClusterCapacity.build(PropertyRetriever.retrieve(instance, dc, ClusterCapacity.PROPERTIES)));
+                }
+            }).iterator().next();
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * Identifies the folder new VMs should be placed in.
+     * @param service the connection to bind the folder to
+     * @param dc the data center the VM is launched into
+     * @param folderId the name or path of the requested folder, if any
+     * @return the requested folder or the data center's VM folder if none was requested or it could not be found
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    public @Nonnull Folder resolveVmFolder(@Nonnull ServiceInstance service, @Nonnull Datacenter dc, @Nullable String folderId) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "DC.resolveVmFolder");
+        try {
+            String regionId = getRegionDirectory().getRegionId(dc.getMOR());
+
+            if( regionId != null && regionId.equals(getContext().getRegionId()) ) {
+                VmFolderTree tree = getVmFolderTree();
+                ManagedObjectReference mor = (folderId == null ? tree.getRoot() : tree.findFolder(folderId));
+
+                if( mor != null ) {
+                    return new Folder(service.getServerConnection(), mor);
                 }
-                return null;
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No cluster support in region: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to region: " + e.getMessage());
             }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in region processing request: " + e.getMessage());
+            // another region or a folder created since the tree was fetched
+            Folder vmFolder = dc.getVmFolder();
+
+            if( folderId != null ) {
+                ManagedEntity tmp = new InventoryNavigator(vmFolder).searchManagedEntity("Folder", folderId);
+
+                if( tmp != null ) {
+                    vmFolder = (Folder)tmp;
+                }
             }
+            return vmFolder;
+        }
+        catch( InvalidProperty e ) {
+            throw new CloudException("No folder support in region: " + e.getMessage());
+        }
+        catch( RuntimeFault e ) {
+            throw new CloudException("Error in processing request to region: " + e.getMessage());
+        }
+        catch( RemoteException e ) {
+            throw new CloudException("Error in region processing request: " + e.getMessage());
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     public ResourcePool getVMWareResourcePool(String providerResourcePoolId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.getVMWareResourcePool");
+        OperationTrace.begin(getProvider(), "DC.getVMWareResourcePool");
         try {
             Iterable<DataCenter> dcs = listDataCenters(getContext().getRegionId());
             Iterable<ResourcePool> rps;
@@ -624,79 +657,25 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
             return null;
         }
         finally {
-            APITrace.end();
-        }
-    }
-
-    private @Nonnull Collection<Region> listRegionsFromVDCs() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "DC.listRegionsFromVDCs");
-        try {
-            ArrayList<Region> regions = new ArrayList<Region>();
-            ServiceInstance instance = getServiceInstance();
-
-            Folder rootFolder = instance.getRootFolder();
-            ManagedEntity[] mes;
-
-            try {
-                mes = new InventoryNavigator(rootFolder).searchManagedEntities("Datacenter");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No datacenter support: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
-            }
-
-            if( mes == null || mes.length < 1 ) {
-                return regions;
-            }
-            for( ManagedEntity entity : mes ) {
-                Region r = toRegion((Datacenter) entity);
-
-                if( r != null ) {
-                    regions.add(r);
-                }
-            }
-            return regions;
-        }
-        finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
-    private @Nullable DataCenter toDataCenter(@Nullable ClusterComputeResource cluster, @Nonnull String regionId) {
-        if( cluster == null ) {
+    private @Nullable DataCenter toDataCenter(@Nullable String clusterName, @Nullable ManagedEntityStatus status, @Nonnull String regionId) {
+        if( clusterName == null ) {
             return null;
         }
-        ManagedEntityStatus status = cluster.getOverallStatus();
         DataCenter dc = new DataCenter();
 
         dc.setActive(true);
-        dc.setActive(!status.equals(ManagedEntityStatus.red));
+        dc.setActive(!ManagedEntityStatus.red.equals(status));
         dc.setAvailable(true);
-        dc.setName(cluster.getName());
-        dc.setProviderDataCenterId(cluster.getName());
+        dc.setName(clusterName);
+        dc.setProviderDataCenterId(clusterName);
         dc.setRegionId(regionId);
         return dc;
     }
 
-    private @Nullable Region toRegion(@Nullable Datacenter dc) {
-        if(dc == null ) {
-            return null;
-        }
-        Region region = new Region();
-
-        region.setActive(true);
-        region.setAvailable(true);
-        region.setJurisdiction("US");
-        region.setName(dc.getName());
-        region.setProviderRegionId(dc.getName());
-        return region;
-    }
-
     private org.dasein.cloud.dc.ResourcePool toResourcePool(@Nonnull ResourcePool resourcePool, @Nonnull String dataCenterId) {
         org.dasein.cloud.dc.ResourcePool rp = new org.dasein.cloud.dc.ResourcePool();
         rp.setName(resourcePool.getName());
@@ -739,59 +718,4 @@ public class Dc extends AbstractDataCenterServices<PrivateCloud> {
         }
         return id;
     }
-
-    private StoragePool toStoragePool(Datastore ds, String hostName, String datacenter) throws InternalException {
-        StoragePool sp = new StoragePool();
-        sp.setAffinityGroupId(hostName);
-        sp.setDataCenterId(datacenter);
-        sp.setRegionId(getContext().getRegionId());
-        sp.setStoragePoolName(ds.getName());
-        sp.setStoragePoolId(ds.getName());
-
-        DatastoreSummary info = ds.getSummary();
-        long capacityBytes = info.getCapacity();
-        long freeBytes = info.getFreeSpace();
-        long provisioned = capacityBytes-freeBytes;
-        sp.setCapacity((Storage<Megabyte>)new Storage<org.dasein.util.uom.storage.Byte>(capacityBytes, Storage.BYTE).convertTo(Storage.MEGABYTE));
-        sp.setFreeSpace((Storage<Megabyte>)new Storage<org.dasein.util.uom.storage.Byte>(freeBytes, Storage.BYTE).convertTo(Storage.MEGABYTE));
-        sp.setProvisioned((Storage<Megabyte>)new Storage<org.dasein.util.uom.storage.Byte>(provisioned, Storage.BYTE).convertTo(Storage.MEGABYTE));
-        return sp;
-    }
-
-    private org.dasein.cloud.dc.Folder toFolder(Folder folder, FolderType type, boolean checkRecursive) throws CloudException, InternalException{
-        org.dasein.cloud.dc.Folder f = new org.dasein.cloud.dc.Folder();
-        f.setId(folder.getName());
-        f.setName(folder.getName());
-        f.setType(type);
-
-        if (checkRecursive) {
-            ManagedEntity parent = folder.getParent();
-            if (parent instanceof Folder) {
-                org.dasein.cloud.dc.Folder parentFolder = toFolder((Folder)parent, type, false);
-                f.setParent(parentFolder);
-            }
-
-            try {
-                List<org.dasein.cloud.dc.Folder> childFolders = new ArrayList<org.dasein.cloud.dc.Folder>();
-                ManagedEntity[] children = folder.getChildEntity();
-                for (ManagedEntity child : children) {
-                    if (child instanceof Folder) {
-                        org.dasein.cloud.dc.Folder childFolder = toFolder((Folder) child, type, false);
-                        childFolders.add(childFolder);
-                    }
-                }
-                f.setChildren(childFolders);
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No folder support: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in folder processing request: " + e.getMessage());
-            }
-        }
-        return f;
-    }
-}
\ No newline at end of file
+}
@@ -0,0 +1,533 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.util.uom.time.TimePeriod;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Caches inventory snapshots loaded from vSphere, loading each entry at most once at a time. When an entry is
+ * missing the first caller loads it while concurrent callers for the same cache and context wait for that load and
+ * share its result (or its failure) instead of sending the same inventory traversal to vCenter.
+ * <p>
+ * Entries are refreshed ahead of their expiry: once an entry has passed {@link #REFRESH_AHEAD} of its timeout the
+ * next caller schedules a reload on a background thread and keeps getting the current snapshot. An expired entry is
+ * still served while it is being reloaded, for up to the cache's maximum staleness; beyond that callers load it
+ * synchronously again. Load durations and failures are recorded per cache, see {@link #getMetrics(String)}.
+ * </p>
+ * <p>
+ * Changes made through this provider are published as {@link InventoryChange}s, which evict the affected entries so
+ * that caches of inventory only this provider changes, such as the free space of storage pools, can use long
+ * timeouts without serving stale placement data. A load that started before an entry was invalidated still
+ * completes for its callers but is not cached.
+ * </p>
+ * <p>
+ * Entries past their maximum staleness, invalidations no load in flight can still race and the registrations and
+ * metrics of caches with nothing cached or loading are evicted at most once every {@link #SWEEP_INTERVAL}
+ * milliseconds as caches are read and loaded, so contexts and per data center caches that are no longer used do not
+ * accumulate.
+ * </p>
+ * @param <T> the type of the cached items
+ * @since 2015.09
+ */
+public class InventoryCache<T> {
+    static private final Logger logger = PrivateCloud.getLogger(InventoryCache.class, "std");
+
+    /**
+     * The fraction of the timeout after which an entry is reloaded in the background.
+     */
+    static public final double REFRESH_AHEAD = 0.8;
+
+    /**
+     * The minimum time in milliseconds between two sweeps of the evictable state of all caches.
+     */
+    static public final long SWEEP_INTERVAL = 60000L;
+
+    /**
+     * Loads the items of a cache entry from vSphere.
+     * @param <T> the type of the cached items
+     */
+    public interface Loader<T> {
+        @Nonnull Collection<T> load() throws CloudException, InternalException;
+    }
+
+    /**
+     * Load statistics of one cache.
+     */
+    static public class Metrics {
+        private final String     name;
+        private final AtomicLong loads                = new AtomicLong();
+        private final AtomicLong backgroundRefreshes  = new AtomicLong();
+        private final AtomicLong failures             = new AtomicLong();
+        private final AtomicLong staleHits            = new AtomicLong();
+        private final AtomicLong totalLoadMillis      = new AtomicLong();
+        private final AtomicLong maxLoadMillis        = new AtomicLong();
+        private volatile String  lastFailure;
+
+        private Metrics(@Nonnull String name) {
+            this.name = name;
+        }
+
+        private void loaded(boolean background, long millis) {
+            loads.incrementAndGet();
+            if( background ) {
+                backgroundRefreshes.incrementAndGet();
+            }
+            totalLoadMillis.addAndGet(millis);
+            long max = maxLoadMillis.get();
+
+            while( millis > max && !maxLoadMillis.compareAndSet(max, millis) ) {
+                max = maxLoadMillis.get();
+            }
+        }
+
+        private void failed(@Nonnull Throwable t) {
+            failures.incrementAndGet();
+            lastFailure = t.getClass().getSimpleName() + ": " + t.getMessage();
+        }
+
+        public @Nonnull String getName() {
+            return name;
+        }
+
+        /**
+         * @return the number of successful loads, synchronous and in the background
+         */
+        public long getLoads() {
+            return loads.get();
+        }
+
+        public long getBackgroundRefreshes() {
+            return backgroundRefreshes.get();
+        }
+
+        public long getFailures() {
+            return failures.get();
+        }
+
+        /**
+         * @return the number of times an expired entry was served while it was being reloaded
+         */
+        public long getStaleHits() {
+            return staleHits.get();
+        }
+
+        public long getAverageLoadMillis() {
+            long count = loads.get();
+
+            return (count == 0 ? 0L : totalLoadMillis.get()/count);
+        }
+
+        public long getMaxLoadMillis() {
+            return maxLoadMillis.get();
+        }
+
+        public @Nullable String getLastFailure() {
+            return lastFailure;
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return name + " [loads=" + getLoads() + ",background=" + getBackgroundRefreshes() + ",failures=" + getFailures() + ",staleHits=" + getStaleHits() + ",avgMillis=" + getAverageLoadMillis() + ",maxMillis=" + getMaxLoadMillis() + "]";
+        }
+    }
+
+    static private class Entry {
+        final Collection<?> items;
+        final long          loadedAt;
+        final long          expiresAt;
+
+        Entry(@Nonnull Collection<?> items, long loadedAt, long expiresAt) {
+            this.items = items;
+            this.loadedAt = loadedAt;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    static private class Flight {
+        private final CountDownLatch done = new CountDownLatch(1);
+        private Collection<?> result;
+        private Throwable     error;
+
+        void complete(@Nullable Collection<?> result, @Nullable Throwable error) {
+            this.result = result;
+            this.error = error;
+            done.countDown();
+        }
+
+        @Nonnull Collection<?> await(@Nonnull String name) throws CloudException, InternalException {
+            try {
+                done.await();
+            }
+            catch( InterruptedException e ) {
+                Thread.currentThread().interrupt();
+                throw new InternalException("Interrupted while waiting for " + name + " to load");
+            }
+            if( error instanceof CloudException ) {
+                throw (CloudException)error;
+            }
+            if( error instanceof InternalException ) {
+                throw (InternalException)error;
+            }
+            if( error instanceof RuntimeException ) {
+                throw (RuntimeException)error;
+            }
+            if( error instanceof Error ) {
+                throw (Error)error;
+            }
+            return result;
+        }
+    }
+
+    static private final ConcurrentHashMap<String,Entry>   entries = new ConcurrentHashMap<String, Entry>();
+    static private final ConcurrentHashMap<String,Flight>  flights = new ConcurrentHashMap<String, Flight>();
+    static private final ConcurrentHashMap<String,Metrics> metrics = new ConcurrentHashMap<String, Metrics>();
+    static private final ConcurrentHashMap<String,CacheLevel> levels = new ConcurrentHashMap<String, CacheLevel>();
+    static private final ConcurrentHashMap<String,Long>    invalidations = new ConcurrentHashMap<String, Long>();
+    static private final AtomicLong                        nextSweep = new AtomicLong();
+
+    static private final ExecutorService refresher = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r);
+
+            t.setName("vSphere inventory refresh " + count.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Provides a cache whose expired entries may be served while they are reloaded for up to one more timeout.
+     * @param provider the provider whose services load the entries
+     * @param name the name of the cache
+     * @param ofType the type of the cached items
+     * @param level the scope of the context the entries are cached for
+     * @param timeout how long an entry is fresh
+     * @param <T> the type of the cached items
+     * @return the cache
+     */
+    static public @Nonnull <T> InventoryCache<T> getInstance(@Nonnull CloudProvider provider, @Nonnull String name, @Nonnull Class<T> ofType, @Nonnull CacheLevel level, @Nonnull TimePeriod<?> timeout) {
+        return getInstance(provider, name, ofType, level, timeout, timeout);
+    }
+
+    /**
+     * Provides a cache with an explicit staleness limit.
+     * @param provider the provider whose services load the entries
+     * @param name the name of the cache
+     * @param ofType the type of the cached items
+     * @param level the scope of the context the entries are cached for
+     * @param timeout how long an entry is fresh
+     * @param maxStaleness how long past its timeout an entry may still be served while it is being reloaded
+     * @param <T> the type of the cached items
+     * @return the cache
+     */
+    static public @Nonnull <T> InventoryCache<T> getInstance(@Nonnull CloudProvider provider, @Nonnull String name, @Nonnull Class<T> ofType, @Nonnull CacheLevel level, @Nonnull TimePeriod<?> timeout, @Nonnull TimePeriod<?> maxStaleness) {
+        levels.put(name, level);
+        return new InventoryCache<T>(provider, name, level, toMillis(timeout), toMillis(maxStaleness));
+    }
+
+    /**
+     * Evicts the cache entries a change made in the given context makes stale.
+     * @param ctx the context the change was made in
+     * @param change the change
+     */
+    static public void publish(@Nonnull ProviderContext ctx, @Nonnull InventoryChange change) {
+        for( String affected : change.getAffectedCaches() ) {
+            // caches that were never used are not registered and have nothing to evict
+            for( Map.Entry<String,CacheLevel> cache : levels.entrySet() ) {
+                String name = cache.getKey();
+
+                if( name.equals(affected) || name.startsWith(affected + ":") ) {
+                    String key = toKey(name, cache.getValue(), ctx);
+
+                    invalidations.put(key, System.nanoTime());
+                    entries.remove(key);
+                }
+            }
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Published " + change + " for " + ctx.getRegionId());
+        }
+    }
+
+    /**
+     * @param name the name of a cache
+     * @return the load statistics of the cache
+     */
+    static public @Nonnull Metrics getMetrics(@Nonnull String name) {
+        Metrics m = metrics.get(name);
+
+        if( m == null ) {
+            metrics.putIfAbsent(name, new Metrics(name));
+            m = metrics.get(name);
+        }
+        return m;
+    }
+
+    static public @Nonnull Collection<Metrics> listMetrics() {
+        return Collections.unmodifiableCollection(new ArrayList<Metrics>(metrics.values()));
+    }
+
+    static private void sweep() {
+        long now = System.currentTimeMillis();
+        long next = nextSweep.get();
+
+        if( now >= next && nextSweep.compareAndSet(next, now + SWEEP_INTERVAL) ) {
+            evict(now);
+        }
+    }
+
+    /**
+     * Evicts entries past their maximum staleness, invalidations without a load in flight that could have started
+     * before them and the level and metrics of caches that have nothing cached or loading.
+     * @param now the current time in milliseconds
+     */
+    static void evict(long now) {
+        for( Map.Entry<String,Entry> entry : entries.entrySet() ) {
+            if( entry.getValue().expiresAt <= now ) {
+                entries.remove(entry.getKey(), entry.getValue());
+            }
+        }
+        // a load that starts after an invalidation registers its flight first and is not affected by it
+        for( String key : invalidations.keySet() ) {
+            if( !flights.containsKey(key) ) {
+                invalidations.remove(key);
+            }
+        }
+        for( String name : levels.keySet() ) {
+            if( !isInUse(name, entries.keySet()) && !isInUse(name, flights.keySet()) ) {
+                levels.remove(name);
+                metrics.remove(name);
+            }
+        }
+    }
+
+    static private boolean isInUse(@Nonnull String name, @Nonnull Collection<String> keys) {
+        String prefix = name + "|";
+
+        for( String key : keys ) {
+            if( key.startsWith(prefix) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    static private long toMillis(@Nonnull TimePeriod<?> period) {
+        return period.convertTo(TimePeriod.MILLISECOND).longValue();
+    }
+
+    private final CloudProvider provider;
+    private final String        name;
+    private final CacheLevel    level;
+    private final long          timeout;
+    private final long          maxStaleness;
+
+    private InventoryCache(@Nonnull CloudProvider provider, @Nonnull String name, @Nonnull CacheLevel level, long timeout, long maxStaleness) {
+        this.provider = provider;
+        this.name = name;
+        this.level = level;
+        this.timeout = timeout;
+        this.maxStaleness = maxStaleness;
+    }
+
+    /**
+     * Provides the cached items, loading them if they are missing or too stale and refreshing them in the background
+     * if they are close to or past their expiry.
+     * @param ctx the context the entry belongs to
+     * @param loader loads the items if no other caller is already loading them
+     * @return the cached or freshly loaded items
+     * @throws CloudException the load failed talking to vSphere
+     * @throws InternalException the load failed within the Dasein Cloud implementation
+     */
+    @SuppressWarnings("unchecked")
+    public @Nonnull Collection<T> get(@Nonnull ProviderContext ctx, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        String key = getKey(ctx);
+        Entry entry = entries.get(key);
+
+        sweep();
+        if( entry != null ) {
+            long age = System.currentTimeMillis() - entry.loadedAt;
+
+            if( age < (long)(timeout * REFRESH_AHEAD) ) {
+                return (Collection<T>)entry.items;
+            }
+            if( age < timeout + maxStaleness ) {
+                if( age >= timeout ) {
+                    getMetrics(name).staleHits.incrementAndGet();
+                }
+                refreshInBackground(key, loader);
+                return (Collection<T>)entry.items;
+            }
+        }
+        return load(key, loader, false);
+    }
+
+    /**
+     * Replaces the cached items with freshly loaded ones, joining a load already in flight if there is one.
+     * @param ctx the context the entry belongs to
+     * @param loader loads the items if no other caller is already loading them
+     * @return the freshly loaded items
+     * @throws CloudException the load failed talking to vSphere
+     * @throws InternalException the load failed within the Dasein Cloud implementation
+     */
+    public @Nonnull Collection<T> reload(@Nonnull ProviderContext ctx, @Nonnull Loader<T> loader) throws CloudException, InternalException {
+        return load(getKey(ctx), loader, true);
+    }
+
+    /**
+     * @param ctx the context the entry belongs to
+     * @return the cached items regardless of their age or <code>null</code> if nothing is cached
+     */
+    @SuppressWarnings("unchecked")
+    public @Nullable Collection<T> getCached(@Nonnull ProviderContext ctx) {
+        Entry entry = entries.get(getKey(ctx));
+
+        return (entry == null ? null : (Collection<T>)entry.items);
+    }
+
+    public void put(@Nonnull ProviderContext ctx, @Nonnull Collection<T> items) {
+        long now = System.currentTimeMillis();
+
+        levels.put(name, level);
+        entries.put(getKey(ctx), new Entry(items, now, now + timeout + maxStaleness));
+    }
+
+    @SuppressWarnings("unchecked")
+    private @Nonnull Collection<T> load(@Nonnull String key, @Nonnull Loader<T> loader, boolean force) throws CloudException, InternalException {
+        Flight flight = new Flight();
+        Flight current = flights.putIfAbsent(key, flight);
+
+        if( current != null ) {
+            return (Collection<T>)current.await(name);
+        }
+        if( !force ) {
+            // another caller may have finished loading between our miss and claiming the flight
+            Entry entry = entries.get(key);
+
+            if( entry != null && System.currentTimeMillis() - entry.loadedAt < timeout ) {
+                flight.complete(entry.items, null);
+                flights.remove(key, flight);
+                return (Collection<T>)entry.items;
+            }
+        }
+        return execute(key, flight, loader, false);
+    }
+
+    private void refreshInBackground(@Nonnull final String key, @Nonnull final Loader<T> loader) {
+        final Flight flight = new Flight();
+
+        if( flights.putIfAbsent(key, flight) != null ) {
+            return;
+        }
+        provider.hold();
+        try {
+            refresher.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        execute(key, flight, loader, true);
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Background refresh of " + name + " failed: " + t.getMessage());
+                    }
+                    finally {
+                        provider.release();
+                    }
+                }
+            });
+        }
+        catch( RejectedExecutionException e ) {
+            flight.complete(null, new InternalException("Unable to schedule a refresh of " + name));
+            flights.remove(key, flight);
+            provider.release();
+        }
+    }
+
+    private @Nonnull Collection<T> execute(@Nonnull String key, @Nonnull Flight flight, @Nonnull Loader<T> loader, boolean background) throws CloudException, InternalException {
+        // the level may have been swept while the cache was idle and publishing needs it to reach this entry
+        levels.put(name, level);
+        Metrics m = getMetrics(name);
+        long start = System.currentTimeMillis();
+        long started = System.nanoTime();
+
+        try {
+            Collection<T> items = loader.load();
+            long now = System.currentTimeMillis();
+            Long invalidated = invalidations.get(key);
+
+            if( invalidated == null || invalidated - started < 0 ) {
+                entries.put(key, new Entry(items, now, now + timeout + maxStaleness));
+            }
+            m.loaded(background, now - start);
+            flight.complete(items, null);
+            return items;
+        }
+        catch( Throwable t ) {
+            m.failed(t);
+            flight.complete(null, t);
+            throw t;
+        }
+        finally {
+            flights.remove(key, flight);
+            sweep();
+        }
+    }
+
+    private @Nonnull String getKey(@Nonnull ProviderContext ctx) {
+        return toKey(name, level, ctx);
+    }
+
+    static private @Nonnull String toKey(@Nonnull String name, @Nonnull CacheLevel level, @Nonnull ProviderContext ctx) {
+        StringBuilder key = new StringBuilder(name);
+
+        key.append("|").append(ctx.getEndpoint());
+        if( !level.equals(CacheLevel.CLOUD) && !level.equals(CacheLevel.REGION) ) {
+            key.append("|").append(ctx.getAccountNumber());
+        }
+        if( level.equals(CacheLevel.REGION) || level.equals(CacheLevel.REGION_ACCOUNT) ) {
+            key.append("|").append(ctx.getRegionId());
+        }
+        return key.toString();
+    }
+}
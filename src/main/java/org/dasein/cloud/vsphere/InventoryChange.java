@@ -0,0 +1,57 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Changes made through this provider that invalidate cached inventory. Each change names the caches whose entries
+ * it makes stale; publishing it through {@link InventoryCache#publish(org.dasein.cloud.ProviderContext, InventoryChange)}
+ * evicts those entries for the affected context only. A name also covers the caches kept per data center under
+ * it, e.g. <code>hosts</code> covers <code>hosts:Cluster-1</code>.
+ * <p>
+ * VMs change the free space of their datastores and the usage of their hosts and clusters; templates and volumes
+ * only the free space. Caches of inventory that only changes outside this provider, i.e. data centers, resource
+ * pools and the region directory, are not named by any change and rely on their timeout alone.
+ * </p>
+ * @since 2015.09
+ */
+public enum InventoryChange {
+    VM_LAUNCHED("storagePools", "clusterCapacity", "hosts"),
+    VM_CLONED("storagePools", "clusterCapacity", "hosts"),
+    VM_TERMINATED("storagePools", "clusterCapacity", "hosts"),
+    IMAGE_CAPTURED("storagePools"),
+    IMAGE_REMOVED("storagePools"),
+    VOLUME_CREATED("storagePools"),
+    VOLUME_REMOVED("storagePools"),
+    FOLDER_CREATED("vmFolders");
+
+    private final String[] caches;
+
+    InventoryChange(@Nonnull String ... caches) {
+        this.caches = caches;
+    }
+
+    /**
+     * @return the names of the caches the change makes stale
+     */
+    public @Nonnull String[] getAffectedCaches() {
+        return caches.clone();
+    }
+}
@@ -0,0 +1,188 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Converts vSphere entities into Dasein resources on a bounded fork-join pool. Conversions that still go through the
+ * lazy getters of the managed objects spend most of their time waiting on vCenter, so running them side by side
+ * shortens listings roughly by the parallelism. The results come back in the order of the sources regardless of
+ * the order in which the conversions complete. With a parallelism of 1 (the default, see
+ * {@link PrivateCloud#getConversionParallelism()}) everything runs on the calling thread as before.
+ * @since 2015.09
+ */
+public final class ParallelConverter {
+    /**
+     * The upper bound on the parallelism of a conversion pool, whatever the provider context asks for.
+     */
+    static public final int MAX_PARALLELISM = 64;
+
+    // leaf tasks per worker, so that a few slow entities do not leave the other workers idle
+    static private final int SPLITS_PER_WORKER = 4;
+
+    static private final ConcurrentMap<Integer,ForkJoinPool> pools = new ConcurrentHashMap<Integer, ForkJoinPool>();
+
+    /**
+     * Converts one source entity.
+     * @param <S> the type of the source entity
+     * @param <T> the type of the converted resource
+     */
+    public interface Conversion<S,T> {
+        /**
+         * Called from pool threads, so implementations must not rely on state bound to the calling thread.
+         * @param source the entity to convert
+         * @return the converted resource or <code>null</code> to leave the entity out of the results
+         * @throws CloudException an error occurred talking to vSphere
+         * @throws InternalException an error occurred within the Dasein Cloud API implementation
+         */
+        @Nullable T convert(@Nonnull S source) throws CloudException, InternalException;
+    }
+
+    // carries the checked exceptions of a conversion out of the pool
+    static private class ConversionFailure extends RuntimeException {
+        ConversionFailure(@Nonnull Exception cause) {
+            super(cause);
+        }
+    }
+
+    static private class ConvertTask<S,T> extends RecursiveAction {
+        private final List<? extends S>                       sources;
+        private final Conversion<? super S,? extends T>       conversion;
+        private final Object[]                                results;
+        private final int                                     from;
+        private final int                                     to;
+        private final int                                     leafSize;
+
+        ConvertTask(@Nonnull List<? extends S> sources, @Nonnull Conversion<? super S,? extends T> conversion, @Nonnull Object[] results, int from, int to, int leafSize) {
+            this.sources = sources;
+            this.conversion = conversion;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+            this.leafSize = leafSize;
+        }
+
+        @Override
+        protected void compute() {
+            if( to - from <= leafSize ) {
+                for( int i = from; i < to; i++ ) {
+                    try {
+                        results[i] = conversion.convert(sources.get(i));
+                    }
+                    catch( CloudException | InternalException e ) {
+                        throw new ConversionFailure(e);
+                    }
+                }
+                return;
+            }
+            int middle = (from + to) >>> 1;
+
+            invokeAll(new ConvertTask<S,T>(sources, conversion, results, from, middle, leafSize), new ConvertTask<S,T>(sources, conversion, results, middle, to, leafSize));
+        }
+    }
+
+    private ParallelConverter() { }
+
+    static private @Nonnull ForkJoinPool getPool(int parallelism) {
+        ForkJoinPool pool = pools.get(parallelism);
+
+        if( pool == null ) {
+            ForkJoinPool created = new ForkJoinPool(parallelism);
+
+            pool = pools.putIfAbsent(parallelism, created);
+            if( pool == null ) {
+                pool = created;
+            }
+            else {
+                created.shutdown();
+            }
+        }
+        return pool;
+    }
+
+    /**
+     * Converts the sources, in parallel when both the parallelism and the number of sources allow it.
+     * @param parallelism the maximum number of conversions running at once, capped at {@link #MAX_PARALLELISM}
+     * @param sources the entities to convert
+     * @param conversion the conversion to apply to each entity
+     * @param <S> the type of the source entities
+     * @param <T> the type of the converted resources
+     * @return the non-null results in the order of their sources
+     * @throws CloudException a conversion failed talking to vSphere; the remaining conversions are abandoned
+     * @throws InternalException a conversion failed within the Dasein Cloud API implementation
+     */
+    static public @Nonnull <S,T> List<T> convert(int parallelism, @Nonnull List<? extends S> sources, @Nonnull Conversion<? super S,? extends T> conversion) throws CloudException, InternalException {
+        parallelism = Math.min(parallelism, MAX_PARALLELISM);
+        if( parallelism < 2 || sources.size() < 2 ) {
+            List<T> results = new ArrayList<T>(sources.size());
+
+            for( S source : sources ) {
+                T result = conversion.convert(source);
+
+                if( result != null ) {
+                    results.add(result);
+                }
+            }
+            return results;
+        }
+        Object[] results = new Object[sources.size()];
+        int leafSize = Math.max(1, sources.size() / (parallelism * SPLITS_PER_WORKER));
+
+        try {
+            getPool(parallelism).invoke(new ConvertTask<S,T>(sources, conversion, results, 0, sources.size(), leafSize));
+        }
+        catch( ConversionFailure e ) {
+            // the pool may rethrow a copy of the failure raised on a worker, so look through the whole cause chain
+            Throwable cause = e;
+
+            while( cause != null ) {
+                if( cause instanceof CloudException ) {
+                    throw (CloudException)cause;
+                }
+                if( cause instanceof InternalException ) {
+                    throw (InternalException)cause;
+                }
+                cause = cause.getCause();
+            }
+            throw e;
+        }
+        List<T> converted = new ArrayList<T>(results.length);
+
+        for( Object result : results ) {
+            if( result != null ) {
+                @SuppressWarnings("unchecked") T t = (T)result;
+
+                converted.add(t);
+            }
+        }
+        return converted;
+    }
+}
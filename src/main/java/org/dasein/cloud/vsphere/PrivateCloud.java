@@ -18,6 +18,8 @@
 
 package org.dasein.cloud.vsphere;
 
+import java.io.File;
+import java.io.IOException;
 import java.io.UnsupportedEncodingException;
 import java.net.MalformedURLException;
 import java.net.URL;
@@ -35,7 +37,10 @@ import org.dasein.cloud.InternalException;
 import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.storage.BlobStoreSupport;
 import org.dasein.cloud.storage.StorageServices;
+import org.dasein.cloud.vsphere.capture.SoapCapture;
 import org.dasein.cloud.vsphere.compute.VMwareComputeServices;
+import org.dasein.cloud.vsphere.metrics.OperationTrace;
+import org.dasein.cloud.vsphere.metrics.WireMeter;
 import org.dasein.cloud.vsphere.network.VMwareNetworkServices;
 
 import com.vmware.vim25.InvalidLogin;
@@ -47,6 +52,7 @@ import javax.annotation.Nullable;
 
 public class PrivateCloud extends AbstractCloud {
     private ServiceInstance instance = null;
+    private SoapCapture     capture  = null;
 
     static private @Nonnull String getLastItem(@Nonnull String name) {
         int idx = name.lastIndexOf('.');
@@ -140,6 +146,39 @@ public class PrivateCloud extends AbstractCloud {
         catch( NullPointerException ignore ) {
             // ignore
         }
+        if( capture != null ) {
+            capture.close();
+        }
+    }
+
+    /**
+     * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;captureFile&quot;, falling back
+     * to the system property of the same name. When set, every SOAP exchange of the connection is recorded to that
+     * file, with credentials scrubbed, for replaying offline.
+     * @return the file to capture the SOAP traffic to or <code>null</code> if no capture should take place
+     */
+    public @Nullable String getCaptureFile() {
+        return getStringProperty("captureFile");
+    }
+
+    /**
+     * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;conversionParallelism&quot;,
+     * falling back to the system property of the same name. It sets how many VMs, templates and volumes listings
+     * convert at once (see {@link ParallelConverter}); &quot;auto&quot; uses one conversion per available processor.
+     * @return the conversion parallelism, 1 (sequential conversion) unless configured otherwise
+     */
+    public int getConversionParallelism() {
+        return ("auto".equalsIgnoreCase(getStringProperty("conversionParallelism")) ? Math.min(Runtime.getRuntime().availableProcessors(), ParallelConverter.MAX_PARALLELISM) : getIntProperty("conversionParallelism", 1, 1, ParallelConverter.MAX_PARALLELISM));
+    }
+
+    /**
+     * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;streamPageSize&quot;, falling
+     * back to the system property of the same name. It sets how many VMs streaming listings request per property
+     * collector page; a page of full VM configurations runs to a few megabytes.
+     * @return the number of VMs per page, 250 unless configured otherwise
+     */
+    public int getStreamPageSize() {
+        return getIntProperty("streamPageSize", 250, 1, Integer.MAX_VALUE);
     }
 
     @Override
@@ -212,7 +251,27 @@ public class PrivateCloud extends AbstractCloud {
                     e.printStackTrace();
                     throw new RuntimeException("This cannot happen: " + e.getMessage());
                 }
-                instance = new ServiceInstance(new URL(endpoint), accessPublic, accessPrivate, isInsecure());
+                ServiceInstance si = new ServiceInstance(new URL(endpoint), accessPublic, accessPrivate, isInsecure());
+                String captureFile = getCaptureFile();
+
+                if( captureFile == null ) {
+                    // the meter replaces the JDK's connection handling, so only pay for it when someone reads the numbers
+                    if( OperationTrace.isEnabled() ) {
+                        WireMeter.install(si);
+                    }
+                }
+                else {
+                    try {
+                        capture = SoapCapture.open(new File(captureFile));
+                    }
+                    catch( IOException e ) {
+                        throw new InternalException("Unable to open SOAP capture file " + captureFile + ": " + e.getMessage());
+                    }
+                    WireMeter.install(si, capture);
+                    // the service content was fetched before the connection was captured; replays need it
+                    si.retrieveServiceContent();
+                }
+                instance = si;
             }
             catch( InvalidLogin e ) {
                 return null;
@@ -233,6 +292,46 @@ public class PrivateCloud extends AbstractCloud {
         return instance.getRootFolder();
     }
 
+    /**
+     * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;warmPoolSize&quot;, falling back
+     * to the system property of the same name. It sets how many powered-off clones template launches keep ready per
+     * template, product, VLAN and data center so that a launch only has to rename and power one on.
+     * @return the number of warm clones to keep per launch configuration, 0 (no warm pool) unless configured otherwise
+     */
+    public int getWarmPoolSize() {
+        return getIntProperty("warmPoolSize", 0, 0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;batchCloneLimit&quot;, falling
+     * back to the system property of the same name. It caps how many clone tasks batch launches run at the same time
+     * against one cluster.
+     * @return the maximum number of concurrent clones per cluster, 4 unless configured otherwise
+     */
+    public int getBatchCloneLimit() {
+        return getIntProperty("batchCloneLimit", 4, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;placementRetrySeconds&quot;,
+     * falling back to the system property of the same name. It sets how long a host, resource pool or datastore is
+     * avoided for launches after repeated clone failures before a single launch may probe it again.
+     * @return the number of seconds a failing placement target is avoided, 300 unless configured otherwise
+     */
+    public int getPlacementRetrySeconds() {
+        return getIntProperty("placementRetrySeconds", 300, 1, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;utilizationSampleSeconds&quot;,
+     * falling back to the system property of the same name. It sets how often the utilization monitor records a
+     * sample of every host and cluster for its percentile windows.
+     * @return the number of seconds between utilization samples, 20 (the vSphere real-time interval) unless configured otherwise
+     */
+    public int getUtilizationSampleSeconds() {
+        return getIntProperty("utilizationSampleSeconds", 20, 1, Integer.MAX_VALUE);
+    }
+
     /**
      * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;insecure&quot; and, if set to
      * &quot;true&quot;, returns true. This indicates that SSL validation should not take place, thus leaving the
@@ -240,26 +339,74 @@ public class PrivateCloud extends AbstractCloud {
      * @return true if SSL certificate validation should be ignored
      */
     public boolean isInsecure() {
+        return getBooleanProperty("insecure");
+    }
+
+    /**
+     * Looks up the custom property ({@link ProviderContext#getCustomProperties()}) &quot;linkedClones&quot;, falling back
+     * to the system property of the same name. When set to &quot;true&quot;, template launches create linked clones
+     * that share the disks of a template snapshot instead of copying them, unless the launch options say otherwise
+     * (see {@link org.dasein.cloud.vsphere.compute.Vm#LINKED_CLONE}).
+     * @return true if template launches should create linked clones by default
+     */
+    public boolean isLinkedCloneDefault() {
+        return getBooleanProperty("linkedClones");
+    }
+
+    /**
+     * Looks up a custom property ({@link ProviderContext#getCustomProperties()}), falling back to the system property
+     * of the same name.
+     * @param name the name of the property
+     * @return the trimmed value or <code>null</code> if the property is not set or blank
+     */
+    private @Nullable String getStringProperty(@Nonnull String name) {
         ProviderContext ctx = getContext();
-        String value;
+        String value = null;
 
-        if( ctx == null ) {
-            value = null;
-        }
-        else {
+        if( ctx != null ) {
             Properties p = ctx.getCustomProperties();
 
-            if( p == null ) {
-                value = null;
-            }
-            else {
-                value = p.getProperty("insecure");
+            if( p != null ) {
+                value = p.getProperty(name);
             }
         }
         if( value == null ) {
-            value = System.getProperty("insecure");
+            value = System.getProperty(name);
+        }
+        return (value == null || value.trim().isEmpty() ? null : value.trim());
+    }
+
+    /**
+     * Looks up a whole number property like {@link #getStringProperty(String)}, logging and ignoring values that are
+     * not numbers.
+     * @param name the name of the property
+     * @param defaultValue the value if the property is not set or not a number
+     * @param min the smallest value allowed, smaller values are raised to it
+     * @param max the largest value allowed, larger values are lowered to it
+     * @return the value of the property within the bounds or the default
+     */
+    private int getIntProperty(@Nonnull String name, int defaultValue, int min, int max) {
+        String value = getStringProperty(name);
+
+        if( value == null ) {
+            return defaultValue;
         }
-        return (value != null && value.equalsIgnoreCase("true"));
+        try {
+            return Math.max(min, Math.min(Integer.parseInt(value), max));
+        }
+        catch( NumberFormatException e ) {
+            getLogger(PrivateCloud.class, "std").warn("Ignoring invalid " + name + ": " + value);
+            return defaultValue;
+        }
+    }
+
+    /**
+     * Looks up a flag like {@link #getStringProperty(String)}.
+     * @param name the name of the property
+     * @return true if the property is set to &quot;true&quot;, in any case
+     */
+    private boolean getBooleanProperty(@Nonnull String name) {
+        return "true".equalsIgnoreCase(getStringProperty(name));
     }
 
     @Override
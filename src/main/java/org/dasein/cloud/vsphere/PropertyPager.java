@@ -0,0 +1,178 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.io.Closeable;
+import java.rmi.RemoteException;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import com.vmware.vim25.InvalidProperty;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Iterates over the pages of a property collector retrieval as vCenter hands them out. The retrieval only starts
+ * when the first page is asked for and a page is only requested once the previous one has been consumed, so a
+ * consumer never holds more than one page and a slow consumer simply leaves the remaining results waiting on the
+ * server. Consumers that stop early should {@link #close()} the pager so that vCenter can discard the rest of the
+ * result set.
+ * <p>
+ * {@link Iterator} cannot throw checked exceptions: a failure to fetch a page surfaces as an
+ * {@link IllegalStateException} whose cause is the {@link CloudException}.
+ * </p>
+ * @since 2015.09
+ */
+public class PropertyPager implements Iterator<List<ObjectContent>>, Closeable {
+    static private final Logger logger = PrivateCloud.getLogger(PropertyPager.class, "std");
+
+    private final PropertyCollector  collector;
+    private final PropertyFilterSpec spec;
+    private final RetrieveOptions    options;
+    private boolean                  opened;
+    private List<ObjectContent>      page;
+    private String                   token;
+
+    /**
+     * Prepares the retrieval without talking to vSphere yet.
+     * @param instance the connection to retrieve through
+     * @param spec the objects and properties to retrieve
+     * @param pageSize the maximum number of objects per page
+     */
+    PropertyPager(@Nonnull ServiceInstance instance, @Nonnull PropertyFilterSpec spec, int pageSize) {
+        this.collector = instance.getPropertyCollector();
+        this.spec = spec;
+        this.options = new RetrieveOptions();
+        options.setMaxObjects(pageSize);
+    }
+
+    private void accept(@Nullable RetrieveResult result) {
+        if( result == null ) {
+            page = null;
+            token = null;
+            return;
+        }
+        ObjectContent[] objects = result.getObjects();
+
+        page = (objects == null ? Collections.<ObjectContent>emptyList() : Arrays.asList(objects));
+        token = result.getToken();
+    }
+
+    @Override
+    public boolean hasNext() {
+        if( !opened ) {
+            open();
+        }
+        while( page != null && page.isEmpty() ) {
+            fetch();
+        }
+        return (page != null);
+    }
+
+    @Override
+    public @Nonnull List<ObjectContent> next() {
+        if( !hasNext() ) {
+            throw new NoSuchElementException();
+        }
+        List<ObjectContent> current = page;
+
+        page = Collections.emptyList();
+        if( token == null ) {
+            page = null;
+        }
+        return current;
+    }
+
+    private void open() {
+        opened = true;
+        try {
+            accept(collector.retrievePropertiesEx(new PropertyFilterSpec[] { spec }, options));
+        }
+        catch( InvalidProperty e ) {
+            throw new IllegalStateException(new CloudException("Invalid property in inventory request: " + e.getMessage()));
+        }
+        catch( RuntimeFault e ) {
+            throw new IllegalStateException(new CloudException("Error in processing inventory request: " + e.getMessage()));
+        }
+        catch( RemoteException e ) {
+            throw new IllegalStateException(new CloudException("Error in inventory request: " + e.getMessage()));
+        }
+    }
+
+    private void fetch() {
+        if( token == null ) {
+            page = null;
+            return;
+        }
+        try {
+            accept(collector.continueRetrievePropertiesEx(token));
+        }
+        catch( InvalidProperty e ) {
+            token = null;
+            throw new IllegalStateException(new CloudException("Invalid property in inventory request: " + e.getMessage()));
+        }
+        catch( RuntimeFault e ) {
+            token = null;
+            throw new IllegalStateException(new CloudException("Error in processing inventory request: " + e.getMessage()));
+        }
+        catch( RemoteException e ) {
+            token = null;
+            throw new IllegalStateException(new CloudException("Error in inventory request: " + e.getMessage()));
+        }
+    }
+
+    @Override
+    public void remove() {
+        throw new UnsupportedOperationException("Retrieved properties cannot be removed");
+    }
+
+    /**
+     * Releases the server-side result set if the pages were not consumed to the end. A pager closed before its
+     * first page never starts the retrieval.
+     */
+    @Override
+    public void close() {
+        opened = true;
+        page = null;
+        if( token != null ) {
+            String t = token;
+
+            token = null;
+            try {
+                collector.cancelRetrievePropertiesEx(t);
+            }
+            catch( RemoteException e ) {
+                logger.warn("Unable to cancel inventory request: " + e.getMessage());
+            }
+        }
+    }
+}
@@ -0,0 +1,175 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.InvalidProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.RetrieveOptions;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+import org.dasein.cloud.CloudException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Fetches properties for every managed entity of the requested types below a root entity with a single
+ * property collector request (paged through RetrievePropertiesEx), rather than walking the inventory with the
+ * lazy getters of each managed object, which cost a round trip per property.
+ * @since 2015.09
+ */
+public class PropertyRetriever {
+    static private final int PAGE_SIZE = 1000;
+
+    /**
+     * Retrieves the requested properties for the root entity and everything reachable from it.
+     * @param instance the connection to retrieve through
+     * @param root the entity at which the traversal starts (included in the results if its type is requested)
+     * @param typeinfo one array per managed object type: the type name followed by its property paths
+     * @return the object contents of all matching entities
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    static public @Nonnull List<ObjectContent> retrieve(@Nonnull ServiceInstance instance, @Nonnull ManagedEntity root, @Nonnull String[][] typeinfo) throws CloudException {
+        return retrieve(instance, root.getMOR(), typeinfo);
+    }
+
+    static public @Nonnull List<ObjectContent> retrieve(@Nonnull ServiceInstance instance, @Nonnull ManagedObjectReference root, @Nonnull String[][] typeinfo) throws CloudException {
+        return retrieve(instance, toSpec(root, typeinfo));
+    }
+
+    /**
+     * Starts a retrieval like {@link #retrieve(ServiceInstance, ManagedEntity, String[][])} but hands the results
+     * out page by page as they are consumed instead of collecting all of them first. Nothing is requested from
+     * vSphere until the first page is asked for.
+     * @param instance the connection to retrieve through
+     * @param root the entity at which the traversal starts
+     * @param typeinfo one array per managed object type: the type name followed by its property paths
+     * @param pageSize the maximum number of objects per page
+     * @return a pager positioned before the first page
+     */
+    static public @Nonnull PropertyPager page(@Nonnull ServiceInstance instance, @Nonnull ManagedEntity root, @Nonnull String[][] typeinfo, int pageSize) {
+        return new PropertyPager(instance, toSpec(root.getMOR(), typeinfo), pageSize);
+    }
+
+    static private @Nonnull PropertyFilterSpec toSpec(@Nonnull ManagedObjectReference root, @Nonnull String[][] typeinfo) {
+        ObjectSpec os = new ObjectSpec();
+
+        os.setObj(root);
+        os.setSkip(Boolean.FALSE);
+        os.setSelectSet(PropertyCollectorUtil.buildFullTraversalV4());
+
+        PropertyFilterSpec spec = new PropertyFilterSpec();
+
+        spec.setObjectSet(new ObjectSpec[] { os });
+        spec.setPropSet(PropertyCollectorUtil.buildPropertySpecArray(typeinfo));
+        return spec;
+    }
+
+    static public @Nonnull List<ObjectContent> retrieve(@Nonnull ServiceInstance instance, @Nonnull PropertyFilterSpec spec) throws CloudException {
+        PropertyCollector collector = instance.getPropertyCollector();
+        RetrieveOptions options = new RetrieveOptions();
+
+        options.setMaxObjects(PAGE_SIZE);
+        try {
+            ArrayList<ObjectContent> contents = new ArrayList<ObjectContent>();
+            RetrieveResult result = collector.retrievePropertiesEx(new PropertyFilterSpec[] { spec }, options);
+
+            while( result != null ) {
+                ObjectContent[] page = result.getObjects();
+
+                if( page != null ) {
+                    Collections.addAll(contents, page);
+                }
+                if( result.getToken() == null ) {
+                    break;
+                }
+                result = collector.continueRetrievePropertiesEx(result.getToken());
+            }
+            return contents;
+        }
+        catch( InvalidProperty e ) {
+            throw new CloudException("Invalid property in inventory request: " + e.getMessage());
+        }
+        catch( RuntimeFault e ) {
+            throw new CloudException("Error in processing inventory request: " + e.getMessage());
+        }
+        catch( RemoteException e ) {
+            throw new CloudException("Error in inventory request: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Looks up a property in the retrieved content, converting vSphere ArrayOf* wrappers into plain arrays.
+     * @param content the retrieved object content
+     * @param path the property path to look for
+     * @return the property value or <code>null</code> if it was not set
+     */
+    static public @Nullable Object getValue(@Nonnull ObjectContent content, @Nonnull String path) {
+        DynamicProperty[] props = content.getPropSet();
+
+        if( props == null ) {
+            return null;
+        }
+        for( DynamicProperty prop : props ) {
+            if( path.equals(prop.getName()) ) {
+                return PropertyCollectorUtil.convertProperty(prop.getVal());
+            }
+        }
+        return null;
+    }
+
+    static public @Nullable String getString(@Nonnull ObjectContent content, @Nonnull String path) {
+        Object value = getValue(content, path);
+
+        return (value == null ? null : value.toString());
+    }
+
+    static public @Nullable ManagedObjectReference getReference(@Nonnull ObjectContent content, @Nonnull String path) {
+        Object value = getValue(content, path);
+
+        return (value instanceof ManagedObjectReference ? (ManagedObjectReference)value : null);
+    }
+
+    static public @Nonnull ManagedObjectReference[] getReferences(@Nonnull ObjectContent content, @Nonnull String path) {
+        Object value = getValue(content, path);
+
+        return (value instanceof ManagedObjectReference[] ? (ManagedObjectReference[])value : new ManagedObjectReference[0]);
+    }
+
+    /**
+     * @param mor a managed object reference
+     * @return a key for the reference that is unique across managed object types
+     */
+    static public @Nonnull String toKey(@Nonnull ManagedObjectReference mor) {
+        return mor.getType() + ":" + mor.getVal();
+    }
+}
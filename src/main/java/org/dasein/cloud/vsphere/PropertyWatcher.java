@@ -0,0 +1,355 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MissingObject;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.PropertySpec;
+import com.vmware.vim25.UpdateSet;
+import com.vmware.vim25.WaitOptions;
+import com.vmware.vim25.mo.PropertyCollector;
+import com.vmware.vim25.mo.PropertyFilter;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Watches properties of individual managed objects through property filters on a property collector of its own.
+ * A single thread per connection long-polls the collector with WaitForUpdatesEx and hands the changes to the
+ * listeners, so callers waiting for tasks or guests do not each need a thread polling vSphere. The thread ends
+ * when nothing is watched any more.
+ * @since 2015.09
+ */
+public class PropertyWatcher {
+    static private final Logger logger = PrivateCloud.getLogger(PropertyWatcher.class, "std");
+
+    static private final int MAX_WAIT_SECONDS = 30;
+
+    /**
+     * Receives the property changes of one watched object. Listeners are called on the watcher thread and must
+     * hand anything slow, such as further vSphere calls, to another thread.
+     */
+    public interface Listener {
+        /**
+         * Called with the initial values of the watched properties and after that with every change.
+         * @param object the watched object
+         * @param values the new values by property path, with <code>null</code> for properties that are unset
+         * @return true to stop watching the object
+         */
+        boolean changed(@Nonnull ManagedObjectReference object, @Nonnull Map<String,Object> values);
+
+        /**
+         * Called when the object can no longer be watched because it was deleted or the connection failed. The
+         * watch of other objects through the same filter goes on unless the connection failed.
+         * @param object the watched object
+         * @param cause the reason
+         */
+        void failed(@Nonnull ManagedObjectReference object, @Nonnull Exception cause);
+    }
+
+    static private class Watch {
+        final PropertyFilter           filter;
+        final ManagedObjectReference[] objects;
+        final String[]                 paths;
+        final Listener                 listener;
+
+        Watch(@Nonnull PropertyFilter filter, @Nonnull ManagedObjectReference[] objects, @Nonnull String[] paths, @Nonnull Listener listener) {
+            this.filter = filter;
+            this.objects = objects;
+            this.paths = paths;
+            this.listener = listener;
+        }
+    }
+
+    static private final Map<ServiceInstance,PropertyWatcher> watchers = new WeakHashMap<ServiceInstance, PropertyWatcher>();
+
+    /**
+     * @param instance the connection to watch through
+     * @return the watcher of the connection
+     */
+    static public @Nonnull PropertyWatcher getInstance(@Nonnull ServiceInstance instance) {
+        synchronized( watchers ) {
+            PropertyWatcher watcher = watchers.get(instance);
+
+            if( watcher == null ) {
+                watcher = new PropertyWatcher(instance);
+                watchers.put(instance, watcher);
+            }
+            return watcher;
+        }
+    }
+
+    private final ServiceInstance  instance;
+    private final Map<String,Watch> watches = new HashMap<String, Watch>(); // by filter
+    private PropertyCollector      collector;
+    private Thread                 thread;
+
+    private PropertyWatcher(@Nonnull ServiceInstance instance) {
+        this.instance = instance;
+    }
+
+    /**
+     * Starts watching properties of an object. The listener first receives the current values.
+     * @param object the object to watch
+     * @param paths the property paths to watch
+     * @param listener the listener to notify
+     * @throws CloudException vSphere refused the property filter
+     */
+    public void watch(@Nonnull ManagedObjectReference object, @Nonnull String[] paths, @Nonnull Listener listener) throws CloudException {
+        watch(new ManagedObjectReference[] { object }, paths, listener);
+    }
+
+    /**
+     * Starts watching the same properties of several objects of one type through a single property filter. The
+     * listener first receives the current values of each object and is told about each object that disappears.
+     * @param objects the objects to watch, all of the same type
+     * @param paths the property paths to watch
+     * @param listener the listener to notify; returning true from it stops the watch of all the objects
+     * @throws CloudException vSphere refused the property filter
+     */
+    public void watch(@Nonnull ManagedObjectReference[] objects, @Nonnull String[] paths, @Nonnull Listener listener) throws CloudException {
+        if( objects.length < 1 ) {
+            return;
+        }
+        PropertySpec ps = new PropertySpec();
+
+        ps.setType(objects[0].getType());
+        ps.setAll(Boolean.FALSE);
+        ps.setPathSet(paths);
+
+        ObjectSpec[] os = new ObjectSpec[objects.length];
+
+        for( int i=0; i<objects.length; i++ ) {
+            os[i] = new ObjectSpec();
+            os[i].setObj(objects[i]);
+            os[i].setSkip(Boolean.FALSE);
+        }
+        PropertyFilterSpec spec = new PropertyFilterSpec();
+
+        spec.setPropSet(new PropertySpec[] { ps });
+        spec.setObjectSet(os);
+        try {
+            // held until the watch is registered so that the watcher thread cannot see the filter's updates first
+            synchronized( this ) {
+                if( collector == null ) {
+                    collector = instance.getPropertyCollector().createPropertyCollector();
+                }
+                PropertyFilter filter = collector.createFilter(spec, true);
+
+                watches.put(filter.getMOR().getVal(), new Watch(filter, objects.clone(), paths.clone(), listener));
+                if( thread == null ) {
+                    thread = new Thread(new Runnable() {
+                        @Override
+                        public void run() {
+                            waitForUpdates();
+                        }
+                    }, "vsphere-property-watcher");
+                    thread.setDaemon(true);
+                    thread.start();
+                }
+            }
+        }
+        catch( RemoteException e ) {
+            throw new CloudException("Unable to watch " + objects[0].getVal() + (objects.length > 1 ? " and " + (objects.length-1) + " more" : "") + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Stops all watches of a listener.
+     * @param listener the listener to stop notifying
+     */
+    public void unwatch(@Nonnull Listener listener) {
+        List<Watch> stopped = new ArrayList<Watch>();
+
+        synchronized( this ) {
+            for( Watch watch : watches.values() ) {
+                if( watch.listener == listener ) {
+                    stopped.add(watch);
+                }
+            }
+        }
+        for( Watch watch : stopped ) {
+            stop(watch);
+        }
+    }
+
+    /**
+     * Stops watching one object for a listener. A filter shared with other objects is replaced by one without the
+     * object, so the listener receives the current values of the others once more.
+     * @param object the object to stop watching
+     * @param listener the listener watching it
+     * @throws CloudException vSphere refused the replacement property filter
+     */
+    public void unwatch(@Nonnull ManagedObjectReference object, @Nonnull Listener listener) throws CloudException {
+        List<Watch> affected = new ArrayList<Watch>();
+
+        synchronized( this ) {
+            for( Watch watch : watches.values() ) {
+                if( watch.listener == listener && contains(watch.objects, object) ) {
+                    affected.add(watch);
+                }
+            }
+        }
+        for( Watch watch : affected ) {
+            List<ManagedObjectReference> others = new ArrayList<ManagedObjectReference>();
+
+            for( ManagedObjectReference o : watch.objects ) {
+                if( !o.getVal().equals(object.getVal()) ) {
+                    others.add(o);
+                }
+            }
+            stop(watch);
+            watch(others.toArray(new ManagedObjectReference[others.size()]), watch.paths, listener);
+        }
+    }
+
+    static private boolean contains(@Nonnull ManagedObjectReference[] objects, @Nonnull ManagedObjectReference object) {
+        for( ManagedObjectReference o : objects ) {
+            if( o.getVal().equals(object.getVal()) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void stop(@Nonnull Watch watch) {
+        synchronized( this ) {
+            if( watches.remove(watch.filter.getMOR().getVal()) == null ) {
+                return;
+            }
+        }
+        try {
+            watch.filter.destroyPropertyFilter();
+        }
+        catch( RemoteException e ) {
+            logger.warn("Unable to destroy the property filter for " + watch.objects[0].getVal() + ": " + e.getMessage());
+        }
+    }
+
+    private void waitForUpdates() {
+        WaitOptions options = new WaitOptions();
+        String version = "";
+
+        options.setMaxWaitSeconds(MAX_WAIT_SECONDS);
+        try {
+            while( true ) {
+                PropertyCollector pc;
+
+                synchronized( this ) {
+                    if( watches.isEmpty() ) {
+                        thread = null;
+                        return;
+                    }
+                    pc = collector;
+                }
+                UpdateSet updates = pc.waitForUpdatesEx(version, options);
+
+                if( updates == null ) {
+                    continue;
+                }
+                version = updates.getVersion();
+                if( updates.getFilterSet() != null ) {
+                    for( PropertyFilterUpdate update : updates.getFilterSet() ) {
+                        dispatch(update);
+                    }
+                }
+            }
+        }
+        catch( Exception e ) {
+            logger.error("Property watcher failed: " + e.getMessage());
+            List<Watch> failed;
+
+            synchronized( this ) {
+                failed = new ArrayList<Watch>(watches.values());
+                thread = null;
+                collector = null;
+            }
+            for( Watch watch : failed ) {
+                stop(watch);
+                for( ManagedObjectReference object : watch.objects ) {
+                    watch.listener.failed(object, e);
+                }
+            }
+        }
+    }
+
+    private void dispatch(@Nonnull PropertyFilterUpdate update) {
+        Watch watch;
+
+        synchronized( this ) {
+            watch = watches.get(update.getFilter().getVal());
+        }
+        if( watch == null ) {
+            return;
+        }
+        if( update.getMissingSet() != null ) {
+            for( MissingObject missing : update.getMissingSet() ) {
+                watch.listener.failed(missing.getObj(), new CloudException("Unable to watch " + missing.getObj().getVal() + ": " + missing.getFault().getLocalizedMessage()));
+            }
+        }
+        if( update.getObjectSet() == null ) {
+            return;
+        }
+        for( ObjectUpdate object : update.getObjectSet() ) {
+            if( ObjectUpdateKind.leave.equals(object.getKind()) ) {
+                watch.listener.failed(object.getObj(), new CloudException(object.getObj().getVal() + " no longer exists"));
+                continue;
+            }
+            Map<String,Object> values = new HashMap<String, Object>();
+
+            if( object.getChangeSet() != null ) {
+                for( PropertyChange change : object.getChangeSet() ) {
+                    boolean removed = (PropertyChangeOp.remove.equals(change.getOp()) || PropertyChangeOp.indirectRemove.equals(change.getOp()));
+
+                    values.put(change.getName(), removed ? null : PropertyCollectorUtil.convertProperty(change.getVal()));
+                }
+            }
+            boolean done;
+
+            try {
+                done = watch.listener.changed(object.getObj(), values);
+            }
+            catch( RuntimeException e ) {
+                logger.error("Property listener for " + object.getObj().getVal() + " failed: " + e.getMessage(), e);
+                done = true;
+            }
+            if( done ) {
+                stop(watch);
+                return;
+            }
+        }
+    }
+}
@@ -0,0 +1,185 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import org.dasein.cloud.dc.Region;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Snapshot of the vSphere data centers (Dasein regions) together with the data center every VM, template, folder
+ * and vApp below them belongs to. It is built from a single property collector retrieval of the parent links in
+ * the inventory so that resolving the region of an entity no longer requires walking its parent chain against
+ * vCenter.
+ * @since 2015.09
+ */
+public class RegionDirectory {
+    /**
+     * The property paths {@link #build(List)} expects to find in the retrieved inventory.
+     */
+    static public final String[][] PROPERTIES = new String[][] {
+            { "Datacenter", "name" },
+            { "Folder", "parent" },
+            { "VirtualMachine", "parent", "parentVApp" },
+            { "VirtualApp", "parentFolder", "parentVApp" }
+    };
+
+    static public @Nonnull RegionDirectory build(@Nonnull List<ObjectContent> inventory) {
+        Map<String,Region> regions = new LinkedHashMap<String, Region>();
+        Map<String,ManagedObjectReference> datacenters = new HashMap<String, ManagedObjectReference>();
+        Map<String,String> datacenterNames = new HashMap<String, String>();
+        Map<String,ManagedObjectReference> parents = new HashMap<String, ManagedObjectReference>();
+
+        for( ObjectContent content : inventory ) {
+            ManagedObjectReference mor = content.getObj();
+            String key = PropertyRetriever.toKey(mor);
+
+            if( mor.getType().equals("Datacenter") ) {
+                String name = PropertyRetriever.getString(content, "name");
+
+                if( name != null ) {
+                    regions.put(name, toRegion(name));
+                    datacenters.put(name, mor);
+                    datacenterNames.put(key, name);
+                }
+                continue;
+            }
+            ManagedObjectReference parent = PropertyRetriever.getReference(content, "parent");
+
+            if( parent == null ) {
+                parent = PropertyRetriever.getReference(content, "parentFolder");
+            }
+            if( parent == null ) {
+                parent = PropertyRetriever.getReference(content, "parentVApp");
+            }
+            if( parent != null ) {
+                parents.put(key, parent);
+            }
+        }
+        Map<String,String> regionByEntity = new HashMap<String, String>();
+
+        for( String key : parents.keySet() ) {
+            resolve(key, parents, datacenterNames, regionByEntity);
+        }
+        return new RegionDirectory(regions, datacenters, regionByEntity);
+    }
+
+    static private @Nullable String resolve(@Nonnull String key, @Nonnull Map<String,ManagedObjectReference> parents, @Nonnull Map<String,String> datacenterNames, @Nonnull Map<String,String> regionByEntity) {
+        if( regionByEntity.containsKey(key) ) {
+            return regionByEntity.get(key);
+        }
+        ArrayList<String> path = new ArrayList<String>();
+        String regionId = null;
+        String current = key;
+
+        while( current != null ) {
+            regionId = datacenterNames.get(current);
+            if( regionId != null || regionByEntity.containsKey(current) ) {
+                if( regionId == null ) {
+                    regionId = regionByEntity.get(current);
+                }
+                break;
+            }
+            path.add(current);
+            ManagedObjectReference parent = parents.get(current);
+
+            current = (parent == null ? null : PropertyRetriever.toKey(parent));
+            if( current != null && path.contains(current) ) {
+                break;
+            }
+        }
+        for( String k : path ) {
+            regionByEntity.put(k, regionId);
+        }
+        return regionId;
+    }
+
+    static private @Nonnull Region toRegion(@Nonnull String datacenterName) {
+        Region region = new Region();
+
+        region.setActive(true);
+        region.setAvailable(true);
+        region.setJurisdiction("US");
+        region.setName(datacenterName);
+        region.setProviderRegionId(datacenterName);
+        return region;
+    }
+
+    private final Map<String,Region>                 regions;
+    private final Map<String,ManagedObjectReference> datacenters;
+    private final Map<String,String>                 regionByEntity;
+
+    private RegionDirectory(@Nonnull Map<String,Region> regions, @Nonnull Map<String,ManagedObjectReference> datacenters, @Nonnull Map<String,String> regionByEntity) {
+        this.regions = Collections.unmodifiableMap(regions);
+        this.datacenters = Collections.unmodifiableMap(datacenters);
+        this.regionByEntity = Collections.unmodifiableMap(regionByEntity);
+    }
+
+    /**
+     * @return a copy of the regions in the order vCenter reported them
+     */
+    public @Nonnull Collection<Region> listRegions() {
+        return new ArrayList<Region>(regions.values());
+    }
+
+    public @Nullable Region getRegion(@Nonnull String regionId) {
+        return regions.get(regionId);
+    }
+
+    /**
+     * @param regionId the name of the vSphere data center
+     * @return the reference to the data center or <code>null</code> if no data center has that name
+     */
+    public @Nullable ManagedObjectReference getDatacenter(@Nonnull String regionId) {
+        return datacenters.get(regionId);
+    }
+
+    /**
+     * @param entity a VM, template, folder or vApp in the inventory
+     * @return the region the entity belongs to or <code>null</code> if the entity was unknown when the directory was built
+     */
+    public @Nullable String getRegionId(@Nonnull ManagedObjectReference entity) {
+        String key = PropertyRetriever.toKey(entity);
+
+        if( entity.getType().equals("Datacenter") ) {
+            for( Map.Entry<String,ManagedObjectReference> entry : datacenters.entrySet() ) {
+                if( PropertyRetriever.toKey(entry.getValue()).equals(key) ) {
+                    return entry.getKey();
+                }
+            }
+            return null;
+        }
+        return regionByEntity.get(key);
+    }
+
+    public boolean contains(@Nonnull ManagedObjectReference entity) {
+        return regionByEntity.containsKey(PropertyRetriever.toKey(entity));
+    }
+}
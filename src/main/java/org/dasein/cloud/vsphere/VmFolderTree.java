@@ -0,0 +1,174 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import org.dasein.cloud.dc.Folder;
+import org.dasein.cloud.dc.FolderType;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The VM folder hierarchy of one vSphere data center, built from a single property collector retrieval of the
+ * name, parent and children of every folder. Besides the Dasein folder graph it indexes the folders by name and
+ * by path (e.g. <code>apps/web</code>, relative to the data center VM folder) for resolving launch target folders.
+ * @since 2015.09
+ */
+public class VmFolderTree {
+    /**
+     * The property paths {@link #build(List)} expects when retrieving from the data center.
+     */
+    static public final String[][] PROPERTIES = new String[][] {
+            { "Datacenter", "vmFolder" },
+            { "Folder", "name", "parent", "childEntity" }
+    };
+
+    static private class Node {
+        ManagedObjectReference mor;
+        String                 name;
+        ManagedObjectReference parent;
+        ManagedObjectReference[] children;
+    }
+
+    static public @Nonnull VmFolderTree build(@Nonnull List<ObjectContent> inventory) {
+        Map<String,Node> nodes = new HashMap<String, Node>();
+        ManagedObjectReference root = null;
+
+        for( ObjectContent content : inventory ) {
+            ManagedObjectReference mor = content.getObj();
+
+            if( mor.getType().equals("Datacenter") ) {
+                root = PropertyRetriever.getReference(content, "vmFolder");
+            }
+            else if( mor.getType().equals("Folder") ) {
+                Node node = new Node();
+
+                node.mor = mor;
+                node.name = PropertyRetriever.getString(content, "name");
+                node.parent = PropertyRetriever.getReference(content, "parent");
+                node.children = PropertyRetriever.getReferences(content, "childEntity");
+                nodes.put(PropertyRetriever.toKey(mor), node);
+            }
+        }
+        VmFolderTree tree = new VmFolderTree(root);
+
+        if( root != null ) {
+            Node rootNode = nodes.get(PropertyRetriever.toKey(root));
+
+            if( rootNode != null ) {
+                for( ManagedObjectReference child : rootNode.children ) {
+                    tree.add(nodes, child, rootNode, "");
+                }
+            }
+        }
+        return tree;
+    }
+
+    static private @Nonnull Folder toFolder(@Nonnull Node node) {
+        Folder f = new Folder();
+
+        f.setId(node.name);
+        f.setName(node.name);
+        f.setType(FolderType.VM);
+        return f;
+    }
+
+    private final ManagedObjectReference           root;
+    private final List<Folder>                     folders   = new ArrayList<Folder>();
+    private final Map<String,Folder>               byId      = new HashMap<String, Folder>();
+    private final Map<String,ManagedObjectReference> morByName = new HashMap<String, ManagedObjectReference>();
+    private final Map<String,ManagedObjectReference> morByPath = new HashMap<String, ManagedObjectReference>();
+
+    private VmFolderTree(@Nullable ManagedObjectReference root) {
+        this.root = root;
+    }
+
+    private void add(@Nonnull Map<String,Node> nodes, @Nonnull ManagedObjectReference mor, @Nonnull Node parent, @Nonnull String parentPath) {
+        Node node = nodes.get(PropertyRetriever.toKey(mor));
+
+        if( node == null || node.name == null ) {
+            return; // not a folder (VMs and vApps live in the VM folders as well)
+        }
+        Folder folder = toFolder(node);
+        List<Folder> children = new ArrayList<Folder>();
+
+        folder.setParent(toFolder(parent));
+        for( ManagedObjectReference child : node.children ) {
+            Node c = nodes.get(PropertyRetriever.toKey(child));
+
+            if( c != null && c.name != null ) {
+                children.add(toFolder(c));
+            }
+        }
+        folder.setChildren(children);
+
+        String path = parentPath + node.name;
+
+        folders.add(folder);
+        if( !byId.containsKey(folder.getId()) ) {
+            byId.put(folder.getId(), folder);
+            morByName.put(node.name, node.mor);
+        }
+        morByPath.put(path, node.mor);
+        for( ManagedObjectReference child : node.children ) {
+            add(nodes, child, node, path + "/");
+        }
+    }
+
+    /**
+     * @return the data center's top-level VM folder or <code>null</code> if the data center had none
+     */
+    public @Nullable ManagedObjectReference getRoot() {
+        return root;
+    }
+
+    /**
+     * @return all folders below the data center VM folder, parents before their children
+     */
+    public @Nonnull Collection<Folder> listFolders() {
+        return Collections.unmodifiableList(folders);
+    }
+
+    public @Nullable Folder getFolder(@Nonnull String folderId) {
+        return byId.get(folderId);
+    }
+
+    /**
+     * Resolves a launch target folder.
+     * @param nameOrPath either a folder name or a slash-separated path relative to the data center VM folder
+     * @return the matching folder or <code>null</code> if no folder matches
+     */
+    public @Nullable ManagedObjectReference findFolder(@Nonnull String nameOrPath) {
+        ManagedObjectReference mor = morByPath.get(nameOrPath);
+
+        if( mor == null ) {
+            mor = morByName.get(nameOrPath);
+        }
+        return mor;
+    }
+}
@@ -0,0 +1,162 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.capture;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.zip.GZIPOutputStream;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.vsphere.PrivateCloud;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Writes the SOAP exchanges of a connection to a {@link SoapRecording} file so that they can be replayed offline.
+ * User names and passwords are replaced before anything is written and session establishment calls are not
+ * recorded at all. Capture is enabled on a {@link PrivateCloud} with the custom property or system property
+ * <code>captureFile</code>.
+ * @since 2015.09
+ */
+public class SoapCapture implements Closeable {
+    static private final Logger logger = PrivateCloud.getLogger(SoapCapture.class, "std");
+
+    static private final Charset UTF8 = Charset.forName("utf-8");
+
+    static public final String SCRUBBED = "********";
+
+    // calls whose requests or responses carry credentials, session keys or tickets in their entirety
+    static private final Set<String> SESSION_METHODS = new HashSet<String>(Arrays.asList(
+            "Login", "LoginByToken", "LoginExtensionByCertificate", "LoginExtensionBySubjectName", "ImpersonateUser",
+            "AcquireCloneTicket", "AcquireGenericServiceTicket", "AcquireCredentialsInGuest", "CloneSession"
+    ));
+
+    static private final Pattern CREDENTIALS = Pattern.compile("<((?:\\w+:)?(?:userName|username|password|adminPassword|domainAdminPassword))(\\s[^>]*)?>.*?</\\1>", Pattern.DOTALL);
+
+    /**
+     * Replaces the content of every credential element in a SOAP message.
+     * @param xml the SOAP message
+     * @return the message with user names and passwords replaced by {@link #SCRUBBED}
+     */
+    static public @Nonnull String scrub(@Nonnull String xml) {
+        Matcher m = CREDENTIALS.matcher(xml);
+
+        if( !m.find() ) {
+            return xml;
+        }
+        StringBuffer out = new StringBuffer(xml.length());
+
+        do {
+            String attributes = (m.group(2) == null ? "" : m.group(2));
+
+            m.appendReplacement(out, Matcher.quoteReplacement("<" + m.group(1) + attributes + ">" + SCRUBBED + "</" + m.group(1) + ">"));
+        } while( m.find() );
+        m.appendTail(out);
+        return out.toString();
+    }
+
+    static public @Nonnull SoapCapture open(@Nonnull File file) throws IOException {
+        return new SoapCapture(file);
+    }
+
+    private final File             file;
+    private final DataOutputStream out;
+    private int                    count = 0;
+    private boolean                closed = false;
+
+    private SoapCapture(@Nonnull File file) throws IOException {
+        this.file = file;
+        out = new DataOutputStream(new BufferedOutputStream(new GZIPOutputStream(new FileOutputStream(file))));
+        out.write(SoapRecording.MAGIC);
+        out.writeInt(SoapRecording.VERSION);
+    }
+
+    public @Nonnull File getFile() {
+        return file;
+    }
+
+    /**
+     * Records one exchange. Failures to write are logged and end the capture rather than failing the call.
+     * @param method the SOAP method
+     * @param request the request as sent
+     * @param status the HTTP status of the response
+     * @param response the response body as received
+     * @param timeToFirstByteMicros the time from sending the request until the response started
+     */
+    public void record(@Nonnull String method, @Nonnull byte[] request, int status, @Nonnull byte[] response, long timeToFirstByteMicros) {
+        if( SESSION_METHODS.contains(method) ) {
+            return;
+        }
+        byte[] scrubbedRequest = scrub(new String(request, UTF8)).getBytes(UTF8);
+        byte[] scrubbedResponse = scrub(new String(response, UTF8)).getBytes(UTF8);
+
+        synchronized( this ) {
+            if( closed ) {
+                return;
+            }
+            try {
+                out.writeByte(1);
+                out.writeUTF(method);
+                out.writeShort(status);
+                out.writeLong(timeToFirstByteMicros);
+                out.writeInt(scrubbedRequest.length);
+                out.write(scrubbedRequest);
+                out.writeInt(scrubbedResponse.length);
+                out.write(scrubbedResponse);
+                count++;
+            }
+            catch( IOException e ) {
+                logger.error("Stopping SOAP capture to " + file + ": " + e.getMessage());
+                close();
+            }
+        }
+    }
+
+    /**
+     * @return the number of exchanges recorded so far
+     */
+    public synchronized int getCount() {
+        return count;
+    }
+
+    @Override
+    public synchronized void close() {
+        if( closed ) {
+            return;
+        }
+        closed = true;
+        try {
+            out.writeByte(0);
+            out.close();
+        }
+        catch( IOException e ) {
+            logger.error("Unable to finish SOAP capture to " + file + ": " + e.getMessage());
+        }
+    }
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.capture;
+
+import javax.annotation.Nonnull;
+
+/**
+ * One captured SOAP call: the scrubbed request, the HTTP status and body of the response and how long the server
+ * took to start answering.
+ * @since 2015.09
+ */
+public class SoapExchange {
+    private final String method;
+    private final byte[] request;
+    private final int    status;
+    private final byte[] response;
+    private final long   timeToFirstByteMicros;
+
+    public SoapExchange(@Nonnull String method, @Nonnull byte[] request, int status, @Nonnull byte[] response, long timeToFirstByteMicros) {
+        this.method = method;
+        this.request = request;
+        this.status = status;
+        this.response = response;
+        this.timeToFirstByteMicros = timeToFirstByteMicros;
+    }
+
+    public @Nonnull String getMethod() {
+        return method;
+    }
+
+    /**
+     * @return the UTF-8 encoded SOAP request with credentials scrubbed
+     */
+    public @Nonnull byte[] getRequest() {
+        return request;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * @return the UTF-8 encoded SOAP response
+     */
+    public @Nonnull byte[] getResponse() {
+        return response;
+    }
+
+    public long getTimeToFirstByteMicros() {
+        return timeToFirstByteMicros;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return method + " (" + status + ", " + request.length + "B out, " + response.length + "B in)";
+    }
+}
@@ -0,0 +1,96 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.capture;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Reads the files written by {@link SoapCapture}. A recording is a gzip stream holding the {@link #MAGIC} bytes,
+ * the format version and then one record per exchange in the order the calls completed:
+ * <pre>
+ * byte   1 (0 ends the recording)
+ * UTF    SOAP method name
+ * short  HTTP status
+ * long   time to first byte in microseconds
+ * int    request length, followed by the UTF-8 request
+ * int    response length, followed by the UTF-8 response
+ * </pre>
+ * A recording cut short by a crash is readable up to the last complete record.
+ * @since 2015.09
+ */
+public class SoapRecording {
+    static public final byte[] MAGIC   = new byte[] { 'V', 'S', 'O', 'A', 'P', 'R', 'E', 'C' };
+    static public final int    VERSION = 1;
+
+    static public @Nonnull List<SoapExchange> read(@Nonnull File file) throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new GZIPInputStream(new FileInputStream(file))));
+
+        try {
+            byte[] magic = new byte[MAGIC.length];
+
+            in.readFully(magic);
+            if( !Arrays.equals(magic, MAGIC) ) {
+                throw new IOException(file + " is not a SOAP recording");
+            }
+            int version = in.readInt();
+
+            if( version != VERSION ) {
+                throw new IOException("Unsupported SOAP recording version " + version + " in " + file);
+            }
+            List<SoapExchange> exchanges = new ArrayList<SoapExchange>();
+
+            try {
+                while( in.readByte() != 0 ) {
+                    String method = in.readUTF();
+                    int status = in.readShort();
+                    long ttfb = in.readLong();
+                    byte[] request = readBytes(in);
+                    byte[] response = readBytes(in);
+
+                    exchanges.add(new SoapExchange(method, request, status, response, ttfb));
+                }
+            }
+            catch( EOFException ignore ) {
+                // the capture was not closed; keep what was complete
+            }
+            return exchanges;
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    static private @Nonnull byte[] readBytes(@Nonnull DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+
+        in.readFully(bytes);
+        return bytes;
+    }
+}
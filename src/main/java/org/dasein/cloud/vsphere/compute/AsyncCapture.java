@@ -0,0 +1,201 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.AsynchronousTask;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.vsphere.InventoryCache;
+import org.dasein.cloud.vsphere.InventoryChange;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyWatcher;
+
+import javax.annotation.Nonnull;
+
+/**
+ * One image capture started by {@link Template#capture(org.dasein.cloud.compute.ImageCreateOptions, AsynchronousTask)}
+ * with a task to report to. The clone task is followed through the {@link PropertyWatcher}: its progress is copied
+ * into the asynchronous task as it comes in, and once it succeeds the new template is taken from the task result and
+ * converted on a worker thread, so captures running side by side hold no thread while vSphere works. The provider
+ * is held until the capture completes, so closing it only takes the connection down afterwards.
+ * @since 2015.09
+ */
+final class AsyncCapture implements PropertyWatcher.Listener {
+    static private final Logger logger = PrivateCloud.getLogger(AsyncCapture.class, "std");
+
+    static private final String[] TASK = new String[] { "info.state", "info.progress", "info.result", "info.error" };
+
+    static private final ExecutorService workers = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "vsphere-capture-" + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Follows a submitted clone task until it yields the captured image.
+     * @param provider the provider capturing
+     * @param support the image support of the provider
+     * @param instance the connection the task was submitted through
+     * @param task the clone task
+     * @param name the name of the new template, for logging
+     * @param tracker the task to report progress and the result to
+     * @throws CloudException the task could not be watched
+     */
+    static void start(@Nonnull PrivateCloud provider, @Nonnull Template support, @Nonnull ServiceInstance instance, @Nonnull Task task, @Nonnull String name, @Nonnull AsynchronousTask<MachineImage> tracker) throws CloudException {
+        AsyncCapture capture = new AsyncCapture(provider, support, instance, name, tracker);
+
+        provider.hold();
+        try {
+            capture.watcher.watch(task.getMOR(), TASK, capture);
+        }
+        catch( CloudException e ) {
+            provider.release();
+            throw e;
+        }
+    }
+
+    private final PrivateCloud                   provider;
+    private final Template                       support;
+    private final ServiceInstance                instance;
+    private final String                         name;
+    private final AsynchronousTask<MachineImage> tracker;
+    private final PropertyWatcher                watcher;
+
+    private TaskInfoState        state;
+    private Object               result;
+    private LocalizedMethodFault error;
+    private boolean              done;
+
+    private AsyncCapture(@Nonnull PrivateCloud provider, @Nonnull Template support, @Nonnull ServiceInstance instance, @Nonnull String name, @Nonnull AsynchronousTask<MachineImage> tracker) {
+        this.provider = provider;
+        this.support = support;
+        this.instance = instance;
+        this.name = name;
+        this.tracker = tracker;
+        this.watcher = PropertyWatcher.getInstance(instance);
+    }
+
+    @Override
+    public synchronized boolean changed(@Nonnull ManagedObjectReference object, @Nonnull Map<String,Object> values) {
+        if( done ) {
+            return true;
+        }
+        if( values.containsKey("info.state") ) {
+            state = (TaskInfoState)values.get("info.state");
+        }
+        if( values.containsKey("info.result") ) {
+            result = values.get("info.result");
+        }
+        if( values.containsKey("info.error") ) {
+            error = (LocalizedMethodFault)values.get("info.error");
+        }
+        if( TaskInfoState.success.equals(state) ) {
+            done = true;
+            if( !(result instanceof ManagedObjectReference) ) {
+                complete(new CloudException("Capture of " + name + " finished without a template"));
+                return true;
+            }
+            final ManagedObjectReference template = (ManagedObjectReference)result;
+
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    finish(template);
+                }
+            });
+            return true;
+        }
+        if( TaskInfoState.error.equals(state) ) {
+            done = true;
+            complete(new CloudException("Failed to capture " + name + ": " + (error == null ? "unknown error" : error.getLocalizedMessage())));
+            return true;
+        }
+        Object progress = values.get("info.progress");
+
+        // 100% is left for the template conversion
+        if( progress instanceof Integer ) {
+            tracker.setPercentComplete(Math.min(99, (Integer)progress));
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void failed(@Nonnull ManagedObjectReference object, @Nonnull final Exception cause) {
+        if( !done ) {
+            done = true;
+            // called on the watcher thread, which must not destroy the property filter itself
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        watcher.unwatch(AsyncCapture.this);
+                    }
+                    finally {
+                        complete(cause);
+                    }
+                }
+            });
+        }
+    }
+
+    private void finish(@Nonnull ManagedObjectReference template) {
+        try {
+            MachineImage img = support.toMachineImage(new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), template));
+
+            if( img == null ) {
+                throw new CloudException("Failed to identify newly created template " + name);
+            }
+            InventoryCache.publish(provider.getContext(), InventoryChange.IMAGE_CAPTURED);
+            tracker.setPercentComplete(100);
+            tracker.completeWithResult(img);
+            provider.release();
+        }
+        catch( Exception e ) {
+            logger.error("Capture of " + name + " failed: " + e.getMessage());
+            complete(e);
+        }
+    }
+
+    private void complete(@Nonnull Throwable cause) {
+        try {
+            tracker.complete(cause);
+        }
+        finally {
+            provider.release();
+        }
+    }
+}
@@ -0,0 +1,380 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.Task;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.vsphere.InventoryCache;
+import org.dasein.cloud.vsphere.InventoryChange;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyWatcher;
+import org.dasein.util.CalendarWrapper;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * One launch started by {@link Vm#launchAsync(VMLaunchOptions, LaunchListener)}. Resolution and placement run on a
+ * small shared pool of worker threads; after the clone task is submitted, the launch advances on the updates the
+ * {@link PropertyWatcher} delivers for the task and then for the new VM, without holding a thread while it waits.
+ * The launch completes once the guest reports its IP address or, failing that, after 20 minutes with the VM as it
+ * is then. The provider is held for the whole launch, so closing it only takes the connection down afterwards, and
+ * every vSphere call a stage makes, including creating and destroying property filters, runs on the worker threads.
+ * @since 2015.09
+ */
+final class AsyncLaunch implements PropertyWatcher.Listener {
+    static private final Logger logger = PrivateCloud.getLogger(AsyncLaunch.class, "std");
+
+    static private final String[] TASK  = new String[] { "info.state", "info.progress", "info.result", "info.error" };
+    static private final String[] GUEST = new String[] { "runtime.powerState", "guest.toolsRunningStatus", "guest.ipAddress" };
+
+    static private final long TIMEOUT = CalendarWrapper.MINUTE * 20L;
+
+    static private final ScheduledExecutorService workers = Executors.newScheduledThreadPool(2, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "vsphere-launch-" + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Starts a launch.
+     * @param provider the provider to launch through
+     * @param support the VM support of the provider
+     * @param options the launch options
+     * @param listener the listener to report the stages to or <code>null</code>
+     * @return the future of the launched VM
+     */
+    static @Nonnull Future<VirtualMachine> start(@Nonnull PrivateCloud provider, @Nonnull Vm support, @Nonnull VMLaunchOptions options, @Nullable LaunchListener listener) {
+        final AsyncLaunch launch = new AsyncLaunch(provider, support, options, listener);
+
+        provider.hold();
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                launch.resolve();
+            }
+        });
+        return launch.future;
+    }
+
+    private final PrivateCloud     provider;
+    private final Vm               support;
+    private final VMLaunchOptions  options;
+    private final LaunchListener   listener;
+    private final String           hostName;
+    private final SettableFuture<VirtualMachine> future = new SettableFuture<VirtualMachine>(new Runnable() {
+        @Override
+        public void run() {
+            stop();
+        }
+    });
+
+    private ServiceInstance          instance;
+    private PropertyWatcher          watcher;
+    private Vm.ClonePlan             plan;
+    private ManagedObjectReference[] placement;
+    private int                      poolIndex = 0;
+    private PlacementBreakers.Attempt attempt;
+    private ScheduledFuture<?>       timeout;
+    private LaunchStage              stage;
+    private int                      percent;
+    private boolean                  stopped;
+
+    private TaskInfoState            taskState;
+    private Object                   taskResult;
+    private LocalizedMethodFault     taskError;
+
+    private ManagedObjectReference   vm;
+    private Object                   powerState;
+    private Object                   toolsStatus;
+    private Object                   ipAddress;
+
+    private AsyncLaunch(@Nonnull PrivateCloud provider, @Nonnull Vm support, @Nonnull VMLaunchOptions options, @Nullable LaunchListener listener) {
+        this.provider = provider;
+        this.support = support;
+        this.options = options;
+        this.listener = listener;
+        this.hostName = support.validateName(options.getHostName());
+    }
+
+    private void resolve() {
+        try {
+            instance = provider.getServiceInstance();
+            if( instance == null ) {
+                throw new CloudException("Unable to connect to vSphere");
+            }
+            plan = support.planClone(options, null);
+            if( plan.pools == null || plan.pools.length == 0 ) {
+                throw new CloudException("No resource pool to launch " + hostName + " into");
+            }
+            report(LaunchStage.RESOLVED, 0);
+
+            ManagedObjectReference cluster = (ManagedObjectReference)plan.pools[0].getPropertyByPath("owner");
+
+            if( cluster == null || plan.host != null || plan.datastore != null ) {
+                placement = new ManagedObjectReference[2];
+            }
+            else {
+                placement = BatchLaunch.spread(provider, instance, cluster, 1).get(0);
+            }
+            report(LaunchStage.PLACED, 0);
+            watcher = PropertyWatcher.getInstance(instance);
+            startClone();
+        }
+        catch( Exception e ) {
+            fail(e);
+        }
+    }
+
+    private synchronized void startClone() {
+        if( future.isDone() ) {
+            return;
+        }
+        try {
+            // a host or datastore picked for the first pool's cluster means nothing in the other pools
+            boolean placed = (poolIndex == 0);
+            ManagedObjectReference host = (placed && placement[0] != null ? placement[0] : plan.host);
+            ManagedObjectReference datastore = (placed && placement[1] != null ? placement[1] : plan.datastore);
+
+            attempt = PlacementBreakers.begin(provider, hostName, plan.pools[poolIndex].getMOR(), host, datastore);
+
+            Task task = support.startClone(plan, options, hostName, (ResourcePool)plan.pools[poolIndex], host, datastore, true);
+
+            taskState = null;
+            taskResult = null;
+            taskError = null;
+            report(LaunchStage.CLONING, 0);
+            watcher.watch(task.getMOR(), TASK, this);
+        }
+        catch( Exception e ) {
+            fail(e);
+        }
+    }
+
+    @Override
+    public synchronized boolean changed(@Nonnull ManagedObjectReference object, @Nonnull Map<String,Object> values) {
+        if( future.isDone() ) {
+            return true;
+        }
+        if( object.getType().equals("Task") ) {
+            return taskChanged(values);
+        }
+        return vmChanged(values);
+    }
+
+    private boolean taskChanged(@Nonnull Map<String,Object> values) {
+        if( values.containsKey("info.state") ) {
+            taskState = (TaskInfoState)values.get("info.state");
+        }
+        if( values.containsKey("info.result") ) {
+            taskResult = values.get("info.result");
+        }
+        if( values.containsKey("info.error") ) {
+            taskError = (LocalizedMethodFault)values.get("info.error");
+        }
+        if( TaskInfoState.success.equals(taskState) ) {
+            if( !(taskResult instanceof ManagedObjectReference) ) {
+                fail(new CloudException("Clone of " + hostName + " finished without a VM"));
+                return true;
+            }
+            vm = (ManagedObjectReference)taskResult;
+            attempt.succeeded();
+            report(LaunchStage.CLONING, 100);
+            timeout = workers.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    timedOut();
+                }
+            }, TIMEOUT, TimeUnit.MILLISECONDS);
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    watchGuest();
+                }
+            });
+            return true;
+        }
+        if( TaskInfoState.error.equals(taskState) ) {
+            String message = (taskError == null ? "unknown error" : taskError.getLocalizedMessage());
+
+            attempt.failed(taskError);
+            if( ++poolIndex < plan.pools.length ) {
+                logger.warn("Failed to create " + hostName + ", trying the next resource pool: " + message);
+                workers.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        startClone();
+                    }
+                });
+            }
+            else {
+                fail(new CloudException("Failed to create VM: " + message));
+            }
+            return true;
+        }
+        Object progress = values.get("info.progress");
+
+        if( progress instanceof Integer && (Integer)progress > percent ) {
+            report(LaunchStage.CLONING, (Integer)progress);
+        }
+        return false;
+    }
+
+    private synchronized void watchGuest() {
+        if( stopped ) {
+            return;
+        }
+        try {
+            watcher.watch(vm, GUEST, this);
+        }
+        catch( CloudException e ) {
+            fail(e);
+        }
+    }
+
+    private boolean vmChanged(@Nonnull Map<String,Object> values) {
+        if( values.containsKey("runtime.powerState") ) {
+            powerState = values.get("runtime.powerState");
+        }
+        if( values.containsKey("guest.toolsRunningStatus") ) {
+            toolsStatus = values.get("guest.toolsRunningStatus");
+        }
+        if( values.containsKey("guest.ipAddress") ) {
+            ipAddress = values.get("guest.ipAddress");
+        }
+        if( stage == LaunchStage.CLONING && VirtualMachinePowerState.poweredOn.equals(powerState) ) {
+            report(LaunchStage.POWERED_ON, 100);
+        }
+        if( stage == LaunchStage.POWERED_ON && "guestToolsRunning".equals(toolsStatus) ) {
+            report(LaunchStage.CUSTOMIZED, 100);
+        }
+        if( stage == LaunchStage.CUSTOMIZED && ipAddress != null && (options.getPrivateIp() == null || options.getPrivateIp().equals(ipAddress)) ) {
+            report(LaunchStage.IP_ASSIGNED, 100);
+            workers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    finish();
+                }
+            });
+            return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void failed(@Nonnull ManagedObjectReference object, @Nonnull Exception cause) {
+        fail(cause);
+    }
+
+    private synchronized void timedOut() {
+        if( !future.isDone() ) {
+            logger.warn("Gave up waiting for the guest of " + hostName + " at " + stage);
+            watcher.unwatch(this);
+            finish();
+        }
+    }
+
+    private void finish() {
+        try {
+            VirtualMachine server = support.toServer(new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), vm), null);
+
+            if( server == null ) {
+                throw new CloudException("Unable to identify newly created server " + hostName);
+            }
+            if( options.getPrivateIp() != null && Platform.WINDOWS.equals(server.getPlatform()) ) {
+                server.setRootPassword(options.getBootstrapPassword());
+            }
+            InventoryCache.publish(provider.getContext(), InventoryChange.VM_LAUNCHED);
+            future.complete(server);
+            stop();
+        }
+        catch( Exception e ) {
+            fail(e);
+        }
+    }
+
+    private void fail(@Nonnull Exception cause) {
+        future.fail(cause);
+        // failures also arrive on the watcher thread, which must not destroy the property filters itself
+        workers.execute(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        });
+    }
+
+    private void stop() {
+        synchronized( this ) {
+            if( stopped ) {
+                return;
+            }
+            stopped = true;
+            if( timeout != null ) {
+                timeout.cancel(false);
+            }
+        }
+        try {
+            if( watcher != null ) {
+                watcher.unwatch(this);
+            }
+        }
+        finally {
+            provider.release();
+        }
+    }
+
+    private synchronized void report(@Nonnull LaunchStage stage, int percent) {
+        this.stage = stage;
+        this.percent = percent;
+        if( listener != null ) {
+            try {
+                listener.stageReached(hostName, stage, percent);
+            }
+            catch( RuntimeException e ) {
+                logger.error("Launch listener failed for " + hostName + " at " + stage + ": " + e.getMessage(), e);
+            }
+        }
+    }
+}
@@ -0,0 +1,279 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.vim25.DatastoreHostMount;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.SelectionSpec;
+import com.vmware.vim25.TraversalSpec;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Placement and throttling for {@link Vm#launchBatch(org.dasein.cloud.compute.VMLaunchOptions, int)}: spreads the VMs
+ * of a batch over the usable hosts and datastores of the target cluster and limits the clone tasks running against
+ * one cluster to {@link PrivateCloud#getBatchCloneLimit()}, across all batches of this JVM.
+ * @since 2015.09
+ */
+final class BatchLaunch {
+    static private final String[][] PLACEMENT = new String[][] {
+            { "HostSystem", "runtime.connectionState", "runtime.inMaintenanceMode" },
+            { "Datastore", "summary.accessible", "summary.freeSpace", "host" }
+    };
+
+    static private final ConcurrentMap<String,Throttle> throttles = new ConcurrentHashMap<String, Throttle>();
+
+    // clones only run once their throttle lets them, so the threads never outnumber the clones allowed to run
+    static private final ExecutorService workers = Executors.newCachedThreadPool(new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "vsphere-batch-launch-" + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    /**
+     * Runs the clones of all batches going into one cluster on the shared workers, at most a fixed number at a time,
+     * in the order they were submitted. Waiting clones are queued here rather than holding a worker thread.
+     */
+    static final class Throttle {
+        private final int             limit;
+        private final Queue<Runnable> waiting = new ArrayDeque<Runnable>();
+        private int                   running;
+
+        private Throttle(int limit) {
+            this.limit = limit;
+        }
+
+        /**
+         * Runs a clone as soon as fewer than the limit of clones into the cluster are running.
+         * @param clone the clone to run
+         */
+        synchronized void submit(@Nonnull Runnable clone) {
+            if( running < limit ) {
+                running++;
+                workers.execute(wrap(clone));
+            }
+            else {
+                waiting.add(clone);
+            }
+        }
+
+        private @Nonnull Runnable wrap(@Nonnull final Runnable clone) {
+            return new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        clone.run();
+                    }
+                    finally {
+                        next();
+                    }
+                }
+            };
+        }
+
+        private synchronized void next() {
+            Runnable clone = waiting.poll();
+
+            if( clone == null ) {
+                running--;
+            }
+            else {
+                workers.execute(wrap(clone));
+            }
+        }
+    }
+
+    private BatchLaunch() { }
+
+    /**
+     * Provides the throttle all batches cloning into a cluster with the same limit share. The limit is part of the
+     * key, so when {@link PrivateCloud#getBatchCloneLimit()} changes, new batches get a throttle with the new limit
+     * while the clones already queued finish under the old one.
+     * @param ctx the context of the batch
+     * @param cluster the cluster the batch clones into, <code>null</code> if unknown
+     * @param limit the number of concurrent clones allowed per cluster
+     * @return the throttle for the cluster and limit
+     */
+    static @Nonnull Throttle getThrottle(@Nonnull ProviderContext ctx, @Nullable ManagedObjectReference cluster, int limit) {
+        String key = ctx.getEndpoint() + "|" + (cluster == null ? ctx.getRegionId() : cluster.getVal()) + "|" + limit;
+        Throttle throttle = throttles.get(key);
+
+        if( throttle == null ) {
+            throttle = new Throttle(limit);
+
+            Throttle existing = throttles.putIfAbsent(key, throttle);
+
+            if( existing != null ) {
+                throttle = existing;
+            }
+        }
+        return throttle;
+    }
+
+    /**
+     * Picks a host and datastore for each VM of a batch. Hosts that are connected and not in maintenance take turns;
+     * each VM gets the accessible datastore mounted by its host that has been picked least so far, preferring the ones
+     * with the most free space. Hosts and datastores that {@link PlacementBreakers} is steering launches away from are
+     * only used when there is nothing else.
+     * @param provider the provider launching the batch
+     * @param instance the connection to look through
+     * @param cluster the compute resource the batch clones into
+     * @param count the number of VMs in the batch
+     * @return one <code>{ host, datastore }</code> pair per VM, with <code>null</code> entries where vSphere should choose
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    static @Nonnull List<ManagedObjectReference[]> spread(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance, @Nonnull ManagedObjectReference cluster, int count) throws CloudException {
+        List<ManagedObjectReference> hosts = new ArrayList<ManagedObjectReference>();
+        List<ObjectContent> datastores = new ArrayList<ObjectContent>();
+        List<ObjectContent> avoided = new ArrayList<ObjectContent>();
+
+        for( ObjectContent content : PropertyRetriever.retrieve(instance, toSpec(cluster)) ) {
+            String type = content.getObj().getType();
+
+            if( type.equals("HostSystem") ) {
+                if( HostSystemConnectionState.connected.equals(PropertyRetriever.getValue(content, "runtime.connectionState"))
+                        && !Boolean.TRUE.equals(PropertyRetriever.getValue(content, "runtime.inMaintenanceMode")) ) {
+                    hosts.add(content.getObj());
+                }
+            }
+            else if( type.equals("Datastore") ) {
+                if( !Boolean.TRUE.equals(PropertyRetriever.getValue(content, "summary.accessible")) ) {
+                    continue;
+                }
+                if( PlacementBreakers.isAvailable(provider, content.getObj()) ) {
+                    datastores.add(content);
+                }
+                else {
+                    avoided.add(content);
+                }
+            }
+        }
+        hosts = PlacementBreakers.filter(provider, hosts);
+        if( datastores.isEmpty() ) {
+            datastores = avoided;
+        }
+        Collections.sort(datastores, new Comparator<ObjectContent>() {
+            @Override
+            public int compare(ObjectContent a, ObjectContent b) {
+                return Long.compare(getFreeSpace(b), getFreeSpace(a));
+            }
+        });
+        int[] picks = new int[datastores.size()];
+        List<ManagedObjectReference[]> placements = new ArrayList<ManagedObjectReference[]>(count);
+
+        for( int i=0; i<count; i++ ) {
+            ManagedObjectReference host = (hosts.isEmpty() ? null : hosts.get(i % hosts.size()));
+            ManagedObjectReference datastore = null;
+            int best = -1;
+
+            for( int d=0; d<datastores.size(); d++ ) {
+                if( (best == -1 || picks[d] < picks[best]) && isMounted(datastores.get(d), host) ) {
+                    best = d;
+                }
+            }
+            if( best != -1 ) {
+                picks[best]++;
+                datastore = datastores.get(best).getObj();
+            }
+            placements.add(new ManagedObjectReference[] { host, datastore });
+        }
+        return placements;
+    }
+
+    static private @Nonnull PropertyFilterSpec toSpec(@Nonnull ManagedObjectReference cluster) {
+        TraversalSpec toHosts = new TraversalSpec();
+
+        toHosts.setName("crToH");
+        toHosts.setType("ComputeResource");
+        toHosts.setPath("host");
+        toHosts.setSkip(Boolean.FALSE);
+
+        TraversalSpec toDatastores = new TraversalSpec();
+
+        toDatastores.setName("crToDs");
+        toDatastores.setType("ComputeResource");
+        toDatastores.setPath("datastore");
+        toDatastores.setSkip(Boolean.FALSE);
+
+        ObjectSpec os = new ObjectSpec();
+
+        os.setObj(cluster);
+        os.setSkip(Boolean.TRUE);
+        os.setSelectSet(new SelectionSpec[] { toHosts, toDatastores });
+
+        PropertyFilterSpec spec = new PropertyFilterSpec();
+
+        spec.setObjectSet(new ObjectSpec[] { os });
+        spec.setPropSet(PropertyCollectorUtil.buildPropertySpecArray(PLACEMENT));
+        return spec;
+    }
+
+    static private long getFreeSpace(@Nonnull ObjectContent datastore) {
+        Object value = PropertyRetriever.getValue(datastore, "summary.freeSpace");
+
+        return (value instanceof Long ? (Long)value : 0L);
+    }
+
+    static private boolean isMounted(@Nonnull ObjectContent datastore, @Nullable ManagedObjectReference host) {
+        if( host == null ) {
+            return true;
+        }
+        Object value = PropertyRetriever.getValue(datastore, "host");
+
+        if( !(value instanceof DatastoreHostMount[]) ) {
+            return true; // mounts unknown, leave it to vSphere to reject
+        }
+        for( DatastoreHostMount mount : (DatastoreHostMount[])value ) {
+            if( mount.getKey() != null && host.getVal().equals(mount.getKey().getVal()) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,221 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.dc.DataCenter;
+import org.dasein.cloud.vsphere.ClusterCapacity;
+import org.dasein.cloud.vsphere.PrivateCloud;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Picks the cluster for a launch that did not ask for one. Clusters are drawn at random, weighted by their share of
+ * the region's available CPU and memory as of the cached {@link ClusterCapacity} snapshot. Launches placed since that
+ * snapshot was taken are not part of its usage yet, so each selection reserves the requested CPU and memory against
+ * its cluster until a later snapshot has had time to pick the new VM up. Clusters without room for the requested
+ * memory are only chosen when no cluster has room.
+ * @since 2015.09
+ */
+final class ClusterSelector {
+    static private final Logger logger = PrivateCloud.getLogger(ClusterSelector.class, "std");
+
+    /**
+     * How long host quick stats may lag behind a VM that started running.
+     */
+    static private final long SETTLE_MILLIS = 2L * 60L * 1000L;
+
+    /**
+     * How long a reservation is kept at most, comfortably past the time a capacity snapshot may be served.
+     */
+    static private final long EXPIRY_MILLIS = 15L * 60L * 1000L;
+
+    static private class Reservation {
+        final long cpu;
+        final long memory;
+        final long timestamp = System.currentTimeMillis();
+
+        Reservation(long cpu, long memory) {
+            this.cpu = cpu;
+            this.memory = memory;
+        }
+    }
+
+    static private final ConcurrentMap<String,List<Reservation>> reservations = new ConcurrentHashMap<String, List<Reservation>>();
+    static private final Random random = new Random();
+
+    private ClusterSelector() { }
+
+    /**
+     * Selects a cluster for a launch and reserves the launch's demand against it.
+     * @param provider the provider launching the VM
+     * @param cpuCount the number of virtual CPUs requested
+     * @param memory the memory requested in MB
+     * @return the data center ID of the selected cluster or <code>null</code> if the region has no data centers
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    static @Nullable String select(@Nonnull PrivateCloud provider, int cpuCount, long memory) throws InternalException, CloudException {
+        ProviderContext ctx = provider.getContext();
+
+        if( ctx == null || ctx.getRegionId() == null ) {
+            return null;
+        }
+        List<DataCenter> candidates = new ArrayList<DataCenter>();
+
+        for( DataCenter dc : provider.getDataCenterServices().listDataCenters(ctx.getRegionId()) ) {
+            if( dc.isAvailable() && dc.isActive() ) {
+                candidates.add(dc);
+            }
+        }
+        if( candidates.isEmpty() ) {
+            return null;
+        }
+        ClusterCapacity capacity = provider.getDataCenterServices().getClusterCapacity();
+        int count = candidates.size();
+        long[] freeCpu = new long[count];
+        long[] freeMemory = new long[count];
+        long[] demandCpu = new long[count];
+        long totalCpu = 0L, totalMemory = 0L;
+
+        for( int i=0; i<count; i++ ) {
+            ClusterCapacity.Cluster cluster = capacity.getCluster(candidates.get(i).getProviderDataCenterId());
+
+            if( cluster == null ) {
+                continue;
+            }
+            long cpu = cluster.getAvailableCpu();
+            long mem = cluster.getAvailableMemory();
+
+            for( Reservation r : getReservations(ctx, cluster.getName(), capacity.getTimestamp()) ) {
+                cpu -= r.cpu;
+                mem -= r.memory;
+            }
+            demandCpu[i] = cpuCount * cluster.getCpuPerCore();
+            // CPU is routinely overcommitted, memory is not: a cluster has to fit the requested memory to qualify
+            if( cpu > 0L && mem >= memory ) {
+                freeCpu[i] = cpu;
+                freeMemory[i] = mem;
+                totalCpu += cpu;
+                totalMemory += mem;
+            }
+        }
+        int selected = -1;
+
+        if( totalCpu > 0L && totalMemory > 0L ) {
+            double[] weights = new double[count];
+            double total = 0.0;
+
+            for( int i=0; i<count; i++ ) {
+                weights[i] = Math.min(((double)freeCpu[i])/totalCpu, ((double)freeMemory[i])/totalMemory);
+                total += weights[i];
+            }
+            double point = random.nextDouble() * total;
+
+            for( int i=0; i<count; i++ ) {
+                if( weights[i] > 0.0 ) {
+                    selected = i;
+                    point -= weights[i];
+                    if( point < 0.0 ) {
+                        break;
+                    }
+                }
+            }
+        }
+        if( selected < 0 ) {
+            // no capacity figures for any candidate (e.g. a data center without clusters), so every one is as good
+            selected = random.nextInt(count);
+        }
+        String dataCenterId = candidates.get(selected).getProviderDataCenterId();
+
+        if( capacity.getCluster(dataCenterId) != null ) {
+            reserve(ctx, dataCenterId, new Reservation(demandCpu[selected], memory));
+        }
+        if( logger.isDebugEnabled() ) {
+            logger.debug("Selected " + dataCenterId + " for a " + cpuCount + " CPU/" + memory + " MB launch");
+        }
+        return dataCenterId;
+    }
+
+    static private @Nonnull String toKey(@Nonnull ProviderContext ctx, @Nonnull String cluster) {
+        return ctx.getEndpoint() + "|" + ctx.getRegionId() + "|" + cluster;
+    }
+
+    static private void reserve(@Nonnull ProviderContext ctx, @Nonnull String cluster, @Nonnull Reservation reservation) {
+        String key = toKey(ctx, cluster);
+        List<Reservation> list = reservations.get(key);
+
+        if( list == null ) {
+            list = new ArrayList<Reservation>();
+
+            List<Reservation> existing = reservations.putIfAbsent(key, list);
+
+            if( existing != null ) {
+                list = existing;
+            }
+        }
+        synchronized( list ) {
+            list.add(reservation);
+        }
+    }
+
+    /**
+     * Lists the reservations a capacity snapshot does not account for yet, dropping the expired ones on the way.
+     * @param ctx the context of the launch
+     * @param cluster the cluster name
+     * @param snapshot when the capacity snapshot was taken
+     * @return the reservations made since shortly before the snapshot
+     */
+    static private @Nonnull List<Reservation> getReservations(@Nonnull ProviderContext ctx, @Nonnull String cluster, long snapshot) {
+        List<Reservation> list = reservations.get(toKey(ctx, cluster));
+        List<Reservation> pending = new ArrayList<Reservation>();
+
+        if( list == null ) {
+            return pending;
+        }
+        long now = System.currentTimeMillis();
+
+        synchronized( list ) {
+            Iterator<Reservation> it = list.iterator();
+
+            while( it.hasNext() ) {
+                Reservation r = it.next();
+
+                if( r.timestamp < now - EXPIRY_MILLIS ) {
+                    it.remove();
+                }
+                else if( r.timestamp >= snapshot - SETTLE_MILLIS ) {
+                    pending.add(r);
+                }
+            }
+        }
+        return pending;
+    }
+}
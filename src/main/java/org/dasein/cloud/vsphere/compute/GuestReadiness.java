@@ -0,0 +1,304 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.rmi.RemoteException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.GuestNicInfo;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.SearchIndex;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.network.RawAddress;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyWatcher;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Waits for the guests of a set of VMs to come up, as requested through
+ * {@link Vm#awaitGuestAddresses(Collection, long, TimeUnit)}. The guest information of all the VMs is watched through
+ * a single property filter, so the wait costs one long poll on the {@link PropertyWatcher} thread instead of a VM
+ * lookup per VM and poll. A guest is ready once its VMware tools run and it reports a routable address, i.e. one that
+ * is neither loopback, link-local nor unspecified. The provider is held while the wait runs.
+ * @since 2015.09
+ */
+final class GuestReadiness implements PropertyWatcher.Listener {
+    static private final Logger logger = PrivateCloud.getLogger(GuestReadiness.class, "std");
+
+    static private final String[] GUEST = new String[] { "guest.toolsRunningStatus", "guest.ipAddress", "guest.net" };
+
+    static private final ScheduledExecutorService timeouts = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "vsphere-guest-readiness");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static private class Guest {
+        Object         toolsStatus;
+        Object         ipAddress;
+        GuestNicInfo[] net;
+    }
+
+    /**
+     * Starts waiting for the guests of a set of VMs.
+     * @param provider the provider to watch through
+     * @param vmIds the IDs of the VMs
+     * @param timeoutMillis how long to wait at most
+     * @return the future of the routable addresses by VM ID
+     * @throws CloudException one of the VMs does not exist or vSphere refused the property filter
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     */
+    static @Nonnull Future<Map<String,RawAddress[]>> start(@Nonnull PrivateCloud provider, @Nonnull Collection<String> vmIds, long timeoutMillis) throws CloudException, InternalException {
+        ServiceInstance instance = provider.getServiceInstance();
+
+        if( instance == null ) {
+            throw new CloudException("Unable to connect to vSphere");
+        }
+        SearchIndex index = instance.getSearchIndex();
+        Map<String,String> ids = new HashMap<String, String>();
+        List<ManagedObjectReference> objects = new ArrayList<ManagedObjectReference>();
+
+        // one indexed lookup per VM costs far less than retrieving the instance UUID of every VM in the inventory
+        for( String vmId : new LinkedHashSet<String>(vmIds) ) {
+            ManagedEntity vm;
+
+            try {
+                vm = index.findByUuid(null, vmId, true, true);
+            }
+            catch( RemoteException e ) {
+                throw new CloudException("Unable to look up virtual machine " + vmId + ": " + e.getMessage());
+            }
+            if( vm == null ) {
+                throw new CloudException("No such virtual machine: " + vmId);
+            }
+            ids.put(vm.getMOR().getVal(), vmId);
+            objects.add(vm.getMOR());
+        }
+        final GuestReadiness readiness = new GuestReadiness(provider, vmIds, ids, PropertyWatcher.getInstance(instance));
+
+        synchronized( readiness ) {
+            if( objects.isEmpty() ) {
+                readiness.complete();
+                return readiness.future;
+            }
+            provider.hold();
+            readiness.held = true;
+            readiness.timeout = timeouts.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    readiness.timedOut();
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            try {
+                readiness.watcher.watch(objects.toArray(new ManagedObjectReference[objects.size()]), GUEST, readiness);
+            }
+            catch( CloudException e ) {
+                readiness.stop();
+                throw e;
+            }
+        }
+        return readiness.future;
+    }
+
+    /**
+     * @param address an IP address as reported by a guest
+     * @return false for loopback, link-local and unspecified IPv4 and IPv6 addresses
+     */
+    static boolean isRoutable(@Nonnull String address) {
+        String a = address.trim().toLowerCase();
+
+        return !(a.isEmpty() || a.startsWith("127.") || a.startsWith("169.254.") || a.equals("0.0.0.0")
+                || a.equals("::") || a.equals("::1") || a.startsWith("fe80:"));
+    }
+
+    private final PrivateCloud                 provider;
+    private final List<String>                 vmIds;
+    private final Map<String,String>           ids;
+    private final PropertyWatcher              watcher;
+    private final Map<String,Guest>            guests = new HashMap<String, Guest>();
+    private final Map<String,RawAddress[]>     ready  = new HashMap<String, RawAddress[]>();
+    private final SettableFuture<Map<String,RawAddress[]>> future = new SettableFuture<Map<String, RawAddress[]>>(new Runnable() {
+        @Override
+        public void run() {
+            stop();
+        }
+    });
+    private ScheduledFuture<?>                 timeout;
+    private boolean                            held;
+
+    private GuestReadiness(@Nonnull PrivateCloud provider, @Nonnull Collection<String> vmIds, @Nonnull Map<String,String> ids, @Nonnull PropertyWatcher watcher) {
+        this.provider = provider;
+        this.vmIds = new ArrayList<String>(new LinkedHashSet<String>(vmIds));
+        this.ids = ids;
+        this.watcher = watcher;
+    }
+
+    @Override
+    public synchronized boolean changed(@Nonnull ManagedObjectReference object, @Nonnull Map<String,Object> values) {
+        if( future.isDone() ) {
+            return true;
+        }
+        String vmId = ids.get(object.getVal());
+
+        if( vmId == null ) {
+            return false;
+        }
+        Guest guest = guests.get(vmId);
+
+        if( guest == null ) {
+            guest = new Guest();
+            guests.put(vmId, guest);
+        }
+        if( values.containsKey("guest.toolsRunningStatus") ) {
+            guest.toolsStatus = values.get("guest.toolsRunningStatus");
+        }
+        if( values.containsKey("guest.ipAddress") ) {
+            guest.ipAddress = values.get("guest.ipAddress");
+        }
+        if( values.containsKey("guest.net") ) {
+            guest.net = (GuestNicInfo[])values.get("guest.net");
+        }
+        RawAddress[] addresses = getRoutableAddresses(guest);
+
+        if( "guestToolsRunning".equals(guest.toolsStatus) && addresses.length > 0 ) {
+            ready.put(vmId, addresses);
+        }
+        else {
+            ready.remove(vmId);
+        }
+        if( ready.size() == ids.size() ) {
+            complete();
+            // the filter is removed by stop() so that the provider is released only after that
+            stopLater();
+        }
+        return false;
+    }
+
+    @Override
+    public synchronized void failed(@Nonnull ManagedObjectReference object, @Nonnull Exception cause) {
+        String vmId = ids.get(object.getVal());
+
+        future.fail(vmId == null ? cause : new CloudException("Stopped waiting for the guest of " + vmId + ": " + cause.getMessage()));
+        stopLater();
+    }
+
+    private void timedOut() {
+        synchronized( this ) {
+            if( future.isDone() ) {
+                return;
+            }
+            logger.debug("Gave up waiting for " + (ids.size() - ready.size()) + " of " + ids.size() + " guests");
+            complete();
+        }
+        stop();
+    }
+
+    private void complete() {
+        Map<String,RawAddress[]> addresses = new LinkedHashMap<String, RawAddress[]>();
+
+        for( String vmId : vmIds ) {
+            RawAddress[] a = ready.get(vmId);
+
+            addresses.put(vmId, a == null ? new RawAddress[0] : a);
+        }
+        if( timeout != null ) {
+            timeout.cancel(false);
+        }
+        future.complete(addresses);
+    }
+
+    /**
+     * Stops on the readiness thread; the watcher thread calling the listener must not destroy the filter itself.
+     */
+    private void stopLater() {
+        timeouts.execute(new Runnable() {
+            @Override
+            public void run() {
+                stop();
+            }
+        });
+    }
+
+    private void stop() {
+        synchronized( this ) {
+            if( !held ) {
+                return;
+            }
+            held = false;
+            if( timeout != null ) {
+                timeout.cancel(false);
+            }
+        }
+        try {
+            watcher.unwatch(this);
+        }
+        finally {
+            provider.release();
+        }
+    }
+
+    private @Nonnull RawAddress[] getRoutableAddresses(@Nonnull Guest guest) {
+        Set<String> addresses = new LinkedHashSet<String>();
+
+        if( guest.ipAddress != null ) {
+            addresses.add(guest.ipAddress.toString());
+        }
+        if( guest.net != null ) {
+            for( GuestNicInfo nic : guest.net ) {
+                if( nic.getIpAddress() != null ) {
+                    for( String ip : nic.getIpAddress() ) {
+                        if( ip != null ) {
+                            addresses.add(ip);
+                        }
+                    }
+                }
+            }
+        }
+        List<RawAddress> routable = new ArrayList<RawAddress>();
+
+        for( String ip : addresses ) {
+            if( isRoutable(ip) ) {
+                routable.add(new RawAddress(ip));
+            }
+        }
+        return routable.toArray(new RawAddress[routable.size()]);
+    }
+}
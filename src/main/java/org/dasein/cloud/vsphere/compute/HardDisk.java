@@ -28,8 +28,11 @@ import org.dasein.cloud.ProviderContext;
 import org.dasein.cloud.compute.*;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.dc.StoragePool;
-import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.vsphere.metrics.OperationTrace;
+import org.dasein.cloud.vsphere.InventoryCache;
+import org.dasein.cloud.vsphere.InventoryChange;
 import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
 import org.dasein.util.CalendarWrapper;
 import org.dasein.util.uom.storage.Gigabyte;
 import org.dasein.util.uom.storage.Kilobyte;
@@ -47,6 +50,19 @@ import java.util.*;
  * Time: 12:07
  */
 public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
+    /**
+     * The properties {@link #listVmVolumes(ServiceInstance, boolean)} converts the disks of a VM from.
+     */
+    static private final String[][] VOLUME_PROPERTIES = new String[][] {
+            { "VirtualMachine", "config", "runtime.powerState", "resourcePool" }
+    };
+
+    /**
+     * The properties {@link #listVolumes()} searches the datastores of the region with.
+     */
+    static private final String[][] DATASTORE_PROPERTIES = new String[][] {
+            { "Datastore", "name", "browser" }
+    };
 
     HardDisk(@Nonnull PrivateCloud provider) {
         super(provider);
@@ -72,7 +88,7 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
 
     @Override
     public void attach(@Nonnull String volumeId, @Nonnull String toServer, @Nonnull String deviceId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "HardDisk.attach");
+        OperationTrace.begin(getProvider(), "HardDisk.attach");
         try {
             try {
                 ServiceInstance instance = getServiceInstance();
@@ -168,14 +184,14 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull
     @Override
     public String createVolume(@Nonnull VolumeCreateOptions options) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.alterVirtualMachine");
+        OperationTrace.begin(getProvider(), "HardDisk.createVolume");
         try {
             if (options.getProviderVirtualMachineId() == null) {
                 throw new CloudException("Volumes can only be created in the context of a vm for "+getProvider().getCloudName()+". ProviderVirtualMachineId cannot be null");
@@ -262,6 +278,7 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
                     String status = task.waitForTask();
 
                     if( status.equals(Task.SUCCESS) ) {
+                        InventoryCache.publish(getContext(), InventoryChange.VOLUME_CREATED);
                         long timeout = System.currentTimeMillis() + (CalendarWrapper.MINUTE * 20L);
 
                         while( System.currentTimeMillis() < timeout ) {
@@ -308,13 +325,13 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public void detach(@Nonnull String volumeId, boolean force) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "HardDisk.detach");
+        OperationTrace.begin(getProvider(), "HardDisk.detach");
         try {
             Volume volume = getVolume(volumeId);
             if (volume.getProviderVirtualMachineId() == null) {
@@ -402,14 +419,14 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull
     @Override
     public Iterable<Volume> listVolumes() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "HardDisk.listVolumes");
+        OperationTrace.begin(getProvider(), "HardDisk.listVolumes");
         try {
             List<Volume> list = new ArrayList<>();
             List<String> fileNames = new ArrayList<>();
@@ -420,82 +437,36 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
             ServiceInstance instance = getServiceInstance();
 
             //get attached volumes
-            Folder folder = getProvider().getVmFolder(instance);
-
-            ManagedEntity[] mes;
-
-            try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            for( List<Volume> volumes : listVmVolumes(instance, true) ) {
+                for( Volume d : volumes ) {
+                    list.add(d);
+                    fileNames.add(d.getProviderVolumeId());
+                }
             }
 
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    VirtualMachine vm = (VirtualMachine)entity;
-                    if(vm != null && vm.getConfig() != null){
-                        Platform guestOs = Platform.guess(vm.getConfig().getGuestFullName());
-                        if (vm != null && !vm.getConfig().isTemplate() && (vm.getRuntime().getPowerState().equals(VirtualMachinePowerState.poweredOn) || vm.getRuntime().getPowerState().equals(VirtualMachinePowerState.poweredOff))) {
-                            String dc2;
-                            try {
-                                dc2 = vm.getResourcePool().getOwner().getName();
-                            }
-                            catch( RemoteException e ) {
-                                throw new CloudException(e);
-                            }
+            //get .vmdk files
+            Map<String,String> poolDataCenters = new HashMap<>();
 
-                            if( dc2 == null ) {
-                                return Collections.emptyList();
-                            }
-                            DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dc2);
-                            String regionId = "";
-                            if (ourDC == null) {
-                                dc2 = dc2+"-a";
-                                regionId = dc2;
-                            }
-                            else {
-                                regionId = ourDC.getRegionId();
-                            }
-                            VirtualDevice[] devices = vm.getConfig().getHardware().getDevice();
-                            for (VirtualDevice device : devices) {
-                                if (device instanceof VirtualDisk) {
-                                    VirtualDisk disk = (VirtualDisk)device;
-                                    Volume d = toVolume(disk, vm.getConfig().getInstanceUuid(), dc2, regionId);
-                                    if (d != null) {
-                                        d.setGuestOperatingSystem(guestOs);
-                                        list.add(d);
-                                        fileNames.add(d.getProviderVolumeId());
-                                    }
-                                }
-                            }
-                        }
-                    }
-                    else throw new CloudException("An error occurred while listing Volumes: VM could not be properly retrieved from the cloud.");
+            for( StoragePool pool : getProvider().getDataCenterServices().listStoragePools() ) {
+                String poolName = pool.getStoragePoolName().toLowerCase();
+
+                if( !poolDataCenters.containsKey(poolName) ) {
+                    poolDataCenters.put(poolName, pool.getDataCenterId());
                 }
             }
-
-            //get .vmdk files
-            Collection<StoragePool> pools = getProvider().getDataCenterServices().listStoragePools();
             Datacenter dc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, getContext().getRegionId());
-            String name = dc.getName();
-            for (Datastore ds : dc.getDatastores()) {
-                String dataCenterId = null;
-                for (StoragePool pool : pools) {
-                    if (pool.getStoragePoolName().equalsIgnoreCase(ds.getName())) {
-                        dataCenterId = pool.getDataCenterId();
-                        break;
-                    }
+            // names and browsers of all datastores in one retrieval, leaving one search task per datastore
+            for( ObjectContent content : PropertyRetriever.retrieve(instance, dc, DATASTORE_PROPERTIES) ) {
+                String dsName = PropertyRetriever.getString(content, "name");
+                ManagedObjectReference browserRef = PropertyRetriever.getReference(content, "browser");
+
+                if( dsName == null || browserRef == null ) {
+                    continue;
                 }
-                HostDatastoreBrowser browser = ds.getBrowser();
+                String dataCenterId = poolDataCenters.get(dsName.toLowerCase());
+                HostDatastoreBrowser browser = new HostDatastoreBrowser(instance.getServerConnection(), browserRef);
                 try {
-                    Task task = browser.searchDatastoreSubFolders_Task("[" + ds.getName() + "]", null);
+                    Task task = browser.searchDatastoreSubFolders_Task("[" + dsName + "]", null);
                     String status = task.waitForTask();
                     if( status.equals(Task.SUCCESS) ) {
                         ArrayOfHostDatastoreBrowserSearchResults result = (ArrayOfHostDatastoreBrowserSearchResults)task.getTaskInfo().getResult();
@@ -538,7 +509,7 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
             return list;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -549,7 +520,7 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
 
     @Override
     public void remove(@Nonnull String volumeId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "HardDisk.remove");
+        OperationTrace.begin(getProvider(), "HardDisk.remove");
         try {
             Volume volume = null;
             Iterable<Volume> attachedVolumes = getAttachedVolumes();
@@ -569,10 +540,16 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
                 if (mor.getType().equals("FileManager")) {
                     FileManager fileManager = new FileManager(instance.getServerConnection(), mor);
                     String filePath = volume.getTag("filePath");
-                    fileManager.deleteDatastoreFile_Task(filePath, dc);
+                    Task task = fileManager.deleteDatastoreFile_Task(filePath, dc);
+
+                    if( !Task.SUCCESS.equals(task.waitForTask()) ) {
+                        throw new CloudException("Failed to remove volume " + volumeId + ": " + task.getTaskInfo().getError().getLocalizedMessage());
+                    }
                     //also delete the flat file
                     String flatfile = filePath.substring(0, filePath.indexOf(".vmdk"))+"-flat.vmdk";
-                    fileManager.deleteDatastoreFile_Task(flatfile, dc);
+                    fileManager.deleteDatastoreFile_Task(flatfile, dc).waitForTask();
+                    // only now is the volume gone, so only now are cached storage pools stale
+                    InventoryCache.publish(getContext(), InventoryChange.VOLUME_REMOVED);
                 }
             }
             else {
@@ -588,13 +565,16 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
         catch( RemoteException e ) {
             throw new CloudException(e);
         }
+        catch( InterruptedException e ) {
+            throw new CloudException(e);
+        }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     private Iterable<Volume> getAttachedVolumes() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "HardDisk.getAttachedVolumes");
+        OperationTrace.begin(getProvider(), "HardDisk.getAttachedVolumes");
         try {
             List<Volume> list = new ArrayList<>();
             List<String> fileNames = new ArrayList<>();
@@ -602,73 +582,88 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
                 throw new CloudException("Region id is not set");
             }
 
-            ServiceInstance instance = getServiceInstance();
+            // deduplicate in listing order so that shared disks always show up under the same VM
+            for( List<Volume> volumes : listVmVolumes(getServiceInstance(), false) ) {
+                for( Volume d : volumes ) {
+                    if( !fileNames.contains(d.getTag("filePath")) ) {
+                        list.add(d);
+                        fileNames.add(d.getTag("filePath"));
+                    }
+                }
+            }
+            return list;
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
 
-            Folder folder = getProvider().getVmFolder(instance);
+    /**
+     * Lists the disks of every VM from two property collector retrievals, however many VMs the inventory holds.
+     * @param instance the connection to retrieve through
+     * @param settledOnly whether to skip VMs that are neither powered on nor powered off
+     * @return the disks of each VM, in listing order
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException an error occurred in vSphere retrieving the VMs
+     */
+    private @Nonnull List<List<Volume>> listVmVolumes(@Nonnull ServiceInstance instance, boolean settledOnly) throws InternalException, CloudException {
+        Folder folder = getProvider().getVmFolder(instance);
+        InventoryIndex index = InventoryIndex.build(PropertyRetriever.retrieve(instance, folder, InventoryIndex.PROPERTIES));
+        Map<String,DataCenter> dataCenters = new HashMap<>();
+        List<List<Volume>> result = new ArrayList<>();
+
+        for( ObjectContent content : PropertyRetriever.retrieve(instance, folder, VOLUME_PROPERTIES) ) {
+            Object config = PropertyRetriever.getValue(content, "config");
+
+            if( !(config instanceof VirtualMachineConfigInfo) ) {
+                throw new CloudException("An error occurred while listing Volumes: VM could not be properly retrieved from the cloud.");
+            }
+            VirtualMachineConfigInfo vminfo = (VirtualMachineConfigInfo)config;
+            Object state = PropertyRetriever.getValue(content, "runtime.powerState");
 
-            ManagedEntity[] mes;
+            if( vminfo.isTemplate() ) {
+                continue;
+            }
+            if( settledOnly && !VirtualMachinePowerState.poweredOn.equals(state) && !VirtualMachinePowerState.poweredOff.equals(state) ) {
+                continue;
+            }
+            String dc2 = index.getOwnerName(PropertyRetriever.getReference(content, "resourcePool"));
 
-            try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
+            if( dc2 == null ) {
+                continue;
             }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
+            if( !dataCenters.containsKey(dc2) ) {
+                dataCenters.put(dc2, getProvider().getDataCenterServices().getDataCenter(dc2));
             }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+            DataCenter ourDC = dataCenters.get(dc2);
+            String regionId;
+
+            if( ourDC == null ) {
+                dc2 = dc2 + "-a";
+                regionId = dc2;
             }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            else {
+                regionId = ourDC.getRegionId();
             }
+            Platform guestOs = Platform.guess(vminfo.getGuestFullName());
+            List<Volume> volumes = new ArrayList<>();
 
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    VirtualMachine vm = (VirtualMachine)entity;
-                    Platform guestOs = Platform.guess(vm.getConfig().getGuestFullName());
-                    if (vm != null && !vm.getConfig().isTemplate()) {
-                        String dc2;
-                        try {
-                            dc2 = vm.getResourcePool().getOwner().getName();
-                        }
-                        catch( RemoteException e ) {
-                            throw new CloudException(e);
-                        }
+            for( VirtualDevice device : vminfo.getHardware().getDevice() ) {
+                if( device instanceof VirtualDisk ) {
+                    Volume d = toVolume((VirtualDisk)device, vminfo.getInstanceUuid(), dc2, regionId);
 
-                        if( dc2 == null ) {
-                            return Collections.emptyList();
-                        }
-                        DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dc2);
-                        String regionId = "";
-                        if (ourDC == null) {
-                            dc2 = dc2+"-a";
-                            regionId = dc2;
-                        }
-                        else {
-                            regionId = ourDC.getRegionId();
-                        }
-                        VirtualDevice[] devices = vm.getConfig().getHardware().getDevice();
-                        for (VirtualDevice device : devices) {
-                            if (device instanceof VirtualDisk) {
-                                VirtualDisk disk = (VirtualDisk)device;
-                                Volume d = toVolume(disk, vm.getConfig().getInstanceUuid(), dc2, regionId);
-                                if (d != null && !fileNames.contains(d.getTag("filePath"))) {
-                                    d.setGuestOperatingSystem(guestOs);
-                                    list.add(d);
-                                    fileNames.add(d.getTag("filePath"));
-                                }
-                            }
-                        }
+                    if( d != null ) {
+                        d.setGuestOperatingSystem(guestOs);
+                        volumes.add(d);
                     }
                 }
             }
-            return list;
-        }
-        finally {
-            APITrace.end();
+            result.add(volumes);
         }
+        return result;
     }
 
-    private @Nullable Volume toVolume(@Nonnull VirtualDisk disk, @Nonnull String vmId, @Nonnull String dataCenterId, @Nonnull String regionId) {
+    @Nullable Volume toVolume(@Nonnull VirtualDisk disk, @Nonnull String vmId, @Nonnull String dataCenterId, @Nonnull String regionId) {
         Volume volume = new Volume();
 
         VirtualDeviceFileBackingInfo info = (VirtualDeviceFileBackingInfo)disk.getBacking();
@@ -698,7 +693,7 @@ public class HardDisk extends AbstractVolumeSupport<PrivateCloud>{
         return volume;
     }
 
-    private @Nullable Volume toVolume(@Nonnull FileInfo disk, @Nullable String dataCenterId, @Nonnull String regionId) {
+    @Nullable Volume toVolume(@Nonnull FileInfo disk, @Nullable String dataCenterId, @Nonnull String regionId) {
         Volume volume = new Volume();
         volume.setProviderVolumeId(disk.getPath());
         volume.setName(disk.getPath());
@@ -29,10 +29,10 @@ import org.dasein.cloud.compute.AbstractAffinityGroupSupport;
 import org.dasein.cloud.compute.AffinityGroup;
 import org.dasein.cloud.compute.AffinityGroupCreateOptions;
 import org.dasein.cloud.compute.AffinityGroupFilterOptions;
-import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.vsphere.metrics.OperationTrace;
 import org.dasein.cloud.util.CacheLevel;
 import org.dasein.cloud.vsphere.Dc;
+import org.dasein.cloud.vsphere.InventoryCache;
 import org.dasein.cloud.vsphere.PrivateCloud;
 import org.dasein.util.uom.time.Minute;
 import org.dasein.util.uom.time.TimePeriod;
@@ -44,6 +44,7 @@ import java.rmi.RemoteException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.Locale;
 
 /**
  * User: daniellemayne
@@ -70,7 +71,7 @@ public class Host extends AbstractAffinityGroupSupport<PrivateCloud> {
     @Nonnull
     @Override
     public AffinityGroup get(@Nonnull String affinityGroupId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "getAffinityGroup");
+        OperationTrace.begin(getProvider(), "Host.getAffinityGroup");
         try {
             HostSystem host = getHostSystemForAffinity(affinityGroupId);
             if (host != null) {
@@ -90,19 +91,19 @@ public class Host extends AbstractAffinityGroupSupport<PrivateCloud> {
                     }
                 }
 
-                return toAffinityGroup(host, dataCenterId);
+                return toAffinityGroup(host, dataCenterId, UtilizationMonitor.find(getServiceInstance(), getContext().getRegionId()));
             }
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull
     @Override
     public Iterable<AffinityGroup> list(@Nonnull AffinityGroupFilterOptions options) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "listAffinityGroups");
+        OperationTrace.begin(getProvider(), "Host.listAffinityGroups");
         try {
             ArrayList<AffinityGroup> possibles = new ArrayList<AffinityGroup>();
             String dc = options.getDataCenterId();
@@ -113,6 +114,8 @@ public class Host extends AbstractAffinityGroupSupport<PrivateCloud> {
             if( vdc == null ) {
                 return Collections.EMPTY_LIST;
             }
+            UtilizationMonitor monitor = UtilizationMonitor.find(instance, getContext().getRegionId());
+
             try {
                 for( ManagedEntity me : vdc.getHostFolder().getChildEntity() ) {
                     if (dc != null) {
@@ -120,7 +123,7 @@ public class Host extends AbstractAffinityGroupSupport<PrivateCloud> {
                             ComputeResource cluster = (ComputeResource)me;
 
                             for( HostSystem host : cluster.getHosts() ) {
-                                possibles.add(toAffinityGroup(host, dc));
+                                possibles.add(toAffinityGroup(host, dc, monitor));
                             }
                         }
                     }
@@ -128,7 +131,7 @@ public class Host extends AbstractAffinityGroupSupport<PrivateCloud> {
                         ComputeResource cluster = (ComputeResource)me;
 
                         for( HostSystem host : cluster.getHosts() ) {
-                            possibles.add(toAffinityGroup(host, me.getName()));
+                            possibles.add(toAffinityGroup(host, me.getName(), monitor));
                         }
                     }
                 }
@@ -139,7 +142,7 @@ public class Host extends AbstractAffinityGroupSupport<PrivateCloud> {
             return possibles;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -148,8 +151,27 @@ public class Host extends AbstractAffinityGroupSupport<PrivateCloud> {
         throw new OperationNotSupportedException("Unable to modify hosts in vSphere");
     }
 
+    /**
+     * Provides the live utilization of the hosts and clusters in the current region, starting to track it if it is
+     * not tracked yet. Once it is tracked, the affinity groups carry the current values as tags: cpuUtilization and
+     * memoryUtilization in percent, vmCount and networkKBps, each also prefixed with &quot;cluster.&quot; for the
+     * cluster of the host.
+     * @return the utilization monitor of the region
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    public @Nonnull UtilizationMonitor getUtilizationMonitor() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Host.getUtilizationMonitor");
+        try {
+            return UtilizationMonitor.getInstance(getProvider());
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
     public HostSystem getHostSystemForAffinity(@Nonnull String affinityGroupId) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "getHostSystemForAffinity");
+        OperationTrace.begin(getProvider(), "Host.getHostSystemForAffinity");
         try {
             ServiceInstance instance = getServiceInstance();
             Folder folder = getProvider().getVmFolder(instance);
@@ -174,52 +196,57 @@ public class Host extends AbstractAffinityGroupSupport<PrivateCloud> {
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
-    public Collection<HostSystem> listHostSystems(@Nullable String datacenterId) throws CloudException,InternalException {
-        APITrace.begin(getProvider(), "listHostSystems");
+    public Collection<HostSystem> listHostSystems(@Nullable final String datacenterId) throws CloudException,InternalException {
+        OperationTrace.begin(getProvider(), "Host.listHostSystems");
         try {
-            Cache<HostSystem> cache = Cache.getInstance(getProvider(), "hosts"+datacenterId, HostSystem.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
-            Collection<HostSystem> hostSystems = (Collection<HostSystem>)cache.get(getContext());
-
-            if( hostSystems == null ) {
-                hostSystems = new ArrayList<>();
-                ServiceInstance instance = getServiceInstance();
-                Dc dcServices = getProvider().getDataCenterServices();
-                Datacenter vdc = dcServices.getVmwareDatacenterFromVDCId(instance, getContext().getRegionId());
-
-                try {
-                    for( ManagedEntity me : vdc.getHostFolder().getChildEntity() ) {
-                        if (datacenterId != null) {
-                            if (me.getName().equals(datacenterId)){
-                                ComputeResource cluster = (ComputeResource)me;
-
-                                for( HostSystem host : cluster.getHosts() ) {
-                                    hostSystems.add(host);
-                                }
-                            }
-                        }
-                        else {
-                            ComputeResource cluster = (ComputeResource)me;
+            InventoryCache<HostSystem> cache = InventoryCache.getInstance(getProvider(), "hosts:"+datacenterId, HostSystem.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Minute>(15, TimePeriod.MINUTE));
 
-                            for( HostSystem host : cluster.getHosts() ) {
-                                hostSystems.add(host);
-                            }
+            return cache.get(getContext(), new InventoryCache.Loader<HostSystem>() {
+                @Override
+                public @Nonnull Collection<HostSystem> load() throws CloudException, InternalException {
+                    return loadHostSystems(datacenterId);
+                }
+            });
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    private @Nonnull Collection<HostSystem> loadHostSystems(@Nullable String datacenterId) throws CloudException, InternalException {
+        ArrayList<HostSystem> hostSystems = new ArrayList<>();
+        ServiceInstance instance = getServiceInstance();
+        Dc dcServices = getProvider().getDataCenterServices();
+        Datacenter vdc = dcServices.getVmwareDatacenterFromVDCId(instance, getContext().getRegionId());
+
+        try {
+            for( ManagedEntity me : vdc.getHostFolder().getChildEntity() ) {
+                if (datacenterId != null) {
+                    if (me.getName().equals(datacenterId)){
+                        ComputeResource cluster = (ComputeResource)me;
+
+                        for( HostSystem host : cluster.getHosts() ) {
+                            hostSystems.add(host);
                         }
                     }
-                    cache.put(getContext(), hostSystems);
                 }
-                catch (RemoteException e) {
-                    throw new CloudException(e);
+                else {
+                    ComputeResource cluster = (ComputeResource)me;
+
+                    for( HostSystem host : cluster.getHosts() ) {
+                        hostSystems.add(host);
+                    }
                 }
             }
-            return hostSystems;
         }
-        finally {
-            APITrace.end();
+        catch (RemoteException e) {
+            throw new CloudException(e);
         }
+        return hostSystems;
     }
 
     public Collection<Datastore> listDatastoresForHost(HostSystem host) throws CloudException, InternalException {
@@ -246,7 +273,7 @@ public class Host extends AbstractAffinityGroupSupport<PrivateCloud> {
         return instance;
     }
 
-    private AffinityGroup toAffinityGroup(@Nonnull HostSystem host, @Nonnull String dataCenterID) {
+    private AffinityGroup toAffinityGroup(@Nonnull HostSystem host, @Nonnull String dataCenterID, @Nullable UtilizationMonitor monitor) {
         String agID = host.getName();
         String agName = host.getName();
         String agDesc = "Affinity group for "+agName;
@@ -255,6 +282,19 @@ public class Host extends AbstractAffinityGroupSupport<PrivateCloud> {
         AffinityGroup ag = AffinityGroup.getInstance(agID, agName, agDesc, dataCenterID, created);
         String status = host.getConfigStatus().toString();
         ag.setTag("status", status);
+        if( monitor != null ) {
+            setUtilizationTags(ag, "", monitor.getHost(agName));
+            setUtilizationTags(ag, "cluster.", monitor.getCluster(dataCenterID));
+        }
         return ag;
     }
+
+    static private void setUtilizationTags(@Nonnull AffinityGroup ag, @Nonnull String prefix, @Nullable UtilizationMonitor.Utilization utilization) {
+        if( utilization != null ) {
+            ag.setTag(prefix + "cpuUtilization", String.format(Locale.US, "%.1f", utilization.getCpuUtilization()));
+            ag.setTag(prefix + "memoryUtilization", String.format(Locale.US, "%.1f", utilization.getMemoryUtilization()));
+            ag.setTag(prefix + "vmCount", String.valueOf(utilization.getVmCount()));
+            ag.setTag(prefix + "networkKBps", String.valueOf(utilization.getNetworkKBps()));
+        }
+    }
 }
@@ -0,0 +1,120 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The names of the folders, hosts, clusters and resource pools of the inventory, together with the resource pool
+ * hierarchy, built from a single property collector retrieval. Converting VMs from retrieved properties looks up
+ * the entities a VM references here instead of fetching each of them through its lazy getters.
+ * @since 2015.09
+ */
+class InventoryIndex {
+    /**
+     * The property paths {@link #build(List)} expects when retrieving from the root folder.
+     */
+    static final String[][] PROPERTIES = new String[][] {
+            { "Folder", "name" },
+            { "HostSystem", "name" },
+            { "ComputeResource", "name" },
+            { "ResourcePool", "name", "parent", "owner" }
+    };
+
+    static @Nonnull InventoryIndex build(@Nonnull List<ObjectContent> inventory) {
+        InventoryIndex index = new InventoryIndex();
+
+        for( ObjectContent content : inventory ) {
+            String key = PropertyRetriever.toKey(content.getObj());
+            String name = PropertyRetriever.getString(content, "name");
+
+            if( name != null ) {
+                index.names.put(key, name);
+            }
+            ManagedObjectReference parent = PropertyRetriever.getReference(content, "parent");
+
+            if( parent != null ) {
+                index.parents.put(key, parent);
+            }
+            ManagedObjectReference owner = PropertyRetriever.getReference(content, "owner");
+
+            if( owner != null ) {
+                index.owners.put(key, owner);
+            }
+        }
+        return index;
+    }
+
+    private final Map<String,String>                 names   = new HashMap<String, String>();
+    private final Map<String,ManagedObjectReference> parents = new HashMap<String, ManagedObjectReference>();
+    private final Map<String,ManagedObjectReference> owners  = new HashMap<String, ManagedObjectReference>();
+
+    private InventoryIndex() { }
+
+    @Nullable String getName(@Nullable ManagedObjectReference mor) {
+        return (mor == null ? null : names.get(PropertyRetriever.toKey(mor)));
+    }
+
+    /**
+     * @param pool a resource pool
+     * @return the name of the cluster or standalone host the pool belongs to
+     */
+    @Nullable String getOwnerName(@Nullable ManagedObjectReference pool) {
+        return (pool == null ? null : getName(owners.get(PropertyRetriever.toKey(pool))));
+    }
+
+    /**
+     * Builds the same resource pool ID as {@link org.dasein.cloud.vsphere.Dc#getIdForResourcePool}: the dotted
+     * path of pool names below the owner's root pool.
+     * @param pool a resource pool
+     * @return the pool ID or <code>null</code> for a root resource pool
+     */
+    @Nullable String getResourcePoolId(@Nullable ManagedObjectReference pool) {
+        if( pool == null ) {
+            return null;
+        }
+        String id = getName(pool);
+        ManagedObjectReference parent = parents.get(PropertyRetriever.toKey(pool));
+
+        while( parent != null ) {
+            if( parent.getType().equals("ResourcePool") ) {
+                id = getName(parent) + "." + id;
+                parent = parents.get(PropertyRetriever.toKey(parent));
+            }
+            else {
+                int idx = id.indexOf(".") + 1;
+
+                if( idx > 0 ) {
+                    return id.substring(idx);
+                }
+                return null;
+            }
+        }
+        return id;
+    }
+}
@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import javax.annotation.Nonnull;
+
+/**
+ * Receives the progress of an asynchronous launch. Listeners are called on the thread delivering vSphere property
+ * updates and should return quickly.
+ * @since 2015.09
+ */
+public interface LaunchListener {
+    /**
+     * @param hostName the name of the VM being launched
+     * @param stage the stage the launch reached
+     * @param percent the progress of the clone task while {@link LaunchStage#CLONING}, 100 for the stages after it and
+     *                0 for the ones before
+     */
+    void stageReached(@Nonnull String hostName, @Nonnull LaunchStage stage, int percent);
+}
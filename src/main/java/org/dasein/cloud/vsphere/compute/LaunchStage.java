@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+/**
+ * The stages an asynchronous launch ({@link Vm#launchAsync(org.dasein.cloud.compute.VMLaunchOptions, LaunchListener)})
+ * goes through, in order.
+ * @since 2015.09
+ */
+public enum LaunchStage {
+    /**
+     * The template, data center, resource pool, folder, networks and guest customization are resolved.
+     */
+    RESOLVED,
+    /**
+     * The host and datastore for the VM are chosen.
+     */
+    PLACED,
+    /**
+     * The clone task is running; reported again as its progress advances.
+     */
+    CLONING,
+    /**
+     * The clone exists and is powered on.
+     */
+    POWERED_ON,
+    /**
+     * The guest is up with its VMware tools running, which for a launch with a private IP means the guest
+     * customization has been applied.
+     */
+    CUSTOMIZED,
+    /**
+     * The guest reports its IP address (the requested private IP if the launch asked for one).
+     */
+    IP_ASSIGNED
+}
@@ -0,0 +1,280 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import com.vmware.vim25.CannotCreateFile;
+import com.vmware.vim25.HostCommunication;
+import com.vmware.vim25.HostConnectFault;
+import com.vmware.vim25.InvalidDatastore;
+import com.vmware.vim25.InvalidHostState;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.NoDiskSpace;
+import com.vmware.vim25.Timedout;
+import com.vmware.vim25.mo.ManagedEntity;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.vsphere.PrivateCloud;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Circuit breakers for the hosts, resource pools and datastores launches clone into. Every clone attempt records its
+ * outcome and duration against the targets it was placed on. After {@link #FAILURE_THRESHOLD} failures in a row a
+ * target is avoided for {@link PrivateCloud#getPlacementRetrySeconds()}; after that one launch at a time may probe it
+ * again, and a successful probe puts it back into rotation while a failed one trips it for another interval. The
+ * breakers are shared by all launches of this JVM against the same endpoint.
+ * @since 2015.09
+ */
+final class PlacementBreakers {
+    static private final Logger logger = PrivateCloud.getLogger(PlacementBreakers.class, "std");
+
+    static final int FAILURE_THRESHOLD = 3;
+
+    /**
+     * The weight of the latest task duration in the running average of a target.
+     */
+    static private final double LATENCY_WEIGHT = 0.3;
+
+    enum State { CLOSED, OPEN, HALF_OPEN }
+
+    static private class Breaker {
+        int    failures;
+        long   openedAt;
+        long   probeStarted;
+        double latency = -1.0;
+
+        synchronized @Nonnull State getState(long now, long interval) {
+            if( failures < FAILURE_THRESHOLD ) {
+                return State.CLOSED;
+            }
+            if( now < openedAt + interval ) {
+                return State.OPEN;
+            }
+            // a probe that never reported back must not keep the target closed off forever
+            return (probeStarted > 0L && now < probeStarted + interval ? State.OPEN : State.HALF_OPEN);
+        }
+
+        synchronized double getLatency() {
+            return latency;
+        }
+    }
+
+    /**
+     * One clone attempt against a set of placement targets. Attempts that end without a task outcome (e.g. because
+     * the connection failed) are simply dropped.
+     */
+    static final class Attempt {
+        private final String          name;
+        private final List<Breaker>   breakers;
+        private final long            started = System.currentTimeMillis();
+
+        private Attempt(@Nonnull String name, @Nonnull List<Breaker> breakers) {
+            this.name = name;
+            this.breakers = breakers;
+        }
+
+        void succeeded() {
+            long duration = System.currentTimeMillis() - started;
+
+            for( Breaker b : breakers ) {
+                synchronized( b ) {
+                    if( b.failures >= FAILURE_THRESHOLD ) {
+                        logger.info("Placement target of " + name + " recovered");
+                    }
+                    b.failures = 0;
+                    b.probeStarted = 0L;
+                    b.latency = (b.latency < 0.0 ? duration : (LATENCY_WEIGHT * duration) + ((1.0 - LATENCY_WEIGHT) * b.latency));
+                }
+            }
+        }
+
+        /**
+         * Records a failed clone task. Only faults of the targets themselves count against them; faults of the
+         * request or the template, such as a customization error, an invalid device or a broken template disk, would
+         * fail anywhere and leave the breakers as they are.
+         * @param fault the task error, <code>null</code> if vSphere reported none
+         */
+        void failed(@Nullable LocalizedMethodFault fault) {
+            if( !isTargetFault(fault == null ? null : fault.getFault()) ) {
+                return;
+            }
+            long now = System.currentTimeMillis();
+
+            for( Breaker b : breakers ) {
+                synchronized( b ) {
+                    b.failures++;
+                    if( b.failures >= FAILURE_THRESHOLD ) {
+                        if( b.failures == FAILURE_THRESHOLD || b.probeStarted > 0L ) {
+                            logger.warn("Avoiding a placement target of " + name + " after " + b.failures + " failed clones");
+                        }
+                        b.openedAt = now;
+                        b.probeStarted = 0L;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * @param fault the fault of a failed clone task
+     * @return true if the fault lies with the host, the datastore or the connection to them
+     */
+    static boolean isTargetFault(@Nullable MethodFault fault) {
+        return (fault instanceof HostCommunication || fault instanceof HostConnectFault || fault instanceof InvalidHostState
+                || fault instanceof InvalidDatastore || fault instanceof NoDiskSpace || fault instanceof CannotCreateFile
+                || fault instanceof Timedout);
+    }
+
+    static private final ConcurrentMap<String,Breaker> breakers = new ConcurrentHashMap<String, Breaker>();
+
+    private PlacementBreakers() { }
+
+    static private @Nonnull String toKey(@Nonnull PrivateCloud provider, @Nonnull ManagedObjectReference target) {
+        ProviderContext ctx = provider.getContext();
+
+        return (ctx == null ? "" : ctx.getEndpoint()) + "|" + target.getType() + ":" + target.getVal();
+    }
+
+    static private @Nonnull Breaker getBreaker(@Nonnull PrivateCloud provider, @Nonnull ManagedObjectReference target) {
+        String key = toKey(provider, target);
+        Breaker breaker = breakers.get(key);
+
+        if( breaker == null ) {
+            breaker = new Breaker();
+
+            Breaker existing = breakers.putIfAbsent(key, breaker);
+
+            if( existing != null ) {
+                breaker = existing;
+            }
+        }
+        return breaker;
+    }
+
+    static private long getInterval(@Nonnull PrivateCloud provider) {
+        return provider.getPlacementRetrySeconds() * 1000L;
+    }
+
+    static @Nonnull State getState(@Nonnull PrivateCloud provider, @Nonnull ManagedObjectReference target) {
+        Breaker breaker = breakers.get(toKey(provider, target));
+
+        return (breaker == null ? State.CLOSED : breaker.getState(System.currentTimeMillis(), getInterval(provider)));
+    }
+
+    /**
+     * @param provider the provider launching
+     * @param target a host, resource pool or datastore
+     * @return true if a launch may be placed on the target, either because it is healthy or as a probe
+     */
+    static boolean isAvailable(@Nonnull PrivateCloud provider, @Nonnull ManagedObjectReference target) {
+        return !State.OPEN.equals(getState(provider, target));
+    }
+
+    /**
+     * Starts a clone attempt, claiming the probe of any target that is half open.
+     * @param provider the provider launching
+     * @param name the name of the VM being cloned, for logging
+     * @param targets the targets the clone is placed on, <code>null</code> entries for those vSphere chooses
+     * @return the attempt to record the outcome with
+     */
+    static @Nonnull Attempt begin(@Nonnull PrivateCloud provider, @Nonnull String name, @Nullable ManagedObjectReference ... targets) {
+        List<Breaker> list = new ArrayList<Breaker>();
+        long now = System.currentTimeMillis();
+        long interval = getInterval(provider);
+
+        if( targets != null ) {
+            for( ManagedObjectReference target : targets ) {
+                if( target != null ) {
+                    Breaker b = getBreaker(provider, target);
+
+                    synchronized( b ) {
+                        if( State.HALF_OPEN.equals(b.getState(now, interval)) ) {
+                            b.probeStarted = now;
+                        }
+                    }
+                    list.add(b);
+                }
+            }
+        }
+        return new Attempt(name, list);
+    }
+
+    /**
+     * Orders candidate resource pools for a launch: pools that are avoided are left out and the others are tried
+     * fastest first, going by the average duration of their recent clone tasks. Pools without any history count
+     * as fast so that they get their turn.
+     * @param provider the provider launching
+     * @param pools the candidate pools
+     * @return the pools to try, in order
+     * @throws CloudException every candidate pool is being avoided
+     */
+    static @Nonnull ManagedEntity[] order(@Nonnull final PrivateCloud provider, @Nonnull ManagedEntity[] pools) throws CloudException {
+        List<ManagedEntity> available = new ArrayList<ManagedEntity>();
+
+        for( ManagedEntity pool : pools ) {
+            if( isAvailable(provider, pool.getMOR()) ) {
+                available.add(pool);
+            }
+        }
+        if( available.isEmpty() && pools.length > 0 ) {
+            throw new CloudException("All " + pools.length + " candidate resource pools failed their recent clones; retrying them after " + provider.getPlacementRetrySeconds() + " seconds");
+        }
+        Collections.sort(available, new Comparator<ManagedEntity>() {
+            @Override
+            public int compare(ManagedEntity a, ManagedEntity b) {
+                return Double.compare(getLatency(provider, a.getMOR()), getLatency(provider, b.getMOR()));
+            }
+        });
+        return available.toArray(new ManagedEntity[available.size()]);
+    }
+
+    static private double getLatency(@Nonnull PrivateCloud provider, @Nonnull ManagedObjectReference target) {
+        Breaker breaker = breakers.get(toKey(provider, target));
+
+        return (breaker == null ? 0.0 : Math.max(0.0, breaker.getLatency()));
+    }
+
+    /**
+     * Narrows a list of candidate hosts or datastores to those not being avoided.
+     * @param provider the provider launching
+     * @param targets the candidates
+     * @return the available candidates or all of them if none is available, in their original order
+     */
+    static @Nonnull List<ManagedObjectReference> filter(@Nonnull PrivateCloud provider, @Nonnull List<ManagedObjectReference> targets) {
+        List<ManagedObjectReference> available = new ArrayList<ManagedObjectReference>();
+
+        for( ManagedObjectReference target : targets ) {
+            if( isAvailable(provider, target) ) {
+                available.add(target);
+            }
+        }
+        return (available.isEmpty() ? targets : available);
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.FutureTask;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A future that whatever drives an asynchronous operation completes from the outside, rather than one that runs a
+ * task of its own.
+ * @since 2015.09
+ */
+class SettableFuture<V> extends FutureTask<V> {
+    static private <V> Callable<V> notRun() {
+        return new Callable<V>() {
+            @Override
+            public V call() {
+                throw new IllegalStateException("A settable future is not run as a task");
+            }
+        };
+    }
+
+    private final Runnable onCancel;
+
+    /**
+     * @param onCancel what to do when the future is cancelled, e.g. stop watching for updates, or <code>null</code>
+     */
+    SettableFuture(@Nullable Runnable onCancel) {
+        super(SettableFuture.<V>notRun());
+        this.onCancel = onCancel;
+    }
+
+    @Override
+    protected void done() {
+        if( isCancelled() && onCancel != null ) {
+            onCancel.run();
+        }
+    }
+
+    void complete(@Nullable V value) {
+        set(value);
+    }
+
+    void fail(@Nonnull Throwable cause) {
+        setException(cause);
+    }
+}
@@ -38,12 +38,15 @@ import org.dasein.cloud.compute.ImageFilterOptions;
 import org.dasein.cloud.compute.MachineImage;
 import org.dasein.cloud.compute.MachineImageState;
 import org.dasein.cloud.compute.Platform;
-import org.dasein.cloud.dc.Region;
 import org.dasein.cloud.identity.ServiceAction;
-import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.vsphere.metrics.OperationTrace;
 import org.dasein.cloud.util.Cache;
 import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.InventoryCache;
+import org.dasein.cloud.vsphere.InventoryChange;
 import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.cloud.vsphere.RegionDirectory;
 
 import org.dasein.util.uom.time.Day;
 import org.dasein.util.uom.time.TimePeriod;
@@ -55,6 +58,13 @@ import javax.servlet.http.HttpServletResponse;
 public class Template extends AbstractImageSupport<PrivateCloud> {
     static private final Logger log = PrivateCloud.getLogger(Template.class, "std");
 
+    /**
+     * The properties {@link #toMachineImage(ObjectContent, RegionDirectory)} converts a template from.
+     */
+    static private final String[][] TEMPLATE_PROPERTIES = new String[][] {
+            { "VirtualMachine", "name", "config.template", "config.uuid", "config.guestId", "config.guestFullName", "runtime.powerState" }
+    };
+
     Template(@Nonnull PrivateCloud cloud) {
         super(cloud);
     }
@@ -70,7 +80,7 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
 
     @Override
     public void remove(@Nonnull String providerImageId, boolean checkState) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Image.remove");
+        OperationTrace.begin(getProvider(), "Image.remove");
         try {
             ServiceInstance instance = getServiceInstance();
 
@@ -105,7 +115,12 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
                 }
                 if( providerImageId.equals(cfg.getUuid()) ) {
                     try {
-                        template.destroy_Task();
+                        Task task = template.destroy_Task();
+
+                        if( !Task.SUCCESS.equals(task.waitForTask()) ) {
+                            throw new CloudException("Failed to remove image " + providerImageId + ": " + task.getTaskInfo().getError().getLocalizedMessage());
+                        }
+                        InventoryCache.publish(getContext(), InventoryChange.IMAGE_REMOVED);
                     }
                     catch( RuntimeException e ) {
                         throw new InternalException("Error while running a destroy task for image: "+providerImageId, e);
@@ -113,12 +128,15 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
                     catch( RemoteException ex ) {
                         throw new CloudException("Error while running a destroy task for image: "+providerImageId, ex);
                     }
+                    catch( InterruptedException ex ) {
+                        throw new CloudException("Interrupted while waiting for the destroy task for image: "+providerImageId, ex);
+                    }
                     break; // job's done, stop traversing
                 }
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -133,7 +151,7 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
 
     @Override
     public MachineImage getImage(@Nonnull String providerImageId) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Image.getImage");
+        OperationTrace.begin(getProvider(), "Image.getImage");
         try {
             for( ImageClass cls : getCapabilities().listSupportedImageClasses() ) {
                 for( MachineImage image : listImages(ImageFilterOptions.getInstance(cls)) ) {
@@ -145,7 +163,7 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -154,15 +172,19 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
         return new String[0];
     }
 
-    private @Nullable MachineImage toMachineImage(@Nullable VirtualMachine template) throws InternalException, CloudException {
+    @Nullable MachineImage toMachineImage(@Nullable VirtualMachine template) throws InternalException, CloudException {
+        RegionDirectory directory = getProvider().getDataCenterServices().getRegionDirectory();
+
+        if( template != null && !directory.contains(template.getMOR()) ) {
+            // created since the directory was last built
+            directory = getProvider().getDataCenterServices().refreshRegionDirectory();
+        }
+        return toMachineImage(template, directory);
+    }
+
+    @Nullable MachineImage toMachineImage(@Nullable VirtualMachine template, @Nonnull RegionDirectory directory) throws InternalException, CloudException {
         if( template != null ) {
             VirtualMachineConfigInfo vminfo;
-            MachineImage image;
-            VirtualMachineGuestOsIdentifier os;
-            Platform platform;
-            Architecture arch;
-            MachineImageState imgState;
-            String ownerId = "", regionId = "", name = "", description = "", imageId = "", dataCenterId = null;
 
             try {
                 vminfo = template.getConfig();
@@ -170,60 +192,89 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
             catch( RuntimeException e ) {
                 return null;
             }
-            try {
-                os = VirtualMachineGuestOsIdentifier.valueOf(vminfo.getGuestId());
-                platform = Platform.guess(vminfo.getGuestFullName());
-            }
-            catch( IllegalArgumentException e ) {
-                System.out.println("DEBUG: No such guest in enum: " + vminfo.getGuestId());
-                os = null;
-                platform = Platform.guess(vminfo.getGuestId());
-            }
-            if( os == null ) {
-                arch = (vminfo.getGuestId().contains("64") ? Architecture.I32 : Architecture.I64);
-            }
-            else {
-                arch = (getProvider().getComputeServices().getVirtualMachineSupport().getArchitecture(os));
-            }
-            description = (template.getName());
-            name = (template.getName());
-            ownerId = (getContext().getAccountNumber());
-            imageId = (vminfo.getUuid());
-            ManagedEntity parent = template.getParent();
-            while( parent != null ) {
-                if (parent instanceof Datacenter) {
-                    Region r = getProvider().getDataCenterServices().getRegion(parent.getName());
-                    regionId = r.getProviderRegionId();
-                    break;
-                }
-                parent = parent.getParent();
-            }
-
             VirtualMachineRuntimeInfo runtime = template.getRuntime();
-            VirtualMachinePowerState state = VirtualMachinePowerState.poweredOff;
 
-            if( runtime != null ) {
-                state = runtime.getPowerState();
-            }
-            if( state.equals(VirtualMachinePowerState.poweredOff) ) {
-                imgState = (MachineImageState.ACTIVE);
-            }
-            else {
-                imgState = (MachineImageState.PENDING);
-            }
-
-            image = MachineImage.getMachineImageInstance(ownerId, regionId, imageId, imgState, name, description, arch, platform);
-            image.withSoftware("");
-            image.constrainedTo(dataCenterId);
-            image.setTags(new HashMap<String, String>());
-            return image;
+            return toMachineImage(template.getMOR(), template.getName(), vminfo.getUuid(), vminfo.getGuestId(), vminfo.getGuestFullName(), runtime == null ? null : runtime.getPowerState(), directory);
         }
         return null;
     }
 
+    /**
+     * Converts a template from properties retrieved in bulk.
+     * @param content the retrieved {@link #TEMPLATE_PROPERTIES} of a template
+     * @param directory the regions the inventory belongs to
+     * @return the image or <code>null</code> if the template has no guest
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException an error occurred in vSphere converting the template
+     */
+    @Nullable MachineImage toMachineImage(@Nonnull ObjectContent content, @Nonnull RegionDirectory directory) throws InternalException, CloudException {
+        Object state = PropertyRetriever.getValue(content, "runtime.powerState");
+
+        return toMachineImage(content.getObj(), PropertyRetriever.getString(content, "name"), PropertyRetriever.getString(content, "config.uuid"), PropertyRetriever.getString(content, "config.guestId"), PropertyRetriever.getString(content, "config.guestFullName"), state instanceof VirtualMachinePowerState ? (VirtualMachinePowerState)state : null, directory);
+    }
+
+    private @Nullable MachineImage toMachineImage(@Nonnull ManagedObjectReference mor, @Nullable String templateName, @Nullable String uuid, @Nullable String guestId, @Nullable String guestFullName, @Nullable VirtualMachinePowerState state, @Nonnull RegionDirectory directory) throws InternalException, CloudException {
+        MachineImage image;
+        VirtualMachineGuestOsIdentifier os;
+        Platform platform;
+        Architecture arch;
+        MachineImageState imgState;
+        String ownerId = "", regionId = "", name = "", description = "", imageId = "", dataCenterId = null;
+
+        if( guestId == null ) {
+            return null;
+        }
+        try {
+            os = VirtualMachineGuestOsIdentifier.valueOf(guestId);
+            platform = Platform.guess(guestFullName);
+        }
+        catch( IllegalArgumentException e ) {
+            System.out.println("DEBUG: No such guest in enum: " + guestId);
+            os = null;
+            platform = Platform.guess(guestId);
+        }
+        if( os == null ) {
+            arch = (guestId.contains("64") ? Architecture.I32 : Architecture.I64);
+        }
+        else {
+            arch = (getProvider().getComputeServices().getVirtualMachineSupport().getArchitecture(os));
+        }
+        description = templateName;
+        name = templateName;
+        ownerId = (getContext().getAccountNumber());
+        imageId = uuid;
+        String r = directory.getRegionId(mor);
+
+        if( r != null ) {
+            regionId = r;
+        }
+        if( state == null || state.equals(VirtualMachinePowerState.poweredOff) ) {
+            imgState = (MachineImageState.ACTIVE);
+        }
+        else {
+            imgState = (MachineImageState.PENDING);
+        }
+
+        image = MachineImage.getMachineImageInstance(ownerId, regionId, imageId, imgState, name, description, arch, platform);
+        image.withSoftware("");
+        image.constrainedTo(dataCenterId);
+        image.setTags(new HashMap<String, String>());
+        return image;
+    }
+
+    /**
+     * Captures a VM as a template. Without a task the capture blocks until the template exists. With a task it
+     * returns as soon as vSphere accepted the clone: the clone progress is copied into the task and the task
+     * completes with the new template, which is resolved from the clone task result.
+     * @param options the capture options
+     * @param task the task to report to or <code>null</code> to wait for the template
+     * @return the new template or <code>null</code> if a task was given
+     * @throws CloudException an error occurred in vSphere capturing the VM
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     */
     @Override
     protected MachineImage capture(@Nonnull ImageCreateOptions options, @Nullable AsynchronousTask<MachineImage> task) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Image.capture");
+        OperationTrace.begin(getProvider(), "Image.capture");
         try {
             String vmId = options.getVirtualMachineId();
 
@@ -231,24 +282,26 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
                 throw new CloudException("You must specify a virtual machine to capture");
             }
             ServiceInstance service = getServiceInstance();
+            Vm support = getProvider().getComputeServices().getVirtualMachineSupport();
 
-            com.vmware.vim25.mo.VirtualMachine vm = getProvider().getComputeServices().getVirtualMachineSupport().getVirtualMachine(service, vmId);
+            com.vmware.vim25.mo.VirtualMachine vm = support.getVirtualMachine(service, vmId);
 
             if( vm == null ) {
                 throw new CloudException("No such virtual machine for imaging: " + vmId);
             }
-            MachineImage img = toMachineImage(getProvider().getComputeServices().getVirtualMachineSupport().clone(service, vm, options.getName(), true));
+            if( task != null ) {
+                AsyncCapture.start(getProvider(), this, service, support.submitClone(service, vm, options.getName(), true), options.getName(), task);
+                return null;
+            }
+            MachineImage img = toMachineImage(support.clone(service, vm, options.getName(), true));
 
             if( img == null ) {
                 throw new CloudException("Failed to identify newly created template");
             }
-            if( task != null ) {
-                task.completeWithResult(img);
-            }
             return img;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -269,7 +322,7 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
 
     @Override
     public @Nonnull Iterable<ResourceStatus> listImageStatus(@Nonnull ImageClass cls) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Image.listImageStatus");
+        OperationTrace.begin(getProvider(), "Image.listImageStatus");
         try {
             ArrayList<ResourceStatus> status = new ArrayList<>();
 
@@ -279,65 +332,51 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
             return status;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public @Nonnull Iterable<MachineImage> listImages(@Nullable ImageFilterOptions options) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Image.listImages");
+        OperationTrace.begin(getProvider(), "Image.listImages");
         try {
             ArrayList<MachineImage> machineImages = new ArrayList<>();
             ServiceInstance instance = getServiceInstance();
+            RegionDirectory directory = getProvider().getDataCenterServices().getRegionDirectory();
 
             Folder folder = getProvider().getVmFolder(instance);
-            ManagedEntity[] mes;
+            List<ObjectContent> templates = new ArrayList<>();
 
-            try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            for( ObjectContent content : PropertyRetriever.retrieve(instance, folder, TEMPLATE_PROPERTIES) ) {
+                if( Boolean.TRUE.equals(PropertyRetriever.getValue(content, "config.template")) ) {
+                    templates.add(content);
+                }
             }
+            if( !templates.isEmpty() ) {
+                for( ObjectContent template : templates ) {
+                    if( !directory.contains(template.getObj()) ) {
+                        // rebuild at most once per listing, even if several templates are new
+                        directory = getProvider().getDataCenterServices().refreshRegionDirectory();
+                        break;
+                    }
+                }
+                for( ObjectContent template : templates ) {
+                    MachineImage image = toMachineImage(template, directory);
 
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    VirtualMachine template = (VirtualMachine)entity;
-
-                    if( template != null ) {
-                        VirtualMachineConfigInfo cfg = null;
-
-                        try {
-                            cfg = template.getConfig();
-                        }
-                        catch( RuntimeException e ) {
-                            e.printStackTrace();
-                        }
-                        if( cfg != null && cfg.isTemplate() ) {
-                            MachineImage image = toMachineImage(template);
-
-                            if( image != null && (options == null || options.matches(image)) ) {
-                                if (options!= null) {
-                                    if (options.getWithAllRegions()) {
-                                        machineImages.add(image);
-                                    }
-                                    else {
-                                        if (image.getProviderRegionId().equals(getContext().getRegionId())) {
-                                            machineImages.add(image);
-                                        }
-                                    }
-                                }
-                                else {
+                    if( image != null && (options == null || options.matches(image)) ) {
+                        if (options!= null) {
+                            if (options.getWithAllRegions()) {
+                                machineImages.add(image);
+                            }
+                            else {
+                                if (image.getProviderRegionId().equals(getContext().getRegionId())) {
                                     machineImages.add(image);
                                 }
                             }
                         }
+                        else {
+                            machineImages.add(image);
+                        }
                     }
                 }
             }
@@ -345,7 +384,7 @@ public class Template extends AbstractImageSupport<PrivateCloud> {
             return machineImages;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
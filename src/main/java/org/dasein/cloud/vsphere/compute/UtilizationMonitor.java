@@ -0,0 +1,823 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.rmi.RemoteException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.WeakHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.HostHardwareSummary;
+import com.vmware.vim25.HostListSummaryQuickStats;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.mo.Datacenter;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudErrorType;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+import org.dasein.cloud.vsphere.PropertyWatcher;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.servlet.http.HttpServletResponse;
+
+/**
+ * Tracks the CPU, memory, VM count and network utilization of every host in a region and rolls it up per cluster.
+ * The quick stats, hardware and VMs of all hosts are streamed through a single property filter, so the current
+ * values follow vCenter without polling. The host lists of the clusters are watched as well, so hosts added to a
+ * cluster, removed from it or moved to another cluster are picked up as they change. Network throughput is not
+ * part of the quick stats and is read from the PerformanceManager with one real-time query per sample. Each sample
+ * of the hosts and clusters is kept for {@link #WINDOW_MINUTES} minutes for percentile queries.
+ * <p>
+ * There is one monitor per connection and region. It runs until {@link #close()} is called or the connection fails.
+ * </p>
+ * @since 2015.09
+ */
+public final class UtilizationMonitor implements PropertyWatcher.Listener {
+    static private final Logger logger = PrivateCloud.getLogger(UtilizationMonitor.class, "std");
+
+    static final String NETWORK_COUNTER = "net.usage.average";
+
+    /**
+     * How long samples are kept for percentile queries.
+     */
+    static public final int WINDOW_MINUTES = 60;
+
+    static private final String[]   HOST      = new String[] { "name", "summary.quickStats", "summary.hardware", "vm" };
+    static private final String[]   CLUSTER   = new String[] { "name", "host" };
+    static private final String[][] INVENTORY = new String[][] {
+            { "ComputeResource", "name", "host" },
+            { "HostSystem", "name", "summary.quickStats", "summary.hardware", "vm" }
+    };
+
+    static private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "vsphere-utilization");
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    static private final Map<ServiceInstance,Map<String,UtilizationMonitor>> monitors = new WeakHashMap<ServiceInstance, Map<String, UtilizationMonitor>>();
+
+    /**
+     * The metrics percentiles can be queried for.
+     */
+    public enum Metric {
+        /**
+         * CPU usage in percent of the CPU capacity.
+         */
+        CPU,
+        /**
+         * Memory usage in percent of the physical memory.
+         */
+        MEMORY,
+        /**
+         * The number of VMs, including templates and powered off VMs.
+         */
+        VM_COUNT,
+        /**
+         * Network throughput in KB per second.
+         */
+        NETWORK
+    }
+
+    /**
+     * The utilization of a host or cluster at one point in time.
+     */
+    static public final class Utilization {
+        private final long timestamp;
+        private final long cpuUsage;
+        private final long cpuCapacity;
+        private final long memoryUsage;
+        private final long memoryCapacity;
+        private final int  vmCount;
+        private final long network;
+
+        Utilization(long timestamp, long cpuUsage, long cpuCapacity, long memoryUsage, long memoryCapacity, int vmCount, long network) {
+            this.timestamp = timestamp;
+            this.cpuUsage = cpuUsage;
+            this.cpuCapacity = cpuCapacity;
+            this.memoryUsage = memoryUsage;
+            this.memoryCapacity = memoryCapacity;
+            this.vmCount = vmCount;
+            this.network = network;
+        }
+
+        public long getTimestamp() {
+            return timestamp;
+        }
+
+        public long getCpuUsageMhz() {
+            return cpuUsage;
+        }
+
+        public long getCpuCapacityMhz() {
+            return cpuCapacity;
+        }
+
+        public long getMemoryUsageMB() {
+            return memoryUsage;
+        }
+
+        public long getMemoryCapacityMB() {
+            return memoryCapacity;
+        }
+
+        public int getVmCount() {
+            return vmCount;
+        }
+
+        /**
+         * @return the network throughput in KB per second as of the last sample, 0 before the first one
+         */
+        public long getNetworkKBps() {
+            return network;
+        }
+
+        /**
+         * @return the CPU usage in percent of the CPU capacity
+         */
+        public double getCpuUtilization() {
+            return (cpuCapacity < 1L ? 0.0 : (cpuUsage * 100.0) / cpuCapacity);
+        }
+
+        /**
+         * @return the memory usage in percent of the physical memory
+         */
+        public double getMemoryUtilization() {
+            return (memoryCapacity < 1L ? 0.0 : (memoryUsage * 100.0) / memoryCapacity);
+        }
+
+        public double get(@Nonnull Metric metric) {
+            switch( metric ) {
+                case CPU: return getCpuUtilization();
+                case MEMORY: return getMemoryUtilization();
+                case VM_COUNT: return vmCount;
+                default: return network;
+            }
+        }
+
+        @Override
+        public @Nonnull String toString() {
+            return String.format("cpu=%.1f%% memory=%.1f%% vms=%d network=%dKBps", getCpuUtilization(), getMemoryUtilization(), vmCount, network);
+        }
+    }
+
+    static private class HostState {
+        final ManagedObjectReference mor;
+        String                       cluster;
+        String                       name;
+        long                         cpuUsage;
+        long                         cpuCapacity;
+        long                         memoryUsage;
+        long                         memoryCapacity;
+        int                          vmCount;
+        long                         network;
+
+        HostState(@Nonnull ManagedObjectReference mor, @Nonnull String cluster) {
+            this.mor = mor;
+            this.cluster = cluster;
+        }
+
+        void update(@Nonnull Map<String,Object> values) {
+            Object n = values.get("name");
+
+            if( n != null ) {
+                name = n.toString();
+            }
+            if( values.containsKey("summary.quickStats") ) {
+                HostListSummaryQuickStats stats = (HostListSummaryQuickStats)values.get("summary.quickStats");
+                Integer cpu = (stats == null ? null : stats.getOverallCpuUsage());
+                Integer memory = (stats == null ? null : stats.getOverallMemoryUsage());
+
+                cpuUsage = (cpu == null ? 0L : cpu);
+                memoryUsage = (memory == null ? 0L : memory);
+            }
+            if( values.containsKey("summary.hardware") ) {
+                HostHardwareSummary hardware = (HostHardwareSummary)values.get("summary.hardware");
+
+                cpuCapacity = (hardware == null ? 0L : ((long)hardware.getCpuMhz()) * hardware.getNumCpuCores());
+                memoryCapacity = (hardware == null ? 0L : hardware.getMemorySize() / (1024L * 1024L));
+            }
+            if( values.containsKey("vm") ) {
+                Object vms = values.get("vm");
+
+                vmCount = (vms instanceof ManagedObjectReference[] ? ((ManagedObjectReference[])vms).length : 0);
+            }
+        }
+
+        @Nonnull Utilization toUtilization(long timestamp) {
+            return new Utilization(timestamp, cpuUsage, cpuCapacity, memoryUsage, memoryCapacity, vmCount, network);
+        }
+    }
+
+    /**
+     * The samples of one host or cluster, oldest first.
+     */
+    static private class Window {
+        final ArrayDeque<Utilization> samples = new ArrayDeque<Utilization>();
+
+        void add(@Nonnull Utilization sample) {
+            long cutoff = sample.getTimestamp() - TimeUnit.MINUTES.toMillis(WINDOW_MINUTES);
+
+            samples.addLast(sample);
+            while( samples.peekFirst().getTimestamp() < cutoff ) {
+                samples.removeFirst();
+            }
+        }
+
+        double percentile(@Nonnull Metric metric, double percentile, long since) {
+            List<Double> values = new ArrayList<Double>();
+
+            for( Iterator<Utilization> it = samples.descendingIterator(); it.hasNext(); ) {
+                Utilization sample = it.next();
+
+                if( sample.getTimestamp() < since ) {
+                    break;
+                }
+                values.add(sample.get(metric));
+            }
+            if( values.isEmpty() ) {
+                return Double.NaN;
+            }
+            Collections.sort(values);
+            // nearest rank
+            int rank = (int)Math.ceil((percentile / 100.0) * values.size());
+
+            return values.get(Math.max(0, rank - 1));
+        }
+    }
+
+    /**
+     * Provides the monitor of the provider's connection and region, starting it if it is not running yet. Starting
+     * costs one property collector retrieval and one property filter for all hosts of the region.
+     * @param provider the provider whose region should be monitored
+     * @return the running monitor
+     * @throws CloudException the region does not exist or an error occurred talking to vSphere
+     * @throws InternalException the provider is not connected
+     */
+    static public @Nonnull UtilizationMonitor getInstance(@Nonnull PrivateCloud provider) throws CloudException, InternalException {
+        ProviderContext ctx = provider.getContext();
+        ServiceInstance instance = provider.getServiceInstance();
+
+        if( ctx == null ) {
+            throw new InternalException("No context was set for this request");
+        }
+        if( instance == null ) {
+            throw new CloudException(CloudErrorType.AUTHENTICATION, HttpServletResponse.SC_UNAUTHORIZED, null, "Unauthorized");
+        }
+        String regionId = ctx.getRegionId();
+
+        synchronized( monitors ) {
+            UtilizationMonitor monitor = find(instance, regionId);
+
+            if( monitor != null ) {
+                return monitor;
+            }
+            Datacenter dc = provider.getDataCenterServices().getVmwareDatacenterFromVDCId(instance, regionId);
+
+            if( dc == null ) {
+                throw new CloudException("No such dc: " + regionId);
+            }
+            monitor = new UtilizationMonitor(instance, regionId);
+            monitor.start(dc, provider.getUtilizationSampleSeconds());
+
+            Map<String,UtilizationMonitor> regions = monitors.get(instance);
+
+            if( regions == null ) {
+                regions = new HashMap<String, UtilizationMonitor>();
+                monitors.put(instance, regions);
+            }
+            regions.put(regionId, monitor);
+            return monitor;
+        }
+    }
+
+    /**
+     * @param instance the connection
+     * @param regionId the region
+     * @return the running monitor of the connection and region or <code>null</code> if none was started
+     */
+    static @Nullable UtilizationMonitor find(@Nonnull ServiceInstance instance, @Nullable String regionId) {
+        synchronized( monitors ) {
+            Map<String,UtilizationMonitor> regions = monitors.get(instance);
+
+            return (regions == null || regionId == null ? null : regions.get(regionId));
+        }
+    }
+
+    private final ServiceInstance         instance;
+    private final String                  regionId;
+    private final Map<String,HostState>   hosts          = new HashMap<String, HostState>(); // by managed object ID
+    private final Map<String,String>      clusterNames   = new HashMap<String, String>(); // by managed object ID
+    private final Map<String,Set<String>> members        = new HashMap<String, Set<String>>(); // host IDs by cluster ID
+    private final Map<String,Window>      hostWindows    = new HashMap<String, Window>(); // by host name
+    private final Map<String,Window>      clusterWindows = new HashMap<String, Window>(); // by cluster name
+    private ScheduledFuture<?>            schedule;
+    private boolean                       closed         = false;
+
+    private UtilizationMonitor(@Nonnull ServiceInstance instance, @Nonnull String regionId) {
+        this.instance = instance;
+        this.regionId = regionId;
+    }
+
+    private void start(@Nonnull Datacenter dc, int sampleSeconds) throws CloudException {
+        List<ObjectContent> inventory = PropertyRetriever.retrieve(instance, dc, INVENTORY);
+        Map<String,String> clusters = new HashMap<String, String>();
+        Map<String,List<ManagedObjectReference>> clusterRefs = new TreeMap<String, List<ManagedObjectReference>>(); // by type
+        List<ManagedObjectReference> refs = new ArrayList<ManagedObjectReference>();
+
+        synchronized( this ) {
+            for( ObjectContent content : inventory ) {
+                ManagedObjectReference mor = content.getObj();
+
+                if( !mor.getType().equals("HostSystem") ) {
+                    String name = PropertyRetriever.getString(content, "name");
+                    Set<String> ids = new HashSet<String>();
+                    List<ManagedObjectReference> list = clusterRefs.get(mor.getType());
+
+                    for( ManagedObjectReference host : PropertyRetriever.getReferences(content, "host") ) {
+                        clusters.put(host.getVal(), name);
+                        ids.add(host.getVal());
+                    }
+                    clusterNames.put(mor.getVal(), name);
+                    members.put(mor.getVal(), ids);
+                    if( list == null ) {
+                        list = new ArrayList<ManagedObjectReference>();
+                        clusterRefs.put(mor.getType(), list);
+                    }
+                    list.add(mor);
+                }
+            }
+            for( ObjectContent content : inventory ) {
+                ManagedObjectReference mor = content.getObj();
+                String cluster = clusters.get(mor.getVal());
+
+                if( mor.getType().equals("HostSystem") && cluster != null ) {
+                    HostState host = new HostState(mor, cluster);
+                    Map<String,Object> values = new HashMap<String, Object>();
+
+                    for( String path : HOST ) {
+                        values.put(path, PropertyRetriever.getValue(content, path));
+                    }
+                    host.update(values);
+                    hosts.put(mor.getVal(), host);
+                    refs.add(mor);
+                }
+            }
+        }
+        PropertyWatcher watcher = PropertyWatcher.getInstance(instance);
+
+        watcher.watch(refs.toArray(new ManagedObjectReference[refs.size()]), HOST, this);
+        // a filter covers one type, and clusters are ClusterComputeResources while stand-alone hosts are not
+        for( List<ManagedObjectReference> list : clusterRefs.values() ) {
+            watcher.watch(list.toArray(new ManagedObjectReference[list.size()]), CLUSTER, this);
+        }
+        synchronized( this ) {
+            schedule = sampler.scheduleAtFixedRate(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        sample();
+                    }
+                    catch( RuntimeException e ) {
+                        logger.error("Utilization sample failed: " + e.getMessage(), e);
+                    }
+                }
+            }, sampleSeconds, sampleSeconds, TimeUnit.SECONDS);
+        }
+    }
+
+    /**
+     * Stops monitoring. A later {@link #getInstance(PrivateCloud)} starts a new monitor.
+     */
+    public void close() {
+        synchronized( this ) {
+            if( closed ) {
+                return;
+            }
+            closed = true;
+            if( schedule != null ) {
+                schedule.cancel(false);
+            }
+        }
+        synchronized( monitors ) {
+            Map<String,UtilizationMonitor> regions = monitors.get(instance);
+
+            if( regions != null && regions.get(regionId) == this ) {
+                regions.remove(regionId);
+            }
+        }
+        PropertyWatcher.getInstance(instance).unwatch(this);
+    }
+
+    @Override
+    public boolean changed(@Nonnull ManagedObjectReference object, @Nonnull Map<String,Object> values) {
+        if( !object.getType().equals("HostSystem") ) {
+            final String clusterId = object.getVal();
+            final String name = (values.get("name") == null ? null : values.get("name").toString());
+            Object hosts = values.get("host");
+            final ManagedObjectReference[] list;
+
+            if( values.containsKey("host") ) {
+                list = (hosts instanceof ManagedObjectReference[] ? (ManagedObjectReference[])hosts : new ManagedObjectReference[0]);
+            }
+            else {
+                list = null;
+            }
+            // adding and removing host watches calls vSphere, which the watcher thread calling this must not do
+            sampler.execute(new Runnable() {
+                @Override
+                public void run() {
+                    updateCluster(clusterId, name, list);
+                }
+            });
+            synchronized( this ) {
+                return closed;
+            }
+        }
+        synchronized( this ) {
+            HostState host = hosts.get(object.getVal());
+
+            if( host != null ) {
+                host.update(values);
+            }
+            return closed;
+        }
+    }
+
+    @Override
+    public void failed(@Nonnull ManagedObjectReference object, @Nonnull Exception cause) {
+        final String id = object.getVal();
+        final boolean cluster = !object.getType().equals("HostSystem");
+
+        logger.warn("Stopped tracking the utilization of " + id + ": " + cause.getMessage());
+        // closing and replacing filters calls vSphere, which the watcher thread calling this must not do
+        sampler.execute(new Runnable() {
+            @Override
+            public void run() {
+                if( cluster ) {
+                    updateCluster(id, null, new ManagedObjectReference[0]);
+                    synchronized( UtilizationMonitor.this ) {
+                        clusterNames.remove(id);
+                        members.remove(id);
+                    }
+                }
+                else {
+                    synchronized( UtilizationMonitor.this ) {
+                        remove(id);
+                    }
+                }
+                boolean empty;
+
+                synchronized( UtilizationMonitor.this ) {
+                    empty = hosts.isEmpty() && members.isEmpty();
+                }
+                if( empty ) {
+                    close();
+                }
+            }
+        });
+    }
+
+    /**
+     * Applies a change of a cluster's name or host list: hosts new to the region are added and watched, hosts no
+     * cluster lists any more are dropped with their samples, and hosts that moved are counted for their new cluster.
+     * Runs on the sampler thread.
+     * @param clusterId the managed object ID of the cluster
+     * @param name the new name of the cluster or <code>null</code> if it did not change
+     * @param list the new hosts of the cluster or <code>null</code> if they did not change
+     */
+    private void updateCluster(@Nonnull String clusterId, @Nullable String name, @Nullable ManagedObjectReference[] list) {
+        List<ManagedObjectReference> added = new ArrayList<ManagedObjectReference>();
+        List<ManagedObjectReference> removed = new ArrayList<ManagedObjectReference>();
+
+        synchronized( this ) {
+            if( closed ) {
+                return;
+            }
+            if( name != null ) {
+                clusterNames.put(clusterId, name);
+            }
+            String clusterName = clusterNames.get(clusterId);
+            Set<String> ids = members.get(clusterId);
+
+            if( clusterName == null ) {
+                return;
+            }
+            if( list != null ) {
+                Set<String> previous = (ids == null ? Collections.<String>emptySet() : ids);
+
+                ids = new HashSet<String>();
+                for( ManagedObjectReference mor : list ) {
+                    ids.add(mor.getVal());
+                    if( !hosts.containsKey(mor.getVal()) ) {
+                        hosts.put(mor.getVal(), new HostState(mor, clusterName));
+                        added.add(mor);
+                    }
+                }
+                members.put(clusterId, ids);
+                for( String id : previous ) {
+                    if( !ids.contains(id) && !isMember(id) ) {
+                        HostState host = remove(id);
+
+                        if( host != null ) {
+                            removed.add(host.mor);
+                        }
+                    }
+                }
+            }
+            if( ids != null ) {
+                for( String id : ids ) {
+                    HostState host = hosts.get(id);
+
+                    if( host != null ) {
+                        host.cluster = clusterName;
+                    }
+                }
+            }
+        }
+        PropertyWatcher watcher = PropertyWatcher.getInstance(instance);
+
+        try {
+            for( ManagedObjectReference mor : removed ) {
+                watcher.unwatch(mor, this);
+            }
+            watcher.watch(added.toArray(new ManagedObjectReference[added.size()]), HOST, this);
+        }
+        catch( CloudException e ) {
+            logger.warn("Unable to update the hosts watched in " + clusterId + ": " + e.getMessage());
+        }
+    }
+
+    private boolean isMember(@Nonnull String hostId) {
+        for( Set<String> ids : members.values() ) {
+            if( ids.contains(hostId) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private @Nullable HostState remove(@Nonnull String hostId) {
+        HostState host = hosts.remove(hostId);
+
+        if( host != null && host.name != null ) {
+            hostWindows.remove(host.name);
+        }
+        return host;
+    }
+
+    /**
+     * Records a sample of every host and cluster, reading the network throughput of all hosts first.
+     */
+    void sample() {
+        Map<String,Long> network;
+
+        try {
+            network = queryNetwork();
+        }
+        catch( CloudException e ) {
+            logger.warn("Unable to read host network usage: " + e.getMessage());
+            network = Collections.emptyMap();
+        }
+        long now = System.currentTimeMillis();
+
+        synchronized( this ) {
+            if( closed ) {
+                return;
+            }
+            for( HostState host : hosts.values() ) {
+                Long kbps = network.get(host.mor.getVal());
+
+                if( kbps != null ) {
+                    host.network = kbps;
+                }
+                if( host.name != null ) {
+                    add(hostWindows, host.name, host.toUtilization(now));
+                }
+            }
+            for( Map.Entry<String,Utilization> cluster : rollUp(now).entrySet() ) {
+                add(clusterWindows, cluster.getKey(), cluster.getValue());
+            }
+        }
+    }
+
+    static private void add(@Nonnull Map<String,Window> windows, @Nonnull String name, @Nonnull Utilization sample) {
+        Window window = windows.get(name);
+
+        if( window == null ) {
+            window = new Window();
+            windows.put(name, window);
+        }
+        window.add(sample);
+    }
+
+    private @Nonnull Map<String,Long> queryNetwork() throws CloudException {
+        Integer counter = VmPerformance.getCounterKey(instance, NETWORK_COUNTER);
+        List<ManagedObjectReference> refs = new ArrayList<ManagedObjectReference>();
+        Map<String,Long> network = new HashMap<String, Long>();
+
+        if( counter == null ) {
+            return network;
+        }
+        synchronized( this ) {
+            for( HostState host : hosts.values() ) {
+                refs.add(host.mor);
+            }
+        }
+        PerfMetricId metric = new PerfMetricId();
+
+        metric.setCounterId(counter);
+        metric.setInstance(""); // the aggregate over all NICs
+        for( int offset=0; offset<refs.size(); offset += VmPerformance.BATCH_SIZE ) {
+            List<ManagedObjectReference> batch = refs.subList(offset, Math.min(refs.size(), offset + VmPerformance.BATCH_SIZE));
+            PerfQuerySpec[] specs = new PerfQuerySpec[batch.size()];
+
+            for( int i=0; i<specs.length; i++ ) {
+                specs[i] = new PerfQuerySpec();
+                specs[i].setEntity(batch.get(i));
+                specs[i].setIntervalId(VmPerformance.REAL_TIME_INTERVAL);
+                specs[i].setMaxSample(1);
+                specs[i].setMetricId(new PerfMetricId[] { metric });
+                specs[i].setFormat("normal");
+            }
+            PerfEntityMetricBase[] results;
+
+            try {
+                results = instance.getPerformanceManager().queryPerf(specs);
+            }
+            catch( RuntimeFault e ) {
+                throw new CloudException("Error in processing statistics request: " + e.getMessage());
+            }
+            catch( RemoteException e ) {
+                throw new CloudException("Error in statistics request: " + e.getMessage());
+            }
+            if( results == null ) {
+                continue;
+            }
+            for( PerfEntityMetricBase result : results ) {
+                if( !(result instanceof PerfEntityMetric) || ((PerfEntityMetric)result).getValue() == null ) {
+                    continue;
+                }
+                for( PerfMetricSeries series : ((PerfEntityMetric)result).getValue() ) {
+                    long[] values = (series instanceof PerfMetricIntSeries ? ((PerfMetricIntSeries)series).getValue() : null);
+
+                    if( values != null && values.length > 0 && values[values.length-1] >= 0L ) {
+                        network.put(result.getEntity().getVal(), values[values.length-1]);
+                    }
+                }
+            }
+        }
+        return network;
+    }
+
+    private @Nonnull Map<String,Utilization> rollUp(long timestamp) {
+        Map<String,long[]> totals = new TreeMap<String, long[]>();
+
+        for( HostState host : hosts.values() ) {
+            long[] t = totals.get(host.cluster);
+
+            if( t == null ) {
+                t = new long[6];
+                totals.put(host.cluster, t);
+            }
+            t[0] += host.cpuUsage;
+            t[1] += host.cpuCapacity;
+            t[2] += host.memoryUsage;
+            t[3] += host.memoryCapacity;
+            t[4] += host.vmCount;
+            t[5] += host.network;
+        }
+        Map<String,Utilization> clusters = new TreeMap<String, Utilization>();
+
+        for( Map.Entry<String,long[]> entry : totals.entrySet() ) {
+            long[] t = entry.getValue();
+
+            clusters.put(entry.getKey(), new Utilization(timestamp, t[0], t[1], t[2], t[3], (int)t[4], t[5]));
+        }
+        return clusters;
+    }
+
+    /**
+     * @param hostName the name of the host
+     * @return the current utilization of the host or <code>null</code> if the host is not in the monitored region
+     */
+    public synchronized @Nullable Utilization getHost(@Nonnull String hostName) {
+        for( HostState host : hosts.values() ) {
+            if( hostName.equals(host.name) ) {
+                return host.toUtilization(System.currentTimeMillis());
+            }
+        }
+        return null;
+    }
+
+    /**
+     * @param clusterName the name of the cluster (the Dasein data center ID)
+     * @return the current utilization summed over the hosts of the cluster or <code>null</code> if it has no hosts
+     */
+    public synchronized @Nullable Utilization getCluster(@Nonnull String clusterName) {
+        return rollUp(System.currentTimeMillis()).get(clusterName);
+    }
+
+    /**
+     * @return the current utilization of every host by host name
+     */
+    public synchronized @Nonnull Map<String,Utilization> listHosts() {
+        Map<String,Utilization> list = new TreeMap<String, Utilization>();
+        long now = System.currentTimeMillis();
+
+        for( HostState host : hosts.values() ) {
+            if( host.name != null ) {
+                list.put(host.name, host.toUtilization(now));
+            }
+        }
+        return list;
+    }
+
+    /**
+     * @return the current utilization of every cluster by cluster name
+     */
+    public synchronized @Nonnull Map<String,Utilization> listClusters() {
+        return rollUp(System.currentTimeMillis());
+    }
+
+    /**
+     * Calculates a percentile of a host metric over the samples of a recent window.
+     * @param hostName the name of the host
+     * @param metric the metric
+     * @param percentile the percentile, from 0 to 100
+     * @param windowMillis how far back to look, at most {@link #WINDOW_MINUTES} minutes
+     * @return the nearest-rank percentile or {@link Double#NaN} if there are no samples of the host in the window
+     */
+    public synchronized double getHostPercentile(@Nonnull String hostName, @Nonnull Metric metric, double percentile, long windowMillis) {
+        return percentile(hostWindows.get(hostName), metric, percentile, windowMillis);
+    }
+
+    /**
+     * Calculates a percentile of a cluster metric over the samples of a recent window. Each sample sums the
+     * usage and capacity over the hosts of the cluster at that time.
+     * @param clusterName the name of the cluster (the Dasein data center ID)
+     * @param metric the metric
+     * @param percentile the percentile, from 0 to 100
+     * @param windowMillis how far back to look, at most {@link #WINDOW_MINUTES} minutes
+     * @return the nearest-rank percentile or {@link Double#NaN} if there are no samples of the cluster in the window
+     */
+    public synchronized double getClusterPercentile(@Nonnull String clusterName, @Nonnull Metric metric, double percentile, long windowMillis) {
+        return percentile(clusterWindows.get(clusterName), metric, percentile, windowMillis);
+    }
+
+    static private double percentile(@Nullable Window window, @Nonnull Metric metric, double percentile, long windowMillis) {
+        if( percentile < 0.0 || percentile > 100.0 ) {
+            throw new IllegalArgumentException("Percentile out of range: " + percentile);
+        }
+        if( window == null ) {
+            return Double.NaN;
+        }
+        return window.percentile(metric, percentile, System.currentTimeMillis() - windowMillis);
+    }
+}
@@ -193,7 +193,7 @@ public class VMCapabilities extends AbstractCapabilities<PrivateCloud> implement
 
     @Override
     public boolean isBasicAnalyticsSupported() throws CloudException, InternalException {
-        return false;
+        return true;
     }
 
     @Override
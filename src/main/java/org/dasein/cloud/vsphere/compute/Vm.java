@@ -19,11 +19,17 @@
 package org.dasein.cloud.vsphere.compute;
 
 import java.io.BufferedReader;
+import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.rmi.RemoteException;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import com.vmware.vim25.*;
 import org.dasein.cloud.CloudErrorType;
@@ -38,10 +44,14 @@ import org.dasein.cloud.identity.ServiceAction;
 import org.dasein.cloud.network.RawAddress;
 import org.dasein.cloud.network.VLAN;
 import org.dasein.cloud.network.VLANSupport;
-import org.dasein.cloud.util.APITrace;
-import org.dasein.cloud.util.Cache;
+import org.dasein.cloud.vsphere.metrics.OperationTrace;
 import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.InventoryCache;
+import org.dasein.cloud.vsphere.InventoryChange;
+import org.dasein.cloud.vsphere.ParallelConverter;
 import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyPager;
+import org.dasein.cloud.vsphere.PropertyRetriever;
 
 import com.vmware.vim25.mo.ComputeResource;
 import com.vmware.vim25.mo.Datacenter;
@@ -51,6 +61,7 @@ import com.vmware.vim25.mo.HostSystem;
 import com.vmware.vim25.mo.InventoryNavigator;
 import com.vmware.vim25.mo.ManagedEntity;
 import com.vmware.vim25.mo.ResourcePool;
+import com.vmware.vim25.mo.ServerConnection;
 import com.vmware.vim25.mo.ServiceInstance;
 import com.vmware.vim25.mo.Task;
 import org.dasein.util.CalendarWrapper;
@@ -72,6 +83,24 @@ import javax.servlet.http.HttpServletResponse;
 public class Vm extends AbstractVMSupport<PrivateCloud> {
     static private final Logger log = PrivateCloud.getLogger(Vm.class, "std");
 
+    /**
+     * The properties {@link #toServer(ObjectContent, InventoryIndex)} converts a VM from.
+     */
+    static final String[][] VM_PROPERTIES = new String[][] {
+            { "VirtualMachine", "name", "config", "guest", "runtime", "parent", "resourcePool" }
+    };
+
+    /**
+     * Launch option meta-data (&quot;true&quot;/&quot;false&quot;) overriding {@link PrivateCloud#isLinkedCloneDefault()}
+     * for a single template launch.
+     */
+    static public final String LINKED_CLONE          = "vSphereLinkedClone";
+    /**
+     * Launch option meta-data naming the template snapshot linked clones are created from; the template's current
+     * snapshot is used when it is not set.
+     */
+    static public final String LINKED_CLONE_SNAPSHOT = "vSphereLinkedCloneSnapshot";
+
     Vm(@Nonnull PrivateCloud provider) {
         super(provider);
     }
@@ -87,7 +116,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
 
     @Override
     public void start(@Nonnull String serverId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.start");
+        OperationTrace.begin(getProvider(), "Vm.start");
         try {
             ServiceInstance instance = getServiceInstance();
 
@@ -136,70 +165,20 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull com.vmware.vim25.mo.VirtualMachine clone(@Nonnull ServiceInstance instance, @Nonnull com.vmware.vim25.mo.VirtualMachine vm, @Nonnull String name, boolean asTemplate) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.clone(ServiceInstance, VirtualMachine)");
+        OperationTrace.begin(getProvider(), "Vm.clone(ServiceInstance, VirtualMachine)");
         try {
             try {
-                String dcId = getDataCenter(vm);
-
-                if( dcId == null ) {
-                    throw new CloudException("Virtual machine " + vm + " has no data center parent");
-                }
-                name = validateName(name);
-
-                Datacenter dc = null;
-                DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dcId);
-                if( ourDC != null ) {
-                    dc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, ourDC.getRegionId());
-                }
-                else {
-                    dc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, dcId);
-                }
-                ResourcePool pool = vm.getResourcePool();
-
-                if( dc == null ) {
-                    throw new CloudException("Invalid DC for cloning operation: " + dcId);
-                }
-                Folder vmFolder = dc.getVmFolder();
-
-                VirtualMachineConfigSpec config = new VirtualMachineConfigSpec();
-                VirtualMachineProduct product = getProduct(vm.getConfig().getHardware());
-                String[] sizeInfo = product.getProviderProductId().split(":");
-                int cpuCount = Integer.parseInt(sizeInfo[0]);
-                long memory = Long.parseLong(sizeInfo[1]);
-
-                config.setName(name);
-                config.setAnnotation(vm.getConfig().getAnnotation());
-                config.setMemoryMB(memory);
-                config.setNumCPUs(cpuCount);
-                config.setCpuHotAddEnabled(true);
-                config.setNumCoresPerSocket(cpuCount);
-
-                VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
-                VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
-
-                HostSystem host = getHost(vm);
-                if( host == null ) {
-                    location.setHost(getBestHost(dc, dcId).getConfig().getHost());
-                }
-                else {
-                    location.setHost(host.getConfig().getHost());
-                }
-                location.setPool(pool.getConfig().getEntity());
-                spec.setLocation(location);
-                spec.setPowerOn(false);
-                spec.setTemplate(asTemplate);
-                spec.setConfig(config);
-
-                Task task = vm.cloneVM_Task(vmFolder, name, spec);
+                Task task = submitClone(instance, vm, name, asTemplate);
                 String status = task.waitForTask();
 
                 if( status.equals(Task.SUCCESS) ) {
-                    return ( com.vmware.vim25.mo.VirtualMachine ) ( new InventoryNavigator(vmFolder).searchManagedEntity("VirtualMachine", name) );
+                    InventoryCache.publish(getContext(), asTemplate ? InventoryChange.IMAGE_CAPTURED : InventoryChange.VM_CLONED);
+                    return new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), (ManagedObjectReference)task.getTaskInfo().getResult());
                 }
                 else {
                     throw new CloudException("Failed to create VM: " + task.getTaskInfo().getError().getLocalizedMessage());
@@ -219,13 +198,90 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * Submits the task cloning a VM onto its own host and resource pool, powered off, without waiting for it. The
+     * new VM is the task's result.
+     * @param instance the connection to clone through
+     * @param vm the VM to clone
+     * @param name the name of the clone
+     * @param asTemplate whether the clone is to be a template
+     * @return the clone task
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException vSphere refused the clone
+     */
+    @Nonnull Task submitClone(@Nonnull ServiceInstance instance, @Nonnull com.vmware.vim25.mo.VirtualMachine vm, @Nonnull String name, boolean asTemplate) throws InternalException, CloudException {
+        try {
+            String dcId = getDataCenter(vm);
+
+            if( dcId == null ) {
+                throw new CloudException("Virtual machine " + vm + " has no data center parent");
+            }
+            name = validateName(name);
+
+            Datacenter dc = null;
+            DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dcId);
+            if( ourDC != null ) {
+                dc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, ourDC.getRegionId());
+            }
+            else {
+                dc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, dcId);
+            }
+            ResourcePool pool = vm.getResourcePool();
+
+            if( dc == null ) {
+                throw new CloudException("Invalid DC for cloning operation: " + dcId);
+            }
+            Folder vmFolder = dc.getVmFolder();
+
+            VirtualMachineConfigSpec config = new VirtualMachineConfigSpec();
+            VirtualMachineProduct product = getProduct(vm.getConfig().getHardware());
+            String[] sizeInfo = product.getProviderProductId().split(":");
+            int cpuCount = Integer.parseInt(sizeInfo[0]);
+            long memory = Long.parseLong(sizeInfo[1]);
+
+            config.setName(name);
+            config.setAnnotation(vm.getConfig().getAnnotation());
+            config.setMemoryMB(memory);
+            config.setNumCPUs(cpuCount);
+            config.setCpuHotAddEnabled(true);
+            config.setNumCoresPerSocket(cpuCount);
+
+            VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
+            VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
+
+            HostSystem host = getHost(vm);
+            if( host == null ) {
+                location.setHost(getBestHost(dc, dcId).getConfig().getHost());
+            }
+            else {
+                location.setHost(host.getConfig().getHost());
+            }
+            location.setPool(pool.getConfig().getEntity());
+            spec.setLocation(location);
+            spec.setPowerOn(false);
+            spec.setTemplate(asTemplate);
+            spec.setConfig(config);
+
+            return vm.cloneVM_Task(vmFolder, name, spec);
+        }
+        catch( InvalidProperty e ) {
+            throw new CloudException(e);
+        }
+        catch( RuntimeFault e ) {
+            throw new InternalException(e);
+        }
+        catch( RemoteException e ) {
+            throw new CloudException(e);
         }
     }
 
     @Override
     public VirtualMachine alterVirtualMachineSize(@Nonnull String virtualMachineId, @Nullable String cpuCount, @Nullable String ramInMB) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.alterVirtualMachine");
+        OperationTrace.begin(getProvider(), "Vm.alterVirtualMachineSize");
         try {
             ServiceInstance instance = getServiceInstance();
             com.vmware.vim25.mo.VirtualMachine vm = getVirtualMachine(instance, virtualMachineId);
@@ -297,13 +353,13 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public @Nonnull VirtualMachine clone(@Nonnull String serverId, @Nullable String intoDcId, @Nonnull String name, @Nonnull String description, boolean powerOn, @Nullable String... firewallIds) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.clone");
+        OperationTrace.begin(getProvider(), "Vm.clone");
         try {
             ServiceInstance instance = getServiceInstance();
 
@@ -332,7 +388,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             throw new CloudException("No virtual machine " + serverId + ".");
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -350,410 +406,674 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         return source; // TODO: make this random
     }
 
-    private Random random = new Random();
+    /**
+     * Picks a cluster for a launch that names no data center, weighted by the capacity left in each cluster.
+     * @param product the launch's product ID split at the colons: <code>[pool:]cpuCount:memoryMB</code>
+     * @return the selected data center ID or <code>null</code> if the region has none
+     * @throws InternalException an error occurred within the Dasein Cloud implementation
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    private @Nullable String selectDataCenter(@Nonnull String[] product) throws InternalException, CloudException {
+        int offset = (product.length == 3 ? 1 : 0);
+
+        return ClusterSelector.select(getProvider(), Integer.parseInt(product[offset]), Long.parseLong(product[offset+1]));
+    }
 
-    private @Nonnull VirtualMachine defineFromTemplate(@Nonnull VMLaunchOptions options) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.define");
+    /**
+     * Launches by claiming a clone from the {@link WarmPool}: the clone is renamed, given the usual annotation, moved
+     * into the requested folder and powered on. A claimed clone that fails any of these steps is destroyed so that it
+     * does not linger unlisted in the pool folder; clones that have disappeared or fail to rename are skipped.
+     * @param options the launch options
+     * @return the launched VM or <code>null</code> if the pool had no clone ready
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException an error occurred in vSphere moving or powering on the clone
+     */
+    private @Nullable VirtualMachine launchFromWarmPool(@Nonnull VMLaunchOptions options) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.launchFromWarmPool");
         try {
-            ProviderContext ctx = getProvider().getContext();
-
-            if( ctx == null ) {
-                throw new InternalException("No context was set for this request");
-            }
             ServiceInstance instance = getServiceInstance();
-            try {
-                com.vmware.vim25.mo.VirtualMachine template = getTemplate(instance, options.getMachineImageId());
+            String hostName = validateName(options.getHostName());
+            ManagedObjectReference mor;
+
+            while( (mor = WarmPool.claim(getProvider(), instance, options)) != null ) {
+                com.vmware.vim25.mo.VirtualMachine vm = new com.vmware.vim25.mo.VirtualMachine(instance.getServerConnection(), mor);
+                VirtualMachineConfigSpec spec = new VirtualMachineConfigSpec();
+
+                spec.setName(hostName);
+                spec.setAnnotation(options.getMachineImageId());
+                try {
+                    Task task = vm.reconfigVM_Task(spec);
 
-                if( template == null ) {
-                    throw new CloudException("No such template: " + options.getMachineImageId());
+                    if( !task.waitForTask().equals(Task.SUCCESS) ) {
+                        log.warn("Discarding warm pool VM " + mor.getVal() + ": " + task.getTaskInfo().getError().getLocalizedMessage());
+                        discardWarmClone(vm);
+                        continue;
+                    }
                 }
-                String hostName = validateName(options.getHostName());
-                String dataCenterId = options.getDataCenterId();
-                String resourceProductStr = options.getStandardProductId();
-                String[] items = resourceProductStr.split(":");
-                if( items.length == 3 ) {
-                    options.withResourcePoolId(items[0]);
+                catch( ManagedObjectNotFound e ) {
+                    log.warn("Warm pool VM " + mor.getVal() + " no longer exists");
+                    continue;
+                }
+                catch( RemoteException e ) {
+                    log.warn("Discarding warm pool VM " + mor.getVal() + ": " + e.getMessage());
+                    discardWarmClone(vm);
+                    continue;
                 }
+                catch( InterruptedException e ) {
+                    discardWarmClone(vm);
+                    throw e;
+                }
+                try {
+                    Datacenter vdc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, getContext().getRegionId());
 
-                if( dataCenterId == null ) {
-                    String rid = ctx.getRegionId();
+                    if( vdc == null ) {
+                        throw new CloudException("Unable to identify the data center of region " + getContext().getRegionId());
+                    }
+                    Folder folder = getProvider().getDataCenterServices().resolveVmFolder(instance, vdc, options.getVmFolderId());
+                    Task task = folder.moveIntoFolder_Task(new ManagedEntity[] { vm });
 
-                    if( rid != null ) {
-                        for( DataCenter dsdc : getProvider().getDataCenterServices().listDataCenters(rid) ) {
-                            dataCenterId = dsdc.getProviderDataCenterId();
-                            if( random.nextInt() % 3 == 0 ) {
-                                break;
-                            }
-                        }
+                    if( !task.waitForTask().equals(Task.SUCCESS) ) {
+                        throw new CloudException("Failed to move warm pool VM: " + task.getTaskInfo().getError().getLocalizedMessage());
+                    }
+                    task = vm.powerOnVM_Task(null);
+                    if( !task.waitForTask().equals(Task.SUCCESS) ) {
+                        throw new CloudException("Failed to power on warm pool VM: " + task.getTaskInfo().getError().getLocalizedMessage());
                     }
                 }
-                ManagedEntity[] pools = null;
+                catch( RemoteException e ) {
+                    discardWarmClone(vm);
+                    throw new CloudException(e);
+                }
+                catch( CloudException | InternalException | InterruptedException | RuntimeException e ) {
+                    discardWarmClone(vm);
+                    throw e;
+                }
+                VirtualMachine server = toServer(vm, null);
 
-                Datacenter vdc = null;
+                if( server == null ) {
+                    throw new CloudException("Unable to identify launched warm pool VM " + hostName);
+                }
+                return server;
+            }
+            return null;
+        }
+        catch( InterruptedException e ) {
+            throw new InternalException(e);
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
 
-                if( dataCenterId != null ) {
-                    DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dataCenterId);
-                    if( ourDC != null ) {
-                        vdc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, ourDC.getRegionId());
+    /**
+     * Destroys a claimed warm pool clone that could not be launched, powering it off first if it got that far.
+     * Failures are only logged since the launch has already failed.
+     * @param vm the claimed clone
+     */
+    private void discardWarmClone(@Nonnull com.vmware.vim25.mo.VirtualMachine vm) {
+        try {
+            VirtualMachineRuntimeInfo runtime = vm.getRuntime();
 
-                        if( vdc == null ) {
-                            throw new CloudException("Unable to identify VDC " + dataCenterId);
-                        }
+            if( runtime != null && VirtualMachinePowerState.poweredOn.equals(runtime.getPowerState()) ) {
+                vm.powerOffVM_Task().waitForTask();
+            }
+            Task task = vm.destroy_Task();
 
-                        if( options.getResourcePoolId() == null ) {
-                            ResourcePool pool = getProvider().getDataCenterServices().getResourcePoolFromClusterId(instance, dataCenterId);
-                            if( pool != null ) {
-                                pools = new ManagedEntity[]{pool};
-                            }
-                        }
+            if( !task.waitForTask().equals(Task.SUCCESS) ) {
+                log.error("Unable to destroy failed warm pool VM " + vm.getMOR().getVal() + ": " + task.getTaskInfo().getError().getLocalizedMessage());
+            }
+        }
+        catch( Exception e ) {
+            log.error("Unable to destroy failed warm pool VM " + vm.getMOR().getVal() + ": " + e.getMessage());
+        }
+    }
+
+    private @Nonnull VirtualMachine defineFromTemplate(@Nonnull VMLaunchOptions options) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.defineFromTemplate");
+        try {
+            String hostName = validateName(options.getHostName());
+
+            ManagedObjectReference clone = cloneTemplate(options, hostName, null, true);
+            // the clone task has completed, so the new VM can be converted directly instead of found in a listing
+            VirtualMachine s = toServer(new com.vmware.vim25.mo.VirtualMachine(getServiceInstance().getServerConnection(), clone), null);
+
+            if( s == null ) {
+                throw new CloudException("Unable to identify newly created server.");
+            }
+            if( options.getPrivateIp() != null && s.getPlatform().equals(Platform.WINDOWS) ) {
+                s.setRootPassword(options.getBootstrapPassword());
+            }
+            return s;
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * The part of a template clone that is the same for every VM cloned with the same launch options: the template,
+     * where the clones go, their hardware and network changes and the guest customization.
+     */
+    static final class ClonePlan {
+        com.vmware.vim25.mo.VirtualMachine template;
+        ManagedEntity[]                    pools;
+        Folder                             vmFolder;
+        ManagedObjectReference             linkedSnapshot;
+        int                                cpuCount;
+        long                               memory;
+        VirtualDeviceConfigSpec[]          deviceChanges;
+        ManagedObjectReference             host;
+        ManagedObjectReference             datastore;
+        CustomizationSpec                  customization;
+        String                             annotation;
+    }
+
+    /**
+     * Clones a VM from the template in the launch options.
+     * @param options the launch options
+     * @param hostName the name of the new VM
+     * @param intoFolder the folder to create the VM in instead of the one the launch options ask for
+     * @param powerOn whether to power the clone on once it is created
+     * @return the new VM
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException an error occurred in vSphere creating the clone
+     */
+    @Nonnull ManagedObjectReference cloneTemplate(@Nonnull VMLaunchOptions options, @Nonnull String hostName, @Nullable Folder intoFolder, boolean powerOn) throws InternalException, CloudException {
+        return cloneTemplate(planClone(options, intoFolder), options, hostName, null, null, powerOn);
+    }
+
+    /**
+     * Resolves everything a template clone with the given launch options needs that does not depend on the VM name.
+     * @param options the launch options
+     * @param intoFolder the folder to create the VMs in instead of the one the launch options ask for
+     * @return the plan for cloning VMs with these options
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException an error occurred in vSphere resolving the template, placement or networks
+     */
+    @Nonnull ClonePlan planClone(@Nonnull VMLaunchOptions options, @Nullable Folder intoFolder) throws InternalException, CloudException {
+        ProviderContext ctx = getProvider().getContext();
+
+        if( ctx == null ) {
+            throw new InternalException("No context was set for this request");
+        }
+        ServiceInstance instance = getServiceInstance();
+        try {
+            com.vmware.vim25.mo.VirtualMachine template = getTemplate(instance, options.getMachineImageId());
+
+            if( template == null ) {
+                throw new CloudException("No such template: " + options.getMachineImageId());
+            }
+            String dataCenterId = options.getDataCenterId();
+            String resourceProductStr = options.getStandardProductId();
+            String[] items = resourceProductStr.split(":");
+            if( items.length == 3 ) {
+                options.withResourcePoolId(items[0]);
+            }
+
+            if( dataCenterId == null ) {
+                dataCenterId = selectDataCenter(items);
+            }
+            ManagedEntity[] pools = null;
+
+            Datacenter vdc = null;
+
+            if( dataCenterId != null ) {
+                DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dataCenterId);
+                if( ourDC != null ) {
+                    vdc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, ourDC.getRegionId());
+
+                    if( vdc == null ) {
+                        throw new CloudException("Unable to identify VDC " + dataCenterId);
                     }
-                    else {
-                        vdc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, dataCenterId);
-                        if( vdc == null ) {
-                            throw new CloudException("Unable to identify VDC " + dataCenterId);
-                        }
-                        if( options.getResourcePoolId() == null ) {
-                            pools = new InventoryNavigator(vdc).searchManagedEntities("ResourcePool");
+
+                    if( options.getResourcePoolId() == null ) {
+                        ResourcePool pool = getProvider().getDataCenterServices().getResourcePoolFromClusterId(instance, dataCenterId);
+                        if( pool != null ) {
+                            pools = new ManagedEntity[]{pool};
                         }
                     }
                 }
-
-                CloudException lastError = null;
-
-                if( options.getResourcePoolId() != null ) {
-                    ResourcePool pool = getProvider().getDataCenterServices().getVMWareResourcePool(options.getResourcePoolId());
-                    if( pool != null ) {
-                        pools = new ManagedEntity[]{pool};
+                else {
+                    vdc = getProvider().getDataCenterServices().getVmwareDatacenterFromVDCId(instance, dataCenterId);
+                    if( vdc == null ) {
+                        throw new CloudException("Unable to identify VDC " + dataCenterId);
                     }
-                    else {
-                        throw new CloudException("Unable to find resource pool with id " + options.getResourcePoolId());
+                    if( options.getResourcePoolId() == null ) {
+                        pools = new InventoryNavigator(vdc).searchManagedEntities("ResourcePool");
                     }
                 }
+            }
 
-                for( ManagedEntity p : pools ) {
-                    ResourcePool pool = ( ResourcePool ) p;
-                    Folder vmFolder = vdc.getVmFolder();
-                    if( options.getVmFolderId() != null ) {
-                        ManagedEntity tmp = new InventoryNavigator(vmFolder).searchManagedEntity("Folder", options.getVmFolderId());
-                        if( tmp != null ) {
-                            vmFolder = ( Folder ) tmp;
-                        }
-                    }
+            if( options.getResourcePoolId() != null ) {
+                ResourcePool pool = getProvider().getDataCenterServices().getVMWareResourcePool(options.getResourcePoolId());
+                if( pool != null ) {
+                    pools = new ManagedEntity[]{pool};
+                }
+                else {
+                    throw new CloudException("Unable to find resource pool with id " + options.getResourcePoolId());
+                }
+            }
 
-                    VirtualMachineConfigSpec config = new VirtualMachineConfigSpec();
-                    String[] vmInfo = options.getStandardProductId().split(":");
-                    int cpuCount;
-                    long memory;
-                    if( vmInfo.length == 2 ) {
-                        cpuCount = Integer.parseInt(vmInfo[0]);
-                        memory = Long.parseLong(vmInfo[1]);
-                    }
-                    else {
-                        cpuCount = Integer.parseInt(vmInfo[1]);
-                        memory = Long.parseLong(vmInfo[2]);
-                    }
+            if( pools != null ) {
+                pools = PlacementBreakers.order(getProvider(), pools);
+            }
+            ClonePlan plan = new ClonePlan();
 
-                    config.setName(hostName);
-                    config.setAnnotation(options.getMachineImageId());
-                    config.setMemoryMB(memory);
-                    config.setNumCPUs(cpuCount);
-                    config.setCpuHotAddEnabled(true);
-                    config.setNumCoresPerSocket(cpuCount);
+            plan.template = template;
+            plan.pools = pools;
+            plan.vmFolder = (intoFolder != null ? intoFolder : getProvider().getDataCenterServices().resolveVmFolder(instance, vdc, options.getVmFolderId()));
+            plan.linkedSnapshot = (isLinkedClone(options) ? getLinkedCloneSnapshot(template, options) : null);
 
-                    // record all networks we will end up with so that we can configure NICs correctly
-                    List<String> resultingNetworks = new ArrayList<>();
-                    //networking section
-                    //borrowed heavily from https://github.com/jedi4ever/jvspherecontrol
-                    String vlan = options.getVlanId();
-                    int count = 0;
-                    if( vlan != null ) {
+            String[] vmInfo = options.getStandardProductId().split(":");
+            if( vmInfo.length == 2 ) {
+                plan.cpuCount = Integer.parseInt(vmInfo[0]);
+                plan.memory = Long.parseLong(vmInfo[1]);
+            }
+            else {
+                plan.cpuCount = Integer.parseInt(vmInfo[1]);
+                plan.memory = Long.parseLong(vmInfo[2]);
+            }
+
+            // record all networks we will end up with so that we can configure NICs correctly
+            List<String> resultingNetworks = new ArrayList<>();
+            //networking section
+            //borrowed heavily from https://github.com/jedi4ever/jvspherecontrol
+            String vlan = options.getVlanId();
+            int count = 0;
+            if( vlan != null ) {
+
+                // we don't need to do network config if the selected network
+                // is part of the template config anyway
+                VLANSupport vlanSupport = getProvider().getNetworkServices().getVlanSupport();
+
+                Iterable<VLAN> accessibleNetworks = vlanSupport.listVlans();
+                boolean addNetwork = true;
+                List<VirtualDeviceConfigSpec> machineSpecs = new ArrayList<>();
+                VirtualDevice[] virtualDevices = template.getConfig().getHardware().getDevice();
+                VLAN targetVlan = null;
+                for(VirtualDevice virtualDevice : virtualDevices) {
+                    if( virtualDevice instanceof VirtualEthernetCard ) {
+                        VirtualEthernetCard veCard = ( VirtualEthernetCard ) virtualDevice;
+                        if( veCard.getBacking() instanceof VirtualEthernetCardNetworkBackingInfo ) {
+                            boolean nicDeleted = false;
+                            VirtualEthernetCardNetworkBackingInfo nicBacking = (VirtualEthernetCardNetworkBackingInfo) veCard.getBacking();
+                            if( vlan.equals(nicBacking.getNetwork().getVal()) && veCard.getKey() == 0 ) {
+                                addNetwork = false;
+                            }
+                            else {
+                                for( VLAN accessibleNetwork : accessibleNetworks ) {
+                                    if( accessibleNetwork.getProviderVlanId().equals(nicBacking.getNetwork().getVal()) ) {
+                                        VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
+                                        nicSpec.setOperation(VirtualDeviceConfigSpecOperation.remove);
 
-                        // we don't need to do network config if the selected network
-                        // is part of the template config anyway
-                        VLANSupport vlanSupport = getProvider().getNetworkServices().getVlanSupport();
-
-                        Iterable<VLAN> accessibleNetworks = vlanSupport.listVlans();
-                        boolean addNetwork = true;
-                        List<VirtualDeviceConfigSpec> machineSpecs = new ArrayList<>();
-                        VirtualDevice[] virtualDevices = template.getConfig().getHardware().getDevice();
-                        VLAN targetVlan = null;
-                        for(VirtualDevice virtualDevice : virtualDevices) {
-                            if( virtualDevice instanceof VirtualEthernetCard ) {
-                                VirtualEthernetCard veCard = ( VirtualEthernetCard ) virtualDevice;
-                                if( veCard.getBacking() instanceof VirtualEthernetCardNetworkBackingInfo ) {
-                                    boolean nicDeleted = false;
-                                    VirtualEthernetCardNetworkBackingInfo nicBacking = (VirtualEthernetCardNetworkBackingInfo) veCard.getBacking();
-                                    if( vlan.equals(nicBacking.getNetwork().getVal()) && veCard.getKey() == 0 ) {
-                                        addNetwork = false;
-                                    }
-                                    else {
-                                        for( VLAN accessibleNetwork : accessibleNetworks ) {
-                                            if( accessibleNetwork.getProviderVlanId().equals(nicBacking.getNetwork().getVal()) ) {
-                                                VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
-                                                nicSpec.setOperation(VirtualDeviceConfigSpecOperation.remove);
-
-                                                nicSpec.setDevice(veCard);
-                                                machineSpecs.add(nicSpec);
-                                                nicDeleted = true;
-
-                                                if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
-                                                    targetVlan = accessibleNetwork;
-                                                }
-                                            }
-                                            else if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
-                                                targetVlan = accessibleNetwork;
-                                            }
-                                            if( nicDeleted && targetVlan != null ) {
-                                                break;
-                                            }
+                                        nicSpec.setDevice(veCard);
+                                        machineSpecs.add(nicSpec);
+                                        nicDeleted = true;
+
+                                        if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
+                                            targetVlan = accessibleNetwork;
                                         }
                                     }
-                                    if( !nicDeleted ) {
-                                        resultingNetworks.add(nicBacking.getNetwork().getVal());
+                                    else if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
+                                        targetVlan = accessibleNetwork;
                                     }
-                                }else if ( veCard.getBacking() instanceof VirtualEthernetCardDistributedVirtualPortBackingInfo ){
-                                    boolean nicDeleted = false;
-                                    VirtualEthernetCardDistributedVirtualPortBackingInfo nicBacking = (VirtualEthernetCardDistributedVirtualPortBackingInfo) veCard.getBacking();
-                                    if( vlan.equals(nicBacking.getPort().getPortgroupKey()) && veCard.getKey() == 0 ) {
-                                        addNetwork = false;
+                                    if( nicDeleted && targetVlan != null ) {
+                                        break;
                                     }
-                                    else {
-                                        for( VLAN accessibleNetwork : accessibleNetworks ) {
-                                            if( accessibleNetwork.getProviderVlanId().equals(nicBacking.getPort().getPortgroupKey()) ) {
-                                                VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
-                                                nicSpec.setOperation(VirtualDeviceConfigSpecOperation.remove);
-
-                                                nicSpec.setDevice(veCard);
-                                                machineSpecs.add(nicSpec);
-                                                nicDeleted = true;
-
-                                                if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
-                                                    targetVlan = accessibleNetwork;
-                                                }
-                                            }
-                                            else if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
-                                                targetVlan = accessibleNetwork;
-                                            }
-                                            if( nicDeleted && targetVlan != null ) {
-                                                break;
-                                            }
+                                }
+                            }
+                            if( !nicDeleted ) {
+                                resultingNetworks.add(nicBacking.getNetwork().getVal());
+                            }
+                        }else if ( veCard.getBacking() instanceof VirtualEthernetCardDistributedVirtualPortBackingInfo ){
+                            boolean nicDeleted = false;
+                            VirtualEthernetCardDistributedVirtualPortBackingInfo nicBacking = (VirtualEthernetCardDistributedVirtualPortBackingInfo) veCard.getBacking();
+                            if( vlan.equals(nicBacking.getPort().getPortgroupKey()) && veCard.getKey() == 0 ) {
+                                addNetwork = false;
+                            }
+                            else {
+                                for( VLAN accessibleNetwork : accessibleNetworks ) {
+                                    if( accessibleNetwork.getProviderVlanId().equals(nicBacking.getPort().getPortgroupKey()) ) {
+                                        VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
+                                        nicSpec.setOperation(VirtualDeviceConfigSpecOperation.remove);
+
+                                        nicSpec.setDevice(veCard);
+                                        machineSpecs.add(nicSpec);
+                                        nicDeleted = true;
+
+                                        if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
+                                            targetVlan = accessibleNetwork;
                                         }
                                     }
-                                    if( !nicDeleted ) {
-                                        resultingNetworks.add(nicBacking.getPort().getPortgroupKey());
+                                    else if( accessibleNetwork.getProviderVlanId().equals(vlan) ) {
+                                        targetVlan = accessibleNetwork;
+                                    }
+                                    if( nicDeleted && targetVlan != null ) {
+                                        break;
                                     }
                                 }
-
+                            }
+                            if( !nicDeleted ) {
+                                resultingNetworks.add(nicBacking.getPort().getPortgroupKey());
                             }
                         }
 
-                        if( addNetwork && targetVlan != null ) {
-                            VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
-                            nicSpec.setOperation(VirtualDeviceConfigSpecOperation.add);
-
-                            VirtualEthernetCard nic = new VirtualVmxnet3();
-                            nic.setConnectable(new VirtualDeviceConnectInfo());
-                            nic.connectable.connected = true;
-                            nic.connectable.startConnected = true;
+                    }
+                }
 
-                            Description info = new Description();
-                            info.setLabel(targetVlan.getName());
-                            if( targetVlan.getProviderVlanId().startsWith("network") ) {
-                                info.setSummary("Nic for network " + targetVlan.getName());
+                if( addNetwork && targetVlan != null ) {
+                    VirtualDeviceConfigSpec nicSpec = new VirtualDeviceConfigSpec();
+                    nicSpec.setOperation(VirtualDeviceConfigSpecOperation.add);
 
-                                VirtualEthernetCardNetworkBackingInfo nicBacking = new VirtualEthernetCardNetworkBackingInfo();
-                                nicBacking.setDeviceName(targetVlan.getName());
+                    VirtualEthernetCard nic = new VirtualVmxnet3();
+                    nic.setConnectable(new VirtualDeviceConnectInfo());
+                    nic.connectable.connected = true;
+                    nic.connectable.startConnected = true;
 
-                                nic.setAddressType("generated");
-                                nic.setBacking(nicBacking);
-                                nic.setKey(0);
-                            }
-                            else {
-                                info.setSummary("Nic for DVS " + targetVlan.getName());
-
-                                VirtualEthernetCardDistributedVirtualPortBackingInfo nicBacking = new VirtualEthernetCardDistributedVirtualPortBackingInfo();
-                                DistributedVirtualSwitchPortConnection connection = new DistributedVirtualSwitchPortConnection();
-                                connection.setPortgroupKey(targetVlan.getProviderVlanId());
-                                connection.setSwitchUuid(targetVlan.getTag("switch.uuid"));
-                                nicBacking.setPort(connection);
-                                nic.setAddressType("generated");
-                                nic.setBacking(nicBacking);
-                                nic.setKey(0);
-                            }
-                            nicSpec.setDevice(nic);
+                    Description info = new Description();
+                    info.setLabel(targetVlan.getName());
+                    if( targetVlan.getProviderVlanId().startsWith("network") ) {
+                        info.setSummary("Nic for network " + targetVlan.getName());
 
-                            machineSpecs.add(nicSpec);
-                            resultingNetworks.add(vlan);
-                        }
-                        config.setDeviceChange(machineSpecs.toArray(new VirtualDeviceConfigSpec[machineSpecs.size()]));
-                        // end networking section
-                    }
+                        VirtualEthernetCardNetworkBackingInfo nicBacking = new VirtualEthernetCardNetworkBackingInfo();
+                        nicBacking.setDeviceName(targetVlan.getName());
 
-                    VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
-                    if( options.getAffinityGroupId() != null ) {
-                        Host agSupport = getProvider().getComputeServices().getAffinityGroupSupport();
-                        location.setHost(agSupport.getHostSystemForAffinity(options.getAffinityGroupId()).getConfig().getHost());
+                        nic.setAddressType("generated");
+                        nic.setBacking(nicBacking);
+                        nic.setKey(0);
                     }
-                    if( options.getStoragePoolId() != null ) {
-                        String locationId = options.getStoragePoolId();
+                    else {
+                        info.setSummary("Nic for DVS " + targetVlan.getName());
 
-                        Datastore[] datastores = vdc.getDatastores();
-                        for( Datastore ds : datastores ) {
-                            if( ds.getName().equals(locationId) ) {
-                                location.setDatastore(ds.getMOR());
-                                break;
-                            }
-                        }
+                        VirtualEthernetCardDistributedVirtualPortBackingInfo nicBacking = new VirtualEthernetCardDistributedVirtualPortBackingInfo();
+                        DistributedVirtualSwitchPortConnection connection = new DistributedVirtualSwitchPortConnection();
+                        connection.setPortgroupKey(targetVlan.getProviderVlanId());
+                        connection.setSwitchUuid(targetVlan.getTag("switch.uuid"));
+                        nicBacking.setPort(connection);
+                        nic.setAddressType("generated");
+                        nic.setBacking(nicBacking);
+                        nic.setKey(0);
                     }
-                    location.setPool(pool.getConfig().getEntity());
-
-                    boolean isCustomised = false;
-                    if( options.getPrivateIp() != null ) {
-                        isCustomised = true;
-                        log.debug("isCustomised");
-                    } else {
-                        log.debug("notCustomised");
-                    }
-                    CustomizationSpec customizationSpec = new CustomizationSpec();
-                    if( isCustomised ) {
-                        String templatePlatform = template.getConfig().getGuestFullName();
-                        if(templatePlatform == null) templatePlatform = template.getName();
-                        Platform platform = Platform.guess(templatePlatform.toLowerCase());
-                        if (platform.isLinux()) {
-
-                            CustomizationLinuxPrep lPrep = new CustomizationLinuxPrep();
-                            lPrep.setDomain(options.getDnsDomain());
-                            lPrep.setHostName(new CustomizationVirtualMachineName());
-                            customizationSpec.setIdentity(lPrep);
-                        }
-                        else if( platform.isWindows() ) {
-                            CustomizationSysprep sysprep = new CustomizationSysprep();
-
-                            CustomizationGuiUnattended guiCust = new CustomizationGuiUnattended();
-                            guiCust.setAutoLogon(false);
-                            guiCust.setAutoLogonCount(0);
-                            CustomizationPassword password = new CustomizationPassword();
-                            password.setPlainText(true);
-                            password.setValue(options.getBootstrapPassword());
-                            guiCust.setPassword(password);
-                            //log.debug("Windows pass for "+hostName+": "+password.getValue());
-
-                            sysprep.setGuiUnattended(guiCust);
-
-                            CustomizationIdentification identification = new CustomizationIdentification();
-                            identification.setJoinWorkgroup(options.getWinWorkgroupName());
-                            sysprep.setIdentification(identification);
-
-                            CustomizationUserData userData = new CustomizationUserData();
-                            userData.setComputerName(new CustomizationVirtualMachineName());
-                            userData.setFullName(options.getWinOwnerName());
-                            userData.setOrgName(options.getWinOrgName());
-                            String serial = options.getWinProductSerialNum();
-                            if (serial == null || serial.length() <= 0) {
-                                log.warn("Product license key not specified in launch options. Trying to get default.");
-                                serial = getWindowsProductLicenseForOSEdition(template.getConfig().getGuestFullName());
-                            }
-                            userData.setProductId(serial);
-                            sysprep.setUserData(userData);
+                    nicSpec.setDevice(nic);
 
-                            customizationSpec.setIdentity(sysprep);
-                        }
-                        else {
-                            log.error("Guest customisation could not take place as platform is not linux or windows: " + platform);
-                            isCustomised = false;
-                        }
+                    machineSpecs.add(nicSpec);
+                    resultingNetworks.add(vlan);
+                }
+                plan.deviceChanges = machineSpecs.toArray(new VirtualDeviceConfigSpec[machineSpecs.size()]);
+                // end networking section
+            }
 
-                        if( isCustomised ) {
-                            CustomizationGlobalIPSettings globalIPSettings = new CustomizationGlobalIPSettings();
-                            globalIPSettings.setDnsServerList(options.getDnsServerList());
-                            globalIPSettings.setDnsSuffixList(options.getDnsSuffixList());
-                            customizationSpec.setGlobalIPSettings(globalIPSettings);
-
-                            CustomizationAdapterMapping adapterMap = new CustomizationAdapterMapping();
-                            CustomizationIPSettings adapter = new CustomizationIPSettings();
-                            adapter.setDnsDomain(options.getDnsDomain());
-                            adapter.setGateway(options.getGatewayList());
-                            CustomizationFixedIp fixedIp = new CustomizationFixedIp();
-                            fixedIp.setIpAddress(options.getPrivateIp());
-                            adapter.setIp(fixedIp);
-                            if( options.getMetaData().containsKey("vSphereNetMaskNothingToSeeHere") ) {
-                                String netmask = ( String ) options.getMetaData().get("vSphereNetMaskNothingToSeeHere");
-                                adapter.setSubnetMask(netmask);
-                                log.debug("custom subnet mask: " + netmask);
-                            }
-                            else {
-                                adapter.setSubnetMask("255.255.252.0");
-                                log.debug("default subnet mask");
-                            }
+            if( options.getAffinityGroupId() != null ) {
+                Host agSupport = getProvider().getComputeServices().getAffinityGroupSupport();
+                plan.host = agSupport.getHostSystemForAffinity(options.getAffinityGroupId()).getConfig().getHost();
+            }
+            if( options.getStoragePoolId() != null ) {
+                String locationId = options.getStoragePoolId();
 
-                            adapterMap.setAdapter(adapter);
-                            customizationSpec.setNicSettingMap(Arrays.asList(adapterMap).toArray(new CustomizationAdapterMapping[1]));
-                        }
+                Datastore[] datastores = vdc.getDatastores();
+                for( Datastore ds : datastores ) {
+                    if( ds.getName().equals(locationId) ) {
+                        plan.datastore = ds.getMOR();
+                        break;
                     }
+                }
+            }
 
-                    VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
-                    spec.setLocation(location);
-                    spec.setPowerOn(true);
-                    spec.setTemplate(false);
-                    spec.setConfig(config);
-                    if( isCustomised ) {
-                        spec.setCustomization(customizationSpec);
-                    }
+            boolean isCustomised = false;
+            if( options.getPrivateIp() != null ) {
+                isCustomised = true;
+                log.debug("isCustomised");
+            } else {
+                log.debug("notCustomised");
+            }
+            CustomizationSpec customizationSpec = new CustomizationSpec();
+            if( isCustomised ) {
+                String templatePlatform = template.getConfig().getGuestFullName();
+                if(templatePlatform == null) templatePlatform = template.getName();
+                Platform platform = Platform.guess(templatePlatform.toLowerCase());
+                if (platform.isLinux()) {
 
-                    Task task = template.cloneVM_Task(vmFolder, hostName, spec);
+                    CustomizationLinuxPrep lPrep = new CustomizationLinuxPrep();
+                    lPrep.setDomain(options.getDnsDomain());
+                    lPrep.setHostName(new CustomizationVirtualMachineName());
+                    customizationSpec.setIdentity(lPrep);
+                }
+                else if( platform.isWindows() ) {
+                    CustomizationSysprep sysprep = new CustomizationSysprep();
 
-                    String status = task.waitForTask();
+                    CustomizationGuiUnattended guiCust = new CustomizationGuiUnattended();
+                    guiCust.setAutoLogon(false);
+                    guiCust.setAutoLogonCount(0);
+                    CustomizationPassword password = new CustomizationPassword();
+                    password.setPlainText(true);
+                    password.setValue(options.getBootstrapPassword());
+                    guiCust.setPassword(password);
+                    //log.debug("Windows pass for "+hostName+": "+password.getValue());
 
-                    if( status.equals(Task.SUCCESS) ) {
-                        long timeout = System.currentTimeMillis() + ( CalendarWrapper.MINUTE * 20L );
+                    sysprep.setGuiUnattended(guiCust);
 
-                        while( System.currentTimeMillis() < timeout ) {
-                            try {
-                                Thread.sleep(10000L);
-                            }
-                            catch( InterruptedException ignore ) {
-                            }
+                    CustomizationIdentification identification = new CustomizationIdentification();
+                    identification.setJoinWorkgroup(options.getWinWorkgroupName());
+                    sysprep.setIdentification(identification);
 
-                            for( VirtualMachine s : listVirtualMachines() ) {
-                                if( s.getName().equals(hostName) ) {
-                                    if( isCustomised && s.getPlatform().equals(Platform.WINDOWS) ) {
-                                        s.setRootPassword(options.getBootstrapPassword());
-                                    }
-                                    return s;
-                                }
-                            }
-                        }
-                        lastError = new CloudException("Unable to identify newly created server.");
+                    CustomizationUserData userData = new CustomizationUserData();
+                    userData.setComputerName(new CustomizationVirtualMachineName());
+                    userData.setFullName(options.getWinOwnerName());
+                    userData.setOrgName(options.getWinOrgName());
+                    String serial = options.getWinProductSerialNum();
+                    if (serial == null || serial.length() <= 0) {
+                        log.warn("Product license key not specified in launch options. Trying to get default.");
+                        serial = getWindowsProductLicenseForOSEdition(template.getConfig().getGuestFullName());
+                    }
+                    userData.setProductId(serial);
+                    sysprep.setUserData(userData);
+
+                    customizationSpec.setIdentity(sysprep);
+                }
+                else {
+                    log.error("Guest customisation could not take place as platform is not linux or windows: " + platform);
+                    isCustomised = false;
+                }
+
+                if( isCustomised ) {
+                    CustomizationGlobalIPSettings globalIPSettings = new CustomizationGlobalIPSettings();
+                    globalIPSettings.setDnsServerList(options.getDnsServerList());
+                    globalIPSettings.setDnsSuffixList(options.getDnsSuffixList());
+                    customizationSpec.setGlobalIPSettings(globalIPSettings);
+
+                    CustomizationAdapterMapping adapterMap = new CustomizationAdapterMapping();
+                    CustomizationIPSettings adapter = new CustomizationIPSettings();
+                    adapter.setDnsDomain(options.getDnsDomain());
+                    adapter.setGateway(options.getGatewayList());
+                    CustomizationFixedIp fixedIp = new CustomizationFixedIp();
+                    fixedIp.setIpAddress(options.getPrivateIp());
+                    adapter.setIp(fixedIp);
+                    if( options.getMetaData().containsKey("vSphereNetMaskNothingToSeeHere") ) {
+                        String netmask = ( String ) options.getMetaData().get("vSphereNetMaskNothingToSeeHere");
+                        adapter.setSubnetMask(netmask);
+                        log.debug("custom subnet mask: " + netmask);
                     }
                     else {
-                        lastError = new CloudException("Failed to create VM: " + task.getTaskInfo().getError().getLocalizedMessage());
+                        adapter.setSubnetMask("255.255.252.0");
+                        log.debug("default subnet mask");
                     }
+
+                    adapterMap.setAdapter(adapter);
+                    customizationSpec.setNicSettingMap(Arrays.asList(adapterMap).toArray(new CustomizationAdapterMapping[1]));
                 }
-                if( lastError != null ) {
-                    throw lastError;
-                }
-                throw new CloudException("No server and no error");
             }
-            catch( InvalidProperty e ) {
-                throw new CloudException(e);
+            if( isCustomised ) {
+                plan.customization = customizationSpec;
             }
-            catch( RuntimeFault e ) {
-                throw new InternalException(e);
+            return plan;
+        }
+        catch( InvalidProperty e ) {
+            throw new CloudException(e);
+        }
+        catch( RuntimeFault e ) {
+            throw new InternalException(e);
+        }
+        catch( RemoteException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * Clones one VM according to a plan from {@link #planClone(VMLaunchOptions, Folder)}.
+     * @param plan the plan shared by all VMs cloned with the same launch options
+     * @param options the launch options the plan was made for
+     * @param hostName the name of the new VM
+     * @param host the host to place the VM on instead of the planned one, only honored in the first resource pool
+     * @param datastore the datastore to place the VM on instead of the planned one, only honored in the first resource pool
+     * @param powerOn whether to power the clone on once it is created
+     * @return the new VM
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException an error occurred in vSphere creating the clone
+     */
+    @Nonnull ManagedObjectReference cloneTemplate(@Nonnull ClonePlan plan, @Nonnull VMLaunchOptions options, @Nonnull String hostName, @Nullable ManagedObjectReference host, @Nullable ManagedObjectReference datastore, boolean powerOn) throws InternalException, CloudException {
+        try {
+            CloudException lastError = null;
+
+            for( ManagedEntity p : plan.pools ) {
+                // a host or datastore picked for the first pool's cluster means nothing in the other pools
+                boolean placed = (p == plan.pools[0]);
+                ManagedObjectReference h = (placed && host != null ? host : plan.host);
+                ManagedObjectReference ds = (placed && datastore != null ? datastore : plan.datastore);
+                PlacementBreakers.Attempt attempt = PlacementBreakers.begin(getProvider(), hostName, p.getMOR(), h, ds);
+                Task task = startClone(plan, options, hostName, ( ResourcePool ) p, h, ds, powerOn);
+
+                String status = task.waitForTask();
+
+                if( status.equals(Task.SUCCESS) ) {
+                    attempt.succeeded();
+                    return (ManagedObjectReference)task.getTaskInfo().getResult();
+                }
+                else {
+                    attempt.failed(task.getTaskInfo().getError());
+                    lastError = new CloudException("Failed to create VM: " + task.getTaskInfo().getError().getLocalizedMessage());
+                }
             }
-            catch( RemoteException e ) {
-                throw new CloudException(e);
+            if( lastError != null ) {
+                throw lastError;
             }
-            catch( InterruptedException e ) {
-                throw new InternalException(e);
+            throw new CloudException("No server and no error");
+        }
+        catch( InvalidProperty e ) {
+            throw new CloudException(e);
+        }
+        catch( RuntimeFault e ) {
+            throw new InternalException(e);
+        }
+        catch( RemoteException e ) {
+            throw new CloudException(e);
+        }
+        catch( InterruptedException e ) {
+            throw new InternalException(e);
+        }
+    }
+
+    /**
+     * Submits the clone task for one VM according to a plan from {@link #planClone(VMLaunchOptions, Folder)} without
+     * waiting for it to finish.
+     * @param plan the plan shared by all VMs cloned with the same launch options
+     * @param options the launch options the plan was made for
+     * @param hostName the name of the new VM
+     * @param pool the resource pool of the plan to clone into
+     * @param host the host to place the VM on instead of the planned one, <code>null</code> for the planned one
+     * @param datastore the datastore to place the VM on instead of the planned one, <code>null</code> for the planned one
+     * @param powerOn whether to power the clone on once it is created
+     * @return the clone task
+     * @throws RemoteException vSphere refused the clone
+     */
+    @Nonnull Task startClone(@Nonnull ClonePlan plan, @Nonnull VMLaunchOptions options, @Nonnull String hostName, @Nonnull ResourcePool pool, @Nullable ManagedObjectReference host, @Nullable ManagedObjectReference datastore, boolean powerOn) throws RemoteException {
+        VirtualMachineConfigSpec config = new VirtualMachineConfigSpec();
+        config.setName(hostName);
+        config.setAnnotation(plan.annotation == null ? options.getMachineImageId() : plan.annotation);
+        config.setMemoryMB(plan.memory);
+        config.setNumCPUs(plan.cpuCount);
+        config.setCpuHotAddEnabled(true);
+        config.setNumCoresPerSocket(plan.cpuCount);
+        if( plan.deviceChanges != null ) {
+            config.setDeviceChange(plan.deviceChanges);
+        }
+
+        VirtualMachineRelocateSpec location = new VirtualMachineRelocateSpec();
+        location.setHost(host != null ? host : plan.host);
+        location.setDatastore(datastore != null ? datastore : plan.datastore);
+        location.setPool(pool.getConfig().getEntity());
+        if( plan.linkedSnapshot != null ) {
+            // share the template disks read-only and give the clone delta disks only
+            location.setDiskMoveType(VirtualMachineRelocateDiskMoveOptions.createNewChildDiskBacking.toString());
+        }
+
+        VirtualMachineCloneSpec spec = new VirtualMachineCloneSpec();
+        spec.setLocation(location);
+        spec.setPowerOn(powerOn);
+        spec.setTemplate(false);
+        spec.setConfig(config);
+        if( plan.linkedSnapshot != null ) {
+            spec.setSnapshot(plan.linkedSnapshot);
+        }
+        if( plan.customization != null ) {
+            spec.setCustomization(plan.customization);
+        }
+
+        return plan.template.cloneVM_Task(plan.vmFolder, hostName, spec);
+    }
+
+    boolean isLinkedClone(@Nonnull VMLaunchOptions options) {
+        Object value = options.getMetaData().get(LINKED_CLONE);
+
+        if( value == null ) {
+            return getProvider().isLinkedCloneDefault();
+        }
+        return (value instanceof Boolean ? (Boolean)value : String.valueOf(value).equalsIgnoreCase("true"));
+    }
+
+    /**
+     * Finds the template snapshot to create a linked clone from.
+     * @param template the template being launched
+     * @param options the launch options, possibly naming the snapshot in {@link #LINKED_CLONE_SNAPSHOT}
+     * @return the snapshot or <code>null</code> if the template has no suitable snapshot and must be cloned in full
+     * @throws CloudException the launch options name a snapshot the template does not have
+     */
+    private @Nullable ManagedObjectReference getLinkedCloneSnapshot(@Nonnull com.vmware.vim25.mo.VirtualMachine template, @Nonnull VMLaunchOptions options) throws CloudException {
+        Object name = options.getMetaData().get(LINKED_CLONE_SNAPSHOT);
+        VirtualMachineSnapshotInfo info = template.getSnapshot();
+
+        if( name != null ) {
+            ManagedObjectReference snapshot = (info == null ? null : findSnapshot(info.getRootSnapshotList(), name.toString()));
+
+            if( snapshot == null ) {
+                throw new CloudException("Template " + template.getName() + " has no snapshot named " + name + " to link clones to");
             }
+            return snapshot;
         }
-        finally {
-            APITrace.end();
+        if( info == null || info.getCurrentSnapshot() == null ) {
+            log.warn("Template " + template.getName() + " has no snapshot, falling back to a full clone");
+            return null;
+        }
+        return info.getCurrentSnapshot();
+    }
+
+    static private @Nullable ManagedObjectReference findSnapshot(@Nullable VirtualMachineSnapshotTree[] trees, @Nonnull String name) {
+        if( trees != null ) {
+            for( VirtualMachineSnapshotTree tree : trees ) {
+                if( name.equals(tree.getName()) ) {
+                    return tree.getSnapshot();
+                }
+                ManagedObjectReference snapshot = findSnapshot(tree.getChildSnapshotList(), name);
+
+                if( snapshot != null ) {
+                    return snapshot;
+                }
+            }
         }
+        return null;
     }
 
     private @Nonnull VirtualMachine defineFromScratch(@Nonnull VMLaunchOptions options) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.define");
+        OperationTrace.begin(getProvider(), "Vm.defineFromScratch");
         try {
             ServiceInstance instance = getServiceInstance();
             try {
@@ -767,16 +1087,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                 }
 
                 if( dataCenterId == null ) {
-                    String rid = getContext().getRegionId();
-
-                    if( rid != null ) {
-                        for( DataCenter dsdc : getProvider().getDataCenterServices().listDataCenters(rid) ) {
-                            dataCenterId = dsdc.getProviderDataCenterId();
-                            if( random.nextInt() % 3 == 0 ) {
-                                break;
-                            }
-                        }
-                    }
+                    dataCenterId = selectDataCenter(items);
                 }
                 ManagedEntity[] pools = null;
 
@@ -818,15 +1129,13 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                     }
                 }
 
+                if( pools != null ) {
+                    pools = PlacementBreakers.order(getProvider(), pools);
+                }
+                Folder vmFolder = getProvider().getDataCenterServices().resolveVmFolder(instance, vdc, options.getVmFolderId());
+
                 for( ManagedEntity p : pools ) {
                     ResourcePool pool = ( ResourcePool ) p;
-                    Folder vmFolder = vdc.getVmFolder();
-                    if( options.getVmFolderId() != null ) {
-                        ManagedEntity tmp = new InventoryNavigator(vmFolder).searchManagedEntity("Folder", options.getVmFolderId());
-                        if( tmp != null ) {
-                            vmFolder = ( Folder ) tmp;
-                        }
-                    }
 
                     VirtualMachineConfigSpec config = new VirtualMachineConfigSpec();
                     String[] vmInfo = options.getStandardProductId().split(":");
@@ -932,11 +1241,13 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                         host = agSupport.getHostSystemForAffinity(options.getAffinityGroupId());
                     }
 
+                    PlacementBreakers.Attempt attempt = PlacementBreakers.begin(getProvider(), hostName, pool.getMOR(), host == null ? null : host.getMOR());
                     Task task = vmFolder.createVM_Task(config, pool, host);
 
                     String status = task.waitForTask();
 
                     if( status.equals(Task.SUCCESS) ) {
+                        attempt.succeeded();
                         long timeout = System.currentTimeMillis() + ( CalendarWrapper.MINUTE * 20L );
 
                         while( System.currentTimeMillis() < timeout ) {
@@ -955,6 +1266,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                         lastError = new CloudException("Unable to identify newly created server.");
                     }
                     else {
+                        attempt.failed(task.getTaskInfo().getError());
                         lastError = new CloudException("Failed to create VM: " + task.getTaskInfo().getError().getLocalizedMessage());
                     }
                 }
@@ -977,7 +1289,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -991,7 +1303,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
     }
 
     @Nonnull HostSystem getBestHost(@Nonnull Datacenter forDatacenter, @Nonnull String clusterName) throws CloudException, RemoteException {
-        APITrace.begin(getProvider(), "Vm.getBestHost");
+        OperationTrace.begin(getProvider(), "Vm.getBestHost");
         try {
             Collection<HostSystem> possibles = getPossibleHosts(forDatacenter, clusterName);
 
@@ -1021,12 +1333,12 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             return possibles.iterator().next();
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Nonnull Collection<HostSystem> getPossibleHosts(@Nonnull Datacenter dc, @Nonnull String clusterName) throws CloudException, RemoteException {
-        APITrace.begin(getProvider(), "Vm.getPossibleHosts");
+        OperationTrace.begin(getProvider(), "Vm.getPossibleHosts");
         try {
             ArrayList<HostSystem> possibles = new ArrayList<HostSystem>();
 
@@ -1044,7 +1356,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             return possibles;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -1054,7 +1366,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
     }
 
     private @Nullable String getDataCenter(@Nonnull com.vmware.vim25.mo.VirtualMachine vm) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.getDataCenter");
+        OperationTrace.begin(getProvider(), "Vm.getDataCenter");
         try {
             try {
                 return vm.getResourcePool().getOwner().getName();
@@ -1064,7 +1376,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -1074,28 +1386,34 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
     }
 
     private @Nullable HostSystem getHost(@Nonnull com.vmware.vim25.mo.VirtualMachine vm) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "getHostForVM");
+        OperationTrace.begin(getProvider(), "Vm.getHost");
         try {
-            String dc = getDataCenter(vm);
-            ManagedObjectReference vmHost = vm.getRuntime().getHost();
+            VirtualMachineRuntimeInfo runtime = vm.getRuntime();
+            ManagedObjectReference vmHost = (runtime == null ? null : runtime.getHost());
 
-            Host affinityGroupSupport = getProvider().getComputeServices().getAffinityGroupSupport();
-            Iterable<HostSystem> hostSystems = affinityGroupSupport.listHostSystems(dc);
-            for( HostSystem host : hostSystems ) {
-                if( vmHost.getVal().equals(host.getMOR().getVal()) ) {
-                    return host;
-                }
-            }
-            return null;
+            return (vmHost == null ? null : new HostSystem(vm.getServerConnection(), vmHost));
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     private @Nullable com.vmware.vim25.mo.VirtualMachine getTemplate(@Nonnull ServiceInstance instance, @Nonnull String templateId) throws CloudException, RemoteException, InternalException {
-        APITrace.begin(getProvider(), "Vm.getTemplate");
+        OperationTrace.begin(getProvider(), "Vm.getTemplate");
         try {
+            ManagedEntity found = instance.getSearchIndex().findByUuid(null, templateId, true, false);
+
+            if( found instanceof com.vmware.vim25.mo.VirtualMachine ) {
+                VirtualMachineConfigInfo vminfo = ((com.vmware.vim25.mo.VirtualMachine)found).getConfig();
+
+                if( vminfo != null && vminfo.isTemplate() ) {
+                    return (com.vmware.vim25.mo.VirtualMachine)found;
+                }
+            }
+            else if( found == null ) {
+                return null;
+            }
+            // the BIOS UUID is not guaranteed to be unique, so a VM sharing it with the template hides the template
             Folder folder = getProvider().getVmFolder(instance);
             ManagedEntity[] mes;
 
@@ -1116,13 +1434,13 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             return null;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public @Nullable VirtualMachineProduct getProduct(@Nonnull String productId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.getProduct(String)");
+        OperationTrace.begin(getProvider(), "Vm.getProduct(String)");
         try {
             for( VirtualMachineProduct product : listProducts("ignoreme", null) ) {
                 if( product.getProviderProductId().equals(productId) ) {
@@ -1143,13 +1461,13 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
 
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public @Nullable VirtualMachine getVirtualMachine(@Nonnull String serverId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.getVirtualMachine");
+        OperationTrace.begin(getProvider(), "Vm.getVirtualMachine");
         try {
             ServiceInstance instance = getServiceInstance();
 
@@ -1161,27 +1479,32 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             return toServer(vm, null);
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
-    private @Nonnull VirtualMachineProduct getProduct(@Nonnull VirtualHardware hardware) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.getProduct(VirtualHardware)");
-        VirtualMachineProduct product = getProduct(hardware.getNumCPU() + ":" + hardware.getMemoryMB());
+    @Nonnull VirtualMachineProduct getProduct(@Nonnull VirtualHardware hardware) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.getProduct(VirtualHardware)");
+        try {
+            VirtualMachineProduct product = getProduct(hardware.getNumCPU() + ":" + hardware.getMemoryMB());
 
-        if( product == null ) {
-            int cpu = hardware.getNumCPU();
-            int ram = hardware.getMemoryMB();
-            int disk = 1;
+            if( product == null ) {
+                int cpu = hardware.getNumCPU();
+                int ram = hardware.getMemoryMB();
+                int disk = 1;
 
-            product = new VirtualMachineProduct();
-            product.setCpuCount(cpu);
-            product.setDescription("Custom product " + cpu + " CPU, " + ram + " RAM");
-            product.setName(cpu + " CPU/" + ram + " MB RAM");
-            product.setRootVolumeSize(new Storage<Gigabyte>(disk, Storage.GIGABYTE));
-            product.setProviderProductId(cpu + ":" + ram);
+                product = new VirtualMachineProduct();
+                product.setCpuCount(cpu);
+                product.setDescription("Custom product " + cpu + " CPU, " + ram + " RAM");
+                product.setName(cpu + " CPU/" + ram + " MB RAM");
+                product.setRootVolumeSize(new Storage<Gigabyte>(disk, Storage.GIGABYTE));
+                product.setProviderProductId(cpu + ":" + ram);
+            }
+            return product;
+        }
+        finally {
+            OperationTrace.end();
         }
-        return product;
     }
 
     @Override
@@ -1189,24 +1512,25 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             /** ignored **/ @Nonnull String machineImageId,
             @Nullable VirtualMachineProductFilterOptions options) throws InternalException, CloudException {
 
-        APITrace.begin(getProvider(), "Vm.listProducts(String, VirtualMachineProductFilterOptions)");
+        OperationTrace.begin(getProvider(), "Vm.listProducts(String, VirtualMachineProductFilterOptions)");
         try {
             // get resource pools from cache or live
-            Cache<org.dasein.cloud.dc.ResourcePool> cache = Cache.getInstance(
+            InventoryCache<org.dasein.cloud.dc.ResourcePool> cache = InventoryCache.getInstance(
                     getProvider(), "resourcePools", org.dasein.cloud.dc.ResourcePool.class, CacheLevel.REGION_ACCOUNT,
                     new TimePeriod<>(15, TimePeriod.MINUTE));
-            Collection<org.dasein.cloud.dc.ResourcePool> rps = ( Collection<org.dasein.cloud.dc.ResourcePool> ) cache.get(getContext());
+            Collection<org.dasein.cloud.dc.ResourcePool> rps = cache.get(getContext(), new InventoryCache.Loader<org.dasein.cloud.dc.ResourcePool>() {
+                @Override
+                public @Nonnull Collection<org.dasein.cloud.dc.ResourcePool> load() throws CloudException, InternalException {
+                    Collection<DataCenter> dcs = getProvider().getDataCenterServices().listDataCenters(getContext().getRegionId());
+                    Collection<org.dasein.cloud.dc.ResourcePool> rps = new ArrayList<>();
 
-            if( rps == null ) {
-                Collection<DataCenter> dcs = getProvider().getDataCenterServices().listDataCenters(getContext().getRegionId());
-                rps = new ArrayList<>();
-
-                for( DataCenter dc : dcs ) {
-                    Collection<org.dasein.cloud.dc.ResourcePool> pools = getProvider().getDataCenterServices().listResourcePools(dc.getProviderDataCenterId());
-                    rps.addAll(pools);
+                    for( DataCenter dc : dcs ) {
+                        Collection<org.dasein.cloud.dc.ResourcePool> pools = getProvider().getDataCenterServices().listResourcePools(dc.getProviderDataCenterId());
+                        rps.addAll(pools);
+                    }
+                    return rps;
                 }
-                cache.put(getContext(), rps);
-            }
+            });
 
             List<VirtualMachineProduct> results = new ArrayList<VirtualMachineProduct>();
             Iterable<VirtualMachineProduct> jsonProducts = listProductsJson();
@@ -1237,7 +1561,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             return results;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -1248,97 +1572,102 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
      * @throws InternalException
      */
     private @Nonnull Iterable<VirtualMachineProduct> listProductsJson() throws InternalException {
-        APITrace.begin(getProvider(), "VM.listProducts");
+        OperationTrace.begin(getProvider(), "Vm.listProductsJson");
         try {
-            Cache<VirtualMachineProduct> cache = Cache.getInstance(getProvider(), "products", VirtualMachineProduct.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
-            Iterable<VirtualMachineProduct> products = cache.get(getContext());
+            InventoryCache<VirtualMachineProduct> cache = InventoryCache.getInstance(getProvider(), "products", VirtualMachineProduct.class, CacheLevel.REGION_ACCOUNT, new TimePeriod<Day>(1, TimePeriod.DAY));
 
-            if( products != null && products.iterator().hasNext() ) {
-                return products;
-            }
+            return cache.get(getContext(), new InventoryCache.Loader<VirtualMachineProduct>() {
+                @Override
+                public @Nonnull Collection<VirtualMachineProduct> load() throws InternalException {
+                    return loadProductsJson();
+                }
+            });
+        }
+        catch( CloudException e ) {
+            throw new InternalException(e);
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
 
-            List<VirtualMachineProduct> list = new ArrayList<VirtualMachineProduct>();
+    private @Nonnull Collection<VirtualMachineProduct> loadProductsJson() throws InternalException {
+        List<VirtualMachineProduct> list = new ArrayList<VirtualMachineProduct>();
 
-            try {
-                InputStream input = AbstractVMSupport.class.getResourceAsStream("/org/dasein/cloud/vsphere/vmproducts.json");
+        try {
+            InputStream input = AbstractVMSupport.class.getResourceAsStream("/org/dasein/cloud/vsphere/vmproducts.json");
 
-                if( input == null ) {
-                    return Collections.emptyList();
-                }
-                BufferedReader reader = new BufferedReader(new InputStreamReader(input));
-                StringBuilder json = new StringBuilder();
-                String line;
+            if( input == null ) {
+                return Collections.emptyList();
+            }
+            BufferedReader reader = new BufferedReader(new InputStreamReader(input));
+            StringBuilder json = new StringBuilder();
+            String line;
 
-                while( ( line = reader.readLine() ) != null ) {
-                    json.append(line);
-                    json.append("\n");
-                }
-                JSONArray arr = new JSONArray(json.toString());
-                JSONObject toCache = null;
+            while( ( line = reader.readLine() ) != null ) {
+                json.append(line);
+                json.append("\n");
+            }
+            JSONArray arr = new JSONArray(json.toString());
+            JSONObject toCache = null;
 
-                for( int i = 0; i < arr.length(); i++ ) {
-                    JSONObject productSet = arr.getJSONObject(i);
-                    String cloud, provider;
+            for( int i = 0; i < arr.length(); i++ ) {
+                JSONObject productSet = arr.getJSONObject(i);
+                String cloud, provider;
 
-                    if( productSet.has("cloud") ) {
-                        cloud = productSet.getString("cloud");
-                    }
-                    else {
-                        continue;
-                    }
-                    if( productSet.has("provider") ) {
-                        provider = productSet.getString("provider");
-                    }
-                    else {
-                        continue;
-                    }
-                    if( !productSet.has("products") ) {
-                        continue;
-                    }
-                    if( toCache == null || ( provider.equals("vSphere") && cloud.equals("vSphere") ) ) {
-                        toCache = productSet;
-                    }
-                    if( provider.equalsIgnoreCase(getProvider().getProviderName()) && cloud.equalsIgnoreCase(getProvider().getCloudName()) ) {
-                        toCache = productSet;
-                        break;
-                    }
+                if( productSet.has("cloud") ) {
+                    cloud = productSet.getString("cloud");
                 }
-                if( toCache == null ) {
-                    return Collections.emptyList();
+                else {
+                    continue;
+                }
+                if( productSet.has("provider") ) {
+                    provider = productSet.getString("provider");
+                }
+                else {
+                    continue;
+                }
+                if( !productSet.has("products") ) {
+                    continue;
+                }
+                if( toCache == null || ( provider.equals("vSphere") && cloud.equals("vSphere") ) ) {
+                    toCache = productSet;
+                }
+                if( provider.equalsIgnoreCase(getProvider().getProviderName()) && cloud.equalsIgnoreCase(getProvider().getCloudName()) ) {
+                    toCache = productSet;
+                    break;
                 }
-                JSONArray plist = toCache.getJSONArray("products");
+            }
+            if( toCache == null ) {
+                return Collections.emptyList();
+            }
+            JSONArray plist = toCache.getJSONArray("products");
 
-                for( int i = 0; i < plist.length(); i++ ) {
-                    JSONObject product = plist.getJSONObject(i);
-                    boolean supported = true;
-                    if( product.has("excludesRegions") ) {
-                        JSONArray regions = product.getJSONArray("excludesRegions");
+            for( int i = 0; i < plist.length(); i++ ) {
+                JSONObject product = plist.getJSONObject(i);
+                boolean supported = true;
+                if( product.has("excludesRegions") ) {
+                    JSONArray regions = product.getJSONArray("excludesRegions");
 
-                        for( int j = 0; j < regions.length(); j++ ) {
-                            String r = regions.getString(j);
+                    for( int j = 0; j < regions.length(); j++ ) {
+                        String r = regions.getString(j);
 
-                            if( r.equals(getContext().getRegionId()) ) {
-                                supported = false;
-                                break;
-                            }
+                        if( r.equals(getContext().getRegionId()) ) {
+                            supported = false;
+                            break;
                         }
                     }
-                    if( supported ) {
-                        list.add(toProduct(product));
-                    }
                 }
-                // save the products to cache
-                cache.put(getContext(), list);
-            } catch( IOException e ) {
-                throw new InternalException(e);
-            } catch( JSONException e ) {
-                throw new InternalException(e);
+                if( supported ) {
+                    list.add(toProduct(product));
+                }
             }
-            return list;
-        } finally {
-            APITrace.end();
+        } catch( IOException e ) {
+            throw new InternalException(e);
+        } catch( JSONException e ) {
+            throw new InternalException(e);
         }
-
+        return list;
     }
 
     private @Nullable VirtualMachineProduct toProduct( @Nonnull JSONObject json ) throws InternalException {
@@ -1395,171 +1724,554 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         } catch( JSONException e ) {
             throw new InternalException(e);
         }
-        return prd;
+        return prd;
+    }
+
+    @Override
+    public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.listVirtualMachineStatus");
+        try {
+            ServiceInstance instance = getServiceInstance();
+            Folder folder = getProvider().getVmFolder(instance);
+
+            ArrayList<ResourceStatus> servers = new ArrayList<ResourceStatus>();
+            ManagedEntity[] mes;
+
+            try {
+                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
+            }
+            catch( InvalidProperty e ) {
+                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
+            }
+            catch( RuntimeFault e ) {
+                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+            }
+            catch( RemoteException e ) {
+                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            }
+
+            if( mes != null && mes.length > 0 ) {
+                for( ManagedEntity entity : mes ) {
+                    ResourceStatus server = toStatus(( com.vmware.vim25.mo.VirtualMachine ) entity);
+
+                    if( server != null ) {
+                        servers.add(server);
+                    }
+                }
+            }
+            return servers;
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * Looks a VM or template up by its instance UUID through the search index, which answers in one round trip
+     * however many VMs the inventory holds.
+     * @param instance the connection to look the VM up through
+     * @param vmId the instance UUID of the VM
+     * @return the matching VM or <code>null</code> if there is none
+     * @throws CloudException an error occurred in vSphere looking up the VM
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     */
+    @Nullable com.vmware.vim25.mo.VirtualMachine getVirtualMachine(@Nonnull ServiceInstance instance, @Nonnull String vmId) throws CloudException, InternalException {
+        OperationTrace.begin(getProvider(), "Vm.getVirtualMachine(ServiceInstance, String)");
+        try {
+            ManagedEntity entity;
+
+            try {
+                entity = instance.getSearchIndex().findByUuid(null, vmId, true, true);
+            }
+            catch( RuntimeFault e ) {
+                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+            }
+            catch( RemoteException e ) {
+                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            }
+            return (entity instanceof com.vmware.vim25.mo.VirtualMachine ? (com.vmware.vim25.mo.VirtualMachine)entity : null);
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    private @Nullable Datacenter getVmwareDatacenter(@Nonnull com.vmware.vim25.mo.VirtualMachine vm) throws CloudException {
+        ManagedEntity parent = vm.getParent();
+
+        if( parent == null ) {
+            parent = vm.getParentVApp();
+        }
+        while( parent != null ) {
+            if( parent instanceof Datacenter ) {
+                return ( ( Datacenter ) parent );
+            }
+            parent = parent.getParent();
+        }
+        return null;
+    }
+
+    @Override
+    public @Nonnull VirtualMachine launch(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
+        OperationTrace.begin(getProvider(), "Vm.launch");
+        try {
+            ServiceInstance instance = getServiceInstance();
+            VirtualMachine server;
+            boolean isOSId = false;
+            String imageId = withLaunchOptions.getMachineImageId();
+            try {
+                VirtualMachineGuestOsIdentifier os = VirtualMachineGuestOsIdentifier.valueOf(imageId);
+                isOSId = true;
+            }
+            catch( IllegalArgumentException e ) {
+                log.debug("Couldn't find a match to os identifier so trying existing templates instead: " + imageId);
+            }
+            if( !isOSId ) {
+                try {
+                    com.vmware.vim25.mo.VirtualMachine template = getTemplate(instance, imageId);
+                    if( template == null ) {
+                        throw new CloudException("No such template or guest os identifier: " + imageId);
+                    }
+                    boolean pooled = (getProvider().getWarmPoolSize() > 0 && WarmPool.isEligible(withLaunchOptions));
+
+                    server = (pooled ? launchFromWarmPool(withLaunchOptions) : null);
+                    if( server == null ) {
+                        server = defineFromTemplate(withLaunchOptions);
+                    }
+                    if( pooled ) {
+                        WarmPool.refill(getProvider(), withLaunchOptions);
+                    }
+                }
+                catch( RemoteException e ) {
+                    throw new CloudException(e);
+                }
+            }
+            else {
+                server = defineFromScratch(withLaunchOptions);
+            }
+            InventoryCache.publish(getContext(), InventoryChange.VM_LAUNCHED);
+            return server;
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    /**
+     * Launches a VM from the template in the launch options without blocking the caller. The launch advances on
+     * vSphere property updates for the clone task and the new VM rather than on a polling thread, reports its
+     * {@link LaunchStage stages} to the listener and completes once the guest reports its IP address (or after 20
+     * minutes without one). Cancelling the future stops the tracking but not a clone that is already running.
+     * @param options the launch options
+     * @param listener the listener to report the stages to or <code>null</code>
+     * @return the future of the launched VM, failing with the error that stopped the launch
+     */
+    public @Nonnull Future<VirtualMachine> launchAsync(@Nonnull VMLaunchOptions options, @Nullable LaunchListener listener) {
+        return AsyncLaunch.start(getProvider(), this, options, listener);
+    }
+
+    /**
+     * Waits for the guests of a set of VMs to be reachable: VMware tools running and a routable IP address reported.
+     * The guest information of all the VMs is watched through a single property filter, so waiting does not poll the
+     * inventory and does not hold a thread.
+     * @param vmIds the IDs of the VMs to wait for
+     * @param timeout how long to wait at most
+     * @param unit the unit of the timeout
+     * @return the future routable guest addresses by VM ID, completing when all guests are ready or when the timeout
+     *         passes, in which case the VMs that are not ready map to an empty array
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException one of the VMs does not exist or vSphere refused to watch them
+     */
+    public @Nonnull Future<Map<String,RawAddress[]>> awaitGuestAddresses(@Nonnull Collection<String> vmIds, long timeout, @Nonnull TimeUnit unit) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.awaitGuestAddresses");
+        try {
+            return GuestReadiness.start(getProvider(), vmIds, unit.toMillis(timeout));
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    @Override
+    public @Nullable VmStatistics getVMStatistics(@Nonnull String vmId, long from, long to) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.getVMStatistics");
+        try {
+            List<VmStatistics> samples = getSamples(vmId, from, to);
+
+            if( samples == null ) {
+                return null;
+            }
+            VmStatistics stats = VmPerformance.summarize(samples);
+
+            return (stats == null ? new VmStatistics() : stats);
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    @Override
+    public @Nonnull Iterable<VmStatistics> getVMStatisticsForPeriod(@Nonnull String vmId, long from, long to) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.getVMStatisticsForPeriod");
+        try {
+            List<VmStatistics> samples = getSamples(vmId, from, to);
+
+            return (samples == null ? Collections.<VmStatistics>emptyList() : samples);
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    private @Nullable List<VmStatistics> getSamples(@Nonnull String vmId, long from, long to) throws InternalException, CloudException {
+        ServiceInstance instance = getServiceInstance();
+        com.vmware.vim25.mo.VirtualMachine vm = getVirtualMachine(instance, vmId);
+
+        if( vm == null ) {
+            return null;
+        }
+        Iterator<Map.Entry<String,List<VmStatistics>>> it = VmPerformance.query(instance, Collections.singletonMap(vmId, vm.getMOR()), from, to);
+
+        return (it.hasNext() ? it.next().getValue() : Collections.<VmStatistics>emptyList());
+    }
+
+    /**
+     * Lists the statistics of many VMs over a time range, summarized per VM. The VMs are resolved with one property
+     * collector retrieval and their statistics are read from the PerformanceManager in batches of VMs, one QueryPerf
+     * call per batch covering all counters; a batch is only queried once the iteration reaches it, so a region-wide
+     * sweep costs a handful of calls and holds one batch at a time. Ranges within the last hour are read at the
+     * 20-second real-time interval, older ones at the finest rolled-up interval that still reaches back far enough.
+     * <p>
+     * Because {@link Iterator} cannot throw checked exceptions, failures querying a batch after the first surface as an
+     * {@link IllegalStateException} whose cause is the {@link CloudException}.
+     * </p>
+     * @param vmIds the IDs of the VMs or <code>null</code> for all VMs; unknown IDs and templates are skipped
+     * @param from the start of the range in milliseconds since the epoch
+     * @param to the end of the range in milliseconds since the epoch
+     * @return the statistics by VM ID, without VMs that have no samples in the range
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException an error occurred resolving the VMs or querying the first batch
+     */
+    public @Nonnull Iterable<Map.Entry<String,VmStatistics>> listVMStatistics(@Nullable Collection<String> vmIds, final long from, final long to) throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.listVMStatistics");
+        try {
+            final ServiceInstance instance = getServiceInstance();
+            Folder folder = getProvider().getVmFolder(instance);
+
+            if( folder == null ) {
+                throw new CloudException("Unable to find the root folder");
+            }
+            Set<String> wanted = (vmIds == null ? null : new HashSet<String>(vmIds));
+            final Map<String,ManagedObjectReference> vms = new LinkedHashMap<String, ManagedObjectReference>();
+
+            for( ObjectContent content : PropertyRetriever.retrieve(instance, folder, STATISTICS_PROPERTIES) ) {
+                String uuid = PropertyRetriever.getString(content, "config.instanceUuid");
+
+                if( uuid != null && !Boolean.TRUE.equals(PropertyRetriever.getValue(content, "config.template")) && (wanted == null || wanted.contains(uuid)) ) {
+                    vms.put(uuid, content.getObj());
+                }
+            }
+            final Iterator<Map.Entry<String,List<VmStatistics>>> first = VmPerformance.query(instance, vms, from, to);
+
+            return new Iterable<Map.Entry<String,VmStatistics>>() {
+                private boolean started = false;
+
+                @Override
+                public @Nonnull Iterator<Map.Entry<String,VmStatistics>> iterator() {
+                    Iterator<Map.Entry<String,List<VmStatistics>>> samples = null;
+
+                    synchronized( this ) {
+                        if( !started ) {
+                            started = true;
+                            samples = first;
+                        }
+                    }
+                    try {
+                        return new StatisticsIterator(samples == null ? VmPerformance.query(instance, vms, from, to) : samples);
+                    }
+                    catch( CloudException e ) {
+                        throw new IllegalStateException(e);
+                    }
+                }
+            };
+        }
+        finally {
+            OperationTrace.end();
+        }
+    }
+
+    static private final String[][] STATISTICS_PROPERTIES = new String[][] { { "VirtualMachine", "config.instanceUuid", "config.template" } };
+
+    /**
+     * Summarizes the samples of each VM as the iteration reaches it, skipping VMs without samples.
+     */
+    static private class StatisticsIterator implements Iterator<Map.Entry<String,VmStatistics>> {
+        private final Iterator<Map.Entry<String,List<VmStatistics>>> samples;
+        private Map.Entry<String,VmStatistics>                       next;
+
+        StatisticsIterator(@Nonnull Iterator<Map.Entry<String,List<VmStatistics>>> samples) {
+            this.samples = samples;
+        }
+
+        @Override
+        public boolean hasNext() {
+            while( next == null && samples.hasNext() ) {
+                Map.Entry<String,List<VmStatistics>> entry = samples.next();
+                VmStatistics stats = VmPerformance.summarize(entry.getValue());
+
+                if( stats != null ) {
+                    next = new AbstractMap.SimpleImmutableEntry<String,VmStatistics>(entry.getKey(), stats);
+                }
+            }
+            return (next != null);
+        }
+
+        @Override
+        public @Nonnull Map.Entry<String,VmStatistics> next() {
+            if( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            Map.Entry<String,VmStatistics> entry = next;
+
+            next = null;
+            return entry;
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Statistics cannot be removed");
+        }
     }
 
-    @Override
-    public @Nonnull Iterable<ResourceStatus> listVirtualMachineStatus() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.listVirtualMachineStatus");
+    /**
+     * Launches several VMs from the template in the launch options, resolving the template, data center, resource pool,
+     * folder, networks and guest customization once for all of them. The VMs are spread over the usable hosts and
+     * datastores of the target cluster unless the options pin them to a host or storage pool, and their clone tasks run
+     * concurrently, at most {@link PrivateCloud#getBatchCloneLimit()} at a time per cluster. With more than one VM the
+     * names get a <code>-1</code>, <code>-2</code>, ... suffix.
+     * @param options the launch options shared by all VMs of the batch
+     * @param count the number of VMs to launch
+     * @return one future per VM in name order, completing with the launched VM or failing with its clone error
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException an error occurred in vSphere resolving the launch options
+     */
+    public @Nonnull List<Future<VirtualMachine>> launchBatch(@Nonnull final VMLaunchOptions options, int count) throws CloudException, InternalException {
+        OperationTrace.begin(getProvider(), "Vm.launchBatch");
         try {
-            ServiceInstance instance = getServiceInstance();
-            Folder folder = getProvider().getVmFolder(instance);
-
-            ArrayList<ResourceStatus> servers = new ArrayList<ResourceStatus>();
-            ManagedEntity[] mes;
-
-            try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
+            if( count < 1 ) {
+                throw new InternalException("A batch launch needs at least one VM, not " + count);
             }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
+            if( count > 1 && options.getPrivateIp() != null ) {
+                throw new CloudException("Unable to assign the private IP " + options.getPrivateIp() + " to " + count + " VMs");
             }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+            ServiceInstance instance = getServiceInstance();
+            final ClonePlan plan = planClone(options, null);
+
+            if( plan.pools == null || plan.pools.length == 0 ) {
+                throw new CloudException("No resource pool to launch " + options.getHostName() + " into");
             }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+            ManagedObjectReference cluster = (ManagedObjectReference)plan.pools[0].getPropertyByPath("owner");
+            List<ManagedObjectReference[]> placements;
+
+            if( cluster == null || plan.host != null || plan.datastore != null ) {
+                placements = Collections.nCopies(count, new ManagedObjectReference[2]);
             }
+            else {
+                placements = BatchLaunch.spread(getProvider(), instance, cluster, count);
+            }
+            BatchLaunch.Throttle throttle = BatchLaunch.getThrottle(getContext(), cluster, getProvider().getBatchCloneLimit());
+            final ServerConnection connection = instance.getServerConnection();
+            String baseName = validateName(options.getHostName());
+            List<Future<VirtualMachine>> launches = new ArrayList<Future<VirtualMachine>>(count);
+
+            for( int i=0; i<count; i++ ) {
+                String suffix = (count > 1 ? "-" + (i+1) : "");
+                final String hostName = (baseName.length() + suffix.length() > 30 ? baseName.substring(0, 30 - suffix.length()) : baseName) + suffix;
+                final ManagedObjectReference[] placement = placements.get(i);
+                // whichever of the clone and a cancellation before it started gets here first releases the provider
+                final AtomicBoolean claimed = new AtomicBoolean();
+
+                getProvider().hold();
+                FutureTask<VirtualMachine> launch = new FutureTask<VirtualMachine>(new Callable<VirtualMachine>() {
+                    @Override
+                    public VirtualMachine call() throws Exception {
+                        if( !claimed.compareAndSet(false, true) ) {
+                            return null; // cancelled as it started
+                        }
+                        try {
+                            ManagedObjectReference mor = cloneTemplate(plan, options, hostName, placement[0], placement[1], true);
 
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    ResourceStatus server = toStatus(( com.vmware.vim25.mo.VirtualMachine ) entity);
+                            InventoryCache.publish(getContext(), InventoryChange.VM_LAUNCHED);
 
-                    if( server != null ) {
-                        servers.add(server);
+                            VirtualMachine server = toServer(new com.vmware.vim25.mo.VirtualMachine(connection, mor), null);
+
+                            if( server == null ) {
+                                throw new CloudException("Unable to identify newly created server " + hostName);
+                            }
+                            if( options.getPrivateIp() != null && Platform.WINDOWS.equals(server.getPlatform()) ) {
+                                server.setRootPassword(options.getBootstrapPassword());
+                            }
+                            return server;
+                        }
+                        finally {
+                            getProvider().release();
+                        }
                     }
-                }
+                }) {
+                    @Override
+                    protected void done() {
+                        if( isCancelled() && claimed.compareAndSet(false, true) ) {
+                            getProvider().release();
+                        }
+                    }
+                };
+
+                launches.add(launch);
+                throttle.submit(launch);
             }
-            return servers;
+            return launches;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
-    @Nullable com.vmware.vim25.mo.VirtualMachine getVirtualMachine(@Nonnull ServiceInstance instance, @Nonnull String vmId) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Vm.getVirtualMachine(ServiceInstance, String)");
+    @Override
+    public @Nonnull Collection<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.listVirtualMachines");
         try {
-            Folder folder = getProvider().getVmFolder(instance);
-            ManagedEntity[] mes;
+            ArrayList<VirtualMachine> servers = new ArrayList<VirtualMachine>();
 
             try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
-            }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
-            }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
-            }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+                for( VirtualMachine server : streamVirtualMachines() ) {
+                    servers.add(server);
+                }
             }
-
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    com.vmware.vim25.mo.VirtualMachine vm = ( com.vmware.vim25.mo.VirtualMachine ) entity;
-                    VirtualMachineConfigInfo cfg = ( vm == null ? null : vm.getConfig() );
-                    if( cfg != null && cfg.getInstanceUuid().equals(vmId) ) {
-                        return vm;
-                    }
+            catch( IllegalStateException e ) {
+                if( e.getCause() instanceof CloudException ) {
+                    throw (CloudException)e.getCause();
                 }
+                if( e.getCause() instanceof InternalException ) {
+                    throw (InternalException)e.getCause();
+                }
+                throw e;
             }
-            return null;
+            return servers;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
-    private @Nullable Datacenter getVmwareDatacenter(@Nonnull com.vmware.vim25.mo.VirtualMachine vm) throws CloudException {
-        ManagedEntity parent = vm.getParent();
+    /**
+     * Lists the same virtual machines as {@link #listVirtualMachines()} without building the full list first. The
+     * VMs are retrieved from vCenter one property collector page at a time and each page is converted as the
+     * iteration reaches it, in parallel when {@link PrivateCloud#getConversionParallelism()} allows; the next page is only requested once the current one has been consumed, so memory stays bounded by one
+     * page however large the inventory and the first VMs are available after the first page arrives.
+     * <p>
+     * Every call to {@link Iterable#iterator()} starts a new retrieval, whose first page is requested by the first
+     * {@link Iterator#hasNext()}. The page size is {@link PrivateCloud#getStreamPageSize()}. The iterators implement
+     * {@link Closeable}; closing one that was not iterated to the end releases the rest of the result set in vCenter.
+     * Because {@link Iterator} cannot throw checked exceptions, failures while iterating surface as an
+     * {@link IllegalStateException} whose cause is the {@link CloudException} or {@link InternalException}.
+     * </p>
+     * @return the virtual machines in the current region, converted lazily
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     * @throws CloudException an error occurred retrieving the folders, hosts and resource pools from vSphere
+     */
+    public @Nonnull Iterable<VirtualMachine> streamVirtualMachines() throws InternalException, CloudException {
+        OperationTrace.begin(getProvider(), "Vm.streamVirtualMachines");
+        try {
+            final ServiceInstance instance = getServiceInstance();
+            final Folder folder = getProvider().getVmFolder(instance);
+            final InventoryIndex index = InventoryIndex.build(PropertyRetriever.retrieve(instance, folder, InventoryIndex.PROPERTIES));
+            final int pageSize = getProvider().getStreamPageSize();
 
-        if( parent == null ) {
-            parent = vm.getParentVApp();
+            return new Iterable<VirtualMachine>() {
+                @Override
+                public @Nonnull Iterator<VirtualMachine> iterator() {
+                    return new VmIterator(PropertyRetriever.page(instance, folder, VM_PROPERTIES, pageSize), index);
+                }
+            };
         }
-        while( parent != null ) {
-            if( parent instanceof Datacenter ) {
-                return ( ( Datacenter ) parent );
-            }
-            parent = parent.getParent();
+        finally {
+            OperationTrace.end();
         }
-        return null;
     }
 
-    @Override
-    public @Nonnull VirtualMachine launch(@Nonnull VMLaunchOptions withLaunchOptions) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Vm.launch");
-        try {
-            ServiceInstance instance = getServiceInstance();
-            VirtualMachine server;
-            boolean isOSId = false;
-            String imageId = withLaunchOptions.getMachineImageId();
-            try {
-                VirtualMachineGuestOsIdentifier os = VirtualMachineGuestOsIdentifier.valueOf(imageId);
-                isOSId = true;
-            }
-            catch( IllegalArgumentException e ) {
-                log.debug("Couldn't find a match to os identifier so trying existing templates instead: " + imageId);
-            }
-            if( !isOSId ) {
-                try {
-                    com.vmware.vim25.mo.VirtualMachine template = getTemplate(instance, imageId);
-                    if( template == null ) {
-                        throw new CloudException("No such template or guest os identifier: " + imageId);
+    /**
+     * Converts the VMs of one property collector page at a time into {@link VmRecord}s, fetching the next page when
+     * the current one runs out. The Dasein VM is only built when the iteration hands it out.
+     */
+    private class VmIterator implements Iterator<VirtualMachine>, Closeable {
+        private final PropertyPager      pager;
+        private final InventoryIndex     index;
+        private final int                parallelism;
+        private Iterator<VmRecord>       page = Collections.emptyIterator();
+        private VirtualMachine           next;
+
+        VmIterator(@Nonnull PropertyPager pager, @Nonnull InventoryIndex index) {
+            this.pager = pager;
+            this.index = index;
+            this.parallelism = getProvider().getConversionParallelism();
+        }
+
+        @Override
+        public boolean hasNext() {
+            while( next == null ) {
+                if( !page.hasNext() ) {
+                    if( !nextPage() ) {
+                        return false;
                     }
-                    server = defineFromTemplate(withLaunchOptions);
+                    continue;
                 }
-                catch( RemoteException e ) {
-                    throw new CloudException(e);
-                }
-            }
-            else {
-                server = defineFromScratch(withLaunchOptions);
+                next = toServer(page.next());
             }
-            return server;
-        }
-        finally {
-            APITrace.end();
+            return true;
         }
-    }
-
-    @Override
-    public @Nonnull Collection<VirtualMachine> listVirtualMachines() throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.listVirtualMachines");
-        try {
-            ServiceInstance instance = getServiceInstance();
-            Folder folder = getProvider().getVmFolder(instance);
-
-            ArrayList<VirtualMachine> servers = new ArrayList<VirtualMachine>();
-            ManagedEntity[] mes;
 
+        private boolean nextPage() {
+            OperationTrace.begin(getProvider(), "Vm.streamVirtualMachines.page");
             try {
-                mes = new InventoryNavigator(folder).searchManagedEntities("VirtualMachine");
+                if( !pager.hasNext() ) {
+                    return false;
+                }
+                page = ParallelConverter.convert(parallelism, pager.next(), new ParallelConverter.Conversion<ObjectContent,VmRecord>() {
+                    @Override
+                    public @Nullable VmRecord convert(@Nonnull ObjectContent content) throws CloudException, InternalException {
+                        return toRecord(content, index);
+                    }
+                }).iterator();
+                return true;
             }
-            catch( InvalidProperty e ) {
-                throw new CloudException("No virtual machine support in cluster: " + e.getMessage());
+            catch( CloudException | InternalException e ) {
+                throw new IllegalStateException(e);
             }
-            catch( RuntimeFault e ) {
-                throw new CloudException("Error in processing request to cluster: " + e.getMessage());
+            finally {
+                OperationTrace.end();
             }
-            catch( RemoteException e ) {
-                throw new CloudException("Error in cluster processing request: " + e.getMessage());
+        }
+
+        @Override
+        public @Nonnull VirtualMachine next() {
+            if( !hasNext() ) {
+                throw new NoSuchElementException();
             }
+            VirtualMachine server = next;
 
-            if( mes != null && mes.length > 0 ) {
-                for( ManagedEntity entity : mes ) {
-                    VirtualMachine server = toServer(( com.vmware.vim25.mo.VirtualMachine ) entity, null);
+            next = null;
+            return server;
+        }
 
-                    if( server != null ) {
-                        servers.add(server);
-                    }
-                }
-            }
-            return servers;
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Virtual machines cannot be removed through the listing");
         }
-        finally {
-            APITrace.end();
+
+        @Override
+        public void close() {
+            page = Collections.emptyIterator();
+            pager.close();
         }
     }
 
@@ -1570,7 +2282,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
 
     @Override
     public void resume(@Nonnull String serverId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.resume");
+        OperationTrace.begin(getProvider(), "Vm.resume");
         try {
             ServiceInstance instance = getServiceInstance();
 
@@ -1595,13 +2307,13 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public void stop(@Nonnull String vmId, boolean force) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.stop");
+        OperationTrace.begin(getProvider(), "Vm.stop");
         try {
             ServiceInstance instance = getServiceInstance();
 
@@ -1626,13 +2338,13 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public void suspend(@Nonnull String serverId) throws InternalException, CloudException {
-        APITrace.begin(getProvider(), "Vm.suspend");
+        OperationTrace.begin(getProvider(), "Vm.suspend");
         try {
             ServiceInstance instance = getServiceInstance();
 
@@ -1657,13 +2369,13 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     @Override
     public void reboot(@Nonnull String serverId) throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Vm.reboot");
+        OperationTrace.begin(getProvider(), "Vm.reboot");
         try {
             String id = serverId;
             ServiceInstance instance = getProvider().getServiceInstance();
@@ -1691,12 +2403,12 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
     private void powerOnAndOff(@Nonnull String serverId) {
-        APITrace.begin(getProvider(), "Vm.powerOnAndOff");
+        OperationTrace.begin(getProvider(), "Vm.powerOnAndOff");
         try {
             try {
                 ServiceInstance instance = getProvider().getServiceInstance();
@@ -1727,7 +2439,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -1758,7 +2470,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
     }
 
     private void terminateVm(@Nonnull String serverId) {
-        APITrace.begin(getProvider(), "Vm.terminateVm");
+        OperationTrace.begin(getProvider(), "Vm.terminateVm");
         try {
             try {
                 ServiceInstance instance = getServiceInstance();
@@ -1787,7 +2499,15 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
                             catch( InterruptedException ignore ) { /* ignore */ }
                             vm = getVirtualMachine(instance, serverId);
                             if( vm != null ) {
-                                vm.destroy_Task();
+                                // wait for the files to be deleted so that reloaded storage pools reflect it
+                                Task task = vm.destroy_Task();
+
+                                if( task.waitForTask().equals(Task.SUCCESS) ) {
+                                    InventoryCache.publish(getContext(), InventoryChange.VM_TERMINATED);
+                                }
+                                else {
+                                    log.error("Unable to destroy " + serverId + ": " + task.getTaskInfo().getError().getLocalizedMessage());
+                                }
                             }
                         }
                     }
@@ -1798,11 +2518,11 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             }
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
-    private boolean isPublicIpAddress(@Nonnull String ipv4Address) {
+    boolean isPublicIpAddress(@Nonnull String ipv4Address) {
         if( ipv4Address.startsWith("10.") || ipv4Address.startsWith("192.168") || ipv4Address.startsWith("169.254") ) {
             return false;
         }
@@ -1821,7 +2541,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         return true;
     }
 
-    private @Nullable ResourceStatus toStatus(@Nullable com.vmware.vim25.mo.VirtualMachine vm) {
+    @Nullable ResourceStatus toStatus(@Nullable com.vmware.vim25.mo.VirtualMachine vm) {
         if( vm == null ) {
             return null;
         }
@@ -1865,7 +2585,7 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
         return new ResourceStatus(id, vmState);
     }
 
-    private @Nullable VirtualMachine toServer(@Nullable com.vmware.vim25.mo.VirtualMachine vm, @Nullable String description) throws InternalException, CloudException {
+    @Nullable VirtualMachine toServer(@Nullable com.vmware.vim25.mo.VirtualMachine vm, @Nullable String description) throws InternalException, CloudException {
         if( vm != null ) {
             VirtualMachineConfigInfo vminfo;
 
@@ -1878,73 +2598,28 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             if( vminfo == null || vminfo.isTemplate() ) {
                 return null;
             }
-            Map<String, String> properties = new HashMap<String, String>();
-            VirtualMachineConfigInfoDatastoreUrlPair[] datastoreUrl = vminfo.getDatastoreUrl();
-            for( int i = 0; i < datastoreUrl.length; i++ ) {
-                properties.put("datastore" + i, datastoreUrl[i].getName());
-            }
-
+            String folderName = null;
             ManagedEntity parent = vm.getParent();
             while( parent != null ) {
                 if( parent instanceof Folder ) {
-                    properties.put("vmFolder", parent.getName());
+                    folderName = parent.getName();
                     break;
                 }
                 parent = parent.getParent();
             }
 
-            VirtualMachineGuestOsIdentifier os = VirtualMachineGuestOsIdentifier.valueOf(vminfo.getGuestId());
-            VirtualMachine server = new VirtualMachine();
-
             HostSystem host = getHost(vm);
-            if( host != null ) {
-                server.setAffinityGroupId(host.getName());
-            }
-
-            server.setName(vm.getName());
-            server.setPlatform(Platform.guess(vminfo.getGuestFullName()));
-            server.setProviderVirtualMachineId(vm.getConfig().getInstanceUuid());
-            server.setPersistent(true);
-            server.setImagable(true);
-            server.setClonable(true);
-            server.setArchitecture(getArchitecture(os));
-            if( description == null ) {
-                description = vm.getName();
-            }
-            server.setDescription(description);
-            server.setProductId(getProduct(vminfo.getHardware()).getProviderProductId());
-            String imageId = vminfo.getAnnotation();
-
-            if( imageId != null && imageId.length() > 0 && !imageId.contains(" ") ) {
-                server.setProviderMachineImageId(imageId);
-            }
-            else {
-                server.setProviderMachineImageId(getContext().getAccountNumber() + "-unknown");
-            }
             String dc = getDataCenter(vm);
 
             if( dc == null ) {
                 return null;
             }
-            DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dc);
-            if( ourDC != null ) {
-                server.setProviderDataCenterId(dc);
-                server.setProviderRegionId(ourDC.getRegionId());
-            }
-            else if( dc.equals(getContext().getRegionId()) ) {
-                // env doesn't have clusters?
-                server.setProviderDataCenterId(dc + "-a");
-                server.setProviderRegionId(dc);
-            }
-            else {
-                return null;
-            }
+            String resourcePoolId = null;
 
             try {
                 ResourcePool rp = vm.getResourcePool();
                 if( rp != null ) {
-                    String id = getProvider().getDataCenterServices().getIdForResourcePool(rp);
-                    server.setResourcePoolId(id);
+                    resourcePoolId = getProvider().getDataCenterServices().getIdForResourcePool(rp);
                 }
             }
             catch( InvalidProperty ex ) {
@@ -1956,118 +2631,193 @@ public class Vm extends AbstractVMSupport<PrivateCloud> {
             catch( RemoteException ex ) {
                 throw new CloudException(ex);
             }
+            VmRecord record = toRecord(vm.getName(), vminfo, vm.getGuest(), vm.getRuntime(), folderName, host == null ? null : host.getName(), dc, resourcePoolId, description);
 
-            if ( vminfo.getHardware().getDevice() != null && vminfo.getHardware().getDevice().length > 0 ) {
-                VirtualDevice[] virtualDevices = vm.getConfig().getHardware().getDevice();
-                for(VirtualDevice virtualDevice : virtualDevices) {
-                    if( virtualDevice instanceof VirtualEthernetCard ) {
-                        VirtualEthernetCard veCard = ( VirtualEthernetCard ) virtualDevice;
-                        if( veCard.getBacking() instanceof VirtualEthernetCardNetworkBackingInfo ) {
-                            VirtualEthernetCardNetworkBackingInfo nicBacking = (VirtualEthernetCardNetworkBackingInfo) veCard.getBacking();
-                            String net = nicBacking.getNetwork().getVal();
-                            if ( net != null ) {
-                                if( server.getProviderVlanId() == null ) {
-                                    server.setProviderVlanId(net);
-                                }
+            return (record == null ? null : toServer(record));
+        }
+        return null;
+    }
+
+    /**
+     * Converts a VM from properties retrieved in bulk, resolving the entities it references through the index.
+     * @param content the retrieved {@link #VM_PROPERTIES} of a VM
+     * @param index the names and resource pool hierarchy of the inventory
+     * @return the VM or <code>null</code> if it is a template or does not belong to the current region
+     * @throws InternalException an error occurred looking up the data center
+     * @throws CloudException an error occurred looking up the data center
+     */
+    @Nullable VirtualMachine toServer(@Nonnull ObjectContent content, @Nonnull InventoryIndex index) throws InternalException, CloudException {
+        VmRecord record = toRecord(content, index);
+
+        return (record == null ? null : toServer(record));
+    }
+
+    /**
+     * Like {@link #toServer(ObjectContent, InventoryIndex)} but stops at the compact snapshot, for holding many VMs.
+     * @param content the retrieved {@link #VM_PROPERTIES} of a VM
+     * @param index the names and resource pool hierarchy of the inventory
+     * @return the VM snapshot or <code>null</code> if it is a template or does not belong to the current region
+     * @throws InternalException an error occurred looking up the data center
+     * @throws CloudException an error occurred looking up the data center
+     */
+    @Nullable VmRecord toRecord(@Nonnull ObjectContent content, @Nonnull InventoryIndex index) throws InternalException, CloudException {
+        Object config = PropertyRetriever.getValue(content, "config");
+
+        if( !(config instanceof VirtualMachineConfigInfo) || ((VirtualMachineConfigInfo)config).isTemplate() ) {
+            return null;
+        }
+        ManagedObjectReference parent = PropertyRetriever.getReference(content, "parent");
+        ManagedObjectReference pool = PropertyRetriever.getReference(content, "resourcePool");
+        Object guest = PropertyRetriever.getValue(content, "guest");
+        Object runtime = PropertyRetriever.getValue(content, "runtime");
+        String folderName = (parent != null && parent.getType().equals("Folder") ? index.getName(parent) : null);
+        String hostName = (runtime instanceof VirtualMachineRuntimeInfo ? index.getName(((VirtualMachineRuntimeInfo)runtime).getHost()) : null);
+        String dc = index.getOwnerName(pool);
+
+        if( dc == null ) {
+            return null;
+        }
+        return toRecord(PropertyRetriever.getString(content, "name"), (VirtualMachineConfigInfo)config, guest instanceof GuestInfo ? (GuestInfo)guest : null, runtime instanceof VirtualMachineRuntimeInfo ? (VirtualMachineRuntimeInfo)runtime : null, folderName, hostName, dc, index.getResourcePoolId(pool), null);
+    }
+
+    /**
+     * @param record a VM snapshot
+     * @return the Dasein view of the VM, owned by the current account
+     */
+    @Nonnull VirtualMachine toServer(@Nonnull VmRecord record) {
+        return record.toVirtualMachine(getContext().getAccountNumber());
+    }
+
+    private @Nullable VmRecord toRecord(@Nullable String name, @Nonnull VirtualMachineConfigInfo vminfo, @Nullable GuestInfo guest, @Nullable VirtualMachineRuntimeInfo runtime, @Nullable String folderName, @Nullable String hostName, @Nonnull String dc, @Nullable String resourcePoolId, @Nullable String description) throws InternalException, CloudException {
+        if( WarmPool.FOLDER.equals(folderName) ) {
+            return null; // not launched yet
+        }
+        VmRecord record = new VmRecord();
+        VirtualMachineConfigInfoDatastoreUrlPair[] datastoreUrl = vminfo.getDatastoreUrl();
+        if( datastoreUrl != null ) {
+            record.datastores = new String[datastoreUrl.length];
+            for( int i = 0; i < datastoreUrl.length; i++ ) {
+                record.datastores[i] = VmRecord.intern(datastoreUrl[i].getName());
+            }
+        }
+        record.folderName = VmRecord.intern(folderName);
+
+        VirtualMachineGuestOsIdentifier os = VirtualMachineGuestOsIdentifier.valueOf(vminfo.getGuestId());
+
+        record.hostName = VmRecord.intern(hostName);
+        record.name = name;
+        record.setPlatform(Platform.guess(vminfo.getGuestFullName()));
+        record.setInstanceUuid(vminfo.getInstanceUuid());
+        record.setArchitecture(getArchitecture(os));
+        record.description = description;
+        record.cpuCount = vminfo.getHardware().getNumCPU();
+        record.memoryMb = vminfo.getHardware().getMemoryMB();
+        String imageId = vminfo.getAnnotation();
+
+        if( imageId != null && imageId.length() > 0 && !imageId.contains(" ") ) {
+            record.imageId = VmRecord.intern(imageId);
+        }
+        DataCenter ourDC = getProvider().getDataCenterServices().getDataCenter(dc);
+        if( ourDC != null ) {
+            record.dataCenterId = VmRecord.intern(dc);
+            record.regionId = VmRecord.intern(ourDC.getRegionId());
+        }
+        else if( dc.equals(getContext().getRegionId()) ) {
+            // env doesn't have clusters?
+            record.dataCenterId = VmRecord.intern(dc + "-a");
+            record.regionId = VmRecord.intern(dc);
+        }
+        else {
+            return null;
+        }
+        record.resourcePoolId = VmRecord.intern(resourcePoolId);
+
+        if ( vminfo.getHardware().getDevice() != null && vminfo.getHardware().getDevice().length > 0 ) {
+            VirtualDevice[] virtualDevices = vminfo.getHardware().getDevice();
+            for(VirtualDevice virtualDevice : virtualDevices) {
+                if( virtualDevice instanceof VirtualEthernetCard ) {
+                    VirtualEthernetCard veCard = ( VirtualEthernetCard ) virtualDevice;
+                    if( veCard.getBacking() instanceof VirtualEthernetCardNetworkBackingInfo ) {
+                        VirtualEthernetCardNetworkBackingInfo nicBacking = (VirtualEthernetCardNetworkBackingInfo) veCard.getBacking();
+                        String net = nicBacking.getNetwork().getVal();
+                        if ( net != null ) {
+                            if( record.vlanId == null ) {
+                                record.vlanId = VmRecord.intern(net);
                             }
                         }
-                        else if ( veCard.getBacking() instanceof VirtualEthernetCardDistributedVirtualPortBackingInfo ) {
-                            VirtualEthernetCardDistributedVirtualPortBackingInfo nicBacking = (VirtualEthernetCardDistributedVirtualPortBackingInfo) veCard.getBacking();
-                            String net = nicBacking.getPort().getPortgroupKey();
-                            if ( net != null ) {
-                                if (server.getProviderVlanId() == null ) {
-                                    server.setProviderVlanId(net);
-                                }
+                    }
+                    else if ( veCard.getBacking() instanceof VirtualEthernetCardDistributedVirtualPortBackingInfo ) {
+                        VirtualEthernetCardDistributedVirtualPortBackingInfo nicBacking = (VirtualEthernetCardDistributedVirtualPortBackingInfo) veCard.getBacking();
+                        String net = nicBacking.getPort().getPortgroupKey();
+                        if ( net != null ) {
+                            if (record.vlanId == null ) {
+                                record.vlanId = VmRecord.intern(net);
                             }
                         }
                     }
                 }
             }
+        }
 
-            GuestInfo guest = vm.getGuest();
-            if( guest != null ) {
-                if( guest.getHostName() != null ) {
-                    server.setPrivateDnsAddress(guest.getHostName());
-                }
-                if( guest.getIpAddress() != null ) {
-                    server.setProviderAssignedIpAddressId(guest.getIpAddress());
-                }
-                GuestNicInfo[] nicInfoArray = guest.getNet();
-                if( nicInfoArray != null && nicInfoArray.length > 0 ) {
-                    List<RawAddress> pubIps = new ArrayList<RawAddress>();
-                    List<RawAddress> privIps = new ArrayList<RawAddress>();
-                    for( GuestNicInfo nicInfo : nicInfoArray ) {
-                        String[] ipAddresses = nicInfo.getIpAddress();
-                        if( ipAddresses != null ) {
-                            for( String ip : ipAddresses ) {
-                                if( ip != null ) {
-                                    if( isPublicIpAddress(ip) ) {
-                                        pubIps.add(new RawAddress(ip));
-                                    }
-                                    else {
-                                        privIps.add(new RawAddress(ip));
-                                    }
-                                }
+        if( guest != null ) {
+            record.dnsName = guest.getHostName();
+            record.assignedIpAddress = guest.getIpAddress();
+            GuestNicInfo[] nicInfoArray = guest.getNet();
+            if( nicInfoArray != null && nicInfoArray.length > 0 ) {
+                List<String> ips = new ArrayList<String>();
+                List<Boolean> publicFlags = new ArrayList<Boolean>();
+                for( GuestNicInfo nicInfo : nicInfoArray ) {
+                    String[] ipAddresses = nicInfo.getIpAddress();
+                    if( ipAddresses != null ) {
+                        for( String ip : ipAddresses ) {
+                            if( ip != null ) {
+                                ips.add(ip);
+                                publicFlags.add(isPublicIpAddress(ip));
                             }
-
                         }
-                    }
-                    if( privIps != null && privIps.size() > 0 ) {
-                        RawAddress[] rawPriv = privIps.toArray(new RawAddress[privIps.size()]);
-                        server.setPrivateAddresses(rawPriv);
-                    }
-                    if( pubIps != null && pubIps.size() > 0 ) {
-                        RawAddress[] rawPub = pubIps.toArray(new RawAddress[pubIps.size()]);
-                        server.setPublicAddresses(rawPub);
+
                     }
                 }
+                record.addresses = VmRecord.packAddresses(ips, publicFlags);
             }
+        }
 
-            VirtualMachineRuntimeInfo runtime = vm.getRuntime();
-
-            if( runtime != null ) {
-                VirtualMachinePowerState state = runtime.getPowerState();
+        if( runtime != null ) {
+            VirtualMachinePowerState state = runtime.getPowerState();
+            VmState vmState = null;
 
-                if( server.getCurrentState() == null ) {
-                    switch( state ) {
-                        case suspended:
-                            server.setCurrentState(VmState.SUSPENDED);
-                            break;
-                        case poweredOff:
-                            server.setCurrentState(VmState.STOPPED);
-                            break;
-                        case poweredOn:
-                            server.setCurrentState(VmState.RUNNING);
-                            server.setRebootable(true);
-                            break;
-                    }
-                }
-                Calendar suspend = runtime.getSuspendTime();
-                Calendar time = runtime.getBootTime();
+            switch( state ) {
+                case suspended:
+                    vmState = VmState.SUSPENDED;
+                    break;
+                case poweredOff:
+                    vmState = VmState.STOPPED;
+                    break;
+                case poweredOn:
+                    vmState = VmState.RUNNING;
+                    break;
+            }
+            record.setState(vmState, vmState == VmState.RUNNING);
+            Calendar suspend = runtime.getSuspendTime();
+            Calendar time = runtime.getBootTime();
 
-                if( suspend == null || suspend.getTimeInMillis() < 1L ) {
-                    server.setLastPauseTimestamp(-1L);
-                }
-                else {
-                    server.setLastPauseTimestamp(suspend.getTimeInMillis());
-                    server.setCreationTimestamp(server.getLastPauseTimestamp());
-                }
-                if( time == null || time.getTimeInMillis() < 1L ) {
-                    server.setLastBootTimestamp(0L);
-                }
-                else {
-                    server.setLastBootTimestamp(time.getTimeInMillis());
-                    server.setCreationTimestamp(server.getLastBootTimestamp());
-                }
+            if( suspend == null || suspend.getTimeInMillis() < 1L ) {
+                record.lastPauseTimestamp = -1L;
+            }
+            else {
+                record.lastPauseTimestamp = suspend.getTimeInMillis();
+            }
+            if( time == null || time.getTimeInMillis() < 1L ) {
+                record.lastBootTimestamp = 0L;
+            }
+            else {
+                record.lastBootTimestamp = time.getTimeInMillis();
             }
-            server.setProviderOwnerId(getContext().getAccountNumber());
-            server.setTags(properties);
-            return server;
         }
-        return null;
+        return record;
     }
 
-    private String validateName(String name) {
+    String validateName(String name) {
         name = name.toLowerCase().replaceAll("_", "-").replaceAll(" ", "");
         if( name.length() <= 30 ) {
             return name;
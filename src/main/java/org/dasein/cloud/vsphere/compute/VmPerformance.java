@@ -0,0 +1,444 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.rmi.RemoteException;
+import java.util.AbstractMap;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.WeakHashMap;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectSpec;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfEntityMetricBase;
+import com.vmware.vim25.PerfInterval;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfQuerySpec;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.PropertyFilterSpec;
+import com.vmware.vim25.RuntimeFault;
+import com.vmware.vim25.mo.ServiceInstance;
+import com.vmware.vim25.mo.util.PropertyCollectorUtil;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.VmStatistics;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Reads VM statistics from the vSphere PerformanceManager. The counter IDs and the historical intervals of a vCenter
+ * are looked up once per connection. Statistics for many VMs are fetched with one QueryPerf call per
+ * {@link #BATCH_SIZE} VMs covering all counters, at the 20-second real-time interval for ranges within the last hour
+ * and at the finest rolled-up interval still holding the start of the range otherwise.
+ * @since 2015.09
+ */
+final class VmPerformance {
+    static final String CPU        = "cpu.usage.average";
+    static final String DISK_READ  = "disk.read.average";
+    static final String DISK_WRITE = "disk.write.average";
+    static final String NET_IN     = "net.received.average";
+    static final String NET_OUT    = "net.transmitted.average";
+
+    static private final String[] COUNTERS = new String[] { CPU, DISK_READ, DISK_WRITE, NET_IN, NET_OUT };
+
+    /**
+     * The number of VMs queried per QueryPerf call.
+     */
+    static final int BATCH_SIZE = 64;
+
+    static final int REAL_TIME_INTERVAL = 20;
+
+    /**
+     * How long vCenter keeps real-time samples.
+     */
+    static private final long REAL_TIME_RETENTION = 60L * 60L * 1000L;
+
+    static private final String[][] CATALOG = new String[][] { { "PerformanceManager", "perfCounter", "historicalInterval" } };
+
+    /**
+     * The counters and intervals of one vCenter.
+     */
+    static private class Catalog {
+        final Map<String,Integer> counters = new HashMap<String, Integer>();
+        final List<PerfInterval>  intervals = new ArrayList<PerfInterval>();
+    }
+
+    static private final Map<ServiceInstance,Catalog> catalogs = new WeakHashMap<ServiceInstance, Catalog>();
+
+    private VmPerformance() { }
+
+    static private @Nonnull Catalog getCatalog(@Nonnull ServiceInstance instance) throws CloudException {
+        synchronized( catalogs ) {
+            Catalog catalog = catalogs.get(instance);
+
+            if( catalog != null ) {
+                return catalog;
+            }
+        }
+        ObjectSpec os = new ObjectSpec();
+
+        os.setObj(instance.getServiceContent().getPerfManager());
+        os.setSkip(Boolean.FALSE);
+
+        PropertyFilterSpec spec = new PropertyFilterSpec();
+
+        spec.setObjectSet(new ObjectSpec[] { os });
+        spec.setPropSet(PropertyCollectorUtil.buildPropertySpecArray(CATALOG));
+
+        Catalog catalog = new Catalog();
+
+        for( ObjectContent content : PropertyRetriever.retrieve(instance, spec) ) {
+            Object counters = PropertyRetriever.getValue(content, "perfCounter");
+            Object intervals = PropertyRetriever.getValue(content, "historicalInterval");
+
+            if( counters instanceof PerfCounterInfo[] ) {
+                for( PerfCounterInfo info : (PerfCounterInfo[])counters ) {
+                    catalog.counters.put(info.getGroupInfo().getKey() + "." + info.getNameInfo().getKey() + "." + info.getRollupType(), info.getKey());
+                }
+            }
+            if( intervals instanceof PerfInterval[] ) {
+                for( PerfInterval interval : (PerfInterval[])intervals ) {
+                    if( interval.isEnabled() ) {
+                        catalog.intervals.add(interval);
+                    }
+                }
+            }
+        }
+        Collections.sort(catalog.intervals, new Comparator<PerfInterval>() {
+            @Override
+            public int compare(PerfInterval a, PerfInterval b) {
+                return Integer.compare(a.getSamplingPeriod(), b.getSamplingPeriod());
+            }
+        });
+        synchronized( catalogs ) {
+            catalogs.put(instance, catalog);
+        }
+        return catalog;
+    }
+
+    /**
+     * Looks up a counter of the connection's vCenter, for queries of other entities than VMs.
+     * @param instance the connection to query through
+     * @param counter the counter as <code>group.name.rollup</code>
+     * @return the counter key or <code>null</code> if vCenter does not report the counter
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    static @Nullable Integer getCounterKey(@Nonnull ServiceInstance instance, @Nonnull String counter) throws CloudException {
+        return getCatalog(instance).counters.get(counter);
+    }
+
+    /**
+     * Picks the interval to query a range with.
+     * @param intervals the enabled historical intervals, finest first
+     * @param from the start of the range
+     * @param now the current time
+     * @return the sampling period in seconds
+     */
+    static int selectInterval(@Nonnull List<PerfInterval> intervals, long from, long now) {
+        if( from >= now - REAL_TIME_RETENTION || intervals.isEmpty() ) {
+            return REAL_TIME_INTERVAL;
+        }
+        for( PerfInterval interval : intervals ) {
+            if( from >= now - (interval.getLength() * 1000L) ) {
+                return interval.getSamplingPeriod();
+            }
+        }
+        return intervals.get(intervals.size() - 1).getSamplingPeriod();
+    }
+
+    /**
+     * Starts reading statistics for a set of VMs. The first batch is queried right away so that errors surface to
+     * the caller; the others are queried as the iteration reaches them.
+     * @param instance the connection to query through
+     * @param vms the VMs to query by Dasein VM ID
+     * @param from the start of the range in milliseconds since the epoch
+     * @param to the end of the range in milliseconds since the epoch
+     * @return the iterator of the statistic samples per VM, in the order of the VMs
+     * @throws CloudException an error occurred talking to vSphere
+     */
+    static @Nonnull Iterator<Map.Entry<String,List<VmStatistics>>> query(@Nonnull ServiceInstance instance, @Nonnull Map<String,ManagedObjectReference> vms, long from, long to) throws CloudException {
+        Catalog catalog = getCatalog(instance);
+        List<PerfMetricId> metrics = new ArrayList<PerfMetricId>();
+
+        for( String name : COUNTERS ) {
+            Integer key = catalog.counters.get(name);
+
+            if( key != null ) {
+                PerfMetricId id = new PerfMetricId();
+
+                id.setCounterId(key);
+                id.setInstance(""); // the aggregate over all disks or NICs
+                metrics.add(id);
+            }
+        }
+        if( metrics.isEmpty() ) {
+            throw new CloudException("vCenter reports none of the counters " + Arrays.toString(COUNTERS));
+        }
+        Batches batches = new Batches(instance, catalog, metrics.toArray(new PerfMetricId[metrics.size()]), vms, from, to);
+
+        batches.advance();
+        return batches;
+    }
+
+    /**
+     * Queries one batch at a time as the iteration reaches it. A batch that fails ends the iteration: this and every
+     * later call of {@link #hasNext()} or {@link #next()} throws an {@link IllegalStateException} whose cause is the
+     * {@link CloudException}, so a failure is never mistaken for the end of the VMs.
+     */
+    static private class Batches implements Iterator<Map.Entry<String,List<VmStatistics>>> {
+        private final ServiceInstance                          instance;
+        private final Catalog                                  catalog;
+        private final PerfMetricId[]                           metrics;
+        private final List<Map.Entry<String,ManagedObjectReference>> vms;
+        private final long                                     from;
+        private final long                                     to;
+        private int                                            offset = 0;
+        private Iterator<Map.Entry<String,List<VmStatistics>>> batch = Collections.emptyIterator();
+        private CloudException                                 error;
+
+        Batches(@Nonnull ServiceInstance instance, @Nonnull Catalog catalog, @Nonnull PerfMetricId[] metrics, @Nonnull Map<String,ManagedObjectReference> vms, long from, long to) {
+            this.instance = instance;
+            this.catalog = catalog;
+            this.metrics = metrics;
+            this.vms = new ArrayList<Map.Entry<String,ManagedObjectReference>>(vms.entrySet());
+            this.from = from;
+            this.to = to;
+        }
+
+        boolean advance() throws CloudException {
+            if( error != null ) {
+                throw error;
+            }
+            while( !batch.hasNext() ) {
+                if( offset >= vms.size() ) {
+                    return false;
+                }
+                try {
+                    batch = fetch(vms.subList(offset, Math.min(vms.size(), offset + BATCH_SIZE))).iterator();
+                    offset += BATCH_SIZE;
+                }
+                catch( CloudException e ) {
+                    error = e;
+                    throw e;
+                }
+            }
+            return true;
+        }
+
+        @Override
+        public boolean hasNext() {
+            try {
+                return advance();
+            }
+            catch( CloudException e ) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public @Nonnull Map.Entry<String,List<VmStatistics>> next() {
+            if( !hasNext() ) {
+                throw new NoSuchElementException();
+            }
+            return batch.next();
+        }
+
+        @Override
+        public void remove() {
+            throw new UnsupportedOperationException("Statistics cannot be removed");
+        }
+
+        private @Nonnull List<Map.Entry<String,List<VmStatistics>>> fetch(@Nonnull List<Map.Entry<String,ManagedObjectReference>> batch) throws CloudException {
+            int interval = selectInterval(catalog.intervals, from, System.currentTimeMillis());
+            Calendar start = Calendar.getInstance();
+            Calendar end = Calendar.getInstance();
+            PerfQuerySpec[] specs = new PerfQuerySpec[batch.size()];
+            Map<String,String> ids = new HashMap<String, String>();
+
+            start.setTimeInMillis(from);
+            end.setTimeInMillis(to);
+            for( int i=0; i<specs.length; i++ ) {
+                Map.Entry<String,ManagedObjectReference> vm = batch.get(i);
+
+                specs[i] = new PerfQuerySpec();
+                specs[i].setEntity(vm.getValue());
+                specs[i].setStartTime(start);
+                specs[i].setEndTime(end);
+                specs[i].setIntervalId(interval);
+                specs[i].setMetricId(metrics);
+                specs[i].setFormat("normal");
+                ids.put(vm.getValue().getVal(), vm.getKey());
+            }
+            PerfEntityMetricBase[] results;
+
+            try {
+                results = instance.getPerformanceManager().queryPerf(specs);
+            }
+            catch( RuntimeFault e ) {
+                throw new CloudException("Error in processing statistics request: " + e.getMessage());
+            }
+            catch( RemoteException e ) {
+                throw new CloudException("Error in statistics request: " + e.getMessage());
+            }
+            Map<String,List<VmStatistics>> byId = new HashMap<String, List<VmStatistics>>();
+
+            if( results != null ) {
+                for( PerfEntityMetricBase result : results ) {
+                    String vmId = ids.get(result.getEntity().getVal());
+
+                    if( vmId != null && result instanceof PerfEntityMetric ) {
+                        byId.put(vmId, toSamples(catalog, (PerfEntityMetric)result));
+                    }
+                }
+            }
+            List<Map.Entry<String,List<VmStatistics>>> entries = new ArrayList<Map.Entry<String,List<VmStatistics>>>();
+
+            for( Map.Entry<String,ManagedObjectReference> vm : batch ) {
+                List<VmStatistics> samples = byId.get(vm.getKey());
+
+                entries.add(new AbstractMap.SimpleImmutableEntry<String,List<VmStatistics>>(vm.getKey(), samples == null ? Collections.<VmStatistics>emptyList() : samples));
+            }
+            return entries;
+        }
+    }
+
+    /**
+     * Converts the samples of one VM. CPU usage is reported in hundredths of a percent; disk and network throughput
+     * in KB per second, which is turned into bytes per sample.
+     */
+    static private @Nonnull List<VmStatistics> toSamples(@Nonnull Catalog catalog, @Nonnull PerfEntityMetric metric) {
+        PerfSampleInfo[] info = metric.getSampleInfo();
+        List<VmStatistics> samples = new ArrayList<VmStatistics>();
+
+        if( info == null ) {
+            return samples;
+        }
+        Map<Integer,long[]> values = new HashMap<Integer, long[]>();
+
+        if( metric.getValue() != null ) {
+            for( PerfMetricSeries series : metric.getValue() ) {
+                if( series instanceof PerfMetricIntSeries && ((PerfMetricIntSeries)series).getValue() != null ) {
+                    values.put(series.getId().getCounterId(), ((PerfMetricIntSeries)series).getValue());
+                }
+            }
+        }
+        for( int i=0; i<info.length; i++ ) {
+            VmStatistics stats = new VmStatistics();
+            long end = info[i].getTimestamp().getTimeInMillis();
+            long seconds = info[i].getInterval();
+            double cpu = getValue(catalog, values, CPU, i) / 100.0;
+            double read = getValue(catalog, values, DISK_READ, i) * 1024.0 * seconds;
+            double write = getValue(catalog, values, DISK_WRITE, i) * 1024.0 * seconds;
+            double in = getValue(catalog, values, NET_IN, i) * 1024.0 * seconds;
+            double out = getValue(catalog, values, NET_OUT, i) * 1024.0 * seconds;
+
+            stats.setStartTimestamp(end - (seconds * 1000L));
+            stats.setEndTimestamp(end);
+            stats.setSamples(1);
+            stats.setAverageCpuUtilization(cpu);
+            stats.setMinimumCpuUtilization(cpu);
+            stats.setMaximumCpuUtilization(cpu);
+            stats.setAverageDiskReadBytes(read);
+            stats.setMinimumDiskReadBytes(read);
+            stats.setMaximumDiskReadBytes(read);
+            stats.setAverageDiskWriteBytes(write);
+            stats.setMinimumDiskWriteBytes(write);
+            stats.setMaximumDiskWriteBytes(write);
+            stats.setAverageNetworkIn(in);
+            stats.setMinimumNetworkIn(in);
+            stats.setMaximumNetworkIn(in);
+            stats.setAverageNetworkOut(out);
+            stats.setMinimumNetworkOut(out);
+            stats.setMaximumNetworkOut(out);
+            samples.add(stats);
+        }
+        return samples;
+    }
+
+    static private long getValue(@Nonnull Catalog catalog, @Nonnull Map<Integer,long[]> values, @Nonnull String counter, int index) {
+        Integer key = catalog.counters.get(counter);
+        long[] series = (key == null ? null : values.get(key));
+
+        // -1 marks a sample vCenter has no value for
+        return (series == null || index >= series.length || series[index] < 0L ? 0L : series[index]);
+    }
+
+    /**
+     * Rolls samples up into the statistics of the whole range.
+     * @param samples the samples of one VM, oldest first
+     * @return the averages, minimums and maximums over the samples or <code>null</code> if there are none
+     */
+    static @Nullable VmStatistics summarize(@Nonnull List<VmStatistics> samples) {
+        if( samples.isEmpty() ) {
+            return null;
+        }
+        VmStatistics total = new VmStatistics();
+        int count = samples.size();
+        VmStatistics first = samples.get(0);
+
+        total.setStartTimestamp(first.getStartTimestamp());
+        total.setEndTimestamp(samples.get(count - 1).getEndTimestamp());
+        total.setSamples(count);
+        total.setMinimumCpuUtilization(first.getMinimumCpuUtilization());
+        total.setMinimumDiskReadBytes(first.getMinimumDiskReadBytes());
+        total.setMinimumDiskWriteBytes(first.getMinimumDiskWriteBytes());
+        total.setMinimumNetworkIn(first.getMinimumNetworkIn());
+        total.setMinimumNetworkOut(first.getMinimumNetworkOut());
+
+        double cpu = 0.0, read = 0.0, write = 0.0, in = 0.0, out = 0.0;
+
+        for( VmStatistics s : samples ) {
+            cpu += s.getAverageCpuUtilization();
+            read += s.getAverageDiskReadBytes();
+            write += s.getAverageDiskWriteBytes();
+            in += s.getAverageNetworkIn();
+            out += s.getAverageNetworkOut();
+            total.setMinimumCpuUtilization(Math.min(total.getMinimumCpuUtilization(), s.getMinimumCpuUtilization()));
+            total.setMaximumCpuUtilization(Math.max(total.getMaximumCpuUtilization(), s.getMaximumCpuUtilization()));
+            total.setMinimumDiskReadBytes(Math.min(total.getMinimumDiskReadBytes(), s.getMinimumDiskReadBytes()));
+            total.setMaximumDiskReadBytes(Math.max(total.getMaximumDiskReadBytes(), s.getMaximumDiskReadBytes()));
+            total.setMinimumDiskWriteBytes(Math.min(total.getMinimumDiskWriteBytes(), s.getMinimumDiskWriteBytes()));
+            total.setMaximumDiskWriteBytes(Math.max(total.getMaximumDiskWriteBytes(), s.getMaximumDiskWriteBytes()));
+            total.setMinimumNetworkIn(Math.min(total.getMinimumNetworkIn(), s.getMinimumNetworkIn()));
+            total.setMaximumNetworkIn(Math.max(total.getMaximumNetworkIn(), s.getMaximumNetworkIn()));
+            total.setMinimumNetworkOut(Math.min(total.getMinimumNetworkOut(), s.getMinimumNetworkOut()));
+            total.setMaximumNetworkOut(Math.max(total.getMaximumNetworkOut(), s.getMaximumNetworkOut()));
+        }
+        total.setAverageCpuUtilization(cpu / count);
+        total.setAverageDiskReadBytes(read / count);
+        total.setAverageDiskWriteBytes(write / count);
+        total.setAverageNetworkIn(in / count);
+        total.setAverageNetworkOut(out / count);
+        return total;
+    }
+}
@@ -0,0 +1,352 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.network.RawAddress;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Compact snapshot of a vSphere VM, the form in which listings hold VMs until a Dasein {@link VirtualMachine} is
+ * handed out through the API. Names shared across VMs (data centers, hosts, resource pools, folders, networks,
+ * datastores and source images) are interned, the instance UUID is kept as two longs, CPU, memory and state are
+ * primitives and the guest IP addresses are packed into a single byte array, so that a record costs a few hundred
+ * bytes instead of the tag map and address objects a {@link VirtualMachine} carries.
+ * @since 2015.09
+ */
+public final class VmRecord {
+    static private final Charset UTF8 = Charset.forName("UTF-8");
+
+    static private final Platform[]     PLATFORMS     = Platform.values();
+    static private final Architecture[] ARCHITECTURES = Architecture.values();
+    static private final VmState[]      STATES        = VmState.values();
+
+    static private final byte NONE = -1;
+
+    // flags of each packed address
+    static private final int ADDRESS_PUBLIC = 1;
+    static private final int ADDRESS_TEXT   = 2;
+
+    // record flags
+    static private final int RUNTIME    = 1;
+    static private final int REBOOTABLE = 2;
+
+    static @Nullable String intern(@Nullable String value) {
+        return (value == null ? null : value.intern());
+    }
+
+    /**
+     * Packs guest IP addresses in their original order. Dotted-quad IPv4 addresses take four bytes; anything else
+     * (IPv6 in particular) is kept as UTF-8 text so that it reads back exactly as the guest reported it.
+     * @param addresses the addresses as reported by the guest
+     * @param publicFlags whether the address at the same index is public
+     * @return the packed addresses or <code>null</code> if there are none
+     */
+    static @Nullable byte[] packAddresses(@Nonnull List<String> addresses, @Nonnull List<Boolean> publicFlags) {
+        if( addresses.isEmpty() ) {
+            return null;
+        }
+        ByteArrayOutputStream out = new ByteArrayOutputStream(addresses.size() * 5);
+
+        for( int i = 0; i < addresses.size(); i++ ) {
+            String address = addresses.get(i);
+            int flags = (publicFlags.get(i) ? ADDRESS_PUBLIC : 0);
+            long v4 = parseIpv4(address);
+
+            if( v4 < 0 ) {
+                byte[] text = address.getBytes(UTF8);
+
+                if( text.length > 255 ) {
+                    continue;
+                }
+                out.write(flags | ADDRESS_TEXT);
+                out.write(text.length);
+                out.write(text, 0, text.length);
+            }
+            else {
+                out.write(flags);
+                out.write((int)(v4 >>> 24));
+                out.write((int)(v4 >>> 16));
+                out.write((int)(v4 >>> 8));
+                out.write((int)v4);
+            }
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * @param address a textual IP address
+     * @return the address as an unsigned 32 bit value or -1 if it is not an IPv4 address in canonical dotted-quad form
+     */
+    static long parseIpv4(@Nonnull String address) {
+        long value = 0;
+        int octets = 0;
+        int octet = -1;
+
+        for( int i = 0; i <= address.length(); i++ ) {
+            char c = (i < address.length() ? address.charAt(i) : '.');
+
+            if( c == '.' ) {
+                if( octet < 0 || ++octets > 4 ) {
+                    return -1;
+                }
+                value = (value << 8) | octet;
+                octet = -1;
+            }
+            else if( c >= '0' && c <= '9' ) {
+                if( octet == 0 ) {
+                    return -1; // leading zero, would not read back the same
+                }
+                octet = (octet < 0 ? 0 : octet * 10) + (c - '0');
+                if( octet > 255 ) {
+                    return -1;
+                }
+            }
+            else {
+                return -1;
+            }
+        }
+        return (octets == 4 ? value : -1);
+    }
+
+    static private @Nullable RawAddress[] unpackAddresses(@Nullable byte[] packed, boolean wantPublic) {
+        if( packed == null ) {
+            return null;
+        }
+        List<RawAddress> addresses = new ArrayList<RawAddress>();
+        int i = 0;
+
+        while( i < packed.length ) {
+            int flags = packed[i++];
+            String address;
+
+            if( (flags & ADDRESS_TEXT) != 0 ) {
+                int length = packed[i++] & 0xff;
+
+                address = new String(packed, i, length, UTF8);
+                i += length;
+            }
+            else {
+                address = (packed[i] & 0xff) + "." + (packed[i + 1] & 0xff) + "." + (packed[i + 2] & 0xff) + "." + (packed[i + 3] & 0xff);
+                i += 4;
+            }
+            if( ((flags & ADDRESS_PUBLIC) != 0) == wantPublic ) {
+                addresses.add(new RawAddress(address));
+            }
+        }
+        return (addresses.isEmpty() ? null : addresses.toArray(new RawAddress[addresses.size()]));
+    }
+
+    static private byte ordinal(@Nullable Enum<?> value) {
+        return (value == null ? NONE : (byte)value.ordinal());
+    }
+
+    String   name;
+    String   description;
+    // the instance UUID, unless it is not in canonical form and kept as text instead
+    long     uuidHigh;
+    long     uuidLow;
+    String   uuidText;
+    String   imageId;
+    String   dataCenterId;
+    String   regionId;
+    String   hostName;
+    String   resourcePoolId;
+    String   folderName;
+    String   vlanId;
+    String   dnsName;
+    String   assignedIpAddress;
+    String[] datastores;
+    byte[]   addresses;
+    int      cpuCount;
+    int      memoryMb;
+    long     lastBootTimestamp;
+    long     lastPauseTimestamp;
+    byte     platform     = NONE;
+    byte     architecture = NONE;
+    byte     state        = NONE;
+    byte     flags;
+
+    VmRecord() { }
+
+    void setInstanceUuid(@Nonnull String uuid) {
+        try {
+            UUID parsed = UUID.fromString(uuid);
+
+            if( parsed.toString().equals(uuid) ) {
+                uuidHigh = parsed.getMostSignificantBits();
+                uuidLow = parsed.getLeastSignificantBits();
+                uuidText = null;
+                return;
+            }
+        }
+        catch( IllegalArgumentException ignore ) {
+            // not a UUID, keep it as it is
+        }
+        uuidText = uuid;
+    }
+
+    void setPlatform(@Nullable Platform platform) {
+        this.platform = ordinal(platform);
+    }
+
+    void setArchitecture(@Nullable Architecture architecture) {
+        this.architecture = ordinal(architecture);
+    }
+
+    void setState(@Nullable VmState state, boolean rebootable) {
+        this.state = ordinal(state);
+        this.flags |= RUNTIME;
+        if( rebootable ) {
+            this.flags |= REBOOTABLE;
+        }
+    }
+
+    public @Nullable String getName() {
+        return name;
+    }
+
+    public @Nonnull String getInstanceUuid() {
+        return (uuidText != null ? uuidText : new UUID(uuidHigh, uuidLow).toString());
+    }
+
+    public @Nullable String getDataCenterId() {
+        return dataCenterId;
+    }
+
+    public @Nullable String getRegionId() {
+        return regionId;
+    }
+
+    public @Nullable String getHostName() {
+        return hostName;
+    }
+
+    public @Nullable String getResourcePoolId() {
+        return resourcePoolId;
+    }
+
+    public int getCpuCount() {
+        return cpuCount;
+    }
+
+    public int getMemoryMb() {
+        return memoryMb;
+    }
+
+    /**
+     * @return the VM state or <code>null</code> if vCenter did not report the runtime of the VM
+     */
+    public @Nullable VmState getState() {
+        return (state == NONE ? null : STATES[state]);
+    }
+
+    /**
+     * Builds the Dasein view of the VM.
+     * @param ownerId the account that owns the VM, used for images of unknown origin as well
+     * @return a new virtual machine populated from this record
+     */
+    public @Nonnull VirtualMachine toVirtualMachine(@Nonnull String ownerId) {
+        VirtualMachine server = new VirtualMachine();
+
+        if( hostName != null ) {
+            server.setAffinityGroupId(hostName);
+        }
+        server.setName(name);
+        if( platform != NONE ) {
+            server.setPlatform(PLATFORMS[platform]);
+        }
+        server.setProviderVirtualMachineId(getInstanceUuid());
+        server.setPersistent(true);
+        server.setImagable(true);
+        server.setClonable(true);
+        if( architecture != NONE ) {
+            server.setArchitecture(ARCHITECTURES[architecture]);
+        }
+        server.setDescription(description == null ? name : description);
+        server.setProductId(cpuCount + ":" + memoryMb);
+        server.setProviderMachineImageId(imageId == null ? ownerId + "-unknown" : imageId);
+        server.setProviderDataCenterId(dataCenterId);
+        server.setProviderRegionId(regionId);
+        if( resourcePoolId != null ) {
+            server.setResourcePoolId(resourcePoolId);
+        }
+        if( vlanId != null ) {
+            server.setProviderVlanId(vlanId);
+        }
+        if( dnsName != null ) {
+            server.setPrivateDnsAddress(dnsName);
+        }
+        if( assignedIpAddress != null ) {
+            server.setProviderAssignedIpAddressId(assignedIpAddress);
+        }
+        RawAddress[] privateAddresses = unpackAddresses(addresses, false);
+        RawAddress[] publicAddresses = unpackAddresses(addresses, true);
+
+        if( privateAddresses != null ) {
+            server.setPrivateAddresses(privateAddresses);
+        }
+        if( publicAddresses != null ) {
+            server.setPublicAddresses(publicAddresses);
+        }
+        if( (flags & RUNTIME) != 0 ) {
+            if( state != NONE ) {
+                server.setCurrentState(STATES[state]);
+            }
+            if( (flags & REBOOTABLE) != 0 ) {
+                server.setRebootable(true);
+            }
+            server.setLastPauseTimestamp(lastPauseTimestamp);
+            if( lastPauseTimestamp > 0L ) {
+                server.setCreationTimestamp(lastPauseTimestamp);
+            }
+            server.setLastBootTimestamp(lastBootTimestamp);
+            if( lastBootTimestamp > 0L ) {
+                server.setCreationTimestamp(lastBootTimestamp);
+            }
+        }
+        server.setProviderOwnerId(ownerId);
+
+        Map<String,String> tags = new HashMap<String, String>();
+
+        if( datastores != null ) {
+            for( int i = 0; i < datastores.length; i++ ) {
+                tags.put("datastore" + i, datastores[i]);
+            }
+        }
+        if( folderName != null ) {
+            tags.put("vmFolder", folderName);
+        }
+        server.setTags(tags);
+        return server;
+    }
+}
@@ -0,0 +1,293 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.rmi.RemoteException;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.vim25.DuplicateName;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.mo.Datacenter;
+import com.vmware.vim25.mo.Folder;
+import com.vmware.vim25.mo.InventoryNavigator;
+import com.vmware.vim25.mo.ManagedEntity;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.vsphere.InventoryCache;
+import org.dasein.cloud.vsphere.InventoryChange;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.PropertyRetriever;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Powered-off clones of templates kept ready in the {@link #FOLDER} VM folder of the region so that a template
+ * launch only has to rename, move and power on one of them (see {@link PrivateCloud#getWarmPoolSize()}). Clones are
+ * pooled per template, product, VLAN, data center and linked clone settings, which each clone carries in its
+ * annotation; launches that customize the guest or pin the VM to a host,
+ * datastore or resource pool are not served from the pool. Claimed clones are replaced in the background on a
+ * separate connection. The pool only tracks clones in this JVM, picking up the ones left in the folder by an
+ * earlier run the first time a configuration is launched.
+ * @since 2015.09
+ */
+final class WarmPool {
+    static private final Logger logger = PrivateCloud.getLogger(WarmPool.class, "std");
+
+    /**
+     * The VM folder warm clones wait in; VM listings leave out the VMs in it.
+     */
+    static final String FOLDER = "dasein-warm-pool";
+
+    static private final String PREFIX = "warm-";
+
+    /**
+     * Starts the annotation of a pooled clone, followed by the launch configuration it was cloned for; the claim
+     * restores the usual annotation.
+     */
+    static final String ANNOTATION = "dasein-warm-pool:";
+
+    static private final String[][] CLONES = new String[][] { { "VirtualMachine", "config.annotation" } };
+
+    static private class Slot {
+        final String                         annotation;
+        final ConcurrentLinkedQueue<String>  ready   = new ConcurrentLinkedQueue<String>();
+        final AtomicInteger                  pending = new AtomicInteger();
+        volatile boolean                     scanned = false;
+
+        Slot(@Nonnull String annotation) {
+            this.annotation = annotation;
+        }
+    }
+
+    static private final ConcurrentMap<String,Slot> slots = new ConcurrentHashMap<String, Slot>();
+
+    static private final ExecutorService refills = Executors.newFixedThreadPool(2, new ThreadFactory() {
+        private final AtomicInteger count = new AtomicInteger();
+
+        @Override
+        public Thread newThread(@Nonnull Runnable r) {
+            Thread t = new Thread(r, "vsphere-warm-pool-" + count.incrementAndGet());
+
+            t.setDaemon(true);
+            return t;
+        }
+    });
+
+    private WarmPool() { }
+
+    /**
+     * @param options the launch options of a template launch
+     * @return true if a pooled clone can stand in for a fresh clone with these options
+     */
+    static boolean isEligible(@Nonnull VMLaunchOptions options) {
+        return (options.getPrivateIp() == null && options.getAffinityGroupId() == null && options.getStoragePoolId() == null
+                && options.getResourcePoolId() == null && options.getStandardProductId().split(":").length == 2);
+    }
+
+    /**
+     * Describes everything that shapes a clone, so that a pooled clone only serves launches it is identical for.
+     */
+    static private @Nonnull String toConfiguration(@Nonnull PrivateCloud provider, @Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+        Object snapshot = options.getMetaData().get(Vm.LINKED_CLONE_SNAPSHOT);
+        boolean linked = provider.getComputeServices().getVirtualMachineSupport().isLinkedClone(options);
+
+        return provider.getContext().getRegionId() + "|" + options.getMachineImageId() + "|" + options.getStandardProductId() + "|" + options.getVlanId() + "|" + options.getDataCenterId()
+                + "|linked=" + linked + "|snapshot=" + (linked && snapshot != null ? snapshot : "");
+    }
+
+    static private @Nonnull Slot getSlot(@Nonnull PrivateCloud provider, @Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+        String configuration = toConfiguration(provider, options);
+        String key = provider.getContext().getEndpoint() + "|" + configuration;
+        Slot slot = slots.get(key);
+
+        if( slot == null ) {
+            // the annotation ties the clones to the configuration so that a later run can find them again
+            slot = new Slot(ANNOTATION + configuration);
+
+            Slot existing = slots.putIfAbsent(key, slot);
+
+            if( existing != null ) {
+                slot = existing;
+            }
+        }
+        return slot;
+    }
+
+    /**
+     * Finds the warm pool folder of the current region.
+     * @param provider the provider to look through
+     * @param instance the connection to look through
+     * @param create whether to create the folder if it does not exist yet
+     * @return the folder or <code>null</code> if it does not exist and was not to be created
+     * @throws CloudException an error occurred talking to vSphere
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     */
+    static @Nullable Folder getFolder(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance, boolean create) throws CloudException, InternalException {
+        String regionId = provider.getContext().getRegionId();
+        Datacenter dc = (regionId == null ? null : provider.getDataCenterServices().getVmwareDatacenterFromVDCId(instance, regionId));
+
+        if( dc == null ) {
+            throw new CloudException("Unable to identify the data center of region " + regionId);
+        }
+        try {
+            Folder root = dc.getVmFolder();
+            ManagedEntity folder = new InventoryNavigator(root).searchManagedEntity("Folder", FOLDER);
+
+            if( folder == null && create ) {
+                try {
+                    folder = root.createFolder(FOLDER);
+                    InventoryCache.publish(provider.getContext(), InventoryChange.FOLDER_CREATED);
+                }
+                catch( DuplicateName e ) {
+                    // created by a concurrent refill
+                    folder = new InventoryNavigator(root).searchManagedEntity("Folder", FOLDER);
+                }
+            }
+            return (Folder)folder;
+        }
+        catch( RemoteException e ) {
+            throw new CloudException(e);
+        }
+    }
+
+    /**
+     * Takes a clone for the launch configuration out of the pool.
+     * @param provider the provider of the launch
+     * @param instance the connection of the launch
+     * @param options the launch options, which must be {@link #isEligible(VMLaunchOptions) eligible}
+     * @return the clone or <code>null</code> if none is ready
+     * @throws CloudException an error occurred looking for clones left by an earlier run
+     * @throws InternalException an error occurred within the Dasein Cloud API implementation
+     */
+    static @Nullable ManagedObjectReference claim(@Nonnull PrivateCloud provider, @Nonnull ServiceInstance instance, @Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+        Slot slot = getSlot(provider, options);
+
+        if( !slot.scanned ) {
+            synchronized( slot ) {
+                if( !slot.scanned ) {
+                    Folder folder = getFolder(provider, instance, false);
+
+                    if( folder != null ) {
+                        for( ObjectContent content : PropertyRetriever.retrieve(instance, folder, CLONES) ) {
+                            String annotation = PropertyRetriever.getString(content, "config.annotation");
+
+                            if( slot.annotation.equals(annotation) && !slot.ready.contains(content.getObj().getVal()) ) {
+                                slot.ready.add(content.getObj().getVal());
+                            }
+                        }
+                    }
+                    slot.scanned = true;
+                }
+            }
+        }
+        String id = slot.ready.poll();
+
+        if( id == null ) {
+            return null;
+        }
+        ManagedObjectReference mor = new ManagedObjectReference();
+
+        mor.setType("VirtualMachine");
+        mor.setVal(id);
+        return mor;
+    }
+
+    /**
+     * Starts background clones until the pool for the launch configuration is back at its configured size.
+     * @param provider the provider of the launch, whose context the refills connect with
+     * @param options the launch options, which must be {@link #isEligible(VMLaunchOptions) eligible}
+     */
+    static void refill(@Nonnull PrivateCloud provider, @Nonnull final VMLaunchOptions options) {
+        final ProviderContext ctx = provider.getContext();
+        final Slot slot;
+
+        try {
+            slot = getSlot(provider, options);
+        }
+        catch( Exception e ) {
+            logger.warn("Unable to refill the warm pool for " + options.getMachineImageId() + ": " + e.getMessage());
+            return;
+        }
+        int missing = provider.getWarmPoolSize() - slot.ready.size() - slot.pending.get();
+
+        for( int i = 0; i < missing; i++ ) {
+            slot.pending.incrementAndGet();
+            refills.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        PrivateCloud p = (PrivateCloud)ctx.connect();
+
+                        try {
+                            ServiceInstance instance = p.getServiceInstance();
+
+                            if( instance == null ) {
+                                throw new CloudException("Unable to connect to refill the warm pool");
+                            }
+                            Vm support = p.getComputeServices().getVirtualMachineSupport();
+                            Vm.ClonePlan plan = support.planClone(options, getFolder(p, instance, true));
+                            String name = PREFIX + UUID.randomUUID().toString().substring(0, 8);
+
+                            plan.annotation = slot.annotation;
+                            ManagedObjectReference vm = support.cloneTemplate(plan, options, name, null, null, false);
+
+                            slot.ready.add(vm.getVal());
+                        }
+                        finally {
+                            p.close();
+                        }
+                    }
+                    catch( Throwable t ) {
+                        logger.warn("Unable to refill the warm pool for " + options.getMachineImageId() + ": " + t.getMessage());
+                    }
+                    finally {
+                        slot.pending.decrementAndGet();
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of clones ready for the launch configuration, for monitoring and tests
+     */
+    static int getReadyCount(@Nonnull PrivateCloud provider, @Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+        return getSlot(provider, options).ready.size();
+    }
+
+    /**
+     * @return the number of clones being created for the launch configuration
+     */
+    static int getPendingCount(@Nonnull PrivateCloud provider, @Nonnull VMLaunchOptions options) throws CloudException, InternalException {
+        return getSlot(provider, options).pending.get();
+    }
+}
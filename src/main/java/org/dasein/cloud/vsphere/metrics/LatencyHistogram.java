@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock-free latency histogram with logarithmic buckets: every power of two is split into 16 linear sub-buckets,
+ * so percentiles are accurate to within about 6% from one microsecond up to hours.
+ * @since 2015.09
+ */
+public class LatencyHistogram {
+    static private final int SUB_BUCKET_BITS  = 4;
+    static private final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    static private final int MAX_EXPONENT     = 40;
+    static private final int BUCKET_COUNT     = SUB_BUCKET_COUNT + (MAX_EXPONENT - SUB_BUCKET_BITS + 1) * SUB_BUCKET_COUNT;
+
+    static int toIndex(long micros) {
+        if( micros < SUB_BUCKET_COUNT ) {
+            return (int)Math.max(0L, micros);
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+
+        if( exponent > MAX_EXPONENT ) {
+            return BUCKET_COUNT - 1;
+        }
+        int sub = (int)((micros >> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKET_COUNT - 1));
+
+        return SUB_BUCKET_COUNT + (exponent - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT + sub;
+    }
+
+    /**
+     * @param index a bucket index
+     * @return the largest value in microseconds that falls into the bucket
+     */
+    static long toUpperBound(int index) {
+        if( index < SUB_BUCKET_COUNT ) {
+            return index;
+        }
+        int exponent = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS;
+        int sub = (index - SUB_BUCKET_COUNT) % SUB_BUCKET_COUNT;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+
+        return ((SUB_BUCKET_COUNT + sub) * width) + width - 1;
+    }
+
+    private final AtomicLongArray buckets = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong      count   = new AtomicLong();
+    private final AtomicLong      total   = new AtomicLong();
+    private final AtomicLong      max     = new AtomicLong();
+
+    public void record(long elapsed, TimeUnit unit) {
+        long micros = unit.toMicros(elapsed);
+
+        buckets.incrementAndGet(toIndex(micros));
+        count.incrementAndGet();
+        total.addAndGet(micros);
+        long current = max.get();
+
+        while( micros > current && !max.compareAndSet(current, micros) ) {
+            current = max.get();
+        }
+    }
+
+    public long getCount() {
+        return count.get();
+    }
+
+    public double getMeanMicros() {
+        long n = count.get();
+
+        return (n == 0L ? 0.0 : ((double)total.get()) / n);
+    }
+
+    public long getMaxMicros() {
+        return max.get();
+    }
+
+    /**
+     * Estimates a percentile of the recorded latencies. Recording may continue while the estimate is computed,
+     * in which case the result reflects some but not necessarily all of the concurrent recordings.
+     * @param quantile the quantile between 0 and 1, e.g. 0.99 for the 99th percentile
+     * @return the upper bound of the bucket holding the percentile, never above the maximum recorded value
+     */
+    public long getPercentileMicros(double quantile) {
+        long[] counts = new long[BUCKET_COUNT];
+        long n = 0L;
+
+        for( int i=0; i<BUCKET_COUNT; i++ ) {
+            counts[i] = buckets.get(i);
+            n += counts[i];
+        }
+        if( n == 0L ) {
+            return 0L;
+        }
+        long rank = Math.max(1L, (long)Math.ceil(quantile * n));
+        long seen = 0L;
+
+        for( int i=0; i<BUCKET_COUNT; i++ ) {
+            seen += counts[i];
+            if( seen >= rank ) {
+                return Math.min(toUpperBound(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    public void reset() {
+        for( int i=0; i<BUCKET_COUNT; i++ ) {
+            buckets.set(i, 0L);
+        }
+        count.set(0L);
+        total.set(0L);
+        max.set(0L);
+    }
+}
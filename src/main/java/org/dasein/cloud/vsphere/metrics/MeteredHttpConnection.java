@@ -0,0 +1,300 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import java.io.ByteArrayOutputStream;
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.HttpURLConnection;
+import java.net.ProtocolException;
+import java.net.URL;
+import java.util.List;
+import java.util.Map;
+
+import org.dasein.cloud.vsphere.capture.SoapCapture;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * An HTTP connection handed to the vijava SOAP client in place of the JDK one. The request configuration is kept
+ * in this object and the body is buffered, and only when the caller asks for the response is a real connection
+ * opened and the request sent. That makes the request size and the time to first byte measurable. The connection
+ * never sends a request again by itself; it only observes the calls made through it, so a request the caller sends
+ * again after it failed is counted as a retry. With a {@link SoapCapture} the response is also copied as it is read
+ * and the exchange recorded once the response ends. A SOAP fault or a failed connection marks the operation traced
+ * on the calling thread as failed.
+ * @since 2015.09
+ */
+class MeteredHttpConnection extends HttpURLConnection {
+    private final URL                     target;
+    private final SoapCapture             capture;
+    private final ByteArrayOutputStream   body = new ByteArrayOutputStream();
+    private HttpURLConnection             delegate;
+    private IOException                   failure;
+    private WireStats.Exchange            exchange;
+    private String                        method;
+    private int                           status;
+    private long                          timeToFirstByte;
+
+    /**
+     * @param url the URL the caller opened
+     * @param target the same URL bound to the JDK's own protocol handler
+     * @param capture the capture to record the exchange to or <code>null</code> if not capturing
+     */
+    MeteredHttpConnection(@Nonnull URL url, @Nonnull URL target, @Nullable SoapCapture capture) {
+        super(url);
+        this.target = target;
+        this.capture = capture;
+    }
+
+    private void send() throws IOException {
+        if( delegate != null ) {
+            return;
+        }
+        if( failure != null ) {
+            throw failure;
+        }
+        byte[] request = body.toByteArray();
+
+        method = WireMeter.getSoapMethod(request);
+        exchange = (OperationTrace.isEnabled() ? WireStats.begin(method, request) : null);
+        HttpURLConnection connection = open();
+        long start = System.nanoTime();
+
+        try {
+            if( getDoOutput() ) {
+                OutputStream out = connection.getOutputStream();
+
+                body.writeTo(out);
+                out.close();
+            }
+            status = connection.getResponseCode();
+            timeToFirstByte = System.nanoTime() - start;
+            if( exchange != null ) {
+                exchange.responded(status);
+            }
+            if( status >= HTTP_BAD_REQUEST ) {
+                OperationTrace.fail(new ProtocolException(method + " failed with HTTP " + status));
+            }
+            delegate = connection;
+        }
+        catch( IOException e ) {
+            connection.disconnect();
+            if( exchange != null ) {
+                exchange.failed();
+            }
+            failure = e;
+            OperationTrace.fail(e);
+            throw e;
+        }
+    }
+
+    private @Nonnull HttpURLConnection open() throws IOException {
+        HttpURLConnection connection = (HttpURLConnection)target.openConnection();
+
+        connection.setRequestMethod(getRequestMethod());
+        connection.setDoInput(getDoInput());
+        connection.setDoOutput(getDoOutput());
+        connection.setUseCaches(getUseCaches());
+        connection.setConnectTimeout(getConnectTimeout());
+        connection.setReadTimeout(getReadTimeout());
+        connection.setInstanceFollowRedirects(getInstanceFollowRedirects());
+        for( Map.Entry<String,List<String>> header : getRequestProperties().entrySet() ) {
+            if( header.getKey() != null ) {
+                for( String value : header.getValue() ) {
+                    connection.addRequestProperty(header.getKey(), value);
+                }
+            }
+        }
+        if( getDoOutput() ) {
+            connection.setFixedLengthStreamingMode(body.size());
+        }
+        return connection;
+    }
+
+    private @Nullable InputStream meter(@Nullable InputStream in) {
+        if( in == null || (exchange == null && capture == null) ) {
+            return in;
+        }
+        final WireStats.Exchange current = exchange;
+        final ByteArrayOutputStream copy = (capture == null ? null : new ByteArrayOutputStream());
+
+        return new FilterInputStream(in) {
+            private boolean recorded = false;
+
+            @Override
+            public int read() throws IOException {
+                long start = System.nanoTime();
+                int b = super.read();
+
+                if( current != null ) {
+                    current.read(start, b < 0 ? -1 : 1);
+                }
+                if( copy != null ) {
+                    if( b < 0 ) {
+                        record();
+                    }
+                    else {
+                        copy.write(b);
+                    }
+                }
+                return b;
+            }
+
+            @Override
+            public int read(@Nonnull byte[] buffer, int offset, int length) throws IOException {
+                long start = System.nanoTime();
+                int count = super.read(buffer, offset, length);
+
+                if( current != null ) {
+                    current.read(start, count);
+                }
+                if( copy != null ) {
+                    if( count < 0 ) {
+                        record();
+                    }
+                    else {
+                        copy.write(buffer, offset, count);
+                    }
+                }
+                return count;
+            }
+
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                }
+                finally {
+                    if( current != null ) {
+                        current.closed();
+                    }
+                    if( copy != null ) {
+                        record();
+                    }
+                }
+            }
+
+            private void record() {
+                if( !recorded ) {
+                    recorded = true;
+                    capture.record(method, body.toByteArray(), status, copy.toByteArray(), timeToFirstByte / 1000L);
+                }
+            }
+        };
+    }
+
+    @Override
+    public void connect() throws IOException {
+        // the connection is opened once the request body is complete, i.e. when the response is first asked for
+    }
+
+    @Override
+    public void disconnect() {
+        if( delegate != null ) {
+            delegate.disconnect();
+        }
+    }
+
+    @Override
+    public boolean usingProxy() {
+        return (delegate != null && delegate.usingProxy());
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if( !getDoOutput() ) {
+            throw new ProtocolException("Output is not enabled for this connection");
+        }
+        if( delegate != null || failure != null ) {
+            throw new ProtocolException("The request has already been sent");
+        }
+        return body;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        send();
+        return meter(delegate.getInputStream());
+    }
+
+    @Override
+    public InputStream getErrorStream() {
+        return (delegate == null ? null : meter(delegate.getErrorStream()));
+    }
+
+    @Override
+    public int getResponseCode() throws IOException {
+        send();
+        return delegate.getResponseCode();
+    }
+
+    @Override
+    public String getResponseMessage() throws IOException {
+        send();
+        return delegate.getResponseMessage();
+    }
+
+    @Override
+    public String getHeaderField(String name) {
+        try {
+            send();
+            return delegate.getHeaderField(name);
+        }
+        catch( IOException e ) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getHeaderField(int n) {
+        try {
+            send();
+            return delegate.getHeaderField(n);
+        }
+        catch( IOException e ) {
+            return null;
+        }
+    }
+
+    @Override
+    public String getHeaderFieldKey(int n) {
+        try {
+            send();
+            return delegate.getHeaderFieldKey(n);
+        }
+        catch( IOException e ) {
+            return null;
+        }
+    }
+
+    @Override
+    public Map<String,List<String>> getHeaderFields() {
+        try {
+            send();
+            return delegate.getHeaderFields();
+        }
+        catch( IOException e ) {
+            return super.getHeaderFields();
+        }
+    }
+}
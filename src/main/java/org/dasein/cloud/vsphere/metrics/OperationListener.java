@@ -0,0 +1,36 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Receives every traced operation as it completes, e.g. to forward the latencies to an external metrics system.
+ * Listeners are called synchronously on the thread that ran the operation and should return quickly.
+ * @since 2015.09
+ */
+public interface OperationListener {
+    /**
+     * @param operation the APITrace operation name
+     * @param elapsedNanos the wall-clock duration of the operation
+     * @param error the exception the operation failed with or <code>null</code> if it succeeded
+     */
+    void operationCompleted(@Nonnull String operation, long elapsedNanos, @Nullable Throwable error);
+}
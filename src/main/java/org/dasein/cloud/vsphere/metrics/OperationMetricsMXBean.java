@@ -0,0 +1,39 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import java.util.List;
+
+/**
+ * JMX view of the traced operations, registered as <code>org.dasein.cloud.vsphere:type=OperationMetrics</code>.
+ * @since 2015.09
+ */
+public interface OperationMetricsMXBean {
+    boolean isEnabled();
+
+    void setEnabled(boolean enabled);
+
+    List<OperationSnapshot> getOperations();
+
+    OperationSnapshot getOperation(String name);
+
+    List<WireSnapshot> getWireMetrics();
+
+    void reset();
+}
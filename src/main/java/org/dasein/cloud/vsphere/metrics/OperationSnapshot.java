@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import java.beans.ConstructorProperties;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A point-in-time view of the latency distribution, in-flight calls and errors of one traced operation.
+ * @since 2015.09
+ */
+public class OperationSnapshot {
+    private final String name;
+    private final long   count;
+    private final long   errors;
+    private final int    inFlight;
+    private final double meanMillis;
+    private final double p50Millis;
+    private final double p99Millis;
+    private final double p999Millis;
+    private final double maxMillis;
+
+    @ConstructorProperties({ "name", "count", "errors", "inFlight", "meanMillis", "p50Millis", "p99Millis", "p999Millis", "maxMillis" })
+    public OperationSnapshot(@Nonnull String name, long count, long errors, int inFlight, double meanMillis, double p50Millis, double p99Millis, double p999Millis, double maxMillis) {
+        this.name = name;
+        this.count = count;
+        this.errors = errors;
+        this.inFlight = inFlight;
+        this.meanMillis = meanMillis;
+        this.p50Millis = p50Millis;
+        this.p99Millis = p99Millis;
+        this.p999Millis = p999Millis;
+        this.maxMillis = maxMillis;
+    }
+
+    /**
+     * @return the APITrace operation name, e.g. <code>Vm.listVirtualMachines</code>
+     */
+    public @Nonnull String getName() { return name; }
+
+    /**
+     * @return the number of completed calls, including failed ones
+     */
+    public long getCount() { return count; }
+
+    public long getErrors() { return errors; }
+
+    /**
+     * @return the number of calls currently executing
+     */
+    public int getInFlight() { return inFlight; }
+
+    public double getMeanMillis() { return meanMillis; }
+
+    public double getP50Millis() { return p50Millis; }
+
+    public double getP99Millis() { return p99Millis; }
+
+    public double getP999Millis() { return p999Millis; }
+
+    public double getMaxMillis() { return maxMillis; }
+
+    @Override
+    public @Nonnull String toString() {
+        return String.format("%s: count=%d errors=%d inFlight=%d mean=%.2fms p50=%.2fms p99=%.2fms p999=%.2fms max=%.2fms", name, count, errors, inFlight, meanMillis, p50Millis, p99Millis, p999Millis, maxMillis);
+    }
+}
@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.apache.log4j.Logger;
+import org.dasein.cloud.CloudProvider;
+import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.vsphere.PrivateCloud;
+
+/**
+ * Wraps {@link APITrace} to record a latency histogram, the in-flight calls and the errors of every operation,
+ * keyed by the APITrace operation name. Call sites use it exactly like APITrace:
+ * <pre>
+ * OperationTrace.begin(getProvider(), "Vm.listVirtualMachines");
+ * try { ... }
+ * finally {
+ *     OperationTrace.end();
+ * }
+ * </pre>
+ * An operation counts as failed when a vSphere call made while it is in progress on its thread fails, i.e. when the
+ * {@link WireMeter} sees a SOAP fault or a broken connection. Failures are therefore only seen on connections the
+ * meter is installed on, which are those opened while recording is enabled.
+ * Recording is off unless enabled with {@link #setEnabled(boolean)}, by registering an {@link OperationListener}
+ * or with the system property <code>dasein.vsphere.trace=true</code>, which also registers the
+ * {@link OperationMetricsMXBean}. While it has never been enabled the only cost over APITrace is a volatile read.
+ * @since 2015.09
+ */
+public final class OperationTrace {
+    static private final Logger logger = PrivateCloud.getLogger(OperationTrace.class, "std");
+
+    static public final String OBJECT_NAME = "org.dasein.cloud.vsphere:type=OperationMetrics";
+
+    static private class Frame {
+        final String    operation;
+        final long      start;
+        Throwable       error;
+
+        Frame(@Nullable String operation, long start) {
+            this.operation = operation;
+            this.start = start;
+        }
+    }
+
+    static private class Stats {
+        final LatencyHistogram histogram = new LatencyHistogram();
+        final AtomicLong       errors    = new AtomicLong();
+        final AtomicInteger    inFlight  = new AtomicInteger();
+    }
+
+    // pushed while recording is disabled so that begin/end pairs stay matched when it is toggled mid-operation
+    static private final Frame UNTRACED = new Frame(null, 0L);
+
+    static private final ConcurrentHashMap<String,Stats>       stats     = new ConcurrentHashMap<String, Stats>();
+    static private final CopyOnWriteArrayList<OperationListener> listeners = new CopyOnWriteArrayList<OperationListener>();
+    static private final ThreadLocal<ArrayDeque<Frame>>         frames    = new ThreadLocal<ArrayDeque<Frame>>() {
+        @Override
+        protected ArrayDeque<Frame> initialValue() {
+            return new ArrayDeque<Frame>();
+        }
+    };
+
+    static private volatile boolean enabled = false;
+    // true once recording was ever enabled; until then begin/end skip the thread-local frame stack entirely
+    static private volatile boolean active  = false;
+    static private volatile boolean registered = false;
+
+    static {
+        if( Boolean.getBoolean("dasein.vsphere.trace") ) {
+            setEnabled(true);
+            registerMBean();
+        }
+    }
+
+    private OperationTrace() { }
+
+    static public void begin(@Nonnull CloudProvider provider, @Nonnull String operation) {
+        APITrace.begin(provider, operation);
+        if( active ) {
+            if( enabled ) {
+                getStats(operation).inFlight.incrementAndGet();
+                frames.get().push(new Frame(operation, System.nanoTime()));
+            }
+            else {
+                frames.get().push(UNTRACED);
+            }
+        }
+    }
+
+    /**
+     * Marks the operations in progress on this thread as failed, the innermost one as well as those it was called
+     * from, since they wait on the failed call.
+     * @param error the failure of the vSphere call
+     */
+    static void fail(@Nonnull Throwable error) {
+        if( active ) {
+            for( Frame frame : frames.get() ) {
+                if( frame.error == null && frame.operation != null ) {
+                    frame.error = error;
+                }
+            }
+        }
+    }
+
+    static public void end() {
+        try {
+            if( active ) {
+                Frame frame = frames.get().poll();
+
+                if( frame != null && frame.operation != null ) {
+                    record(frame.operation, System.nanoTime() - frame.start, frame.error);
+                }
+            }
+        }
+        finally {
+            APITrace.end();
+        }
+    }
+
+    /**
+     * @return the innermost operation being recorded on the calling thread or <code>null</code> if there is none
+     */
+    static @Nullable String getCurrentOperation() {
+        if( !active ) {
+            return null;
+        }
+        Frame frame = frames.get().peek();
+
+        return (frame == null ? null : frame.operation);
+    }
+
+    static private void record(@Nonnull String operation, long elapsedNanos, @Nullable Throwable error) {
+        Stats s = getStats(operation);
+
+        s.inFlight.decrementAndGet();
+        s.histogram.record(elapsedNanos, TimeUnit.NANOSECONDS);
+        if( error != null ) {
+            s.errors.incrementAndGet();
+        }
+        for( OperationListener listener : listeners ) {
+            try {
+                listener.operationCompleted(operation, elapsedNanos, error);
+            }
+            catch( RuntimeException e ) {
+                logger.warn("Operation listener " + listener + " failed: " + e.getMessage());
+            }
+        }
+    }
+
+    static private @Nonnull Stats getStats(@Nonnull String operation) {
+        Stats s = stats.get(operation);
+
+        if( s == null ) {
+            stats.putIfAbsent(operation, new Stats());
+            s = stats.get(operation);
+        }
+        return s;
+    }
+
+    static public boolean isEnabled() {
+        return enabled;
+    }
+
+    static public void setEnabled(boolean enabled) {
+        if( enabled ) {
+            active = true;
+        }
+        OperationTrace.enabled = enabled;
+    }
+
+    /**
+     * Adds a listener and enables recording.
+     * @param listener the listener to call as operations complete
+     */
+    static public void addListener(@Nonnull OperationListener listener) {
+        listeners.addIfAbsent(listener);
+        setEnabled(true);
+    }
+
+    static public void removeListener(@Nonnull OperationListener listener) {
+        listeners.remove(listener);
+    }
+
+    static public @Nullable OperationSnapshot getSnapshot(@Nonnull String operation) {
+        Stats s = stats.get(operation);
+
+        return (s == null ? null : toSnapshot(operation, s));
+    }
+
+    /**
+     * @return snapshots of all operations recorded so far, ordered by name
+     */
+    static public @Nonnull List<OperationSnapshot> listSnapshots() {
+        List<OperationSnapshot> list = new ArrayList<OperationSnapshot>();
+
+        for( String operation : stats.keySet() ) {
+            list.add(toSnapshot(operation, stats.get(operation)));
+        }
+        Collections.sort(list, new Comparator<OperationSnapshot>() {
+            @Override
+            public int compare(OperationSnapshot a, OperationSnapshot b) {
+                return a.getName().compareTo(b.getName());
+            }
+        });
+        return list;
+    }
+
+    static private @Nonnull OperationSnapshot toSnapshot(@Nonnull String operation, @Nonnull Stats s) {
+        LatencyHistogram h = s.histogram;
+
+        return new OperationSnapshot(operation, h.getCount(), s.errors.get(), Math.max(0, s.inFlight.get()), h.getMeanMicros() / 1000.0, h.getPercentileMicros(0.5) / 1000.0, h.getPercentileMicros(0.99) / 1000.0, h.getPercentileMicros(0.999) / 1000.0, h.getMaxMicros() / 1000.0);
+    }
+
+    /**
+     * @return the SOAP traffic recorded so far per operation and SOAP method, ordered by operation and method; empty
+     * unless the connection was instrumented with {@link WireMeter}
+     */
+    static public @Nonnull List<WireSnapshot> listWireSnapshots() {
+        return WireStats.list();
+    }
+
+    /**
+     * Clears the recorded latencies, error counts and SOAP traffic. In-flight counts are kept as those calls are
+     * still running.
+     */
+    static public void reset() {
+        for( Stats s : stats.values() ) {
+            s.histogram.reset();
+            s.errors.set(0L);
+        }
+        WireStats.reset();
+    }
+
+    /**
+     * Registers the {@link OperationMetricsMXBean} with the platform MBean server unless it is already registered.
+     */
+    static public synchronized void registerMBean() {
+        if( registered ) {
+            return;
+        }
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(OBJECT_NAME);
+
+            if( !server.isRegistered(name) ) {
+                server.registerMBean(new OperationMetrics(), name);
+            }
+            registered = true;
+        }
+        catch( JMException e ) {
+            logger.warn("Unable to register " + OBJECT_NAME + ": " + e.getMessage());
+        }
+    }
+
+    static private class OperationMetrics implements OperationMetricsMXBean {
+        @Override public boolean isEnabled() { return OperationTrace.isEnabled(); }
+        @Override public void setEnabled(boolean enabled) { OperationTrace.setEnabled(enabled); }
+        @Override public List<OperationSnapshot> getOperations() { return listSnapshots(); }
+        @Override public OperationSnapshot getOperation(String name) { return getSnapshot(name); }
+        @Override public List<WireSnapshot> getWireMetrics() { return listWireSnapshots(); }
+        @Override public void reset() { OperationTrace.reset(); }
+    }
+}
@@ -0,0 +1,124 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+import com.vmware.vim25.ws.WSClient;
+import com.vmware.vim25.mo.ServiceInstance;
+import org.apache.log4j.Logger;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.capture.SoapCapture;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Instruments the SOAP connection of a vijava service instance. vijava opens a new HTTP connection from the
+ * client's base URL for every call, so pointing the base URL at a protocol handler that hands out
+ * {@link MeteredHttpConnection}s sees every request without changing vijava itself. The measurements are recorded
+ * while {@link OperationTrace} is enabled and are listed by {@link OperationTrace#listWireSnapshots()}. The same
+ * connection records the exchanges to a {@link SoapCapture} when one is given. The provider installs the meter
+ * only on connections opened while tracing is enabled or while capturing.
+ * @since 2015.09
+ */
+public final class WireMeter {
+    static private final Logger logger = PrivateCloud.getLogger(WireMeter.class, "std");
+
+    static private class Handler extends URLStreamHandler {
+        private final URL         target;
+        private final SoapCapture capture;
+
+        Handler(@Nonnull URL target, @Nullable SoapCapture capture) {
+            this.target = target;
+            this.capture = capture;
+        }
+
+        @Override
+        protected URLConnection openConnection(URL url) throws IOException {
+            return new MeteredHttpConnection(url, target, capture);
+        }
+    }
+
+    private WireMeter() { }
+
+    /**
+     * Routes all further calls of the service instance through the metered connection. The login performed while
+     * constructing the service instance is not covered.
+     * @param instance a connected service instance
+     */
+    static public void install(@Nonnull ServiceInstance instance) {
+        install(instance, null);
+    }
+
+    /**
+     * Routes all further calls of the service instance through the metered connection and records them.
+     * @param instance a connected service instance
+     * @param capture the capture to record the exchanges to or <code>null</code> to only meter them
+     */
+    static public void install(@Nonnull ServiceInstance instance, @Nullable SoapCapture capture) {
+        WSClient client = instance.getServerConnection().getVimService().getWsc();
+        URL base = client.getBaseUrl();
+
+        try {
+            client.setBaseUrl(new URL(null, base.toExternalForm(), new Handler(new URL(base.toExternalForm()), capture)));
+        }
+        catch( MalformedURLException e ) {
+            logger.warn("Unable to meter the connection to " + base + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Extracts the method name from a SOAP request, i.e. the local name of the first element in the body.
+     * @param request the serialized SOAP envelope
+     * @return the method name or <code>unknown</code> if the request has no body element
+     */
+    static @Nonnull String getSoapMethod(@Nonnull byte[] request) {
+        String xml;
+
+        try {
+            xml = new String(request, 0, Math.min(request.length, 4096), "UTF-8");
+        }
+        catch( UnsupportedEncodingException e ) {
+            throw new RuntimeException("This cannot happen: " + e.getMessage());
+        }
+        int idx = xml.indexOf("Body>");
+
+        if( idx > -1 ) {
+            idx = xml.indexOf('<', idx);
+        }
+        if( idx < 0 ) {
+            return "unknown";
+        }
+        int end = idx + 1;
+
+        while( end < xml.length() && " />\r\n\t".indexOf(xml.charAt(end)) < 0 ) {
+            end++;
+        }
+        String name = xml.substring(idx + 1, end);
+        int colon = name.indexOf(':');
+
+        return (colon > -1 ? name.substring(colon + 1) : name);
+    }
+}
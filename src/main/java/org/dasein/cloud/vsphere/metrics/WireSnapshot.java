@@ -0,0 +1,118 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import java.beans.ConstructorProperties;
+
+import javax.annotation.Nonnull;
+
+/**
+ * A point-in-time view of the SOAP traffic one traced operation generated for one vSphere API method: how often it
+ * was called and retried, the bytes on the wire, the time until the server started answering and the time the
+ * client spent deserializing the response.
+ * @since 2015.09
+ */
+public class WireSnapshot {
+    private final String operation;
+    private final String method;
+    private final long   calls;
+    private final double callsPerOperation;
+    private final long   retries;
+    private final long   faults;
+    private final long   requestBytes;
+    private final long   responseBytes;
+    private final double meanTimeToFirstByteMillis;
+    private final double p99TimeToFirstByteMillis;
+    private final double meanTransferMillis;
+    private final double meanDeserializationMillis;
+    private final double p99DeserializationMillis;
+
+    @ConstructorProperties({ "operation", "method", "calls", "callsPerOperation", "retries", "faults", "requestBytes", "responseBytes", "meanTimeToFirstByteMillis", "p99TimeToFirstByteMillis", "meanTransferMillis", "meanDeserializationMillis", "p99DeserializationMillis" })
+    public WireSnapshot(@Nonnull String operation, @Nonnull String method, long calls, double callsPerOperation, long retries, long faults, long requestBytes, long responseBytes, double meanTimeToFirstByteMillis, double p99TimeToFirstByteMillis, double meanTransferMillis, double meanDeserializationMillis, double p99DeserializationMillis) {
+        this.operation = operation;
+        this.method = method;
+        this.calls = calls;
+        this.callsPerOperation = callsPerOperation;
+        this.retries = retries;
+        this.faults = faults;
+        this.requestBytes = requestBytes;
+        this.responseBytes = responseBytes;
+        this.meanTimeToFirstByteMillis = meanTimeToFirstByteMillis;
+        this.p99TimeToFirstByteMillis = p99TimeToFirstByteMillis;
+        this.meanTransferMillis = meanTransferMillis;
+        this.meanDeserializationMillis = meanDeserializationMillis;
+        this.p99DeserializationMillis = p99DeserializationMillis;
+    }
+
+    /**
+     * @return the APITrace operation the calls were made from or an empty string for calls made outside any traced operation
+     */
+    public @Nonnull String getOperation() { return operation; }
+
+    /**
+     * @return the SOAP method name, e.g. <code>RetrievePropertiesEx</code>
+     */
+    public @Nonnull String getMethod() { return method; }
+
+    public long getCalls() { return calls; }
+
+    /**
+     * @return the average number of calls to the method per completed operation or 0 if no operation completed yet
+     */
+    public double getCallsPerOperation() { return callsPerOperation; }
+
+    /**
+     * @return the number of times the caller sent a request again right after it failed, counted as calls as well
+     */
+    public long getRetries() { return retries; }
+
+    /**
+     * @return the number of calls answered with an HTTP error status, i.e. SOAP faults
+     */
+    public long getFaults() { return faults; }
+
+    public long getRequestBytes() { return requestBytes; }
+
+    public long getResponseBytes() { return responseBytes; }
+
+    /**
+     * @return the mean time from sending the request until the response status line arrived, which covers the
+     * network round trip and the server-side processing
+     */
+    public double getMeanTimeToFirstByteMillis() { return meanTimeToFirstByteMillis; }
+
+    public double getP99TimeToFirstByteMillis() { return p99TimeToFirstByteMillis; }
+
+    /**
+     * @return the mean time the client was blocked reading the response body from the network
+     */
+    public double getMeanTransferMillis() { return meanTransferMillis; }
+
+    /**
+     * @return the mean time from the first byte until the response was fully deserialized, less the transfer time
+     */
+    public double getMeanDeserializationMillis() { return meanDeserializationMillis; }
+
+    public double getP99DeserializationMillis() { return p99DeserializationMillis; }
+
+    @Override
+    public @Nonnull String toString() {
+        return String.format("%s/%s: calls=%d perOp=%.1f retries=%d faults=%d out=%dB in=%dB ttfb=%.2fms (p99 %.2fms) transfer=%.2fms deserialize=%.2fms (p99 %.2fms)", operation, method, calls, callsPerOperation, retries, faults, requestBytes, responseBytes, meanTimeToFirstByteMillis, p99TimeToFirstByteMillis, meanTransferMillis, meanDeserializationMillis, p99DeserializationMillis);
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.annotation.Nonnull;
+
+/**
+ * The wire-level counters for one SOAP method called from one traced operation, together with the bookkeeping of
+ * the individual request/response exchanges that feed them.
+ * @since 2015.09
+ */
+final class WireStats {
+    static private final ConcurrentHashMap<String,WireStats> stats = new ConcurrentHashMap<String, WireStats>();
+
+    // the last exchange on each thread whose response stream was read to the end but not closed (yet)
+    static private final ThreadLocal<Exchange> unclosed = new ThreadLocal<Exchange>();
+    // the request of the last exchange on each thread if it failed, to recognize the caller sending it again
+    static private final ThreadLocal<byte[]>   failed   = new ThreadLocal<byte[]>();
+
+    /**
+     * One SOAP request and its response. Timestamps are taken on the calling thread, which is the only thread
+     * touching the exchange.
+     */
+    static final class Exchange {
+        private final WireStats owner;
+        private final byte[]    request;
+        private final long      start;
+        private long            firstByte;
+        private long            endOfStream;
+        private long            transferNanos;
+        private boolean         done;
+
+        private Exchange(@Nonnull WireStats stats, @Nonnull byte[] request) {
+            this.owner = stats;
+            this.request = request;
+            this.start = System.nanoTime();
+            stats.calls.incrementAndGet();
+            stats.requestBytes.addAndGet(request.length);
+        }
+
+        /**
+         * Notes that the request never got a response, e.g. because the connection was dropped.
+         */
+        void failed() {
+            WireStats.failed.set(request);
+        }
+
+        void responded(int status) {
+            firstByte = System.nanoTime();
+            owner.timeToFirstByte.record(firstByte - start, TimeUnit.NANOSECONDS);
+            if( status >= 400 ) {
+                owner.faults.incrementAndGet();
+                WireStats.failed.set(request);
+            }
+        }
+
+        void read(long startNanos, int bytes) {
+            long now = System.nanoTime();
+
+            transferNanos += now - startNanos;
+            owner.transferNanos.addAndGet(now - startNanos);
+            if( bytes < 0 ) {
+                if( endOfStream == 0L ) {
+                    endOfStream = now;
+                    unclosed.set(this);
+                }
+            }
+            else {
+                owner.responseBytes.addAndGet(bytes);
+            }
+        }
+
+        void closed() {
+            finish(System.nanoTime());
+        }
+
+        private void finish(long end) {
+            if( done ) {
+                return;
+            }
+            done = true;
+            if( unclosed.get() == this ) {
+                unclosed.remove();
+            }
+            if( firstByte != 0L ) {
+                owner.deserialization.record(Math.max(0L, end - firstByte - transferNanos), TimeUnit.NANOSECONDS);
+            }
+        }
+    }
+
+    /**
+     * Starts an exchange, attributing it to the innermost traced operation on the calling thread. The exchange
+     * counts as a retry if the previous exchange on the thread failed and sent the same request.
+     * @param method the SOAP method being called
+     * @param request the request body
+     * @return the new exchange
+     */
+    static @Nonnull Exchange begin(@Nonnull String method, @Nonnull byte[] request) {
+        Exchange previous = unclosed.get();
+
+        if( previous != null ) {
+            // the caller never closed the last response stream; the best guess for its end is where the data ended
+            previous.finish(previous.endOfStream);
+        }
+        String operation = OperationTrace.getCurrentOperation();
+        Exchange exchange = new Exchange(get(operation == null ? "" : operation, method), request);
+        byte[] last = failed.get();
+
+        if( last != null ) {
+            failed.remove();
+            if( Arrays.equals(last, request) ) {
+                exchange.owner.retries.incrementAndGet();
+            }
+        }
+        return exchange;
+    }
+
+    static private @Nonnull WireStats get(@Nonnull String operation, @Nonnull String method) {
+        String key = operation + "\n" + method;
+        WireStats s = stats.get(key);
+
+        if( s == null ) {
+            stats.putIfAbsent(key, new WireStats(operation, method));
+            s = stats.get(key);
+        }
+        return s;
+    }
+
+    static @Nonnull List<WireSnapshot> list() {
+        List<WireSnapshot> list = new ArrayList<WireSnapshot>();
+
+        for( WireStats s : stats.values() ) {
+            list.add(s.toSnapshot());
+        }
+        Collections.sort(list, new Comparator<WireSnapshot>() {
+            @Override
+            public int compare(WireSnapshot a, WireSnapshot b) {
+                int c = a.getOperation().compareTo(b.getOperation());
+
+                return (c != 0 ? c : a.getMethod().compareTo(b.getMethod()));
+            }
+        });
+        return list;
+    }
+
+    static void reset() {
+        stats.clear();
+    }
+
+    private final String           operation;
+    private final String           method;
+    private final AtomicLong       calls           = new AtomicLong();
+    private final AtomicLong       retries         = new AtomicLong();
+    private final AtomicLong       faults          = new AtomicLong();
+    private final AtomicLong       requestBytes    = new AtomicLong();
+    private final AtomicLong       responseBytes   = new AtomicLong();
+    private final AtomicLong       transferNanos   = new AtomicLong();
+    private final LatencyHistogram timeToFirstByte = new LatencyHistogram();
+    private final LatencyHistogram deserialization = new LatencyHistogram();
+
+    private WireStats(@Nonnull String operation, @Nonnull String method) {
+        this.operation = operation;
+        this.method = method;
+    }
+
+    private @Nonnull WireSnapshot toSnapshot() {
+        OperationSnapshot op = (operation.isEmpty() ? null : OperationTrace.getSnapshot(operation));
+        long n = calls.get();
+        double perOperation = (op == null || op.getCount() == 0L ? 0.0 : ((double)n) / op.getCount());
+        double transfer = (n == 0L ? 0.0 : transferNanos.get() / 1000000.0 / n);
+
+        return new WireSnapshot(operation, method, n, perOperation, retries.get(), faults.get(), requestBytes.get(), responseBytes.get(), timeToFirstByte.getMeanMicros() / 1000.0, timeToFirstByte.getPercentileMicros(0.99) / 1000.0, transfer, deserialization.getMeanMicros() / 1000.0, deserialization.getPercentileMicros(0.99) / 1000.0);
+    }
+}
@@ -25,7 +25,7 @@ import org.dasein.cloud.*;
 import org.dasein.cloud.Tag;
 import org.dasein.cloud.dc.DataCenter;
 import org.dasein.cloud.network.*;
-import org.dasein.cloud.util.APITrace;
+import org.dasein.cloud.vsphere.metrics.OperationTrace;
 import org.dasein.cloud.vsphere.PrivateCloud;
 import org.dasein.cloud.vsphere.compute.Vm;
 
@@ -131,7 +131,7 @@ public class VSphereNetwork extends AbstractVLANSupport<PrivateCloud> {
     @Nonnull
     @Override
     public Iterable<VLAN> listVlans() throws CloudException, InternalException {
-        APITrace.begin(getProvider(), "Network.listVlans");
+        OperationTrace.begin(getProvider(), "Network.listVlans");
 
         try {
             ServiceInstance instance = getServiceInstance();
@@ -179,7 +179,7 @@ public class VSphereNetwork extends AbstractVLANSupport<PrivateCloud> {
             return networkList;
         }
         finally {
-            APITrace.end();
+            OperationTrace.end();
         }
     }
 
@@ -0,0 +1,391 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.util.CacheLevel;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.dasein.util.uom.time.Millisecond;
+import org.dasein.util.uom.time.TimePeriod;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Walks inventory cache entries through their fresh, refresh-ahead, stale and expired states and races loads
+ * against published changes. Entries and metrics are shared by all caches of the same name, so every test uses a
+ * name of its own.
+ */
+public class InventoryCacheTest {
+    static private final AtomicInteger names = new AtomicInteger();
+
+    /**
+     * Loads <code>load-1</code>, <code>load-2</code>, ... and, after {@link #block()}, holds the next load until it is
+     * released.
+     */
+    static private class CountingLoader implements InventoryCache.Loader<String> {
+        private final AtomicInteger     loads   = new AtomicInteger();
+        private volatile CountDownLatch entered = new CountDownLatch(1);
+        private volatile CountDownLatch release = new CountDownLatch(0);
+
+        @Override
+        public @Nonnull Collection<String> load() throws CloudException, InternalException {
+            CountDownLatch started = entered;
+            CountDownLatch finish = release;
+            int load = loads.incrementAndGet();
+
+            started.countDown();
+            try {
+                if( !finish.await(30, TimeUnit.SECONDS) ) {
+                    throw new InternalException("Load " + load + " was never released");
+                }
+            }
+            catch( InterruptedException e ) {
+                throw new InternalException(e);
+            }
+            return Collections.singletonList("load-" + load);
+        }
+
+        void block() {
+            entered = new CountDownLatch(1);
+            release = new CountDownLatch(1);
+        }
+
+        void awaitEntered() throws InterruptedException {
+            assertTrue("The load never started", entered.await(30, TimeUnit.SECONDS));
+        }
+
+        void release() {
+            release.countDown();
+        }
+
+        int getLoads() {
+            return loads.get();
+        }
+    }
+
+    private VSphereSimulator simulator;
+    private PrivateCloud     provider;
+    private PrivateCloud     otherRegion;
+    private ExecutorService  callers;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withDatacenters(2).withVms(0)));
+        provider = simulator.connect("Datacenter-1");
+        otherRegion = simulator.connect("Datacenter-2");
+        callers = Executors.newCachedThreadPool();
+    }
+
+    @After
+    public void tearDown() {
+        callers.shutdownNow();
+        otherRegion.close();
+        provider.close();
+        simulator.stop();
+    }
+
+    /**
+     * @param prefix the name the cache is published under, e.g. <code>storagePools</code>
+     * @return a cache name no other test uses
+     */
+    static private @Nonnull String newName(@Nonnull String prefix) {
+        return prefix + ":test-" + names.incrementAndGet();
+    }
+
+    private @Nonnull InventoryCache<String> getCache(@Nonnull String name, long timeout, long maxStaleness) {
+        return InventoryCache.getInstance(provider, name, String.class, CacheLevel.REGION_ACCOUNT,
+                new TimePeriod<Millisecond>(timeout, TimePeriod.MILLISECOND), new TimePeriod<Millisecond>(maxStaleness, TimePeriod.MILLISECOND));
+    }
+
+    private @Nonnull Future<Collection<String>> getAsync(@Nonnull final InventoryCache<String> cache, @Nonnull final ProviderContext ctx, @Nonnull final InventoryCache.Loader<String> loader) {
+        return callers.submit(new Callable<Collection<String>>() {
+            @Override
+            public Collection<String> call() throws Exception {
+                return cache.get(ctx, loader);
+            }
+        });
+    }
+
+    static private void awaitBackgroundRefresh(@Nonnull String name) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + 10000L;
+
+        while( InventoryCache.getMetrics(name).getBackgroundRefreshes() < 1 ) {
+            if( System.currentTimeMillis() > deadline ) {
+                fail("No background refresh of " + InventoryCache.getMetrics(name));
+            }
+            Thread.sleep(20L);
+        }
+    }
+
+    @Test
+    public void freshEntryIsServedWithoutLoading() throws Exception {
+        String name = newName("fresh");
+        InventoryCache<String> cache = getCache(name, 60000L, 60000L);
+        CountingLoader loader = new CountingLoader();
+        ProviderContext ctx = provider.getContext();
+
+        assertNull(cache.getCached(ctx));
+        assertEquals(Collections.singletonList("load-1"), cache.get(ctx, loader));
+        assertEquals(Collections.singletonList("load-1"), cache.get(ctx, loader));
+        assertEquals(1, loader.getLoads());
+        assertEquals(1, InventoryCache.getMetrics(name).getLoads());
+        assertEquals(0, InventoryCache.getMetrics(name).getBackgroundRefreshes());
+    }
+
+    @Test
+    public void entryIsRefreshedAheadOfItsExpiry() throws Exception {
+        String name = newName("refreshAhead");
+        InventoryCache<String> cache = getCache(name, 2000L, 2000L);
+        CountingLoader loader = new CountingLoader();
+        ProviderContext ctx = provider.getContext();
+
+        cache.get(ctx, loader);
+        // past REFRESH_AHEAD of the timeout but not yet expired
+        Thread.sleep(1700L);
+        assertEquals(Collections.singletonList("load-1"), cache.get(ctx, loader));
+        awaitBackgroundRefresh(name);
+        assertEquals(2, loader.getLoads());
+        assertEquals(0, InventoryCache.getMetrics(name).getStaleHits());
+        assertEquals(Collections.singletonList("load-2"), cache.getCached(ctx));
+    }
+
+    @Test
+    public void staleEntryIsServedWhileItReloads() throws Exception {
+        String name = newName("stale");
+        InventoryCache<String> cache = getCache(name, 500L, 5000L);
+        CountingLoader loader = new CountingLoader();
+        ProviderContext ctx = provider.getContext();
+
+        cache.get(ctx, loader);
+        Thread.sleep(1000L);
+        loader.block();
+        // the expired entry comes back at once while its reload is held
+        assertEquals(Collections.singletonList("load-1"), cache.get(ctx, loader));
+        loader.awaitEntered();
+        assertEquals(Collections.singletonList("load-1"), cache.get(ctx, loader));
+        assertEquals(2, InventoryCache.getMetrics(name).getStaleHits());
+        loader.release();
+        awaitBackgroundRefresh(name);
+        assertEquals(2, loader.getLoads());
+        assertEquals(Collections.singletonList("load-2"), cache.getCached(ctx));
+    }
+
+    @Test
+    public void entryBeyondTheStaleWindowIsLoadedAgain() throws Exception {
+        String name = newName("expired");
+        InventoryCache<String> cache = getCache(name, 300L, 300L);
+        CountingLoader loader = new CountingLoader();
+        ProviderContext ctx = provider.getContext();
+
+        cache.get(ctx, loader);
+        Thread.sleep(1000L);
+        assertEquals(Collections.singletonList("load-2"), cache.get(ctx, loader));
+        assertEquals(2, loader.getLoads());
+        assertEquals(0, InventoryCache.getMetrics(name).getBackgroundRefreshes());
+        assertEquals(0, InventoryCache.getMetrics(name).getStaleHits());
+    }
+
+    @Test
+    public void evictionDropsExpiredEntriesAndIdleCaches() throws Exception {
+        String name = newName("evicted");
+        InventoryCache<String> cache = getCache(name, 100L, 100L);
+        InventoryCache<String> fresh = getCache(newName("kept"), 60000L, 60000L);
+        CountingLoader loader = new CountingLoader();
+        ProviderContext ctx = provider.getContext();
+
+        cache.get(ctx, loader);
+        fresh.get(ctx, loader);
+        Thread.sleep(300L);
+        InventoryCache.evict(System.currentTimeMillis());
+        assertNull(cache.getCached(ctx));
+        assertEquals(Collections.singletonList("load-2"), fresh.getCached(ctx));
+        for( InventoryCache.Metrics m : InventoryCache.listMetrics() ) {
+            assertFalse(name + " is idle but still has metrics", m.getName().equals(name));
+        }
+    }
+
+    @Test
+    public void publishReachesLoadOfEvictedCache() throws Exception {
+        InventoryCache<String> cache = getCache(newName("storagePools"), 100L, 100L);
+        CountingLoader loader = new CountingLoader();
+        ProviderContext ctx = provider.getContext();
+
+        cache.get(ctx, loader);
+        Thread.sleep(300L);
+        InventoryCache.evict(System.currentTimeMillis());
+        loader.block();
+
+        Future<Collection<String>> result = getAsync(cache, ctx, loader);
+
+        loader.awaitEntered();
+        InventoryCache.publish(ctx, InventoryChange.VOLUME_REMOVED);
+        loader.release();
+        assertEquals(Collections.singletonList("load-2"), result.get(30, TimeUnit.SECONDS));
+        assertNull(cache.getCached(ctx));
+    }
+
+    @Test
+    public void concurrentMissesShareOneLoad() throws Exception {
+        InventoryCache<String> cache = getCache(newName("singleFlight"), 60000L, 60000L);
+        CountingLoader loader = new CountingLoader();
+        ProviderContext ctx = provider.getContext();
+        List<Future<Collection<String>>> results = new ArrayList<Future<Collection<String>>>();
+
+        loader.block();
+        results.add(getAsync(cache, ctx, loader));
+        loader.awaitEntered();
+        for( int i=0; i<4; i++ ) {
+            results.add(getAsync(cache, ctx, loader));
+        }
+        // give the other callers time to join the load in flight
+        Thread.sleep(200L);
+        loader.release();
+
+        Collection<String> first = results.get(0).get(30, TimeUnit.SECONDS);
+
+        for( Future<Collection<String>> result : results ) {
+            assertSame(first, result.get(30, TimeUnit.SECONDS));
+        }
+        assertEquals(1, loader.getLoads());
+    }
+
+    @Test
+    public void concurrentMissesShareOneFailure() throws Exception {
+        String name = newName("singleFlightFailure");
+        InventoryCache<String> cache = getCache(name, 60000L, 60000L);
+        final AtomicInteger loads = new AtomicInteger();
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        ProviderContext ctx = provider.getContext();
+        InventoryCache.Loader<String> failing = new InventoryCache.Loader<String>() {
+            @Override
+            public @Nonnull Collection<String> load() throws CloudException, InternalException {
+                loads.incrementAndGet();
+                entered.countDown();
+                try {
+                    release.await(30, TimeUnit.SECONDS);
+                }
+                catch( InterruptedException e ) {
+                    throw new InternalException(e);
+                }
+                throw new CloudException("vCenter is down");
+            }
+        };
+        List<Future<Collection<String>>> results = new ArrayList<Future<Collection<String>>>();
+
+        results.add(getAsync(cache, ctx, failing));
+        assertTrue("The load never started", entered.await(30, TimeUnit.SECONDS));
+        for( int i=0; i<2; i++ ) {
+            results.add(getAsync(cache, ctx, failing));
+        }
+        // give the other callers time to join the load in flight
+        Thread.sleep(200L);
+        release.countDown();
+        for( Future<Collection<String>> result : results ) {
+            try {
+                result.get(30, TimeUnit.SECONDS);
+                fail("A failed load returned items");
+            }
+            catch( ExecutionException e ) {
+                assertTrue(String.valueOf(e.getCause()), e.getCause() instanceof CloudException);
+            }
+        }
+        assertEquals(1, loads.get());
+        assertEquals(1, InventoryCache.getMetrics(name).getFailures());
+        assertNull(cache.getCached(ctx));
+    }
+
+    @Test
+    public void publishEvictsOnlyTheAffectedCachesAndContext() throws Exception {
+        InventoryCache<String> cache = getCache(newName("storagePools"), 60000L, 60000L);
+        CountingLoader loader = new CountingLoader();
+        ProviderContext ctx = provider.getContext();
+
+        cache.get(ctx, loader);
+        cache.get(otherRegion.getContext(), loader);
+        InventoryCache.publish(ctx, InventoryChange.FOLDER_CREATED);
+        assertEquals(Collections.singletonList("load-1"), cache.getCached(ctx));
+
+        InventoryCache.publish(ctx, InventoryChange.VOLUME_CREATED);
+        assertNull(cache.getCached(ctx));
+        assertEquals(Collections.singletonList("load-2"), cache.getCached(otherRegion.getContext()));
+        assertEquals(Collections.singletonList("load-3"), cache.get(ctx, loader));
+    }
+
+    @Test
+    public void loadInFlightDuringPublishIsNotCached() throws Exception {
+        InventoryCache<String> cache = getCache(newName("hosts"), 60000L, 60000L);
+        CountingLoader loader = new CountingLoader();
+        ProviderContext ctx = provider.getContext();
+
+        loader.block();
+
+        Future<Collection<String>> result = getAsync(cache, ctx, loader);
+
+        loader.awaitEntered();
+        InventoryCache.publish(ctx, InventoryChange.VM_LAUNCHED);
+        loader.release();
+
+        // the caller still gets what it waited for, but the snapshot may predate the change
+        assertEquals(Collections.singletonList("load-1"), result.get(30, TimeUnit.SECONDS));
+        assertNull(cache.getCached(ctx));
+        assertEquals(Collections.singletonList("load-2"), cache.get(ctx, loader));
+        assertEquals(Collections.singletonList("load-2"), cache.getCached(ctx));
+    }
+
+    @Test
+    public void loadStartedAfterPublishIsCached() throws Exception {
+        InventoryCache<String> cache = getCache(newName("clusterCapacity"), 60000L, 60000L);
+        CountingLoader loader = new CountingLoader();
+        ProviderContext ctx = provider.getContext();
+
+        InventoryCache.publish(ctx, InventoryChange.VM_TERMINATED);
+        // the invalidation and the load are ordered by System.nanoTime(), which need not advance between two calls
+        Thread.sleep(5L);
+        assertNotNull(cache.get(ctx, loader));
+        assertEquals(Collections.singletonList("load-1"), cache.getCached(ctx));
+    }
+}
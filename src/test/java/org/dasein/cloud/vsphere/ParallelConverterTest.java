@@ -0,0 +1,155 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.ImageFilterOptions;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.Volume;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks that {@link ParallelConverter} keeps the source order and surfaces conversion failures, and that listings
+ * come out the same whether their conversions run sequentially or in parallel.
+ */
+public class ParallelConverterTest {
+    static private final String REGION = "Datacenter-1";
+
+    @Test
+    public void keepsSourceOrder() throws Exception {
+        List<Integer> sources = new ArrayList<Integer>();
+
+        for( int i = 0; i < 1000; i++ ) {
+            sources.add(i);
+        }
+        List<String> results = ParallelConverter.convert(8, sources, new ParallelConverter.Conversion<Integer,String>() {
+            @Override
+            public @Nullable String convert(@Nonnull Integer source) {
+                if( source % 97 == 0 ) {
+                    Thread.yield();
+                }
+                return (source % 3 == 0 ? null : String.valueOf(source));
+            }
+        });
+        List<String> expected = new ArrayList<String>();
+
+        for( Integer i : sources ) {
+            if( i % 3 != 0 ) {
+                expected.add(String.valueOf(i));
+            }
+        }
+        assertEquals(expected, results);
+    }
+
+    @Test
+    public void surfacesCloudException() throws Exception {
+        try {
+            ParallelConverter.convert(4, Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8), new ParallelConverter.Conversion<Integer,Integer>() {
+                @Override
+                public @Nullable Integer convert(@Nonnull Integer source) throws CloudException {
+                    if( source == 6 ) {
+                        throw new CloudException("conversion of " + source + " failed");
+                    }
+                    return source;
+                }
+            });
+            fail("The conversion failure was swallowed");
+        }
+        catch( CloudException e ) {
+            assertEquals("conversion of 6 failed", e.getMessage());
+        }
+    }
+
+    @Test
+    public void surfacesInternalException() throws Exception {
+        try {
+            ParallelConverter.convert(4, Arrays.asList(1, 2, 3, 4, 5, 6, 7, 8), new ParallelConverter.Conversion<Integer,Integer>() {
+                @Override
+                public @Nullable Integer convert(@Nonnull Integer source) throws InternalException {
+                    if( source == 2 ) {
+                        throw new InternalException("conversion of " + source + " failed");
+                    }
+                    return source;
+                }
+            });
+            fail("The conversion failure was swallowed");
+        }
+        catch( InternalException e ) {
+            assertEquals("conversion of 2 failed", e.getMessage());
+        }
+    }
+
+    private @Nonnull List<String> listAll(@Nonnull VSphereSimulator simulator, @Nullable String parallelism) throws Exception {
+        if( parallelism == null ) {
+            System.clearProperty("conversionParallelism");
+        }
+        else {
+            System.setProperty("conversionParallelism", parallelism);
+        }
+        try {
+            PrivateCloud provider = simulator.connect(REGION);
+            List<String> ids = new ArrayList<String>();
+
+            try {
+                for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+                    ids.add(vm.getProviderVirtualMachineId());
+                }
+                for( MachineImage image : provider.getComputeServices().getImageSupport().listImages(ImageFilterOptions.getInstance()) ) {
+                    ids.add(image.getProviderMachineImageId());
+                }
+                for( Volume volume : provider.getComputeServices().getVolumeSupport().listVolumes() ) {
+                    ids.add(volume.getProviderVolumeId());
+                }
+            }
+            finally {
+                provider.close();
+            }
+            return ids;
+        }
+        finally {
+            System.clearProperty("conversionParallelism");
+        }
+    }
+
+    @Test
+    public void parallelListingsMatchSequential() throws Exception {
+        VSphereSimulator simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withTemplates(6).withVms(60)));
+
+        try {
+            assertEquals(listAll(simulator, null), listAll(simulator, "8"));
+        }
+        finally {
+            simulator.stop();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import org.dasein.cloud.dc.Region;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Builds region directories from hand-made property collector results.
+ */
+public class RegionDirectoryTest {
+    static private @Nonnull ManagedObjectReference mor(@Nonnull String type, @Nonnull String id) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+
+        mor.setType(type);
+        mor.setVal(id);
+        return mor;
+    }
+
+    static private @Nonnull ObjectContent content(@Nonnull ManagedObjectReference mor, @Nonnull Object ... properties) {
+        ObjectContent content = new ObjectContent();
+        List<DynamicProperty> props = new ArrayList<DynamicProperty>();
+
+        for( int i=0; i<properties.length; i+=2 ) {
+            DynamicProperty prop = new DynamicProperty();
+
+            prop.setName(properties[i].toString());
+            prop.setVal(properties[i+1]);
+            props.add(prop);
+        }
+        content.setObj(mor);
+        content.setPropSet(props.toArray(new DynamicProperty[props.size()]));
+        return content;
+    }
+
+    @Test
+    public void resolvesEntitiesThroughFoldersAndVApps() {
+        ManagedObjectReference dc1 = mor("Datacenter", "datacenter-1");
+        ManagedObjectReference dc2 = mor("Datacenter", "datacenter-2");
+        ManagedObjectReference vmFolder1 = mor("Folder", "group-v1");
+        ManagedObjectReference vmFolder2 = mor("Folder", "group-v2");
+        ManagedObjectReference nested = mor("Folder", "group-v3");
+        ManagedObjectReference vApp = mor("VirtualApp", "resgroup-v1");
+        ManagedObjectReference vm1 = mor("VirtualMachine", "vm-1");
+        ManagedObjectReference vm2 = mor("VirtualMachine", "vm-2");
+        ManagedObjectReference vm3 = mor("VirtualMachine", "vm-3");
+        // children before their parents, so resolving cannot rely on the retrieval order
+        RegionDirectory directory = RegionDirectory.build(Arrays.asList(
+                content(vm1, "parent", nested),
+                content(vm2, "parentVApp", vApp),
+                content(vm3, "parent", vmFolder2),
+                content(vApp, "parentFolder", vmFolder1),
+                content(nested, "parent", vmFolder1),
+                content(vmFolder1, "parent", dc1),
+                content(vmFolder2, "parent", dc2),
+                content(dc1, "name", "DC-East"),
+                content(dc2, "name", "DC-West")));
+
+        assertEquals("DC-East", directory.getRegionId(vm1));
+        assertEquals("DC-East", directory.getRegionId(vm2));
+        assertEquals("DC-West", directory.getRegionId(vm3));
+        assertEquals("DC-East", directory.getRegionId(vApp));
+        assertEquals("DC-East", directory.getRegionId(dc1));
+        assertEquals("DC-West", directory.getRegionId(dc2));
+        assertEquals("datacenter-2", directory.getDatacenter("DC-West").getVal());
+        assertTrue(directory.contains(vm1));
+    }
+
+    @Test
+    public void listsRegionsInRetrievalOrder() {
+        RegionDirectory directory = RegionDirectory.build(Arrays.asList(
+                content(mor("Datacenter", "datacenter-2"), "name", "DC-West"),
+                content(mor("Datacenter", "datacenter-1"), "name", "DC-East")));
+        List<String> names = new ArrayList<String>();
+
+        for( Region region : directory.listRegions() ) {
+            assertTrue(region.isActive());
+            names.add(region.getProviderRegionId());
+        }
+        assertEquals(Arrays.asList("DC-West", "DC-East"), names);
+        assertEquals("DC-East", directory.getRegion("DC-East").getName());
+        assertNull(directory.getRegion("DC-North"));
+        assertNull(directory.getDatacenter("DC-North"));
+    }
+
+    @Test
+    public void unknownAndOrphanedEntitiesHaveNoRegion() {
+        ManagedObjectReference orphan = mor("VirtualMachine", "vm-orphan");
+        ManagedObjectReference loopA = mor("Folder", "group-a");
+        ManagedObjectReference loopB = mor("Folder", "group-b");
+        RegionDirectory directory = RegionDirectory.build(Arrays.asList(
+                content(mor("Datacenter", "datacenter-1"), "name", "DC-East"),
+                content(orphan, "parent", mor("Folder", "group-gone")),
+                content(loopA, "parent", loopB),
+                content(loopB, "parent", loopA)));
+
+        assertNull(directory.getRegionId(orphan));
+        assertTrue(directory.contains(orphan));
+        assertNull(directory.getRegionId(loopA));
+        assertNull(directory.getRegionId(mor("VirtualMachine", "vm-unknown")));
+        assertFalse(directory.contains(mor("VirtualMachine", "vm-unknown")));
+        assertNull(directory.getRegionId(mor("Datacenter", "datacenter-9")));
+    }
+}
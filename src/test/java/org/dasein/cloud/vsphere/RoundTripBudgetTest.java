@@ -0,0 +1,204 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere;
+
+import java.util.Map;
+
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import org.dasein.cloud.compute.ImageFilterOptions;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Counts the vCenter calls each Dasein operation makes against the simulator at two inventory sizes and fails
+ * when an operation exceeds its round-trip budget. The large inventory has more clusters, hosts, datastores,
+ * networks, templates and VMs than the small one, and an operation with no per-entity allowance must not make more
+ * calls against it, which catches per-entity lazy getters creeping back into listing and lookup paths. Only the
+ * VLAN listing, which still walks the networks one at a time, and the volume listing, which has to search every
+ * datastore with its own task, carry a per-entity allowance. The budgets are the calls each operation makes,
+ * counted from the login to the logout, with a few calls of headroom.
+ */
+public class RoundTripBudgetTest {
+    static private final String REGION = "Datacenter-1";
+
+    static private final SimInventory.Spec SMALL = SimInventory.Spec.getInstance()
+            .withClusters(2).withHosts(4).withDatastores(4).withNetworks(2).withPortgroups(1).withFolders(2).withTemplates(2).withVms(25);
+    static private final SimInventory.Spec LARGE = SimInventory.Spec.getInstance()
+            .withClusters(4).withHosts(16).withDatastores(12).withNetworks(8).withPortgroups(4).withFolders(2).withTemplates(8).withVms(100);
+
+    private enum Scale {
+        NONE, NETWORKS, DATASTORES;
+
+        int count(@Nonnull SimInventory.Spec spec) {
+            switch( this ) {
+                case NETWORKS: return spec.getNetworks() + spec.getPortgroups();
+                case DATASTORES: return spec.getDatastores();
+                default: return 0;
+            }
+        }
+    }
+
+    private interface Operation {
+        void run(@Nonnull PrivateCloud provider, @Nonnull SimInventory inventory) throws Exception;
+    }
+
+    static private @Nonnull String getVmId(@Nonnull SimInventory inventory, boolean template) {
+        for( SimObject vm : inventory.list("VirtualMachine") ) {
+            VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+
+            if( config.isTemplate() == template ) {
+                return (template ? config.getUuid() : config.getInstanceUuid());
+            }
+        }
+        throw new IllegalStateException("No " + (template ? "template" : "VM") + " in the inventory");
+    }
+
+    private int measure(@Nonnull SimInventory.Spec spec, @Nonnull Operation operation, @Nonnull StringBuilder report) throws Exception {
+        VSphereSimulator simulator = VSphereSimulator.start(SimInventory.generate(spec));
+
+        try {
+            PrivateCloud provider = simulator.connect(REGION);
+
+            try {
+                operation.run(provider, simulator.getInventory());
+            }
+            finally {
+                provider.close();
+            }
+            Map<String,Integer> counts = simulator.getCallCounts();
+
+            report.append("\n  ").append(spec).append(": ").append(counts);
+            return simulator.getTotalCalls();
+        }
+        finally {
+            simulator.stop();
+        }
+    }
+
+    private void assertBudget(@Nonnull String name, int fixed, int perEntity, @Nonnull Scale scale, @Nonnull Operation operation) throws Exception {
+        StringBuilder report = new StringBuilder();
+        int small = measure(SMALL, operation, report);
+        int large = measure(LARGE, operation, report);
+        int smallBudget = fixed + perEntity * scale.count(SMALL);
+        int largeBudget = fixed + perEntity * scale.count(LARGE);
+
+        assertTrue(name + " made " + small + " calls, budget is " + smallBudget + report, small <= smallBudget);
+        assertTrue(name + " made " + large + " calls, budget is " + largeBudget + report, large <= largeBudget);
+        if( perEntity == 0 ) {
+            assertTrue(name + " calls grew with the inventory from " + small + " to " + large + report, large <= small);
+        }
+    }
+
+    @Test
+    public void listStoragePools() throws Exception {
+        assertBudget("listStoragePools", 8, 0, Scale.NONE, new Operation() {
+            @Override
+            public void run(@Nonnull PrivateCloud provider, @Nonnull SimInventory inventory) throws Exception {
+                provider.getDataCenterServices().listStoragePools();
+            }
+        });
+    }
+
+    @Test
+    public void listVlans() throws Exception {
+        assertBudget("listVlans", 7, 5, Scale.NETWORKS, new Operation() {
+            @Override
+            public void run(@Nonnull PrivateCloud provider, @Nonnull SimInventory inventory) throws Exception {
+                provider.getNetworkServices().getVlanSupport().listVlans();
+            }
+        });
+    }
+
+    @Test
+    public void listVirtualMachines() throws Exception {
+        assertBudget("listVirtualMachines", 10, 0, Scale.NONE, new Operation() {
+            @Override
+            public void run(@Nonnull PrivateCloud provider, @Nonnull SimInventory inventory) throws Exception {
+                provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines();
+            }
+        });
+    }
+
+    @Test
+    public void streamVirtualMachines() throws Exception {
+        assertBudget("streamVirtualMachines", 10, 0, Scale.NONE, new Operation() {
+            @Override
+            public void run(@Nonnull PrivateCloud provider, @Nonnull SimInventory inventory) throws Exception {
+                int count = 0;
+
+                for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().streamVirtualMachines() ) {
+                    assertTrue(vm.getProviderVirtualMachineId() + " has no data center", vm.getProviderDataCenterId() != null);
+                    count++;
+                }
+                assertTrue("Streamed " + count + " VMs", count > 0);
+            }
+        });
+    }
+
+    @Test
+    public void getVirtualMachine() throws Exception {
+        assertBudget("getVirtualMachine", 28, 0, Scale.NONE, new Operation() {
+            @Override
+            public void run(@Nonnull PrivateCloud provider, @Nonnull SimInventory inventory) throws Exception {
+                provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(getVmId(inventory, false));
+            }
+        });
+    }
+
+    @Test
+    public void listImages() throws Exception {
+        assertBudget("listImages", 8, 0, Scale.NONE, new Operation() {
+            @Override
+            public void run(@Nonnull PrivateCloud provider, @Nonnull SimInventory inventory) throws Exception {
+                provider.getComputeServices().getImageSupport().listImages(ImageFilterOptions.getInstance());
+            }
+        });
+    }
+
+    @Test
+    public void listVolumes() throws Exception {
+        assertBudget("listVolumes", 12, 3, Scale.DATASTORES, new Operation() {
+            @Override
+            public void run(@Nonnull PrivateCloud provider, @Nonnull SimInventory inventory) throws Exception {
+                provider.getComputeServices().getVolumeSupport().listVolumes();
+            }
+        });
+    }
+
+    @Test
+    public void launch() throws Exception {
+        assertBudget("launch", 40, 0, Scale.NONE, new Operation() {
+            @Override
+            public void run(@Nonnull PrivateCloud provider, @Nonnull SimInventory inventory) throws Exception {
+                VMLaunchOptions options = VMLaunchOptions.getInstance("2:4096", getVmId(inventory, true), "budget-vm", "budget-vm", "Round-trip budget test");
+
+                options.inDataCenter("Cluster-1");
+                provider.getComputeServices().getVirtualMachineSupport().launch(options);
+            }
+        });
+    }
+}
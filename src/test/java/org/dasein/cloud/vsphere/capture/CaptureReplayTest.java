@@ -0,0 +1,117 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.capture;
+
+import java.io.File;
+import java.util.List;
+import java.util.TreeSet;
+
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.ReplayServer;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Captures a VM listing against the simulator and replays it with the simulator gone.
+ */
+public class CaptureReplayTest {
+    private File recording;
+
+    @Before
+    public void setUp() throws Exception {
+        recording = File.createTempFile("vsphere", ".soaprec");
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("captureFile");
+        if( !recording.delete() ) {
+            recording.deleteOnExit();
+        }
+    }
+
+    static private @Nonnull TreeSet<String> listVirtualMachines(@Nonnull PrivateCloud provider) throws Exception {
+        TreeSet<String> ids = new TreeSet<String>();
+
+        try {
+            for( VirtualMachine vm : provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines() ) {
+                ids.add(vm.getProviderVirtualMachineId() + " " + vm.getName() + " " + vm.getCurrentState());
+            }
+        }
+        finally {
+            provider.close();
+        }
+        return ids;
+    }
+
+    @Test
+    public void scrubsCredentials() {
+        String xml = "<Login xmlns=\"urn:vim25\"><_this type=\"SessionManager\">SessionManager</_this><userName>admin</userName><password>secret</password></Login>"
+                + "<auth xsi:type=\"NamePasswordAuthentication\"><username>root</username><password xsi:type=\"xsd:string\">guest-secret</password></auth>";
+        String scrubbed = SoapCapture.scrub(xml);
+
+        assertFalse(scrubbed, scrubbed.contains("admin"));
+        assertFalse(scrubbed, scrubbed.contains("secret"));
+        assertFalse(scrubbed, scrubbed.contains("root"));
+        assertTrue(scrubbed, scrubbed.contains("<password xsi:type=\"xsd:string\">" + SoapCapture.SCRUBBED + "</password>"));
+        assertTrue(scrubbed, scrubbed.contains("<_this type=\"SessionManager\">SessionManager</_this>"));
+    }
+
+    @Test
+    public void replaysCapturedListing() throws Exception {
+        TreeSet<String> captured;
+        VSphereSimulator simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withVms(30)));
+
+        try {
+            System.setProperty("captureFile", recording.getAbsolutePath());
+            captured = listVirtualMachines(simulator.connect("Datacenter-1"));
+            System.clearProperty("captureFile");
+        }
+        finally {
+            simulator.stop();
+        }
+        List<SoapExchange> exchanges = SoapRecording.read(recording);
+
+        assertFalse("Nothing was captured", exchanges.isEmpty());
+        for( SoapExchange exchange : exchanges ) {
+            assertFalse("Session call captured: " + exchange, exchange.getMethod().equals("Login"));
+        }
+        ReplayServer replay = ReplayServer.start(recording);
+
+        try {
+            TreeSet<String> replayed = listVirtualMachines(replay.connect("Datacenter-1"));
+
+            assertEquals(captured, replayed);
+            assertEquals(0, replay.getMisses());
+        }
+        finally {
+            replay.stop();
+        }
+    }
+}
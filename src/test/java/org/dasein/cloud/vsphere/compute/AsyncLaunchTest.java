@@ -0,0 +1,186 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.InsufficientResourcesFault;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Launches asynchronously from a template against the simulator.
+ */
+public class AsyncLaunchTest {
+    static private final String REGION = "Datacenter-1";
+
+    private VSphereSimulator simulator;
+    private String           templateId;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withClusters(1).withHosts(1).withDatastores(1).withTemplates(1).withVms(0)));
+        for( SimObject vm : simulator.getInventory().list("VirtualMachine") ) {
+            VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+
+            if( config.isTemplate() ) {
+                templateId = config.getUuid();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+    }
+
+    private @Nonnull VMLaunchOptions newOptions(@Nonnull String imageId, @Nonnull String name) {
+        VMLaunchOptions options = VMLaunchOptions.getInstance("2:4096", imageId, name, name, "Async launch test");
+
+        options.inDataCenter("Cluster-1");
+        return options;
+    }
+
+    @Test
+    public void launchReportsStagesInOrder() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            final List<LaunchStage> stages = new ArrayList<LaunchStage>();
+            Future<VirtualMachine> launch = provider.getComputeServices().getVirtualMachineSupport().launchAsync(newOptions(templateId, "async-vm"), new LaunchListener() {
+                @Override
+                public void stageReached(@Nonnull String hostName, @Nonnull LaunchStage stage, int percent) {
+                    synchronized( stages ) {
+                        if( stages.isEmpty() || stages.get(stages.size()-1) != stage ) {
+                            stages.add(stage);
+                        }
+                    }
+                }
+            });
+            VirtualMachine server = launch.get(60, TimeUnit.SECONDS);
+
+            assertEquals("async-vm", server.getName());
+            assertEquals(VmState.RUNNING, server.getCurrentState());
+            synchronized( stages ) {
+                assertEquals(Arrays.asList(LaunchStage.values()), stages);
+            }
+            assertEquals(1, simulator.getCallCount("CloneVM_Task"));
+            assertEquals(2, simulator.getCallCount("CreateFilter"));
+            assertTrue(simulator.getCallCount("WaitForUpdatesEx") > 0);
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void launchOutlivesClose() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+        Future<VirtualMachine> launch;
+
+        try {
+            launch = provider.getComputeServices().getVirtualMachineSupport().launchAsync(newOptions(templateId, "held-vm"), null);
+        }
+        finally {
+            provider.close();
+        }
+        VirtualMachine server = launch.get(60, TimeUnit.SECONDS);
+
+        assertEquals("held-vm", server.getName());
+        assertEquals(VmState.RUNNING, server.getCurrentState());
+        assertEquals(1, simulator.getCallCount("CloneVM_Task"));
+    }
+
+    @Test
+    public void launchOfMissingTemplateFails() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Future<VirtualMachine> launch = provider.getComputeServices().getVirtualMachineSupport().launchAsync(newOptions("no-such-template", "missing-vm"), null);
+
+            try {
+                launch.get(60, TimeUnit.SECONDS);
+                fail("Launched from a template that does not exist");
+            }
+            catch( ExecutionException e ) {
+                assertTrue(e.getCause() instanceof CloudException);
+            }
+            assertEquals(0, simulator.getCallCount("CloneVM_Task"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void launchOfFailedCloneFails() throws Exception {
+        simulator.setFailing("CloneVM_Task", new InsufficientResourcesFault());
+
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            final List<LaunchStage> stages = new ArrayList<LaunchStage>();
+            Future<VirtualMachine> launch = provider.getComputeServices().getVirtualMachineSupport().launchAsync(newOptions(templateId, "failed-vm"), new LaunchListener() {
+                @Override
+                public void stageReached(@Nonnull String hostName, @Nonnull LaunchStage stage, int percent) {
+                    synchronized( stages ) {
+                        stages.add(stage);
+                    }
+                }
+            });
+
+            try {
+                launch.get(60, TimeUnit.SECONDS);
+                fail("Launched although the clone task failed");
+            }
+            catch( ExecutionException e ) {
+                assertTrue(e.getCause() instanceof CloudException);
+            }
+            assertEquals(1, simulator.getCallCount("CloneVM_Task"));
+            synchronized( stages ) {
+                assertFalse(stages.toString(), stages.contains(LaunchStage.POWERED_ON));
+            }
+        }
+        finally {
+            provider.close();
+        }
+    }
+}
@@ -0,0 +1,193 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Launches a batch of VMs from a template against the simulator.
+ */
+public class BatchLaunchTest {
+    static private final String REGION = "Datacenter-1";
+
+    private VSphereSimulator simulator;
+    private String           templateId;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("batchCloneLimit", "2");
+        // one cluster with three hosts sharing two datastores to spread over
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withClusters(1).withHosts(3).withDatastores(2).withTemplates(1).withVms(0)));
+        for( SimObject vm : simulator.getInventory().list("VirtualMachine") ) {
+            VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+
+            if( config.isTemplate() ) {
+                templateId = config.getUuid();
+            }
+        }
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("batchCloneLimit");
+        simulator.stop();
+    }
+
+    private @Nonnull VMLaunchOptions newOptions(@Nonnull String name) {
+        VMLaunchOptions options = VMLaunchOptions.getInstance("2:4096", templateId, name, name, "Batch launch test");
+
+        options.inDataCenter("Cluster-1");
+        return options;
+    }
+
+    @Test
+    public void batchSpreadsOverHostsAndDatastores() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            List<Future<VirtualMachine>> launches = provider.getComputeServices().getVirtualMachineSupport().launchBatch(newOptions("batch-vm"), 6);
+            Set<String> hosts = new HashSet<String>();
+            Set<String> datastores = new HashSet<String>();
+
+            assertEquals(6, launches.size());
+            for( int i=0; i<launches.size(); i++ ) {
+                VirtualMachine server = launches.get(i).get(60, TimeUnit.SECONDS);
+
+                assertEquals("batch-vm-" + (i+1), server.getName());
+                assertEquals(VmState.RUNNING, server.getCurrentState());
+                hosts.add(server.getAffinityGroupId());
+                datastores.add(server.getTag("datastore0").toString());
+            }
+            assertEquals(6, simulator.getCallCount("CloneVM_Task"));
+            assertEquals(3, hosts.size());
+            assertEquals(2, datastores.size());
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void singleVmKeepsItsName() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            List<Future<VirtualMachine>> launches = provider.getComputeServices().getVirtualMachineSupport().launchBatch(newOptions("single-vm"), 1);
+
+            assertEquals(1, launches.size());
+            assertEquals("single-vm", launches.get(0).get(60, TimeUnit.SECONDS).getName());
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void clonesBeyondTheLimitWait() throws Exception {
+        // with two clones at a time, four clones of 500ms each take at least two rounds
+        simulator.setLatency("CloneVM_Task", 500L);
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            long started = System.currentTimeMillis();
+
+            for( Future<VirtualMachine> launch : provider.getComputeServices().getVirtualMachineSupport().launchBatch(newOptions("limited-vm"), 4) ) {
+                launch.get(60, TimeUnit.SECONDS);
+            }
+            long elapsed = System.currentTimeMillis() - started;
+
+            assertTrue("Four clones took only " + elapsed + "ms", elapsed >= 1000L);
+            assertEquals(4, simulator.getCallCount("CloneVM_Task"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void batchOutlivesClose() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+        List<Future<VirtualMachine>> launches;
+
+        try {
+            launches = provider.getComputeServices().getVirtualMachineSupport().launchBatch(newOptions("held-vm"), 3);
+        }
+        finally {
+            provider.close();
+        }
+        // every queued clone holds the provider, so closing it does not log the clones out
+        for( Future<VirtualMachine> launch : launches ) {
+            assertEquals(VmState.RUNNING, launch.get(60, TimeUnit.SECONDS).getCurrentState());
+        }
+        assertEquals(3, simulator.getCallCount("CloneVM_Task"));
+    }
+
+    @Test
+    public void rejectsSharedPrivateIp() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            provider.getComputeServices().getVirtualMachineSupport().launchBatch(newOptions("static-vm").withPrivateIp("10.0.0.10"), 2);
+            fail("Assigned one private IP to two VMs");
+        }
+        catch( CloudException e ) {
+            assertTrue(e.getMessage(), e.getMessage().contains("10.0.0.10"));
+        }
+        finally {
+            provider.close();
+        }
+        assertEquals(0, simulator.getCallCount("CloneVM_Task"));
+    }
+
+    @Test( expected = InternalException.class )
+    public void rejectsEmptyBatch() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            provider.getComputeServices().getVirtualMachineSupport().launchBatch(newOptions("no-vm"), 0);
+        }
+        finally {
+            provider.close();
+        }
+    }
+}
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.vmware.vim25.HostListSummary;
+import com.vmware.vim25.ManagedObjectReference;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Selects clusters by capacity against the simulator.
+ */
+public class ClusterSelectorTest {
+    static private final String REGION = "Datacenter-1";
+    static private final int    HOST_MEMORY = 256 * 1024;
+
+    private VSphereSimulator simulator;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withVms(0)));
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+    }
+
+    /**
+     * Fills the memory of every host, leaving the given amount free on one host of each named cluster.
+     */
+    private void fill(Map<String,Integer> free) {
+        Map<String,Integer> left = new HashMap<String, Integer>(free);
+
+        for( SimObject host : simulator.getInventory().list("HostSystem") ) {
+            SimObject cluster = simulator.getInventory().get((ManagedObjectReference)host.get("parent"));
+            HostListSummary summary = (HostListSummary)host.get("summary");
+            Integer f = left.remove((String)cluster.get("name"));
+
+            summary.getQuickStats().setOverallMemoryUsage(HOST_MEMORY - (f == null ? 0 : f));
+        }
+    }
+
+    @Test
+    public void selectsClusterWithCapacity() throws Exception {
+        fill(Collections.singletonMap("Cluster-3", HOST_MEMORY));
+
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            for( int i=0; i<20; i++ ) {
+                assertEquals("Cluster-3", ClusterSelector.select(provider, 1, 1024));
+            }
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void selectionsReserveCapacityWithoutRoundTrips() throws Exception {
+        Map<String,Integer> free = new HashMap<String, Integer>();
+
+        free.put("Cluster-2", 8192);
+        free.put("Cluster-3", 4096);
+        fill(free);
+
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            assertEquals("Cluster-2", ClusterSelector.select(provider, 2, 8192));
+
+            int retrievals = simulator.getCallCount("RetrievePropertiesEx");
+
+            // the first launch used up Cluster-2 even though the cached snapshot does not show it yet
+            assertEquals("Cluster-3", ClusterSelector.select(provider, 2, 4096));
+            assertEquals(retrievals, simulator.getCallCount("RetrievePropertiesEx"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+}
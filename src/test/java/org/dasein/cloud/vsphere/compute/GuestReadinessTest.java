@@ -0,0 +1,160 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineRuntimeInfo;
+import org.dasein.cloud.network.RawAddress;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Waits for guest addresses against the simulator.
+ */
+public class GuestReadinessTest {
+    static private final String REGION = "Datacenter-1";
+
+    private VSphereSimulator simulator;
+    private List<String>     running = new ArrayList<String>();
+    private SimObject        stopped;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withTemplates(0).withVms(10)));
+        for( SimObject vm : simulator.getInventory().list("VirtualMachine") ) {
+            VirtualMachineRuntimeInfo runtime = (VirtualMachineRuntimeInfo)vm.get("runtime");
+
+            if( VirtualMachinePowerState.poweredOn.equals(runtime.getPowerState()) ) {
+                running.add(((VirtualMachineConfigInfo)vm.get("config")).getInstanceUuid());
+            }
+            else {
+                stopped = vm;
+            }
+        }
+        assertNotNull(stopped);
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+    }
+
+    private String getId(SimObject vm) {
+        return ((VirtualMachineConfigInfo)vm.get("config")).getInstanceUuid();
+    }
+
+    @Test
+    public void runningGuestsAreReady() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            List<String> ids = running.subList(0, 3);
+
+            provider.getServiceInstance();
+            simulator.resetCounters();
+            Map<String,RawAddress[]> addresses = provider.getComputeServices().getVirtualMachineSupport().awaitGuestAddresses(ids, 60, TimeUnit.SECONDS).get(60, TimeUnit.SECONDS);
+
+            assertEquals(ids, new ArrayList<String>(addresses.keySet()));
+            for( RawAddress[] a : addresses.values() ) {
+                assertTrue(a.length > 0);
+            }
+            assertEquals(1, simulator.getCallCount("CreateFilter"));
+            assertEquals(ids.size(), simulator.getCallCount("FindByUuid"));
+            assertEquals(0, simulator.getCallCount("RetrievePropertiesEx"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void waitEndsWhenGuestComesUp() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Future<Map<String,RawAddress[]>> wait = provider.getComputeServices().getVirtualMachineSupport().awaitGuestAddresses(Collections.singletonList(getId(stopped)), 60, TimeUnit.SECONDS);
+
+            Thread.sleep(500L);
+            assertFalse(wait.isDone());
+            simulator.getInventory().setPowerState(stopped, VirtualMachinePowerState.poweredOn);
+            assertTrue(wait.get(30, TimeUnit.SECONDS).get(getId(stopped)).length > 0);
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void waitOutlivesClose() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+        Future<Map<String,RawAddress[]>> wait;
+
+        try {
+            wait = provider.getComputeServices().getVirtualMachineSupport().awaitGuestAddresses(Collections.singletonList(getId(stopped)), 60, TimeUnit.SECONDS);
+        }
+        finally {
+            provider.close();
+        }
+        Thread.sleep(500L);
+        simulator.getInventory().setPowerState(stopped, VirtualMachinePowerState.poweredOn);
+        assertTrue(wait.get(30, TimeUnit.SECONDS).get(getId(stopped)).length > 0);
+    }
+
+    @Test
+    public void timeoutLeavesGuestNotReady() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Map<String,RawAddress[]> addresses = provider.getComputeServices().getVirtualMachineSupport().awaitGuestAddresses(Collections.singletonList(getId(stopped)), 1, TimeUnit.SECONDS).get(30, TimeUnit.SECONDS);
+
+            assertEquals(0, addresses.get(getId(stopped)).length);
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void routableAddresses() {
+        assertTrue(GuestReadiness.isRoutable("10.1.2.3"));
+        assertTrue(GuestReadiness.isRoutable("2001:db8::1"));
+        assertFalse(GuestReadiness.isRoutable("127.0.0.1"));
+        assertFalse(GuestReadiness.isRoutable("169.254.10.1"));
+        assertFalse(GuestReadiness.isRoutable("fe80::250:56ff:fe01:2"));
+        assertFalse(GuestReadiness.isRoutable("::1"));
+    }
+}
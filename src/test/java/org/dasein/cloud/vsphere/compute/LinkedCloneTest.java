@@ -0,0 +1,135 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Launches from a template in linked-clone mode against the simulator.
+ */
+public class LinkedCloneTest {
+    static private final String REGION = "Datacenter-1";
+
+    private VSphereSimulator simulator;
+    private SimObject        template;
+
+    @Before
+    public void setUp() throws Exception {
+        // a single template on a single host and datastore: only the snapshots of the template vary between tests
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withClusters(1).withHosts(1).withDatastores(1).withTemplates(1).withVms(0)));
+        for( SimObject vm : simulator.getInventory().list("VirtualMachine") ) {
+            if( ((VirtualMachineConfigInfo)vm.get("config")).isTemplate() ) {
+                template = vm;
+            }
+        }
+        assertNotNull(template);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("linkedClones");
+        simulator.stop();
+    }
+
+    private void launch(@Nonnull String name, @Nonnull Object ... metaData) throws Exception {
+        VMLaunchOptions options = VMLaunchOptions.getInstance("2:4096", ((VirtualMachineConfigInfo)template.get("config")).getUuid(), name, name, "Linked clone test");
+        PrivateCloud provider = simulator.connect(REGION);
+
+        options.inDataCenter("Cluster-1");
+        for( int i=0; i<metaData.length; i+=2 ) {
+            options.withMetaData(metaData[i].toString(), metaData[i+1]);
+        }
+        try {
+            provider.getComputeServices().getVirtualMachineSupport().launch(options);
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void clonesFromCurrentSnapshot() throws Exception {
+        simulator.getInventory().createSnapshot(template, "base");
+        launch("linked-vm", Vm.LINKED_CLONE, "true");
+        assertEquals(1, simulator.getLinkedClones().size());
+        assertEquals("linked-vm", simulator.getLinkedClones().get(0));
+    }
+
+    @Test
+    public void clonesFromNamedSnapshot() throws Exception {
+        simulator.getInventory().createSnapshot(template, "golden");
+        simulator.getInventory().createSnapshot(template, "scratch");
+        launch("golden-vm", Vm.LINKED_CLONE, "true", Vm.LINKED_CLONE_SNAPSHOT, "golden");
+        assertEquals(1, simulator.getLinkedClones().size());
+    }
+
+    @Test
+    public void providerDefaultAppliesWithoutMetaData() throws Exception {
+        System.setProperty("linkedClones", "true");
+        simulator.getInventory().createSnapshot(template, "base");
+        launch("default-vm");
+        assertEquals(1, simulator.getLinkedClones().size());
+    }
+
+    @Test
+    public void metaDataOverridesProviderDefault() throws Exception {
+        System.setProperty("linkedClones", "true");
+        simulator.getInventory().createSnapshot(template, "base");
+        launch("full-vm", Vm.LINKED_CLONE, "false");
+        assertTrue(simulator.getLinkedClones().isEmpty());
+        assertEquals(1, simulator.getCallCount("CloneVM_Task"));
+    }
+
+    @Test
+    public void fallsBackToFullCloneWithoutSnapshot() throws Exception {
+        launch("full-vm", Vm.LINKED_CLONE, Boolean.TRUE);
+        assertTrue(simulator.getLinkedClones().isEmpty());
+        assertEquals(1, simulator.getCallCount("CloneVM_Task"));
+    }
+
+    @Test
+    public void rejectsUnknownSnapshot() throws Exception {
+        simulator.getInventory().createSnapshot(template, "base");
+        try {
+            launch("missing-vm", Vm.LINKED_CLONE, "true", Vm.LINKED_CLONE_SNAPSHOT, "golden");
+            fail("Launched a linked clone from a snapshot the template does not have");
+        }
+        catch( CloudException e ) {
+            assertTrue(e.getMessage(), e.getMessage().contains("golden"));
+        }
+        assertEquals(0, simulator.getCallCount("CloneVM_Task"));
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vmware.vim25.CustomizationFault;
+import com.vmware.vim25.FileNotFound;
+import com.vmware.vim25.HostNotConnected;
+import com.vmware.vim25.InsufficientResourcesFault;
+import com.vmware.vim25.InvalidDeviceSpec;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.NoDiskSpace;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Trips and resets placement circuit breakers against the simulator.
+ */
+public class PlacementBreakersTest {
+    static private final String REGION = "Datacenter-1";
+
+    private VSphereSimulator simulator;
+    private SimObject        cluster;
+    private String           templateId;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("placementRetrySeconds", "1");
+        // one cluster with several hosts and datastores, so there is always somewhere else to place a clone
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withClusters(1).withHosts(4).withDatastores(3).withTemplates(1).withVms(0)));
+        for( SimObject candidate : simulator.getInventory().list("ClusterComputeResource") ) {
+            if( "Cluster-1".equals(candidate.get("name")) ) {
+                cluster = candidate;
+            }
+        }
+        for( SimObject vm : simulator.getInventory().list("VirtualMachine") ) {
+            VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+
+            if( config.isTemplate() ) {
+                templateId = config.getUuid();
+            }
+        }
+        assertNotNull(cluster);
+        assertNotNull(templateId);
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+        System.clearProperty("placementRetrySeconds");
+    }
+
+    private @Nonnull VMLaunchOptions newOptions(@Nonnull String name) {
+        VMLaunchOptions options = VMLaunchOptions.getInstance("2:4096", templateId, name, name, "Placement breaker test");
+
+        options.inDataCenter("Cluster-1");
+        return options;
+    }
+
+    private void setPoolsFailing(boolean failing) {
+        for( SimObject pool : simulator.getInventory().list("ResourcePool") ) {
+            if( cluster.getReference().getVal().equals(((ManagedObjectReference)pool.get("owner")).getVal()) ) {
+                simulator.setFailing(pool, failing);
+            }
+        }
+    }
+
+    @Test
+    public void failingPoolIsAvoidedUntilProbeSucceeds() throws Exception {
+        setPoolsFailing(true);
+
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+
+            for( int i=1; i<=PlacementBreakers.FAILURE_THRESHOLD; i++ ) {
+                try {
+                    support.launch(newOptions("failing-vm-" + i));
+                    fail("Launched into a failing resource pool");
+                }
+                catch( CloudException expected ) {
+                    // the clone task failed
+                }
+            }
+            assertEquals(PlacementBreakers.FAILURE_THRESHOLD, simulator.getCallCount("CloneVM_Task"));
+            try {
+                support.launch(newOptions("avoided-vm"));
+                fail("Launched into a resource pool with an open breaker");
+            }
+            catch( CloudException expected ) {
+                // failed fast without another clone
+            }
+            assertEquals(PlacementBreakers.FAILURE_THRESHOLD, simulator.getCallCount("CloneVM_Task"));
+
+            setPoolsFailing(false);
+            Thread.sleep(1500L);
+            assertNotNull(support.launch(newOptions("probe-vm")));
+            assertEquals(PlacementBreakers.FAILURE_THRESHOLD + 1, simulator.getCallCount("CloneVM_Task"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void spreadAvoidsTrippedHost() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            ManagedObjectReference[] hosts = (ManagedObjectReference[])cluster.get("host");
+            ManagedObjectReference tripped = hosts[0];
+
+            LocalizedMethodFault fault = new LocalizedMethodFault();
+
+            fault.setFault(new HostNotConnected());
+            for( int i=0; i<PlacementBreakers.FAILURE_THRESHOLD; i++ ) {
+                PlacementBreakers.begin(provider, "test-vm", tripped).failed(fault);
+            }
+            assertEquals(PlacementBreakers.State.OPEN, PlacementBreakers.getState(provider, tripped));
+
+            List<String> used = new ArrayList<String>();
+
+            for( ManagedObjectReference[] placement : BatchLaunch.spread(provider, provider.getServiceInstance(), cluster.getReference(), hosts.length * 2) ) {
+                used.add(placement[0].getVal());
+            }
+            assertFalse(used.contains(tripped.getVal()));
+
+            // reset the shared breaker for any later test that happens to reuse the endpoint
+            PlacementBreakers.begin(provider, "test-vm", tripped).succeeded();
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void spreadAvoidsTrippedDatastore() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            ManagedObjectReference[] datastores = (ManagedObjectReference[])cluster.get("datastore");
+            ManagedObjectReference tripped = datastores[0];
+
+            LocalizedMethodFault fault = new LocalizedMethodFault();
+
+            fault.setFault(new NoDiskSpace());
+            for( int i=0; i<PlacementBreakers.FAILURE_THRESHOLD; i++ ) {
+                PlacementBreakers.begin(provider, "test-vm", tripped).failed(fault);
+            }
+            assertEquals(PlacementBreakers.State.OPEN, PlacementBreakers.getState(provider, tripped));
+
+            List<String> used = new ArrayList<String>();
+
+            for( ManagedObjectReference[] placement : BatchLaunch.spread(provider, provider.getServiceInstance(), cluster.getReference(), datastores.length * 2) ) {
+                used.add(placement[1].getVal());
+            }
+            assertFalse(used.contains(tripped.getVal()));
+            assertEquals(datastores.length * 2, used.size());
+
+            PlacementBreakers.begin(provider, "test-vm", tripped).succeeded();
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void templateFaultDoesNotTripPool() throws Exception {
+        FileNotFound missingDisk = new FileNotFound();
+
+        missingDisk.setFile("[datastore1] template/template.vmdk");
+        simulator.setFailing("CloneVM_Task", missingDisk);
+
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+
+            for( int i=0; i<=PlacementBreakers.FAILURE_THRESHOLD; i++ ) {
+                int clones = simulator.getCallCount("CloneVM_Task");
+
+                try {
+                    support.launch(newOptions("broken-template-vm-" + i));
+                    fail("Launched from a broken template");
+                }
+                catch( CloudException expected ) {
+                    // the clone task failed
+                }
+                assertTrue("Launch " + i + " failed fast without a clone", simulator.getCallCount("CloneVM_Task") > clones);
+            }
+            for( SimObject pool : simulator.getInventory().list("ResourcePool") ) {
+                assertEquals(PlacementBreakers.State.CLOSED, PlacementBreakers.getState(provider, pool.getReference()));
+            }
+            simulator.setFailing("CloneVM_Task", null);
+            assertNotNull(support.launch(newOptions("repaired-template-vm")));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void targetFaults() {
+        assertTrue(PlacementBreakers.isTargetFault(new HostNotConnected()));
+        assertTrue(PlacementBreakers.isTargetFault(new NoDiskSpace()));
+        assertFalse(PlacementBreakers.isTargetFault(null));
+        assertFalse(PlacementBreakers.isTargetFault(new FileNotFound()));
+        assertFalse(PlacementBreakers.isTargetFault(new CustomizationFault()));
+        assertFalse(PlacementBreakers.isTargetFault(new InvalidDeviceSpec()));
+        assertFalse(PlacementBreakers.isTargetFault(new InsufficientResourcesFault()));
+    }
+}
@@ -0,0 +1,129 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.io.Closeable;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Set;
+
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Streams the VMs of the simulator through small property collector pages.
+ */
+public class StreamVirtualMachinesTest {
+    static private final String REGION    = "Datacenter-1";
+    static private final int    PAGE_SIZE = 10;
+
+    private VSphereSimulator simulator;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("streamPageSize", String.valueOf(PAGE_SIZE));
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance()));
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("streamPageSize");
+        simulator.stop();
+    }
+
+    @Test
+    public void pagesThroughTheWholeInventory() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+            Set<String> listed = new HashSet<String>();
+
+            for( VirtualMachine vm : support.listVirtualMachines() ) {
+                listed.add(vm.getProviderVirtualMachineId());
+            }
+            Iterable<VirtualMachine> stream = support.streamVirtualMachines();
+
+            simulator.resetCounters();
+            Iterator<VirtualMachine> it = stream.iterator();
+
+            assertEquals("The retrieval started before the first hasNext()", 0, simulator.getTotalCalls());
+
+            Set<String> streamed = new HashSet<String>();
+
+            while( it.hasNext() ) {
+                streamed.add(it.next().getProviderVirtualMachineId());
+            }
+            int objects = simulator.getInventory().list("VirtualMachine").size();
+
+            assertEquals(listed, streamed);
+            assertEquals(1, simulator.getCallCount("RetrievePropertiesEx"));
+            assertEquals((objects - 1) / PAGE_SIZE, simulator.getCallCount("ContinueRetrievePropertiesEx"));
+            assertEquals(0, simulator.getCallCount("CancelRetrievePropertiesEx"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void closingEarlyCancelsTheRetrieval() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Iterator<VirtualMachine> it = provider.getComputeServices().getVirtualMachineSupport().streamVirtualMachines().iterator();
+
+            simulator.resetCounters();
+            it.next();
+            assertTrue(it instanceof Closeable);
+            ((Closeable)it).close();
+            assertEquals(1, simulator.getCallCount("RetrievePropertiesEx"));
+            assertEquals(0, simulator.getCallCount("ContinueRetrievePropertiesEx"));
+            assertEquals(1, simulator.getCallCount("CancelRetrievePropertiesEx"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void closingBeforeIteratingRetrievesNothing() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Iterator<VirtualMachine> it = provider.getComputeServices().getVirtualMachineSupport().streamVirtualMachines().iterator();
+
+            simulator.resetCounters();
+            ((Closeable)it).close();
+            assertEquals(0, simulator.getTotalCalls());
+        }
+        finally {
+            provider.close();
+        }
+    }
+}
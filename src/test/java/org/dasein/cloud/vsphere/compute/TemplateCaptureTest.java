@@ -0,0 +1,102 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import org.dasein.cloud.AsynchronousTask;
+import org.dasein.cloud.compute.ImageCreateOptions;
+import org.dasein.cloud.compute.MachineImage;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Captures images asynchronously against the simulator.
+ */
+public class TemplateCaptureTest {
+    static private final String REGION = "Datacenter-1";
+
+    private VSphereSimulator simulator;
+    private List<String>     vmIds = new ArrayList<String>();
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withTemplates(0).withVms(3)));
+        for( SimObject vm : simulator.getInventory().list("VirtualMachine") ) {
+            vmIds.add(((VirtualMachineConfigInfo)vm.get("config")).getInstanceUuid());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+    }
+
+    @Test
+    public void capturesInParallel() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+        List<AsynchronousTask<MachineImage>> tasks = new ArrayList<AsynchronousTask<MachineImage>>();
+
+        try {
+            Template support = provider.getComputeServices().getImageSupport();
+
+            for( int i=0; i<vmIds.size(); i++ ) {
+                VirtualMachine vm = provider.getComputeServices().getVirtualMachineSupport().getVirtualMachine(vmIds.get(i));
+                AsynchronousTask<MachineImage> task = new AsynchronousTask<MachineImage>();
+
+                assertNotNull(vm);
+                support.captureImageAsync(ImageCreateOptions.getInstance(vm, "golden-" + i, "Capture test"), task);
+                tasks.add(task);
+            }
+        }
+        finally {
+            // the captures hold the provider, so closing it must not cut them off
+            provider.close();
+        }
+        long timeout = System.currentTimeMillis() + 30000L;
+        Set<String> names = new HashSet<String>();
+
+        for( AsynchronousTask<MachineImage> task : tasks ) {
+            while( !task.isComplete() && System.currentTimeMillis() < timeout ) {
+                Thread.sleep(50L);
+            }
+            assertTrue(task.isComplete());
+            assertNull(task.getTaskError());
+            assertEquals(100.0, task.getPercentComplete(), 0.0);
+            names.add(task.getResult().getName());
+        }
+        assertEquals(3, names.size());
+        assertEquals(3, simulator.getCallCount("CloneVM_Task"));
+    }
+}
@@ -0,0 +1,210 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import com.vmware.vim25.HostListSummary;
+import com.vmware.vim25.ManagedObjectReference;
+import org.dasein.cloud.compute.AffinityGroup;
+import org.dasein.cloud.compute.AffinityGroupFilterOptions;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Tracks host and cluster utilization against the simulator.
+ */
+public class UtilizationMonitorTest {
+    static private final String REGION   = "Datacenter-1";
+    static private final long   HOST_CPU = 16L * 2600L;
+    static private final long   MINUTE   = 60L * 1000L;
+
+    private VSphereSimulator simulator;
+
+    @Before
+    public void setUp() throws Exception {
+        // samples are taken by the tests only
+        System.setProperty("utilizationSampleSeconds", "3600");
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withTemplates(0).withVms(20)));
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+        System.clearProperty("utilizationSampleSeconds");
+    }
+
+    private String getName(SimObject host) {
+        return (String)host.get("name");
+    }
+
+    private String getCluster(SimObject host) {
+        return (String)simulator.getInventory().get((ManagedObjectReference)host.get("parent")).get("name");
+    }
+
+    private void setCpuUsage(UtilizationMonitor monitor, SimObject host, int percent) throws InterruptedException {
+        ((HostListSummary)host.get("summary")).getQuickStats().setOverallCpuUsage((int)(HOST_CPU * percent / 100L));
+
+        long timeout = System.currentTimeMillis() + 10000L;
+
+        while( Math.abs(monitor.getHost(getName(host)).getCpuUtilization() - percent) > 0.01 ) {
+            assertTrue("The monitor did not see the quick stats change", System.currentTimeMillis() < timeout);
+            Thread.sleep(50L);
+        }
+    }
+
+    @Test
+    public void allHostsAndClustersThroughOneFilterEach() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Host support = provider.getComputeServices().getAffinityGroupSupport();
+            int filters = simulator.getCallCount("CreateFilter");
+            UtilizationMonitor monitor = support.getUtilizationMonitor();
+
+            try {
+                assertEquals(2, simulator.getCallCount("CreateFilter") - filters);
+
+                int vms = 0;
+
+                for( SimObject host : simulator.getInventory().list("HostSystem") ) {
+                    UtilizationMonitor.Utilization u = monitor.getHost(getName(host));
+
+                    assertNotNull(u);
+                    assertEquals(((ManagedObjectReference[])host.get("vm")).length, u.getVmCount());
+                    assertEquals(HOST_CPU, u.getCpuCapacityMhz());
+                    vms += u.getVmCount();
+                }
+                assertEquals(20, vms);
+                assertEquals(simulator.getInventory().list("HostSystem").size(), monitor.listHosts().size());
+
+                int clusterVms = 0;
+
+                for( UtilizationMonitor.Utilization u : monitor.listClusters().values() ) {
+                    clusterVms += u.getVmCount();
+                }
+                assertEquals(20, clusterVms);
+                assertNull(monitor.getHost("no-such-host"));
+                for( AffinityGroup ag : support.list(AffinityGroupFilterOptions.getInstance()) ) {
+                    assertNotNull(ag.getTags().get("vmCount"));
+                    assertNotNull(ag.getTags().get("cluster.cpuUtilization"));
+                }
+            }
+            finally {
+                monitor.close();
+            }
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void percentilesOverSamples() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            UtilizationMonitor monitor = provider.getComputeServices().getAffinityGroupSupport().getUtilizationMonitor();
+            SimObject host = simulator.getInventory().list("HostSystem").get(0);
+            String name = getName(host);
+
+            try {
+                int queries = simulator.getCallCount("QueryPerf");
+
+                for( int percent : new int[] { 50, 10, 90 } ) {
+                    setCpuUsage(monitor, host, percent);
+                    monitor.sample();
+                }
+                // one query covers all hosts of the region
+                assertEquals(3, simulator.getCallCount("QueryPerf") - queries);
+                assertEquals(10.0, monitor.getHostPercentile(name, UtilizationMonitor.Metric.CPU, 0, MINUTE), 0.01);
+                assertEquals(50.0, monitor.getHostPercentile(name, UtilizationMonitor.Metric.CPU, 50, MINUTE), 0.01);
+                assertEquals(90.0, monitor.getHostPercentile(name, UtilizationMonitor.Metric.CPU, 95, MINUTE), 0.01);
+                assertEquals(100.0, monitor.getHostPercentile(name, UtilizationMonitor.Metric.NETWORK, 50, MINUTE), 0.01);
+                assertTrue(monitor.getClusterPercentile(getCluster(host), UtilizationMonitor.Metric.CPU, 100, MINUTE) > monitor.getClusterPercentile(getCluster(host), UtilizationMonitor.Metric.CPU, 0, MINUTE));
+                assertTrue(Double.isNaN(monitor.getHostPercentile("no-such-host", UtilizationMonitor.Metric.CPU, 50, MINUTE)));
+            }
+            finally {
+                monitor.close();
+            }
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void followsHostsMovedOrRemoved() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            UtilizationMonitor monitor = provider.getComputeServices().getAffinityGroupSupport().getUtilizationMonitor();
+            SimInventory inventory = simulator.getInventory();
+            SimObject from = inventory.list("ClusterComputeResource").get(0);
+            SimObject to = inventory.list("ClusterComputeResource").get(1);
+            ManagedObjectReference[] hosts = (ManagedObjectReference[])from.get("host");
+            SimObject moved = inventory.get(hosts[0]);
+            SimObject removed = inventory.get(hosts[1]);
+            long fromCapacity = monitor.getCluster((String)from.get("name")).getCpuCapacityMhz();
+            long toCapacity = monitor.getCluster((String)to.get("name")).getCpuCapacityMhz();
+
+            try {
+                inventory.removeReference(from, "host", moved.getReference());
+                inventory.addReference(to, "host", moved.getReference());
+                moved.set("parent", to.getReference());
+                inventory.removeReference(from, "host", removed.getReference());
+                awaitCapacity(monitor, (String)to.get("name"), toCapacity + HOST_CPU);
+                awaitCapacity(monitor, (String)from.get("name"), fromCapacity - 2 * HOST_CPU);
+                assertNotNull(monitor.getHost(getName(moved)));
+
+                long timeout = System.currentTimeMillis() + 10000L;
+
+                while( monitor.getHost(getName(removed)) != null ) {
+                    assertTrue("The monitor still tracks a host no cluster lists", System.currentTimeMillis() < timeout);
+                    Thread.sleep(50L);
+                }
+                // the moved host is still watched
+                setCpuUsage(monitor, moved, 40);
+            }
+            finally {
+                monitor.close();
+            }
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    private void awaitCapacity(UtilizationMonitor monitor, String cluster, long capacity) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 10000L;
+
+        while( monitor.getCluster(cluster).getCpuCapacityMhz() != capacity ) {
+            assertTrue("The monitor did not see the host list of " + cluster + " change", System.currentTimeMillis() < timeout);
+            Thread.sleep(50L);
+        }
+    }
+}
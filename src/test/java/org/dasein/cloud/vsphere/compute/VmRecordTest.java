@@ -0,0 +1,139 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.Arrays;
+
+import org.dasein.cloud.compute.Architecture;
+import org.dasein.cloud.compute.Platform;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.network.RawAddress;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that a {@link VmRecord} reads back the VM it was built from.
+ */
+public class VmRecordTest {
+    static private @Nullable String[] toStrings(@Nullable RawAddress[] addresses) {
+        if( addresses == null ) {
+            return null;
+        }
+        String[] values = new String[addresses.length];
+
+        for( int i = 0; i < addresses.length; i++ ) {
+            values[i] = addresses[i].getIpAddress();
+        }
+        return values;
+    }
+
+    private @Nonnull VmRecord newRecord() {
+        VmRecord record = new VmRecord();
+
+        record.name = "web-01";
+        record.setInstanceUuid("5029e3b4-7f0c-4a7a-9b1e-0123456789ab");
+        record.setPlatform(Platform.UBUNTU);
+        record.setArchitecture(Architecture.I64);
+        record.cpuCount = 2;
+        record.memoryMb = 4096;
+        record.dataCenterId = VmRecord.intern("Cluster-1");
+        record.regionId = VmRecord.intern("Datacenter-1");
+        record.hostName = VmRecord.intern("host-1");
+        record.datastores = new String[] { VmRecord.intern("datastore-1") };
+        record.folderName = VmRecord.intern("apps");
+        return record;
+    }
+
+    @Test
+    public void parseIpv4() {
+        assertEquals(0x0a000001L, VmRecord.parseIpv4("10.0.0.1"));
+        assertEquals(0xffffffffL, VmRecord.parseIpv4("255.255.255.255"));
+        assertEquals(-1L, VmRecord.parseIpv4("10.0.0"));
+        assertEquals(-1L, VmRecord.parseIpv4("10.0.0.1.2"));
+        assertEquals(-1L, VmRecord.parseIpv4("10.0.0.256"));
+        assertEquals(-1L, VmRecord.parseIpv4("10.0.00.1"));
+        assertEquals(-1L, VmRecord.parseIpv4("10..0.1"));
+        assertEquals(-1L, VmRecord.parseIpv4("fe80::1"));
+    }
+
+    @Test
+    public void addressesKeepOrderAndText() {
+        VmRecord record = newRecord();
+
+        record.addresses = VmRecord.packAddresses(Arrays.asList("10.0.0.5", "203.0.113.7", "fe80::250:56ff:fe9a:1", "192.168.1.9"), Arrays.asList(false, true, true, false));
+
+        VirtualMachine vm = record.toVirtualMachine("acct");
+
+        assertArrayEquals(new String[] { "10.0.0.5", "192.168.1.9" }, toStrings(vm.getPrivateAddresses()));
+        assertArrayEquals(new String[] { "203.0.113.7", "fe80::250:56ff:fe9a:1" }, toStrings(vm.getPublicAddresses()));
+    }
+
+    @Test
+    public void readsBackTheVm() {
+        VmRecord record = newRecord();
+
+        record.setState(VmState.RUNNING, true);
+        record.lastBootTimestamp = 1000L;
+        record.lastPauseTimestamp = -1L;
+
+        VirtualMachine vm = record.toVirtualMachine("acct");
+
+        assertEquals("web-01", vm.getName());
+        assertEquals("web-01", vm.getDescription());
+        assertEquals("5029e3b4-7f0c-4a7a-9b1e-0123456789ab", vm.getProviderVirtualMachineId());
+        assertEquals("2:4096", vm.getProductId());
+        assertEquals("acct-unknown", vm.getProviderMachineImageId());
+        assertEquals("acct", vm.getProviderOwnerId());
+        assertEquals(Platform.UBUNTU, vm.getPlatform());
+        assertEquals(Architecture.I64, vm.getArchitecture());
+        assertEquals(VmState.RUNNING, vm.getCurrentState());
+        assertTrue(vm.isRebootable());
+        assertEquals(1000L, vm.getCreationTimestamp());
+        assertEquals("Cluster-1", vm.getProviderDataCenterId());
+        assertEquals("Datacenter-1", vm.getProviderRegionId());
+        assertEquals("host-1", vm.getAffinityGroupId());
+        assertEquals("datastore-1", vm.getTag("datastore0"));
+        assertEquals("apps", vm.getTag("vmFolder"));
+        assertNull(vm.getPrivateAddresses());
+    }
+
+    @Test
+    public void keepsNonCanonicalUuidAsText() {
+        VmRecord record = newRecord();
+
+        record.setInstanceUuid("5029E3B4-7F0C-4A7A-9B1E-0123456789AB");
+        assertEquals("5029E3B4-7F0C-4A7A-9B1E-0123456789AB", record.getInstanceUuid());
+        record.setInstanceUuid("not-a-uuid");
+        assertEquals("not-a-uuid", record.getInstanceUuid());
+    }
+
+    @Test
+    public void internsSharedNames() {
+        assertSame(newRecord().hostName, VmRecord.intern(new String("host-1")));
+    }
+}
@@ -0,0 +1,208 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+import com.vmware.vim25.PerfInterval;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineRuntimeInfo;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.VmStatistics;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Reads VM statistics from the simulated performance manager.
+ */
+public class VmStatisticsTest {
+    static private final String REGION = "Datacenter-1";
+    static private final long   HOUR   = 60L * 60L * 1000L;
+
+    private VSphereSimulator simulator;
+    private List<String>     running = new ArrayList<String>();
+    private String           stopped;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withTemplates(2).withVms(100)));
+        for( SimObject vm : simulator.getInventory().list("VirtualMachine") ) {
+            VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+            VirtualMachineRuntimeInfo runtime = (VirtualMachineRuntimeInfo)vm.get("runtime");
+
+            if( config.isTemplate() ) {
+                continue;
+            }
+            if( VirtualMachinePowerState.poweredOn.equals(runtime.getPowerState()) ) {
+                running.add(config.getInstanceUuid());
+            }
+            else {
+                stopped = config.getInstanceUuid();
+            }
+        }
+        assertNotNull(stopped);
+    }
+
+    @After
+    public void tearDown() {
+        simulator.stop();
+    }
+
+    @Test
+    public void sweepQueriesOneBatchAtATime() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = (Vm)provider.getComputeServices().getVirtualMachineSupport();
+            long now = System.currentTimeMillis();
+            int retrievals = simulator.getCallCount("RetrievePropertiesEx");
+            Iterable<Map.Entry<String,VmStatistics>> stats = support.listVMStatistics(null, now - HOUR / 2, now);
+
+            // the first batch is fetched up front, the second once the iteration gets to it
+            assertEquals(1, simulator.getCallCount("QueryPerf"));
+
+            int count = 0;
+
+            for( Map.Entry<String,VmStatistics> entry : stats ) {
+                assertTrue(running.contains(entry.getKey()));
+                assertEquals(25.0, entry.getValue().getAverageCpuUtilization(), 0.001);
+                assertEquals(100.0 * 1024.0 * VmPerformance.REAL_TIME_INTERVAL, entry.getValue().getAverageNetworkIn(), 0.001);
+                count++;
+            }
+            assertEquals(running.size(), count);
+            assertEquals(2, simulator.getCallCount("QueryPerf"));
+
+            int first = simulator.getCallCount("RetrievePropertiesEx") - retrievals;
+
+            retrievals = simulator.getCallCount("RetrievePropertiesEx");
+            support.listVMStatistics(running.subList(0, 3), now - HOUR / 2, now);
+            // the counter catalog is only read by the first sweep
+            assertEquals(first - 1, simulator.getCallCount("RetrievePropertiesEx") - retrievals);
+            assertEquals(3, simulator.getCallCount("QueryPerf"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void failedBatchEndsIterationWithError() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = (Vm)provider.getComputeServices().getVirtualMachineSupport();
+            long now = System.currentTimeMillis();
+
+            assertTrue(running.size() > VmPerformance.BATCH_SIZE);
+            simulator.failAfter("QueryPerf", 1);
+            Iterator<Map.Entry<String,VmStatistics>> stats = support.listVMStatistics(null, now - HOUR / 2, now).iterator();
+            int count = 0;
+
+            try {
+                while( stats.hasNext() ) {
+                    stats.next();
+                    count++;
+                }
+                fail("The sweep ended after " + count + " VMs as if the failed batch were the end");
+            }
+            catch( IllegalStateException expected ) {
+                assertTrue(expected.getCause() instanceof CloudException);
+            }
+            assertTrue(count <= VmPerformance.BATCH_SIZE);
+            assertEquals(2, simulator.getCallCount("QueryPerf"));
+            try {
+                stats.hasNext();
+                fail("The failed sweep went on");
+            }
+            catch( IllegalStateException expected ) {
+                // the failure sticks
+            }
+            assertEquals(2, simulator.getCallCount("QueryPerf"));
+        }
+        finally {
+            simulator.failAfter("QueryPerf", -1);
+            provider.close();
+        }
+    }
+
+    @Test
+    public void singleVmStatistics() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = (Vm)provider.getComputeServices().getVirtualMachineSupport();
+            long now = System.currentTimeMillis();
+            VmStatistics stats = support.getVMStatistics(running.get(0), now - HOUR / 4, now);
+            int samples = 0;
+
+            assertNotNull(stats);
+            assertEquals(25.0, stats.getMaximumCpuUtilization(), 0.001);
+            for( VmStatistics sample : support.getVMStatisticsForPeriod(running.get(0), now - HOUR / 4, now) ) {
+                assertEquals(VmPerformance.REAL_TIME_INTERVAL * 1000L, sample.getEndTimestamp() - sample.getStartTimestamp());
+                samples++;
+            }
+            assertEquals(stats.getSamples(), samples);
+            assertEquals(0, support.getVMStatistics(stopped, now - HOUR / 4, now).getSamples());
+            assertNull(support.getVMStatistics("no-such-vm", now - HOUR / 4, now));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void intervalFollowsRangeStart() {
+        List<PerfInterval> intervals = new ArrayList<PerfInterval>();
+
+        intervals.add(interval(300, 86400));
+        intervals.add(interval(1800, 604800));
+        intervals.add(interval(7200, 2592000));
+
+        long now = System.currentTimeMillis();
+
+        assertEquals(VmPerformance.REAL_TIME_INTERVAL, VmPerformance.selectInterval(intervals, now - HOUR / 2, now));
+        assertEquals(300, VmPerformance.selectInterval(intervals, now - 12 * HOUR, now));
+        assertEquals(1800, VmPerformance.selectInterval(intervals, now - 72 * HOUR, now));
+        assertEquals(7200, VmPerformance.selectInterval(intervals, now - 365 * 24 * HOUR, now));
+    }
+
+    private PerfInterval interval(int samplingPeriod, int length) {
+        PerfInterval interval = new PerfInterval();
+
+        interval.setSamplingPeriod(samplingPeriod);
+        interval.setLength(length);
+        interval.setEnabled(true);
+        return interval;
+    }
+}
@@ -0,0 +1,260 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.compute;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.VMLaunchOptions;
+import org.dasein.cloud.compute.VirtualMachine;
+import org.dasein.cloud.compute.VmState;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.SimObject;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Launches from a template with a warm pool against the simulator.
+ */
+public class WarmPoolTest {
+    static private final String REGION = "Datacenter-1";
+
+    private VSphereSimulator simulator;
+    private SimObject        template;
+    private String           templateId;
+
+    @Before
+    public void setUp() throws Exception {
+        System.setProperty("warmPoolSize", "1");
+        // one host and datastore, so every warm clone and launch lands in the same place
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withClusters(1).withHosts(1).withDatastores(1).withTemplates(1).withVms(0)));
+        for( SimObject vm : simulator.getInventory().list("VirtualMachine") ) {
+            VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+
+            if( config.isTemplate() ) {
+                template = vm;
+                templateId = config.getUuid();
+            }
+        }
+        assertNotNull(template);
+    }
+
+    @After
+    public void tearDown() {
+        System.clearProperty("warmPoolSize");
+        simulator.stop();
+    }
+
+    private @Nonnull VMLaunchOptions newOptions(@Nonnull String name, @Nonnull String product) {
+        VMLaunchOptions options = VMLaunchOptions.getInstance(product, templateId, name, name, "Warm pool test");
+
+        options.inDataCenter("Cluster-1");
+        return options;
+    }
+
+    private @Nonnull VMLaunchOptions newOptions(@Nonnull String name) {
+        return newOptions(name, "2:4096");
+    }
+
+    private void awaitReady(@Nonnull PrivateCloud provider, @Nonnull VMLaunchOptions options) throws InterruptedException {
+        long timeout = System.currentTimeMillis() + 60000L;
+
+        while( WarmPool.getReadyCount(provider, options) < 1 && System.currentTimeMillis() < timeout ) {
+            Thread.sleep(100L);
+        }
+        assertEquals(1, WarmPool.getReadyCount(provider, options));
+        assertEquals(0, WarmPool.getPendingCount(provider, options));
+    }
+
+    private @Nonnull List<String> listWarmClones() {
+        List<String> ids = new ArrayList<String>();
+
+        for( SimObject vm : simulator.getInventory().list("VirtualMachine") ) {
+            SimObject folder = simulator.getInventory().get((ManagedObjectReference)vm.get("parent"));
+
+            if( folder != null && WarmPool.FOLDER.equals(folder.get("name")) ) {
+                ids.add(vm.getId());
+            }
+        }
+        return ids;
+    }
+
+    @Test
+    public void launchClaimsWarmClone() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+
+            support.launch(newOptions("first-vm"));
+            awaitReady(provider, newOptions("first-vm"));
+            assertEquals(2, simulator.getCallCount("CloneVM_Task"));
+            for( VirtualMachine vm : support.listVirtualMachines() ) {
+                assertFalse("Listed warm clone " + vm.getName(), vm.getName().startsWith("warm-"));
+            }
+
+            int reconfigs = simulator.getCallCount("ReconfigVM_Task");
+            VirtualMachine server = support.launch(newOptions("second-vm"));
+
+            assertEquals("second-vm", server.getName());
+            assertEquals(VmState.RUNNING, server.getCurrentState());
+            assertEquals(1, simulator.getCallCount("ReconfigVM_Task") - reconfigs);
+            assertEquals(1, simulator.getCallCount("MoveIntoFolder_Task"));
+            assertEquals(templateId, ((VirtualMachineConfigInfo)simulator.getInventory().get(findId("second-vm")).get("config")).getAnnotation());
+
+            // the claimed clone is replaced in the background
+            awaitReady(provider, newOptions("third-vm"));
+            assertEquals(3, simulator.getCallCount("CloneVM_Task"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void failedRenameDestroysClone() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+
+            support.launch(newOptions("first-vm"));
+            awaitReady(provider, newOptions("first-vm"));
+
+            List<String> pooled = listWarmClones();
+
+            simulator.setFailing("ReconfigVM_Task", true);
+
+            // the launch falls back to a fresh clone
+            VirtualMachine server = support.launch(newOptions("second-vm"));
+
+            assertEquals("second-vm", server.getName());
+            assertEquals(1, pooled.size());
+            assertNull("Claimed clone was left behind", simulator.getInventory().get(pooled.get(0)));
+            assertEquals(1, simulator.getCallCount("Destroy_Task"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void failedPowerOnDestroysClone() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+
+            support.launch(newOptions("first-vm"));
+            awaitReady(provider, newOptions("first-vm"));
+
+            List<String> pooled = listWarmClones();
+
+            simulator.setFailing("PowerOnVM_Task", true);
+            try {
+                support.launch(newOptions("second-vm"));
+                fail("Launch succeeded although the VM could not be powered on");
+            }
+            catch( CloudException expected ) {
+                // expected
+            }
+            assertEquals(1, pooled.size());
+            assertNull("Claimed clone was left behind", simulator.getInventory().get(pooled.get(0)));
+            assertNull(findId("second-vm"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void linkedCloneLaunchSkipsFullClones() throws Exception {
+        simulator.getInventory().createSnapshot(template, "base");
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+
+            support.launch(newOptions("first-vm"));
+            awaitReady(provider, newOptions("first-vm"));
+
+            int reconfigs = simulator.getCallCount("ReconfigVM_Task");
+
+            support.launch(newOptions("linked-vm").withMetaData(Vm.LINKED_CLONE, "true"));
+            // the full clone stays in the pool and the linked launch clones afresh
+            assertEquals(reconfigs, simulator.getCallCount("ReconfigVM_Task"));
+            assertEquals(1, WarmPool.getReadyCount(provider, newOptions("first-vm")));
+            assertTrue(simulator.getLinkedClones().contains("linked-vm"));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void launchWithOtherProductLeavesWarmCloneAlone() throws Exception {
+        PrivateCloud provider = simulator.connect(REGION);
+
+        try {
+            Vm support = provider.getComputeServices().getVirtualMachineSupport();
+
+            support.launch(newOptions("first-vm"));
+            awaitReady(provider, newOptions("first-vm"));
+
+            VirtualMachine server = support.launch(newOptions("small-vm", "1:1024"));
+
+            // the warm clone has the wrong hardware, so the launch clones afresh and the pool keeps its clone
+            assertEquals("small-vm", server.getName());
+            assertEquals(0, simulator.getCallCount("MoveIntoFolder_Task"));
+            assertEquals(1, WarmPool.getReadyCount(provider, newOptions("first-vm")));
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    /**
+     * @param name a VM name
+     * @return the ID of the simulated VM or <code>null</code> if there is none
+     */
+    private @Nullable String findId(@Nonnull String name) {
+        for( SimObject vm : simulator.getInventory().list("VirtualMachine") ) {
+            if( name.equals(vm.get("name")) ) {
+                return vm.getId();
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,105 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks the bucket layout and the percentile estimates of {@link LatencyHistogram}.
+ */
+public class LatencyHistogramTest {
+    @Test
+    public void smallValuesHaveTheirOwnBucket() {
+        for( long micros=0L; micros<16L; micros++ ) {
+            assertEquals(micros, LatencyHistogram.toIndex(micros));
+            assertEquals(micros, LatencyHistogram.toUpperBound((int)micros));
+        }
+        assertEquals(0, LatencyHistogram.toIndex(-5L));
+    }
+
+    @Test
+    public void bucketsAreContiguous() {
+        int last = LatencyHistogram.toIndex(Long.MAX_VALUE);
+
+        for( int i=0; i<last; i++ ) {
+            long upper = LatencyHistogram.toUpperBound(i);
+
+            assertEquals("upper bound of bucket " + i, i, LatencyHistogram.toIndex(upper));
+            assertEquals("value after bucket " + i, i + 1, LatencyHistogram.toIndex(upper + 1));
+        }
+        assertEquals(last, LatencyHistogram.toIndex(1L << 50));
+    }
+
+    @Test
+    public void bucketsAreWithinOneSixteenth() {
+        for( long micros=16L; micros<(1L << 40); micros = micros * 3 / 2 + 7 ) {
+            long upper = LatencyHistogram.toUpperBound(LatencyHistogram.toIndex(micros));
+
+            assertTrue(micros + " lands in a bucket below it", upper >= micros);
+            assertTrue(micros + " lands in a bucket ending at " + upper, upper - micros <= micros / 16);
+        }
+    }
+
+    @Test
+    public void percentiles() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        for( long ms=1L; ms<=1000L; ms++ ) {
+            histogram.record(ms, TimeUnit.MILLISECONDS);
+        }
+        assertEquals(1000L, histogram.getCount());
+        assertEquals(500500.0, histogram.getMeanMicros(), 0.001);
+        assertEquals(1000000L, histogram.getMaxMicros());
+        assertWithin(500000L, histogram.getPercentileMicros(0.5));
+        assertWithin(990000L, histogram.getPercentileMicros(0.99));
+        assertWithin(1000L, histogram.getPercentileMicros(0.0));
+        assertEquals(1000000L, histogram.getPercentileMicros(1.0));
+    }
+
+    @Test
+    public void percentileNeverExceedsTheMaximum() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        histogram.record(1000L, TimeUnit.MICROSECONDS);
+        assertEquals(1000L, histogram.getPercentileMicros(0.5));
+        assertEquals(1000L, histogram.getPercentileMicros(0.999));
+    }
+
+    @Test
+    public void emptyAndReset() {
+        LatencyHistogram histogram = new LatencyHistogram();
+
+        assertEquals(0L, histogram.getPercentileMicros(0.99));
+        assertEquals(0.0, histogram.getMeanMicros(), 0.0);
+        histogram.record(3L, TimeUnit.SECONDS);
+        histogram.reset();
+        assertEquals(0L, histogram.getCount());
+        assertEquals(0L, histogram.getMaxMicros());
+        assertEquals(0L, histogram.getPercentileMicros(0.5));
+    }
+
+    private void assertWithin(long expected, long actual) {
+        assertTrue("expected about " + expected + " but was " + actual, actual >= expected && actual - expected <= expected / 16);
+    }
+}
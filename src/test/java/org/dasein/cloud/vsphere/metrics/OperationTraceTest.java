@@ -0,0 +1,150 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.compute.VirtualMachineSupport;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks how {@link OperationTrace} brackets nested operations and attributes failed vSphere calls to them.
+ */
+public class OperationTraceTest {
+    private VSphereSimulator simulator;
+    private PrivateCloud     provider;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withVms(5)));
+        // the meter that reports failed calls is only installed on connections opened while recording
+        OperationTrace.setEnabled(true);
+        provider = simulator.connect("Datacenter-1");
+        provider.getServiceInstance();
+        OperationTrace.reset();
+    }
+
+    @After
+    public void tearDown() {
+        OperationTrace.setEnabled(false);
+        OperationTrace.reset();
+        provider.close();
+        simulator.stop();
+    }
+
+    @Test
+    public void nestedOperationsAreRecordedSeparately() {
+        OperationTrace.begin(provider, "outer");
+        try {
+            assertEquals("outer", OperationTrace.getCurrentOperation());
+            OperationTrace.begin(provider, "inner");
+            try {
+                assertEquals("inner", OperationTrace.getCurrentOperation());
+                assertEquals(1, OperationTrace.getSnapshot("outer").getInFlight());
+                assertEquals(1, OperationTrace.getSnapshot("inner").getInFlight());
+            }
+            finally {
+                OperationTrace.end();
+            }
+            assertEquals("outer", OperationTrace.getCurrentOperation());
+        }
+        finally {
+            OperationTrace.end();
+        }
+        assertNull(OperationTrace.getCurrentOperation());
+
+        OperationSnapshot outer = OperationTrace.getSnapshot("outer");
+        OperationSnapshot inner = OperationTrace.getSnapshot("inner");
+
+        assertEquals(1L, outer.getCount());
+        assertEquals(0, outer.getInFlight());
+        assertEquals(1L, inner.getCount());
+        assertEquals(0, inner.getInFlight());
+        assertTrue("the outer operation ended before the inner one", outer.getMaxMillis() >= inner.getMaxMillis());
+    }
+
+    @Test
+    public void succeededOperationHasNoErrors() throws Exception {
+        VirtualMachineSupport support = provider.getComputeServices().getVirtualMachineSupport();
+
+        assertNull(support.getVirtualMachine("no-such-vm"));
+
+        OperationSnapshot snapshot = OperationTrace.getSnapshot("Vm.getVirtualMachine");
+
+        assertEquals(1L, snapshot.getCount());
+        assertEquals(0L, snapshot.getErrors());
+    }
+
+    @Test
+    public void faultMarksEveryOperationWaitingOnTheCall() throws Exception {
+        VirtualMachineSupport support = provider.getComputeServices().getVirtualMachineSupport();
+
+        simulator.failAfter("FindByUuid", 0);
+        try {
+            support.getVirtualMachine("no-such-vm");
+            fail("The fault of FindByUuid was swallowed");
+        }
+        catch( CloudException expected ) {
+            // the lookup failed
+        }
+        finally {
+            simulator.failAfter("FindByUuid", -1);
+        }
+        for( String operation : new String[] { "Vm.getVirtualMachine", "Vm.getVirtualMachine(ServiceInstance, String)" } ) {
+            OperationSnapshot snapshot = OperationTrace.getSnapshot(operation);
+
+            assertEquals(operation, 1L, snapshot.getCount());
+            assertEquals(operation, 1L, snapshot.getErrors());
+            assertEquals(operation, 0, snapshot.getInFlight());
+        }
+        assertNull(OperationTrace.getCurrentOperation());
+    }
+
+    @Test
+    public void togglingMidOperationKeepsFramesMatched() {
+        OperationTrace.begin(provider, "outer");
+        try {
+            OperationTrace.setEnabled(false);
+            OperationTrace.begin(provider, "untraced");
+            try {
+                OperationTrace.setEnabled(true);
+                assertNull(OperationTrace.getCurrentOperation());
+            }
+            finally {
+                OperationTrace.end();
+            }
+            assertEquals("outer", OperationTrace.getCurrentOperation());
+        }
+        finally {
+            OperationTrace.end();
+        }
+        assertEquals(1L, OperationTrace.getSnapshot("outer").getCount());
+        assertNull(OperationTrace.getSnapshot("untraced"));
+        assertNull(OperationTrace.getCurrentOperation());
+    }
+}
@@ -0,0 +1,189 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.metrics;
+
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.sim.SimInventory;
+import org.dasein.cloud.vsphere.sim.VSphereSimulator;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Checks the SOAP traffic recorded by {@link WireMeter} against the calls the simulator actually served.
+ */
+public class WireMeterTest {
+    private VSphereSimulator simulator;
+
+    @Before
+    public void setUp() throws Exception {
+        simulator = VSphereSimulator.start(SimInventory.generate(SimInventory.Spec.getInstance().withVms(20)));
+        OperationTrace.setEnabled(true);
+    }
+
+    @After
+    public void tearDown() {
+        OperationTrace.setEnabled(false);
+        OperationTrace.reset();
+        simulator.stop();
+    }
+
+    @Test
+    public void soapMethod() {
+        String request = "<?xml version=\"1.0\" encoding=\"UTF-8\"?><soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\"><soapenv:Body><RetrievePropertiesEx xmlns=\"urn:vim25\"><_this type=\"PropertyCollector\">propertyCollector</_this></RetrievePropertiesEx></soapenv:Body></soapenv:Envelope>";
+
+        assertEquals("RetrievePropertiesEx", WireMeter.getSoapMethod(request.getBytes()));
+        assertEquals("unknown", WireMeter.getSoapMethod("<empty/>".getBytes()));
+    }
+
+    @Test
+    public void recordsEveryCallOfTheOperation() throws Exception {
+        PrivateCloud provider = simulator.connect("Datacenter-1");
+
+        try {
+            provider.getServiceInstance();
+            simulator.resetCounters();
+            OperationTrace.reset();
+            simulator.setLatency(5L);
+
+            provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines();
+
+            Map<String,Integer> served = simulator.getCallCounts();
+            int total = 0;
+
+            for( WireSnapshot snapshot : OperationTrace.listWireSnapshots() ) {
+                Integer count = served.get(snapshot.getMethod());
+
+                assertTrue(snapshot + " was not served by the simulator", count != null);
+                assertTrue(snapshot + " is not attributed to a traced operation", !snapshot.getOperation().isEmpty());
+                assertTrue(snapshot + " has no request bytes", snapshot.getRequestBytes() > 0L);
+                assertTrue(snapshot + " has no response bytes", snapshot.getResponseBytes() > 0L);
+                assertTrue(snapshot + " answered before the simulated latency", snapshot.getMeanTimeToFirstByteMillis() >= 5.0);
+                assertEquals(0L, snapshot.getRetries());
+                total += snapshot.getCalls();
+            }
+            assertEquals(simulator.getTotalCalls(), total);
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void countsCallsSentAgainAfterADroppedConnection() throws Exception {
+        PrivateCloud provider = simulator.connect("Datacenter-1");
+
+        try {
+            provider.getServiceInstance();
+            simulator.resetCounters();
+            OperationTrace.reset();
+            simulator.dropConnections("CurrentTime", 1);
+
+            OperationTrace.begin(provider, "test.currentTime");
+            try {
+                try {
+                    provider.getServiceInstance().currentTime();
+                    fail("CurrentTime succeeded although its connection was dropped");
+                }
+                catch( Exception expected ) {
+                    // the meter does not send the call again by itself
+                }
+                assertEquals(1, simulator.getCallCount("CurrentTime"));
+                assertNotNull(provider.getServiceInstance().currentTime());
+            }
+            finally {
+                OperationTrace.end();
+            }
+            WireSnapshot snapshot = find("CurrentTime");
+
+            assertNotNull("CurrentTime was not metered", snapshot);
+            assertEquals(2, simulator.getCallCount("CurrentTime"));
+            assertEquals(2L, snapshot.getCalls());
+            assertEquals(1L, snapshot.getRetries());
+            assertEquals(1L, OperationTrace.getSnapshot("test.currentTime").getErrors());
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void doesNotRetryPagedRetrievalOnDroppedConnection() throws Exception {
+        PrivateCloud provider = simulator.connect("Datacenter-1");
+
+        try {
+            provider.getServiceInstance();
+            simulator.resetCounters();
+            OperationTrace.reset();
+            simulator.dropConnections("RetrievePropertiesEx", 1);
+
+            try {
+                provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines();
+                fail("Listing succeeded although its retrieval was dropped");
+            }
+            catch( Exception expected ) {
+                // the dropped call surfaces instead of being sent again
+            }
+            WireSnapshot snapshot = find("RetrievePropertiesEx");
+
+            assertNotNull("RetrievePropertiesEx was not metered", snapshot);
+            assertEquals(1, simulator.getCallCount("RetrievePropertiesEx"));
+            assertEquals(0L, snapshot.getRetries());
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    @Test
+    public void notInstalledWhileTracingIsDisabled() throws Exception {
+        OperationTrace.setEnabled(false);
+        PrivateCloud provider = simulator.connect("Datacenter-1");
+
+        try {
+            provider.getServiceInstance();
+            OperationTrace.reset();
+            OperationTrace.setEnabled(true);
+            provider.getComputeServices().getVirtualMachineSupport().listVirtualMachines();
+            assertTrue(OperationTrace.listWireSnapshots().isEmpty());
+        }
+        finally {
+            provider.close();
+        }
+    }
+
+    private @Nullable WireSnapshot find(@Nonnull String method) {
+        for( WireSnapshot snapshot : OperationTrace.listWireSnapshots() ) {
+            if( snapshot.getMethod().equals(method) ) {
+                return snapshot;
+            }
+        }
+        return null;
+    }
+}
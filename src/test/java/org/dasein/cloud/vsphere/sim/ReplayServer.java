@@ -0,0 +1,296 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.sim;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.vim25.UserSession;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dasein.cloud.vsphere.capture.SoapCapture;
+import org.dasein.cloud.vsphere.capture.SoapExchange;
+import org.dasein.cloud.vsphere.capture.SoapRecording;
+import org.dom4j.DocumentException;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Serves a {@link SoapRecording} captured from a real vCenter back to the Dasein vSphere provider. A request is
+ * answered with the next unused response recorded for an identical (scrubbed) request or, if that request was
+ * never recorded, with the next unused response recorded for the same SOAP method; once all candidates have been
+ * used the last one is served again. Requests are served one at a time in arrival order, so the same sequence of calls always gets
+ * the same responses. Login and Logout are answered without consulting the recording since sessions are never
+ * captured, so any credentials are accepted.
+ * <p>
+ * Run {@link #main(String[])} with the recording file and an optional port to serve it for the integration test
+ * suite or a benchmark; <code>-Dreplay.paced=true</code> delays every response by the time to first byte recorded
+ * for it.
+ * </p>
+ */
+public class ReplayServer {
+    static private final Charset UTF8 = Charset.forName("utf-8");
+
+    static public void main(String ... args) throws Exception {
+        if( args.length < 1 ) {
+            System.err.println("Usage: ReplayServer <recording> [port]");
+            System.exit(1);
+        }
+        List<SoapExchange> recording = SoapRecording.read(new File(args[0]));
+        ReplayServer server = new ReplayServer(recording, args.length > 1 ? Integer.parseInt(args[1]) : 8989);
+
+        server.setPaced(Boolean.getBoolean("replay.paced"));
+        server.start();
+        System.out.println("Replaying " + recording.size() + " exchanges from " + args[0] + " at " + server.getEndpoint());
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Starts a replay server for the given recording on an ephemeral port.
+     * @param recording the recording file
+     * @return the running server
+     * @throws IOException the recording could not be read or the server socket could not be opened
+     */
+    static public @Nonnull ReplayServer start(@Nonnull File recording) throws IOException {
+        ReplayServer server = new ReplayServer(SoapRecording.read(recording), 0);
+
+        server.start();
+        return server;
+    }
+
+    static private class Recorded {
+        final List<SoapExchange> exchanges = new ArrayList<SoapExchange>();
+        int                      next      = 0;
+
+        @Nullable SoapExchange take(@Nonnull Map<SoapExchange,Boolean> served) {
+            while( next < exchanges.size() ) {
+                SoapExchange exchange = exchanges.get(next++);
+
+                if( !served.containsKey(exchange) ) {
+                    return exchange;
+                }
+            }
+            return null;
+        }
+
+        @Nullable SoapExchange last() {
+            return (exchanges.isEmpty() ? null : exchanges.get(exchanges.size() - 1));
+        }
+    }
+
+    private final HttpServer             server;
+    private final Map<String,Recorded>    byRequest = new HashMap<String, Recorded>();
+    private final Map<String,Recorded>    byMethod  = new HashMap<String, Recorded>();
+    // an exchange served for an identical request is no longer available to other requests of its method
+    private final Map<SoapExchange,Boolean> served  = new IdentityHashMap<SoapExchange, Boolean>();
+    private final AtomicInteger          misses    = new AtomicInteger();
+    private volatile boolean             paced     = false;
+
+    public ReplayServer(@Nonnull List<SoapExchange> recording, int port) throws IOException {
+        for( SoapExchange exchange : recording ) {
+            getRecorded(byRequest, toKey(exchange.getMethod(), exchange.getRequest())).exchanges.add(exchange);
+            getRecorded(byMethod, exchange.getMethod()).exchanges.add(exchange);
+        }
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext(VSphereSimulator.PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                ReplayServer.this.handle(exchange);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    static private @Nonnull Recorded getRecorded(@Nonnull Map<String,Recorded> map, @Nonnull String key) {
+        Recorded recorded = map.get(key);
+
+        if( recorded == null ) {
+            recorded = new Recorded();
+            map.put(key, recorded);
+        }
+        return recorded;
+    }
+
+    static private @Nonnull String toKey(@Nonnull String method, @Nonnull byte[] request) {
+        return method + "\n" + SoapCapture.scrub(new String(request, UTF8));
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public @Nonnull String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + VSphereSimulator.PATH;
+    }
+
+    /**
+     * @param paced true to delay each response by the time to first byte recorded for it
+     */
+    public void setPaced(boolean paced) {
+        this.paced = paced;
+    }
+
+    /**
+     * @return the number of requests for which the recording had no response for the SOAP method at all
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    public @Nonnull PrivateCloud connect(@Nonnull String regionId) throws CloudException, InternalException {
+        return VSphereSimulator.connect(getEndpoint(), regionId);
+    }
+
+    private void handle(@Nonnull HttpExchange exchange) throws IOException {
+        byte[] request = readRequest(exchange);
+        String method;
+
+        try {
+            method = SoapRequest.parse(new ByteArrayInputStream(request)).getMethod();
+        }
+        catch( DocumentException e ) {
+            respond(exchange, 500, toFault("InvalidRequest", String.valueOf(e.getMessage())));
+            return;
+        }
+        if( method.equals("Login") ) {
+            respond(exchange, 200, toLoginResponse(exchange));
+            return;
+        }
+        if( method.equals("Logout") ) {
+            respond(exchange, 200, toEnvelope("<LogoutResponse xmlns=\"urn:vim25\"></LogoutResponse>"));
+            return;
+        }
+        SoapExchange recorded = find(method, request);
+
+        if( recorded == null ) {
+            misses.incrementAndGet();
+            respond(exchange, 500, toFault("NotImplemented", method + " does not occur in the recording"));
+            return;
+        }
+        if( paced && recorded.getTimeToFirstByteMicros() > 0L ) {
+            try { TimeUnit.MICROSECONDS.sleep(recorded.getTimeToFirstByteMicros()); }
+            catch( InterruptedException ignore ) { }
+        }
+        respond(exchange, recorded.getStatus(), recorded.getResponse());
+    }
+
+    private synchronized @Nullable SoapExchange find(@Nonnull String method, @Nonnull byte[] request) {
+        Recorded recorded = byRequest.get(toKey(method, request));
+
+        if( recorded == null ) {
+            recorded = byMethod.get(method);
+            if( recorded == null ) {
+                return null;
+            }
+        }
+        SoapExchange exchange = recorded.take(served);
+
+        if( exchange == null ) {
+            exchange = recorded.last();
+        }
+        served.put(exchange, Boolean.TRUE);
+        return exchange;
+    }
+
+    private @Nonnull byte[] readRequest(@Nonnull HttpExchange exchange) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        InputStream input = exchange.getRequestBody();
+
+        try {
+            byte[] buffer = new byte[8192];
+            int count;
+
+            while( (count = input.read(buffer)) > -1 ) {
+                bytes.write(buffer, 0, count);
+            }
+        }
+        finally {
+            input.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    private @Nonnull byte[] toLoginResponse(@Nonnull HttpExchange exchange) {
+        String key = UUID.randomUUID().toString();
+        UserSession session = new UserSession();
+        Calendar now = Calendar.getInstance();
+        StringBuilder body = new StringBuilder();
+
+        session.setKey(key);
+        session.setUserName(VSphereSimulator.USER);
+        session.setFullName(VSphereSimulator.USER);
+        session.setLoginTime(now);
+        session.setLastActiveTime(now);
+        session.setLocale("en");
+        session.setMessageLocale("en");
+        new SoapSerializer(body).write("returnval", session);
+        exchange.getResponseHeaders().add("Set-Cookie", "vmware_soap_session=\"" + key + "\"; Path=/; HttpOnly");
+        return toEnvelope("<LoginResponse xmlns=\"urn:vim25\">" + body + "</LoginResponse>");
+    }
+
+    private @Nonnull byte[] toFault(@Nonnull String faultType, @Nonnull String message) {
+        return toEnvelope("<soapenv:Fault><faultcode>ServerFaultCode</faultcode><faultstring>" + SoapSerializer.escape(message) + "</faultstring><detail><" + faultType + "Fault xmlns=\"urn:vim25\" xsi:type=\"" + faultType + "\"/></detail></soapenv:Fault>");
+    }
+
+    private @Nonnull byte[] toEnvelope(@Nonnull String body) {
+        String xml = "<?xml version=\"1.0\" encoding=\"UTF-8\"?>"
+                + "<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"><soapenv:Body>"
+                + body + "</soapenv:Body></soapenv:Envelope>";
+
+        return xml.getBytes(UTF8);
+    }
+
+    private void respond(@Nonnull HttpExchange exchange, int status, @Nonnull byte[] body) throws IOException {
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+        exchange.sendResponseHeaders(status, body.length);
+        OutputStream output = exchange.getResponseBody();
+
+        try {
+            output.write(body);
+        }
+        finally {
+            output.close();
+        }
+    }
+}
@@ -0,0 +1,953 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.sim;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.vmware.vim25.ClusterComputeResourceSummary;
+import com.vmware.vim25.DVPortgroupConfigInfo;
+import com.vmware.vim25.DatastoreHostMount;
+import com.vmware.vim25.DatastoreInfo;
+import com.vmware.vim25.DatastoreSummary;
+import com.vmware.vim25.Description;
+import com.vmware.vim25.ElementDescription;
+import com.vmware.vim25.GuestInfo;
+import com.vmware.vim25.GuestNicInfo;
+import com.vmware.vim25.HostConfigInfo;
+import com.vmware.vim25.HostHardwareSummary;
+import com.vmware.vim25.HostListSummary;
+import com.vmware.vim25.HostListSummaryQuickStats;
+import com.vmware.vim25.HostMountInfo;
+import com.vmware.vim25.HostRuntimeInfo;
+import com.vmware.vim25.HostSystemConnectionState;
+import com.vmware.vim25.HostSystemPowerState;
+import com.vmware.vim25.ManagedEntityStatus;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.NetworkSummary;
+import com.vmware.vim25.PerfCounterInfo;
+import com.vmware.vim25.PerfInterval;
+import com.vmware.vim25.PerfStatsType;
+import com.vmware.vim25.PerfSummaryType;
+import com.vmware.vim25.ResourceConfigSpec;
+import com.vmware.vim25.ResourcePoolRuntimeInfo;
+import com.vmware.vim25.VirtualDevice;
+import com.vmware.vim25.VirtualDisk;
+import com.vmware.vim25.VirtualDiskFlatVer2BackingInfo;
+import com.vmware.vim25.VirtualEthernetCardNetworkBackingInfo;
+import com.vmware.vim25.VirtualHardware;
+import com.vmware.vim25.VirtualLsiLogicSASController;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import com.vmware.vim25.VirtualMachineConfigInfoDatastoreUrlPair;
+import com.vmware.vim25.VirtualMachineConnectionState;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineRuntimeInfo;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.VirtualSCSISharing;
+import com.vmware.vim25.VirtualVmxnet3;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * The simulated vCenter inventory. Objects are keyed by their managed object identifier, which is unique across
+ * types as it is in vCenter. {@link #generate(Spec)} builds a synthetic inventory of data centers, clusters, hosts,
+ * datastores, networks, folders, templates and VMs; the simulator mutates it as tasks run.
+ */
+public class SimInventory {
+    static public final String ROOT_FOLDER        = "group-d1";
+    static public final String PROPERTY_COLLECTOR = "propertyCollector";
+    static public final String SEARCH_INDEX       = "SearchIndex";
+    static public final String SESSION_MANAGER    = "SessionManager";
+    static public final String FILE_MANAGER       = "FileManager";
+    static public final String VIEW_MANAGER       = "ViewManager";
+    static public final String PERF_MANAGER       = "PerfMgr";
+    static public final String TASK_MANAGER       = "TaskManager";
+    static public final String EVENT_MANAGER      = "EventManager";
+
+    static private final long     DATASTORE_CAPACITY = 2L * 1024L * 1024L * 1024L * 1024L;
+    static private final String[] GUEST_IDS          = { "rhel6_64Guest", "centos64Guest", "ubuntu64Guest", "windows7Server64Guest" };
+    static private final String[] GUEST_NAMES        = { "Red Hat Enterprise Linux 6 (64-bit)", "CentOS 4/5/6 (64-bit)", "Ubuntu Linux (64-bit)", "Microsoft Windows Server 2008 R2 (64-bit)" };
+
+    /**
+     * The size and shape of a generated inventory. All counts are per data center.
+     */
+    static public class Spec {
+        static public @Nonnull Spec getInstance() {
+            return new Spec();
+        }
+
+        private int datacenters = 1;
+        private int clusters    = 4;
+        private int hosts       = 16;
+        private int datastores  = 8;
+        private int networks    = 4;
+        private int portgroups  = 2;
+        private int folders     = 4;
+        private int templates   = 4;
+        private int vms         = 100;
+
+        private Spec() { }
+
+        public @Nonnull Spec withDatacenters(int count) { datacenters = Math.max(1, count); return this; }
+        public @Nonnull Spec withClusters(int count) { clusters = Math.max(1, count); return this; }
+        public @Nonnull Spec withHosts(int count) { hosts = Math.max(1, count); return this; }
+        public @Nonnull Spec withDatastores(int count) { datastores = Math.max(1, count); return this; }
+        public @Nonnull Spec withNetworks(int count) { networks = Math.max(1, count); return this; }
+        public @Nonnull Spec withPortgroups(int count) { portgroups = Math.max(0, count); return this; }
+        public @Nonnull Spec withFolders(int count) { folders = Math.max(0, count); return this; }
+        public @Nonnull Spec withTemplates(int count) { templates = Math.max(0, count); return this; }
+        public @Nonnull Spec withVms(int count) { vms = Math.max(0, count); return this; }
+
+        public int getDatacenters() { return datacenters; }
+        public int getClusters() { return clusters; }
+        public int getHosts() { return hosts; }
+        public int getDatastores() { return datastores; }
+        public int getNetworks() { return networks; }
+        public int getPortgroups() { return portgroups; }
+        public int getFolders() { return folders; }
+        public int getTemplates() { return templates; }
+        public int getVms() { return vms; }
+
+        @Override
+        public @Nonnull String toString() {
+            return datacenters + " dc x [" + clusters + " clusters, " + hosts + " hosts, " + datastores + " datastores, " + networks + " networks, " + vms + " VMs, " + templates + " templates]";
+        }
+    }
+
+    static public @Nonnull ManagedObjectReference toReference(@Nonnull String type, @Nonnull String id) {
+        ManagedObjectReference mor = new ManagedObjectReference();
+
+        mor.setType(type);
+        mor.setVal(id);
+        return mor;
+    }
+
+    static private final Map<String,String> supertypes = new HashMap<String, String>();
+
+    static {
+        supertypes.put("ClusterComputeResource", "ComputeResource");
+        supertypes.put("VirtualApp", "ResourcePool");
+        supertypes.put("DistributedVirtualPortgroup", "Network");
+        supertypes.put("VmwareDistributedVirtualSwitch", "DistributedVirtualSwitch");
+        for( String type : new String[] { "Folder", "Datacenter", "ComputeResource", "HostSystem", "ResourcePool", "VirtualMachine", "Datastore", "Network", "DistributedVirtualSwitch" } ) {
+            supertypes.put(type, "ManagedEntity");
+        }
+    }
+
+    /**
+     * @param type a managed object type
+     * @param ofType another managed object type
+     * @return true if <code>type</code> is <code>ofType</code> or one of its subtypes
+     */
+    static public boolean isA(@Nonnull String type, @Nonnull String ofType) {
+        String t = type;
+
+        while( t != null ) {
+            if( t.equals(ofType) ) {
+                return true;
+            }
+            t = supertypes.get(t);
+        }
+        return false;
+    }
+
+    static public @Nonnull SimInventory generate(@Nonnull Spec spec) {
+        SimInventory inventory = new SimInventory();
+
+        for( int d=1; d<=spec.getDatacenters(); d++ ) {
+            inventory.generateDatacenter(spec, "Datacenter-" + d);
+        }
+        return inventory;
+    }
+
+    private final Map<String,SimObject> objects  = new ConcurrentHashMap<String, SimObject>();
+    private final Map<String,AtomicInteger> ids  = new ConcurrentHashMap<String, AtomicInteger>();
+    private final AtomicInteger             vmCount = new AtomicInteger();
+
+    public SimInventory() {
+        SimObject root = new SimObject("Folder", ROOT_FOLDER);
+
+        root.set("name", "Datacenters");
+        root.set("childType", new String[] { "Folder", "Datacenter" });
+        root.set("overallStatus", ManagedEntityStatus.green);
+        add(root);
+        add(generatePerformanceManager());
+    }
+
+    /**
+     * The key of each counter the performance manager reports, by <code>group.name.rollup</code>.
+     */
+    static public final Map<String,Integer> PERF_COUNTERS = new LinkedHashMap<String, Integer>();
+
+    static {
+        PERF_COUNTERS.put("cpu.usage.average", 2);
+        PERF_COUNTERS.put("cpu.usage.maximum", 4);
+        PERF_COUNTERS.put("disk.read.average", 130);
+        PERF_COUNTERS.put("disk.write.average", 131);
+        PERF_COUNTERS.put("net.received.average", 148);
+        PERF_COUNTERS.put("net.transmitted.average", 149);
+        PERF_COUNTERS.put("net.usage.average", 143);
+    }
+
+    private @Nonnull SimObject generatePerformanceManager() {
+        SimObject manager = new SimObject("PerformanceManager", PERF_MANAGER);
+        List<PerfCounterInfo> counters = new ArrayList<PerfCounterInfo>();
+
+        for( Map.Entry<String,Integer> entry : PERF_COUNTERS.entrySet() ) {
+            String[] parts = entry.getKey().split("\\.");
+            PerfCounterInfo info = new PerfCounterInfo();
+
+            info.setKey(entry.getValue());
+            info.setGroupInfo(toDescription(parts[0]));
+            info.setNameInfo(toDescription(parts[1]));
+            info.setUnitInfo(toDescription(parts[0].equals("cpu") ? "percent" : "kiloBytesPerSecond"));
+            info.setRollupType(PerfSummaryType.valueOf(parts[2]));
+            info.setStatsType(PerfStatsType.rate);
+            info.setLevel(1);
+            counters.add(info);
+        }
+        manager.set("perfCounter", counters.toArray(new PerfCounterInfo[counters.size()]));
+
+        int[][] periods = { { 300, 86400 }, { 1800, 604800 }, { 7200, 2592000 }, { 86400, 31536000 } };
+        PerfInterval[] intervals = new PerfInterval[periods.length];
+
+        for( int i=0; i<periods.length; i++ ) {
+            intervals[i] = new PerfInterval();
+            intervals[i].setKey(i + 1);
+            intervals[i].setSamplingPeriod(periods[i][0]);
+            intervals[i].setLength(periods[i][1]);
+            intervals[i].setName("Past " + (i + 1));
+            intervals[i].setLevel(1);
+            intervals[i].setEnabled(true);
+        }
+        manager.set("historicalInterval", intervals);
+        return manager;
+    }
+
+    static private @Nonnull ElementDescription toDescription(@Nonnull String key) {
+        ElementDescription description = new ElementDescription();
+
+        description.setKey(key);
+        description.setLabel(key);
+        description.setSummary(key);
+        return description;
+    }
+
+    public @Nonnull SimObject add(@Nonnull SimObject object) {
+        objects.put(object.getId(), object);
+        return object;
+    }
+
+    public @Nullable SimObject get(@Nonnull String id) {
+        return objects.get(id);
+    }
+
+    public @Nullable SimObject get(@Nullable ManagedObjectReference mor) {
+        return (mor == null ? null : objects.get(mor.getVal()));
+    }
+
+    public @Nonnull SimObject getRootFolder() {
+        return objects.get(ROOT_FOLDER);
+    }
+
+    public @Nonnull List<SimObject> list(@Nonnull String type) {
+        ArrayList<SimObject> list = new ArrayList<SimObject>();
+
+        for( SimObject o : objects.values() ) {
+            if( isA(o.getType(), type) ) {
+                list.add(o);
+            }
+        }
+        return list;
+    }
+
+    public int size() {
+        return objects.size();
+    }
+
+    /**
+     * Adds a snapshot to a VM or template and makes it the current snapshot.
+     * @param vm the VM or template to snapshot
+     * @param name the snapshot name
+     * @return the new snapshot
+     */
+    public @Nonnull ManagedObjectReference createSnapshot(@Nonnull SimObject vm, @Nonnull String name) {
+        VirtualMachineSnapshotInfo info = (VirtualMachineSnapshotInfo)vm.get("snapshot");
+        VirtualMachineSnapshotTree tree = new VirtualMachineSnapshotTree();
+        ManagedObjectReference ref = toReference("VirtualMachineSnapshot", nextId("snapshot"));
+        List<VirtualMachineSnapshotTree> roots = new ArrayList<VirtualMachineSnapshotTree>();
+
+        tree.setSnapshot(ref);
+        tree.setVm(vm.getReference());
+        tree.setName(name);
+        tree.setDescription("");
+        tree.setCreateTime(Calendar.getInstance());
+        tree.setState(VirtualMachinePowerState.poweredOff);
+        tree.setQuiesced(false);
+        if( info == null ) {
+            info = new VirtualMachineSnapshotInfo();
+        }
+        else if( info.getRootSnapshotList() != null ) {
+            Collections.addAll(roots, info.getRootSnapshotList());
+        }
+        roots.add(tree);
+        info.setRootSnapshotList(roots.toArray(new VirtualMachineSnapshotTree[roots.size()]));
+        info.setCurrentSnapshot(ref);
+        vm.set("snapshot", info);
+        return ref;
+    }
+
+    public @Nonnull String nextId(@Nonnull String prefix) {
+        AtomicInteger counter = ids.get(prefix);
+
+        if( counter == null ) {
+            ids.put(prefix, new AtomicInteger());
+            counter = ids.get(prefix);
+        }
+        return prefix + "-" + counter.incrementAndGet();
+    }
+
+    /**
+     * Adds a reference to an array-valued property.
+     * @param holder the object holding the property
+     * @param property the name of a {@link ManagedObjectReference} array property
+     * @param ref the reference to add
+     */
+    public synchronized void addReference(@Nonnull SimObject holder, @Nonnull String property, @Nonnull ManagedObjectReference ref) {
+        ManagedObjectReference[] current = (ManagedObjectReference[])holder.get(property);
+        ManagedObjectReference[] refs = new ManagedObjectReference[current == null ? 1 : current.length + 1];
+
+        if( current != null ) {
+            System.arraycopy(current, 0, refs, 0, current.length);
+        }
+        refs[refs.length-1] = ref;
+        holder.set(property, refs);
+    }
+
+    public synchronized void removeReference(@Nullable SimObject holder, @Nonnull String property, @Nonnull ManagedObjectReference ref) {
+        if( holder == null ) {
+            return;
+        }
+        ManagedObjectReference[] current = (ManagedObjectReference[])holder.get(property);
+
+        if( current == null ) {
+            return;
+        }
+        ArrayList<ManagedObjectReference> refs = new ArrayList<ManagedObjectReference>();
+
+        for( ManagedObjectReference r : current ) {
+            if( !r.getVal().equals(ref.getVal()) ) {
+                refs.add(r);
+            }
+        }
+        holder.set(property, refs.toArray(new ManagedObjectReference[refs.size()]));
+    }
+
+    /**
+     * Walks up the parent chain of an entity to its data center.
+     * @param entity an entity in the inventory
+     * @return the data center or <code>null</code> if the entity is not below one
+     */
+    public @Nullable SimObject getDatacenter(@Nonnull SimObject entity) {
+        SimObject current = entity;
+
+        while( current != null ) {
+            if( current.getType().equals("Datacenter") ) {
+                return current;
+            }
+            ManagedObjectReference parent = (ManagedObjectReference)current.get("parent");
+
+            if( parent == null ) {
+                parent = (ManagedObjectReference)current.get("parentVApp");
+            }
+            current = get(parent);
+        }
+        return null;
+    }
+
+    public @Nonnull SimObject createFolder(@Nonnull String name, @Nonnull SimObject parent, @Nonnull String ... childTypes) {
+        SimObject folder = add(new SimObject("Folder", nextId("group-v")));
+
+        folder.set("name", name);
+        folder.set("parent", parent.getReference());
+        folder.set("childType", childTypes);
+        folder.set("childEntity", new ManagedObjectReference[0]);
+        folder.set("overallStatus", ManagedEntityStatus.green);
+        if( parent.getType().equals("Folder") ) {
+            addReference(parent, "childEntity", folder.getReference());
+        }
+        return folder;
+    }
+
+    private void generateDatacenter(@Nonnull Spec spec, @Nonnull String name) {
+        SimObject dc = add(new SimObject("Datacenter", nextId("datacenter")));
+        SimObject vmFolder = createFolder("vm", dc, "Folder", "VirtualMachine", "VirtualApp");
+        SimObject hostFolder = createFolder("host", dc, "Folder", "ComputeResource");
+        SimObject dsFolder = createFolder("datastore", dc, "Folder", "Datastore");
+        SimObject netFolder = createFolder("network", dc, "Folder", "Network", "DistributedVirtualSwitch");
+
+        dc.set("name", name);
+        dc.set("parent", getRootFolder().getReference());
+        dc.set("vmFolder", vmFolder.getReference());
+        dc.set("hostFolder", hostFolder.getReference());
+        dc.set("datastoreFolder", dsFolder.getReference());
+        dc.set("networkFolder", netFolder.getReference());
+        dc.set("datastore", new ManagedObjectReference[0]);
+        dc.set("network", new ManagedObjectReference[0]);
+        dc.set("overallStatus", ManagedEntityStatus.green);
+        addReference(getRootFolder(), "childEntity", dc.getReference());
+
+        List<SimObject> networks = new ArrayList<SimObject>();
+
+        for( int i=0; i<spec.getNetworks(); i++ ) {
+            SimObject net = add(new SimObject("Network", nextId("network")));
+            NetworkSummary summary = new NetworkSummary();
+            String netName = (i == 0 ? "VM Network" : "VM Network " + (i+1));
+
+            summary.setNetwork(net.getReference());
+            summary.setName(netName);
+            summary.setAccessible(true);
+            net.set("name", netName);
+            net.set("parent", netFolder.getReference());
+            net.set("summary", summary);
+            net.set("host", new ManagedObjectReference[0]);
+            net.set("vm", new ManagedObjectReference[0]);
+            net.set("overallStatus", ManagedEntityStatus.green);
+            addReference(netFolder, "childEntity", net.getReference());
+            addReference(dc, "network", net.getReference());
+            networks.add(net);
+        }
+        if( spec.getPortgroups() > 0 ) {
+            SimObject dvs = add(new SimObject("VmwareDistributedVirtualSwitch", nextId("dvs")));
+
+            dvs.set("name", name + "-dvSwitch");
+            dvs.set("uuid", UUID.nameUUIDFromBytes(dvs.getId().getBytes()).toString());
+            dvs.set("parent", netFolder.getReference());
+            dvs.set("portgroup", new ManagedObjectReference[0]);
+            dvs.set("overallStatus", ManagedEntityStatus.green);
+            addReference(netFolder, "childEntity", dvs.getReference());
+            for( int i=0; i<spec.getPortgroups(); i++ ) {
+                SimObject pg = add(new SimObject("DistributedVirtualPortgroup", nextId("dvportgroup")));
+                DVPortgroupConfigInfo config = new DVPortgroupConfigInfo();
+                NetworkSummary summary = new NetworkSummary();
+                String pgName = "dvPortGroup-" + (i+1);
+
+                config.setKey(pg.getId());
+                config.setName(pgName);
+                config.setDistributedVirtualSwitch(dvs.getReference());
+                config.setType("earlyBinding");
+                summary.setNetwork(pg.getReference());
+                summary.setName(pgName);
+                summary.setAccessible(true);
+                pg.set("name", pgName);
+                pg.set("key", pg.getId());
+                pg.set("config", config);
+                pg.set("summary", summary);
+                pg.set("parent", netFolder.getReference());
+                pg.set("host", new ManagedObjectReference[0]);
+                pg.set("vm", new ManagedObjectReference[0]);
+                pg.set("overallStatus", ManagedEntityStatus.green);
+                addReference(netFolder, "childEntity", pg.getReference());
+                addReference(dvs, "portgroup", pg.getReference());
+                addReference(dc, "network", pg.getReference());
+            }
+        }
+
+        List<SimObject> clusters = new ArrayList<SimObject>();
+        List<SimObject> pools = new ArrayList<SimObject>();
+
+        for( int i=0; i<spec.getClusters(); i++ ) {
+            SimObject cluster = add(new SimObject("ClusterComputeResource", nextId("domain-c")));
+            SimObject root = add(new SimObject("ResourcePool", nextId("resgroup")));
+            SimObject pool = add(new SimObject("ResourcePool", nextId("resgroup")));
+
+            cluster.set("name", "Cluster-" + (i+1));
+            cluster.set("parent", hostFolder.getReference());
+            cluster.set("resourcePool", root.getReference());
+            cluster.set("host", new ManagedObjectReference[0]);
+            cluster.set("datastore", new ManagedObjectReference[0]);
+            cluster.set("network", new ManagedObjectReference[0]);
+            cluster.set("overallStatus", ManagedEntityStatus.green);
+            addReference(hostFolder, "childEntity", cluster.getReference());
+            initPool(root, "Resources", cluster, cluster);
+            initPool(pool, "Pool-" + (i+1), root, cluster);
+            addReference(root, "resourcePool", pool.getReference());
+            clusters.add(cluster);
+            pools.add(pool);
+        }
+
+        List<List<SimObject>> hostsByCluster = new ArrayList<List<SimObject>>();
+
+        for( int i=0; i<clusters.size(); i++ ) {
+            hostsByCluster.add(new ArrayList<SimObject>());
+        }
+        for( int i=0; i<spec.getHosts(); i++ ) {
+            int c = i % clusters.size();
+            SimObject cluster = clusters.get(c);
+            SimObject host = add(new SimObject("HostSystem", nextId("host")));
+
+            initHost(host, "esx-" + host.getId().substring(5) + ".sim.local", cluster);
+            addReference(cluster, "host", host.getReference());
+            for( SimObject net : networks ) {
+                addReference(net, "host", host.getReference());
+                addReference(host, "network", net.getReference());
+            }
+            hostsByCluster.get(c).add(host);
+        }
+        for( SimObject cluster : clusters ) {
+            updateClusterSummary(cluster);
+        }
+
+        List<List<SimObject>> datastoresByCluster = new ArrayList<List<SimObject>>();
+
+        for( int i=0; i<clusters.size(); i++ ) {
+            datastoresByCluster.add(new ArrayList<SimObject>());
+        }
+        for( int i=0; i<spec.getDatastores(); i++ ) {
+            SimObject ds = add(new SimObject("Datastore", nextId("datastore")));
+            // every fifth datastore is shared by all clusters, the others are local to one cluster
+            boolean shared = (i % 5 == 4);
+            List<SimObject> mountedBy = new ArrayList<SimObject>();
+
+            if( shared ) {
+                for( List<SimObject> hosts : hostsByCluster ) {
+                    mountedBy.addAll(hosts);
+                }
+            }
+            else {
+                mountedBy.addAll(hostsByCluster.get(i % clusters.size()));
+            }
+            initDatastore(ds, "datastore" + (i+1), dsFolder, mountedBy);
+            addReference(dc, "datastore", ds.getReference());
+            for( int c=0; c<clusters.size(); c++ ) {
+                if( shared || c == i % clusters.size() ) {
+                    addReference(clusters.get(c), "datastore", ds.getReference());
+                    datastoresByCluster.get(c).add(ds);
+                }
+            }
+        }
+
+        List<SimObject> folders = new ArrayList<SimObject>();
+
+        for( int i=0; i<spec.getFolders(); i++ ) {
+            SimObject folder = createFolder("Folder-" + (i+1), vmFolder, "Folder", "VirtualMachine", "VirtualApp");
+
+            folders.add(folder);
+            if( i == 0 ) {
+                folders.add(createFolder("Nested-1", folder, "Folder", "VirtualMachine", "VirtualApp"));
+            }
+        }
+
+        for( int i=0; i<spec.getTemplates(); i++ ) {
+            int c = i % clusters.size();
+            List<SimObject> hosts = hostsByCluster.get(c);
+            List<SimObject> datastores = datastoresByCluster.get(c);
+
+            createVm("template-" + (i+1), vmFolder, null, hosts.isEmpty() ? null : hosts.get(0), datastores.isEmpty() ? null : datastores.get(0), networks.get(0), 2, 4096, 40L*1024L*1024L, i % GUEST_IDS.length, true, false);
+        }
+        for( int i=0; i<spec.getVms(); i++ ) {
+            int c = i % clusters.size();
+            List<SimObject> hosts = hostsByCluster.get(c);
+            List<SimObject> datastores = datastoresByCluster.get(c);
+            SimObject folder = (folders.isEmpty() ? vmFolder : folders.get(i % folders.size()));
+            SimObject host = (hosts.isEmpty() ? null : hosts.get((i / clusters.size()) % hosts.size()));
+            SimObject ds = (datastores.isEmpty() ? null : datastores.get((i / clusters.size()) % datastores.size()));
+
+            createVm(String.format("vm-%05d", i+1), folder, pools.get(c), host, ds, networks.get(i % networks.size()), 1 << (i % 3), 1024 << (i % 4), 20L*1024L*1024L, i % GUEST_IDS.length, false, i % 10 != 9);
+        }
+    }
+
+    private void initPool(@Nonnull SimObject pool, @Nonnull String name, @Nonnull SimObject parent, @Nonnull SimObject owner) {
+        ResourcePoolRuntimeInfo runtime = new ResourcePoolRuntimeInfo();
+        ResourceConfigSpec config = new ResourceConfigSpec();
+
+        runtime.setOverallStatus(ManagedEntityStatus.green);
+        config.setEntity(pool.getReference());
+        pool.set("name", name);
+        pool.set("parent", parent.getReference());
+        pool.set("owner", owner.getReference());
+        pool.set("resourcePool", new ManagedObjectReference[0]);
+        pool.set("vm", new ManagedObjectReference[0]);
+        pool.set("runtime", runtime);
+        pool.set("config", config);
+        pool.set("overallStatus", ManagedEntityStatus.green);
+    }
+
+    private void initHost(@Nonnull SimObject host, @Nonnull String name, @Nonnull SimObject cluster) {
+        HostConfigInfo config = new HostConfigInfo();
+        HostListSummary summary = new HostListSummary();
+        HostHardwareSummary hardware = new HostHardwareSummary();
+        HostListSummaryQuickStats stats = new HostListSummaryQuickStats();
+        HostRuntimeInfo runtime = new HostRuntimeInfo();
+
+        config.setHost(host.getReference());
+        hardware.setVendor("Simulated");
+        hardware.setModel("SIM-1");
+        hardware.setUuid(UUID.nameUUIDFromBytes(host.getId().getBytes()).toString());
+        hardware.setCpuModel("Simulated CPU");
+        hardware.setCpuMhz(2600);
+        hardware.setNumCpuPkgs((short)2);
+        hardware.setNumCpuCores((short)16);
+        hardware.setNumCpuThreads((short)32);
+        hardware.setMemorySize(256L * 1024L * 1024L * 1024L);
+        hardware.setNumNics(4);
+        hardware.setNumHBAs(2);
+        stats.setOverallCpuUsage(0);
+        stats.setOverallMemoryUsage(0);
+        summary.setHost(host.getReference());
+        summary.setHardware(hardware);
+        summary.setQuickStats(stats);
+        summary.setOverallStatus(ManagedEntityStatus.green);
+        runtime.setConnectionState(HostSystemConnectionState.connected);
+        runtime.setPowerState(HostSystemPowerState.poweredOn);
+        runtime.setInMaintenanceMode(false);
+        host.set("name", name);
+        host.set("parent", cluster.getReference());
+        host.set("config", config);
+        host.set("summary", summary);
+        host.set("runtime", runtime);
+        host.set("vm", new ManagedObjectReference[0]);
+        host.set("datastore", new ManagedObjectReference[0]);
+        host.set("network", new ManagedObjectReference[0]);
+        host.set("configStatus", ManagedEntityStatus.green);
+        host.set("overallStatus", ManagedEntityStatus.green);
+    }
+
+    private void updateClusterSummary(@Nonnull SimObject cluster) {
+        ManagedObjectReference[] hosts = (ManagedObjectReference[])cluster.get("host");
+        int count = (hosts == null ? 0 : hosts.length);
+        ClusterComputeResourceSummary summary = new ClusterComputeResourceSummary();
+
+        summary.setNumHosts(count);
+        summary.setNumEffectiveHosts(count);
+        summary.setNumCpuCores((short)(count * 16));
+        summary.setNumCpuThreads((short)(count * 32));
+        summary.setTotalCpu(count * 16 * 2600);
+        summary.setEffectiveCpu(count * 16 * 2600);
+        summary.setTotalMemory(count * 256L * 1024L * 1024L * 1024L);
+        summary.setEffectiveMemory(count * 256L * 1024L);
+        summary.setOverallStatus(ManagedEntityStatus.green);
+        cluster.set("summary", summary);
+    }
+
+    private void initDatastore(@Nonnull SimObject ds, @Nonnull String name, @Nonnull SimObject folder, @Nonnull Collection<SimObject> hosts) {
+        DatastoreSummary summary = new DatastoreSummary();
+        DatastoreInfo info = new DatastoreInfo();
+        String url = "ds:///vmfs/volumes/" + ds.getId() + "/";
+        DatastoreHostMount[] mounts = new DatastoreHostMount[hosts.size()];
+        SimObject browser = add(new SimObject("HostDatastoreBrowser", "datastoreBrowser-" + ds.getId()));
+        int i = 0;
+
+        for( SimObject host : hosts ) {
+            DatastoreHostMount mount = new DatastoreHostMount();
+            HostMountInfo mountInfo = new HostMountInfo();
+
+            mountInfo.setPath("/vmfs/volumes/" + ds.getId());
+            mountInfo.setAccessMode("readWrite");
+            mountInfo.setMounted(true);
+            mountInfo.setAccessible(true);
+            mount.setKey(host.getReference());
+            mount.setMountInfo(mountInfo);
+            mounts[i++] = mount;
+            addReference(host, "datastore", ds.getReference());
+        }
+        summary.setDatastore(ds.getReference());
+        summary.setName(name);
+        summary.setUrl(url);
+        summary.setCapacity(DATASTORE_CAPACITY);
+        summary.setFreeSpace(DATASTORE_CAPACITY);
+        summary.setType("VMFS");
+        summary.setAccessible(true);
+        summary.setMultipleHostAccess(hosts.size() > 1);
+        info.setName(name);
+        info.setUrl(url);
+        info.setFreeSpace(DATASTORE_CAPACITY);
+        info.setMaxFileSize(DATASTORE_CAPACITY);
+        browser.set("datastore", new ManagedObjectReference[] { ds.getReference() });
+        ds.set("name", name);
+        ds.set("parent", folder.getReference());
+        ds.set("summary", summary);
+        ds.set("info", info);
+        ds.set("host", mounts);
+        ds.set("vm", new ManagedObjectReference[0]);
+        ds.set("browser", browser.getReference());
+        ds.set("overallStatus", ManagedEntityStatus.green);
+        addReference(folder, "childEntity", ds.getReference());
+    }
+
+    private synchronized void adjustFreeSpace(@Nullable SimObject ds, long deltaBytes) {
+        if( ds == null ) {
+            return;
+        }
+        DatastoreSummary summary = (DatastoreSummary)ds.get("summary");
+        DatastoreInfo info = (DatastoreInfo)ds.get("info");
+        long free = Math.max(0L, summary.getFreeSpace() + deltaBytes);
+
+        summary.setFreeSpace(free);
+        info.setFreeSpace(free);
+    }
+
+    /**
+     * Creates a VM or template with a single disk and NIC and links it into the inventory.
+     * @param name the VM name
+     * @param folder the VM folder it lives in
+     * @param pool the resource pool it runs in, <code>null</code> for templates
+     * @param host the host it is registered on
+     * @param datastore the datastore holding its disk
+     * @param network the network its NIC is connected to
+     * @param cpuCount the number of virtual CPUs
+     * @param memoryMB the memory size
+     * @param diskKB the size of its disk
+     * @param guest the index of the guest OS to use
+     * @param template true to create a template
+     * @param poweredOn true if the VM should be running
+     * @return the new VM
+     */
+    public @Nonnull SimObject createVm(@Nonnull String name, @Nonnull SimObject folder, @Nullable SimObject pool, @Nullable SimObject host, @Nullable SimObject datastore, @Nullable SimObject network, int cpuCount, int memoryMB, long diskKB, int guest, boolean template, boolean poweredOn) {
+        SimObject vm = add(new SimObject("VirtualMachine", nextId("vm")));
+        int n = vmCount.incrementAndGet();
+        String uuid = UUID.nameUUIDFromBytes(("uuid-" + vm.getId()).getBytes()).toString();
+        String instanceUuid = UUID.nameUUIDFromBytes(("instance-" + vm.getId()).getBytes()).toString();
+        String dsName = (datastore == null ? "datastore1" : (String)datastore.get("name"));
+        String ip = "10." + ((n >> 16) & 255) + "." + ((n >> 8) & 255) + "." + (n & 255);
+        String mac = String.format("00:50:56:%02x:%02x:%02x", (n >> 16) & 255, (n >> 8) & 255, n & 255);
+
+        VirtualLsiLogicSASController controller = new VirtualLsiLogicSASController();
+        Description controllerInfo = new Description();
+
+        controllerInfo.setLabel("SCSI controller 0");
+        controllerInfo.setSummary("LSI Logic SAS");
+        controller.setKey(1000);
+        controller.setBusNumber(0);
+        controller.setSharedBus(VirtualSCSISharing.noSharing);
+        controller.setDeviceInfo(controllerInfo);
+
+        VirtualDisk disk = new VirtualDisk();
+        VirtualDiskFlatVer2BackingInfo diskBacking = new VirtualDiskFlatVer2BackingInfo();
+        Description diskInfo = new Description();
+
+        diskBacking.setFileName("[" + dsName + "] " + name + "/" + name + ".vmdk");
+        diskBacking.setDiskMode("persistent");
+        diskBacking.setThinProvisioned(false);
+        if( datastore != null ) {
+            diskBacking.setDatastore(datastore.getReference());
+        }
+        diskInfo.setLabel("Hard disk 1");
+        diskInfo.setSummary(diskKB + " KB");
+        disk.setKey(2000);
+        disk.setControllerKey(1000);
+        disk.setUnitNumber(0);
+        disk.setCapacityInKB(diskKB);
+        disk.setBacking(diskBacking);
+        disk.setDeviceInfo(diskInfo);
+
+        List<VirtualDevice> devices = new ArrayList<VirtualDevice>();
+
+        devices.add(controller);
+        devices.add(disk);
+        if( network != null ) {
+            VirtualVmxnet3 nic = new VirtualVmxnet3();
+            VirtualEthernetCardNetworkBackingInfo nicBacking = new VirtualEthernetCardNetworkBackingInfo();
+            Description nicInfo = new Description();
+
+            nicBacking.setDeviceName((String)network.get("name"));
+            nicBacking.setNetwork(network.getReference());
+            nicInfo.setLabel("Network adapter 1");
+            nicInfo.setSummary((String)network.get("name"));
+            nic.setKey(4000);
+            nic.setMacAddress(mac);
+            nic.setAddressType("assigned");
+            nic.setBacking(nicBacking);
+            nic.setDeviceInfo(nicInfo);
+            devices.add(nic);
+        }
+
+        VirtualHardware hardware = new VirtualHardware();
+
+        hardware.setNumCPU(cpuCount);
+        hardware.setNumCoresPerSocket(cpuCount);
+        hardware.setMemoryMB(memoryMB);
+        hardware.setDevice(devices.toArray(new VirtualDevice[devices.size()]));
+
+        VirtualMachineConfigInfoDatastoreUrlPair url = new VirtualMachineConfigInfoDatastoreUrlPair();
+
+        url.setName(dsName);
+        url.setUrl("/vmfs/volumes/" + (datastore == null ? dsName : datastore.getId()));
+
+        VirtualMachineConfigInfo config = new VirtualMachineConfigInfo();
+
+        config.setName(name);
+        config.setUuid(uuid);
+        config.setInstanceUuid(instanceUuid);
+        config.setTemplate(template);
+        config.setGuestId(GUEST_IDS[guest % GUEST_IDS.length]);
+        config.setGuestFullName(GUEST_NAMES[guest % GUEST_NAMES.length]);
+        config.setAnnotation("");
+        config.setVersion("vmx-09");
+        config.setChangeVersion(String.valueOf(System.currentTimeMillis()));
+        config.setHardware(hardware);
+        config.setDatastoreUrl(new VirtualMachineConfigInfoDatastoreUrlPair[] { url });
+        config.setCpuHotAddEnabled(true);
+        config.setMemoryHotAddEnabled(true);
+
+        VirtualMachineRuntimeInfo runtime = new VirtualMachineRuntimeInfo();
+
+        runtime.setConnectionState(VirtualMachineConnectionState.connected);
+        runtime.setPowerState(poweredOn ? VirtualMachinePowerState.poweredOn : VirtualMachinePowerState.poweredOff);
+        if( host != null ) {
+            runtime.setHost(host.getReference());
+        }
+        if( poweredOn ) {
+            runtime.setBootTime(Calendar.getInstance());
+        }
+        vm.set("name", name);
+        vm.set("parent", folder.getReference());
+        vm.set("config", config);
+        vm.set("runtime", runtime);
+        vm.set("guest", toGuest(config, poweredOn, ip, mac, network));
+        vm.set("overallStatus", ManagedEntityStatus.green);
+        vm.set("datastore", datastore == null ? new ManagedObjectReference[0] : new ManagedObjectReference[] { datastore.getReference() });
+        vm.set("network", network == null ? new ManagedObjectReference[0] : new ManagedObjectReference[] { network.getReference() });
+        vm.set("_ipAddress", ip);
+        vm.set("_macAddress", mac);
+        addReference(folder, "childEntity", vm.getReference());
+        if( pool != null && !template ) {
+            vm.set("resourcePool", pool.getReference());
+            addReference(pool, "vm", vm.getReference());
+        }
+        if( host != null ) {
+            addReference(host, "vm", vm.getReference());
+        }
+        if( datastore != null ) {
+            addReference(datastore, "vm", vm.getReference());
+            adjustFreeSpace(datastore, -diskKB * 1024L);
+        }
+        if( network != null ) {
+            addReference(network, "vm", vm.getReference());
+        }
+        return vm;
+    }
+
+    /**
+     * Builds the guest information VMware Tools reports for a VM in the given power state.
+     * @param config the VM configuration
+     * @param running true if the guest is running
+     * @param ip the guest's IP address
+     * @param mac the MAC address of its NIC
+     * @param network the network the NIC is connected to
+     * @return the guest information
+     */
+    public @Nonnull GuestInfo toGuest(@Nonnull VirtualMachineConfigInfo config, boolean running, @Nonnull String ip, @Nonnull String mac, @Nullable SimObject network) {
+        GuestInfo guest = new GuestInfo();
+
+        guest.setGuestId(config.getGuestId());
+        guest.setGuestFullName(config.getGuestFullName());
+        guest.setGuestState(running ? "running" : "notRunning");
+        guest.setToolsRunningStatus(running ? "guestToolsRunning" : "guestToolsNotRunning");
+        if( running ) {
+            GuestNicInfo nic = new GuestNicInfo();
+
+            nic.setNetwork(network == null ? null : (String)network.get("name"));
+            nic.setIpAddress(new String[] { ip });
+            nic.setMacAddress(mac);
+            nic.setConnected(true);
+            nic.setDeviceConfigId(4000);
+            guest.setHostName(config.getName() + ".sim.local");
+            guest.setIpAddress(ip);
+            guest.setNet(new GuestNicInfo[] { nic });
+        }
+        return guest;
+    }
+
+    /**
+     * Changes the power state of a VM along with the boot time and the guest information reported for it.
+     * @param vm the VM to change
+     * @param state the new power state
+     */
+    public void setPowerState(@Nonnull SimObject vm, @Nonnull VirtualMachinePowerState state) {
+        VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+        VirtualMachineRuntimeInfo runtime = (VirtualMachineRuntimeInfo)vm.get("runtime");
+        ManagedObjectReference[] networks = (ManagedObjectReference[])vm.get("network");
+        boolean running = VirtualMachinePowerState.poweredOn.equals(state);
+
+        runtime.setPowerState(state);
+        runtime.setBootTime(running ? Calendar.getInstance() : null);
+        vm.set("guest", toGuest(config, running, (String)vm.get("_ipAddress"), (String)vm.get("_macAddress"), networks == null || networks.length < 1 ? null : get(networks[0])));
+    }
+
+    /**
+     * Removes a VM or template and its links from the inventory, releasing its disk space.
+     * @param vm the VM to remove
+     */
+    public void removeVm(@Nonnull SimObject vm) {
+        ManagedObjectReference ref = vm.getReference();
+        VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+        VirtualMachineRuntimeInfo runtime = (VirtualMachineRuntimeInfo)vm.get("runtime");
+        long diskKB = 0L;
+
+        if( config != null && config.getHardware() != null && config.getHardware().getDevice() != null ) {
+            for( VirtualDevice device : config.getHardware().getDevice() ) {
+                if( device instanceof VirtualDisk ) {
+                    diskKB += ((VirtualDisk)device).getCapacityInKB();
+                }
+            }
+        }
+        removeReference(get((ManagedObjectReference)vm.get("parent")), "childEntity", ref);
+        removeReference(get((ManagedObjectReference)vm.get("resourcePool")), "vm", ref);
+        if( runtime != null ) {
+            removeReference(get(runtime.getHost()), "vm", ref);
+        }
+        ManagedObjectReference[] datastores = (ManagedObjectReference[])vm.get("datastore");
+
+        if( datastores != null ) {
+            for( ManagedObjectReference ds : datastores ) {
+                removeReference(get(ds), "vm", ref);
+                adjustFreeSpace(get(ds), diskKB * 1024L / datastores.length);
+            }
+        }
+        ManagedObjectReference[] networks = (ManagedObjectReference[])vm.get("network");
+
+        if( networks != null ) {
+            for( ManagedObjectReference net : networks ) {
+                removeReference(get(net), "vm", ref);
+            }
+        }
+        objects.remove(vm.getId());
+    }
+
+    /**
+     * Accounts for a disk added to or removed from a VM.
+     * @param datastore the datastore holding the disk
+     * @param deltaKB the change in allocated space
+     */
+    public void allocate(@Nullable SimObject datastore, long deltaKB) {
+        adjustFreeSpace(datastore, -deltaKB * 1024L);
+    }
+}
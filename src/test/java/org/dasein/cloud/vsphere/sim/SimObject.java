@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.sim;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A managed object in the simulated inventory: its type, its identifier and its top-level properties, which hold
+ * the same vim25 data objects vCenter would return for them.
+ */
+public class SimObject {
+    private final String type;
+    private final String id;
+    private final Map<String,Object> properties = new ConcurrentHashMap<String, Object>();
+
+    public SimObject(@Nonnull String type, @Nonnull String id) {
+        this.type = type;
+        this.id = id;
+    }
+
+    public @Nonnull String getType() {
+        return type;
+    }
+
+    public @Nonnull String getId() {
+        return id;
+    }
+
+    public @Nonnull ManagedObjectReference getReference() {
+        return SimInventory.toReference(type, id);
+    }
+
+    public @Nullable Object get(@Nonnull String property) {
+        return properties.get(property);
+    }
+
+    public @Nonnull Map<String,Object> getProperties() {
+        return Collections.unmodifiableMap(properties);
+    }
+
+    /**
+     * Sets or clears a top-level property.
+     * @param property the property name
+     * @param value the new value, <code>null</code> to remove the property
+     * @return this object
+     */
+    public @Nonnull SimObject set(@Nonnull String property, @Nullable Object value) {
+        if( value == null ) {
+            properties.remove(property);
+        }
+        else {
+            properties.put(property, value);
+        }
+        return this;
+    }
+
+    @Override
+    public @Nonnull String toString() {
+        return type + ":" + id;
+    }
+}
@@ -0,0 +1,443 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.sim;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.vmware.vim25.DynamicProperty;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.ObjectUpdate;
+import com.vmware.vim25.ObjectUpdateKind;
+import com.vmware.vim25.PropertyChange;
+import com.vmware.vim25.PropertyChangeOp;
+import com.vmware.vim25.PropertyFilterUpdate;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.UpdateSet;
+import org.dom4j.Element;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * Evaluates property collector requests against the simulated inventory: object specs with their traversal and
+ * selection specs, property specs matched by type (including subtypes) and paged retrievals through
+ * RetrievePropertiesEx and ContinueRetrievePropertiesEx, as well as property filters waited on through WaitForUpdatesEx.
+ */
+public class SimPropertyCollector {
+    static private class Traversal {
+        String        name;
+        String        type;
+        String        path;
+        boolean       skip;
+        List<Element> selectSet = new ArrayList<Element>();
+    }
+
+    private class Filter {
+        final String  id;
+        final String  collectorId;
+        final Element spec;
+        final Map<String,Map<String,String>> reported = new HashMap<String, Map<String, String>>();
+
+        Filter(@Nonnull String id, @Nonnull String collectorId, @Nonnull Element spec) {
+            this.id = id;
+            this.collectorId = collectorId;
+            this.spec = spec;
+        }
+
+        synchronized @Nullable PropertyFilterUpdate update() {
+            Map<String,ObjectContent> current = collect(spec);
+            List<ObjectUpdate> objects = new ArrayList<ObjectUpdate>();
+
+            for( ObjectContent content : current.values() ) {
+                Map<String,String> last = reported.get(content.getObj().getVal());
+                Map<String,String> now = new HashMap<String, String>();
+                List<PropertyChange> changes = new ArrayList<PropertyChange>();
+
+                for( DynamicProperty prop : content.getPropSet() ) {
+                    StringBuilder xml = new StringBuilder();
+
+                    new SoapSerializer(xml).writeAny("val", prop.getVal());
+                    now.put(prop.getName(), xml.toString());
+                    if( last == null || !xml.toString().equals(last.get(prop.getName())) ) {
+                        changes.add(toChange(prop.getName(), PropertyChangeOp.assign, prop.getVal()));
+                    }
+                }
+                if( last != null ) {
+                    for( String name : last.keySet() ) {
+                        if( !now.containsKey(name) ) {
+                            changes.add(toChange(name, PropertyChangeOp.remove, null));
+                        }
+                    }
+                }
+                reported.put(content.getObj().getVal(), now);
+                if( last == null || !changes.isEmpty() ) {
+                    ObjectUpdate object = new ObjectUpdate();
+
+                    object.setKind(last == null ? ObjectUpdateKind.enter : ObjectUpdateKind.modify);
+                    object.setObj(content.getObj());
+                    object.setChangeSet(changes.toArray(new PropertyChange[changes.size()]));
+                    objects.add(object);
+                }
+            }
+            for( String gone : new ArrayList<String>(reported.keySet()) ) {
+                if( !current.containsKey(gone) ) {
+                    ObjectUpdate object = new ObjectUpdate();
+                    SimObject removed = inventory.get(gone);
+
+                    reported.remove(gone);
+                    object.setKind(ObjectUpdateKind.leave);
+                    object.setObj(removed == null ? SimInventory.toReference("ManagedEntity", gone) : removed.getReference());
+                    objects.add(object);
+                }
+            }
+            if( objects.isEmpty() ) {
+                return null;
+            }
+            PropertyFilterUpdate update = new PropertyFilterUpdate();
+
+            update.setFilter(SimInventory.toReference("PropertyFilter", id));
+            update.setObjectSet(objects.toArray(new ObjectUpdate[objects.size()]));
+            return update;
+        }
+    }
+
+    static private @Nonnull PropertyChange toChange(@Nonnull String name, @Nonnull PropertyChangeOp op, @Nullable Object value) {
+        PropertyChange change = new PropertyChange();
+
+        change.setName(name);
+        change.setOp(op);
+        change.setVal(value);
+        return change;
+    }
+
+    private final SimInventory                     inventory;
+    private final Map<String,List<ObjectContent>> pending   = new ConcurrentHashMap<String, List<ObjectContent>>();
+    private final Map<String,Integer>             pageSizes = new ConcurrentHashMap<String, Integer>();
+    private final Map<String,Filter>              filters   = new ConcurrentHashMap<String, Filter>();
+    private final AtomicLong                      versions  = new AtomicLong();
+
+    public SimPropertyCollector(@Nonnull SimInventory inventory) {
+        this.inventory = inventory;
+    }
+
+    /**
+     * @param specSet the <code>specSet</code> elements of the request
+     * @return the object contents of every object selected by any of the filter specs
+     */
+    public @Nonnull List<ObjectContent> retrieve(@Nonnull List<Element> specSet) {
+        Map<String,ObjectContent> results = new LinkedHashMap<String, ObjectContent>();
+
+        for( Element spec : specSet ) {
+            for( Map.Entry<String,ObjectContent> entry : collect(spec).entrySet() ) {
+                if( !results.containsKey(entry.getKey()) ) {
+                    results.put(entry.getKey(), entry.getValue());
+                }
+            }
+        }
+        return new ArrayList<ObjectContent>(results.values());
+    }
+
+    private @Nonnull Map<String,ObjectContent> collect(@Nonnull Element spec) {
+        Map<String,ObjectContent> results = new LinkedHashMap<String, ObjectContent>();
+        Map<String,Set<String>> paths = new HashMap<String, Set<String>>();
+        Set<String> all = new HashSet<String>();
+
+        for( Element propSet : SoapRequest.children(spec, "propSet") ) {
+            String type = SoapRequest.text(propSet, "type");
+
+            if( type == null ) {
+                continue;
+            }
+            if( "true".equals(SoapRequest.text(propSet, "all")) ) {
+                all.add(type);
+            }
+            Set<String> p = paths.get(type);
+
+            if( p == null ) {
+                p = new HashSet<String>();
+                paths.put(type, p);
+            }
+            for( Element path : SoapRequest.children(propSet, "pathSet") ) {
+                p.add(path.getTextTrim());
+            }
+        }
+        for( SimObject object : select(spec) ) {
+            ObjectContent content = toContent(object, paths, all);
+
+            if( content != null ) {
+                results.put(object.getId(), content);
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Creates a property filter whose changes {@link #waitForUpdates(String, int)} reports.
+     * @param collectorId the property collector the filter belongs to
+     * @param spec the <code>spec</code> element of the CreateFilter request
+     * @return the identifier of the new filter
+     */
+    public @Nonnull String createFilter(@Nonnull String collectorId, @Nonnull Element spec) {
+        Filter filter = new Filter("filter-" + UUID.randomUUID().toString(), collectorId, spec);
+
+        filters.put(filter.id, filter);
+        return filter.id;
+    }
+
+    public void destroyFilter(@Nonnull String filterId) {
+        filters.remove(filterId);
+    }
+
+    public @Nonnull String createCollector() {
+        return "session[" + UUID.randomUUID().toString() + "]";
+    }
+
+    public void destroyCollector(@Nonnull String collectorId) {
+        for( Filter filter : filters.values() ) {
+            if( filter.collectorId.equals(collectorId) ) {
+                filters.remove(filter.id);
+            }
+        }
+    }
+
+    /**
+     * Reports what changed in the objects selected by the filters of a collector since the filters last reported,
+     * everything for filters that have not reported yet. Changes are found by comparing the serialized property
+     * values, so the version the client passes is not needed.
+     * @param collectorId the property collector to wait on
+     * @param maxWaitSeconds how long to wait for a change, a negative value to wait until one happens
+     * @return the changes or <code>null</code> if nothing changed in time
+     */
+    public @Nullable UpdateSet waitForUpdates(@Nonnull String collectorId, int maxWaitSeconds) {
+        long timeout = (maxWaitSeconds < 0 ? Long.MAX_VALUE : System.currentTimeMillis() + maxWaitSeconds * 1000L);
+
+        while( true ) {
+            List<PropertyFilterUpdate> updates = new ArrayList<PropertyFilterUpdate>();
+
+            for( Filter filter : filters.values() ) {
+                if( filter.collectorId.equals(collectorId) ) {
+                    PropertyFilterUpdate update = filter.update();
+
+                    if( update != null ) {
+                        updates.add(update);
+                    }
+                }
+            }
+            if( !updates.isEmpty() ) {
+                UpdateSet set = new UpdateSet();
+
+                set.setVersion(String.valueOf(versions.incrementAndGet()));
+                set.setFilterSet(updates.toArray(new PropertyFilterUpdate[updates.size()]));
+                return set;
+            }
+            if( System.currentTimeMillis() >= timeout ) {
+                return null;
+            }
+            try { Thread.sleep(20L); }
+            catch( InterruptedException e ) { return null; }
+        }
+    }
+
+    /**
+     * Retrieves the first page of results, keeping the rest for {@link #next(String)}.
+     * @param specSet the <code>specSet</code> elements of the request
+     * @param maxObjects the page size requested by the client or 0 for no limit
+     * @return the first page of results or <code>null</code> if nothing matched
+     */
+    public @Nullable RetrieveResult retrieveEx(@Nonnull List<Element> specSet, int maxObjects) {
+        return page(retrieve(specSet), maxObjects);
+    }
+
+    public @Nullable RetrieveResult next(@Nonnull String token) {
+        List<ObjectContent> remaining = pending.remove(token);
+        Integer size = pageSizes.remove(token);
+
+        if( remaining == null ) {
+            return null;
+        }
+        return page(remaining, size == null ? 0 : size);
+    }
+
+    public void cancel(@Nonnull String token) {
+        pending.remove(token);
+        pageSizes.remove(token);
+    }
+
+    private @Nullable RetrieveResult page(@Nonnull List<ObjectContent> contents, int maxObjects) {
+        if( contents.isEmpty() ) {
+            return null;
+        }
+        RetrieveResult result = new RetrieveResult();
+
+        if( maxObjects > 0 && contents.size() > maxObjects ) {
+            String token = UUID.randomUUID().toString();
+
+            pending.put(token, new ArrayList<ObjectContent>(contents.subList(maxObjects, contents.size())));
+            pageSizes.put(token, maxObjects);
+            result.setToken(token);
+            contents = contents.subList(0, maxObjects);
+        }
+        result.setObjects(contents.toArray(new ObjectContent[contents.size()]));
+        return result;
+    }
+
+    private @Nonnull Collection<SimObject> select(@Nonnull Element spec) {
+        Map<String,SimObject> selected = new LinkedHashMap<String, SimObject>();
+
+        for( Element objectSet : SoapRequest.children(spec, "objectSet") ) {
+            SimObject root = inventory.get(SoapRequest.toReference(SoapRequest.child(objectSet, "obj")));
+
+            if( root == null ) {
+                continue;
+            }
+            Map<String,Traversal> named = new HashMap<String, Traversal>();
+            List<Element> selectSet = SoapRequest.children(objectSet, "selectSet");
+
+            collectNamed(selectSet, named);
+            if( !"true".equals(SoapRequest.text(objectSet, "skip")) ) {
+                selected.put(root.getId(), root);
+            }
+            traverse(root, selectSet, named, selected, new HashSet<String>());
+        }
+        return selected.values();
+    }
+
+    private void collectNamed(@Nonnull List<Element> selectSet, @Nonnull Map<String,Traversal> named) {
+        for( Element s : selectSet ) {
+            Traversal t = toTraversal(s);
+
+            if( t != null ) {
+                if( t.name != null && !named.containsKey(t.name) ) {
+                    named.put(t.name, t);
+                }
+                collectNamed(t.selectSet, named);
+            }
+        }
+    }
+
+    private @Nullable Traversal toTraversal(@Nonnull Element s) {
+        if( SoapRequest.child(s, "path") == null ) {
+            return null;
+        }
+        Traversal t = new Traversal();
+
+        t.name = SoapRequest.text(s, "name");
+        t.type = SoapRequest.text(s, "type");
+        t.path = SoapRequest.text(s, "path");
+        t.skip = "true".equals(SoapRequest.text(s, "skip"));
+        t.selectSet.addAll(SoapRequest.children(s, "selectSet"));
+        return t;
+    }
+
+    private void traverse(@Nonnull SimObject from, @Nonnull List<Element> selectSet, @Nonnull Map<String,Traversal> named, @Nonnull Map<String,SimObject> selected, @Nonnull Set<String> visited) {
+        for( Element s : selectSet ) {
+            Traversal t = toTraversal(s);
+
+            if( t == null ) {
+                String name = SoapRequest.text(s, "name");
+
+                t = (name == null ? null : named.get(name));
+                if( t == null ) {
+                    continue;
+                }
+            }
+            if( t.type == null || t.path == null || !SimInventory.isA(from.getType(), t.type) ) {
+                continue;
+            }
+            String key = from.getId() + "/" + (t.name == null ? t.type + "." + t.path : t.name);
+
+            if( !visited.add(key) ) {
+                continue;
+            }
+            Object value = SoapSerializer.getPath(from, t.path);
+            List<ManagedObjectReference> targets = new ArrayList<ManagedObjectReference>();
+
+            if( value instanceof ManagedObjectReference ) {
+                targets.add((ManagedObjectReference)value);
+            }
+            else if( value instanceof ManagedObjectReference[] ) {
+                for( ManagedObjectReference mor : (ManagedObjectReference[])value ) {
+                    targets.add(mor);
+                }
+            }
+            for( ManagedObjectReference mor : targets ) {
+                SimObject target = inventory.get(mor);
+
+                if( target == null ) {
+                    continue;
+                }
+                if( !t.skip && !selected.containsKey(target.getId()) ) {
+                    selected.put(target.getId(), target);
+                }
+                traverse(target, t.selectSet, named, selected, visited);
+            }
+        }
+    }
+
+    private @Nullable ObjectContent toContent(@Nonnull SimObject object, @Nonnull Map<String,Set<String>> paths, @Nonnull Set<String> all) {
+        Set<String> requested = new HashSet<String>();
+        boolean matched = false;
+
+        for( Map.Entry<String,Set<String>> entry : paths.entrySet() ) {
+            if( SimInventory.isA(object.getType(), entry.getKey()) ) {
+                matched = true;
+                if( all.contains(entry.getKey()) ) {
+                    for( String name : object.getProperties().keySet() ) {
+                        // properties starting with an underscore are simulator bookkeeping, not vSphere properties
+                        if( !name.startsWith("_") ) {
+                            requested.add(name);
+                        }
+                    }
+                }
+                requested.addAll(entry.getValue());
+            }
+        }
+        if( !matched ) {
+            return null;
+        }
+        ObjectContent content = new ObjectContent();
+        List<DynamicProperty> props = new ArrayList<DynamicProperty>();
+
+        content.setObj(object.getReference());
+        for( String path : requested ) {
+            Object value = SoapSerializer.getPath(object, path);
+
+            if( value != null ) {
+                DynamicProperty prop = new DynamicProperty();
+
+                prop.setName(path);
+                prop.setVal(value);
+                props.add(prop);
+            }
+        }
+        content.setPropSet(props.toArray(new DynamicProperty[props.size()]));
+        return content;
+    }
+}
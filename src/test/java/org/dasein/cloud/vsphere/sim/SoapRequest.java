@@ -0,0 +1,169 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.sim;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import com.vmware.vim25.ManagedObjectReference;
+import org.dom4j.Attribute;
+import org.dom4j.Document;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+import org.dom4j.io.SAXReader;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+
+/**
+ * A parsed vim25 SOAP request. Elements are looked up by local name so the namespace prefixes chosen by the
+ * client do not matter.
+ */
+public class SoapRequest {
+    static public final String XSI_NAMESPACE = "http://www.w3.org/2001/XMLSchema-instance";
+
+    static public @Nonnull SoapRequest parse(@Nonnull InputStream input) throws DocumentException {
+        Document doc = new SAXReader().read(input);
+        Element body = child(doc.getRootElement(), "Body");
+
+        if( body == null ) {
+            throw new DocumentException("No SOAP body in request");
+        }
+        Iterator<?> it = body.elementIterator();
+
+        if( !it.hasNext() ) {
+            throw new DocumentException("No method in SOAP body");
+        }
+        return new SoapRequest((Element)it.next());
+    }
+
+    static public @Nullable Element child(@Nullable Element parent, @Nonnull String name) {
+        if( parent == null ) {
+            return null;
+        }
+        for( Iterator<?> it = parent.elementIterator(); it.hasNext(); ) {
+            Element e = (Element)it.next();
+
+            if( e.getName().equals(name) ) {
+                return e;
+            }
+        }
+        return null;
+    }
+
+    static public @Nonnull List<Element> children(@Nullable Element parent, @Nonnull String name) {
+        ArrayList<Element> list = new ArrayList<Element>();
+
+        if( parent != null ) {
+            for( Iterator<?> it = parent.elementIterator(); it.hasNext(); ) {
+                Element e = (Element)it.next();
+
+                if( e.getName().equals(name) ) {
+                    list.add(e);
+                }
+            }
+        }
+        return list;
+    }
+
+    static public @Nullable String text(@Nullable Element parent, @Nonnull String name) {
+        Element e = child(parent, name);
+
+        return (e == null ? null : e.getTextTrim());
+    }
+
+    /**
+     * @param element an element holding a managed object reference
+     * @return the reference or <code>null</code> if the element is missing
+     */
+    static public @Nullable ManagedObjectReference toReference(@Nullable Element element) {
+        if( element == null ) {
+            return null;
+        }
+        String type = null;
+
+        for( Object o : element.attributes() ) {
+            Attribute a = (Attribute)o;
+
+            if( a.getName().equals("type") && !XSI_NAMESPACE.equals(a.getNamespaceURI()) ) {
+                type = a.getValue();
+            }
+        }
+        return SimInventory.toReference(type == null ? "ManagedEntity" : type, element.getTextTrim());
+    }
+
+    /**
+     * @param element an element in an abstract or untyped slot
+     * @return the value of its <code>xsi:type</code> attribute without the namespace prefix
+     */
+    static public @Nullable String getXsiType(@Nonnull Element element) {
+        for( Object o : element.attributes() ) {
+            Attribute a = (Attribute)o;
+
+            if( a.getName().equals("type") && XSI_NAMESPACE.equals(a.getNamespaceURI()) ) {
+                String value = a.getValue();
+                int idx = value.indexOf(':');
+
+                return (idx > -1 ? value.substring(idx+1) : value);
+            }
+        }
+        return null;
+    }
+
+    private final Element method;
+
+    private SoapRequest(@Nonnull Element method) {
+        this.method = method;
+    }
+
+    public @Nonnull String getMethod() {
+        return method.getName();
+    }
+
+    public @Nonnull Element getElement() {
+        return method;
+    }
+
+    public @Nullable Element get(@Nonnull String name) {
+        return child(method, name);
+    }
+
+    public @Nonnull List<Element> getAll(@Nonnull String name) {
+        return children(method, name);
+    }
+
+    public @Nullable String getText(@Nonnull String name) {
+        return text(method, name);
+    }
+
+    public @Nullable ManagedObjectReference getReference(@Nonnull String name) {
+        return toReference(child(method, name));
+    }
+
+    /**
+     * @return the managed object the method was invoked on
+     */
+    public @Nonnull ManagedObjectReference getThis() {
+        ManagedObjectReference mor = getReference("_this");
+
+        return (mor == null ? SimInventory.toReference("ServiceInstance", "ServiceInstance") : mor);
+    }
+}
@@ -0,0 +1,284 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.sim;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.bind.DatatypeConverter;
+
+import com.vmware.vim25.ManagedObjectReference;
+
+/**
+ * Writes vim25 data objects as SOAP XML the way vCenter does: fields in declaration order with the superclass
+ * fields first, an <code>xsi:type</code> on every data object so abstract slots such as virtual devices can be
+ * decoded, and XML schema types on values held in untyped (<code>anyType</code>) slots such as
+ * {@link com.vmware.vim25.DynamicProperty#val}.
+ */
+public class SoapSerializer {
+    static private final Map<Class<?>,List<Field>> fields = new HashMap<Class<?>, List<Field>>();
+
+    static private synchronized @Nonnull List<Field> getFields(@Nonnull Class<?> cls) {
+        List<Field> list = fields.get(cls);
+
+        if( list == null ) {
+            list = new ArrayList<Field>();
+            // faults are exceptions in vijava, the fields inherited from the JDK are not part of the SOAP type
+            if( cls.getSuperclass() != null && !cls.getSuperclass().getName().startsWith("java.") ) {
+                list.addAll(getFields(cls.getSuperclass()));
+            }
+            for( Field f : cls.getDeclaredFields() ) {
+                int mod = f.getModifiers();
+
+                if( Modifier.isStatic(mod) || f.isSynthetic() ) {
+                    continue;
+                }
+                f.setAccessible(true);
+                list.add(f);
+            }
+            fields.put(cls, list);
+        }
+        return list;
+    }
+
+    /**
+     * Resolves a property path such as <code>config.hardware.numCPU</code> against a simulated object.
+     * @param object the object to look in
+     * @param path the dotted property path
+     * @return the value or <code>null</code> if any part of the path is unset
+     */
+    static public @Nullable Object getPath(@Nonnull SimObject object, @Nonnull String path) {
+        String[] parts = path.split("\\.");
+        Object value = object.get(parts[0]);
+
+        for( int i=1; i<parts.length && value != null; i++ ) {
+            value = getField(value, parts[i]);
+        }
+        return value;
+    }
+
+    static private @Nullable Object getField(@Nonnull Object value, @Nonnull String name) {
+        for( Field f : getFields(value.getClass()) ) {
+            if( toElementName(f).equals(name) ) {
+                try {
+                    return f.get(value);
+                }
+                catch( IllegalAccessException e ) {
+                    return null;
+                }
+            }
+        }
+        return null;
+    }
+
+    static private @Nonnull String toElementName(@Nonnull Field f) {
+        String name = f.getName();
+
+        // vijava prefixes fields whose XML names are Java keywords with an underscore
+        return (name.startsWith("_") ? name.substring(1) : name);
+    }
+
+    static public @Nonnull String escape(@Nonnull String value) {
+        StringBuilder str = new StringBuilder(value.length() + 16);
+
+        for( int i=0; i<value.length(); i++ ) {
+            char c = value.charAt(i);
+
+            switch( c ) {
+                case '<': str.append("&lt;"); break;
+                case '>': str.append("&gt;"); break;
+                case '&': str.append("&amp;"); break;
+                case '"': str.append("&quot;"); break;
+                default: str.append(c);
+            }
+        }
+        return str.toString();
+    }
+
+    /**
+     * @param value a value held in an untyped slot
+     * @return the XML schema type vCenter reports for the value
+     */
+    static public @Nonnull String toXsiType(@Nonnull Object value) {
+        Class<?> cls = value.getClass();
+
+        if( cls.isArray() ) {
+            return "ArrayOf" + capitalize(toItemName(cls.getComponentType()));
+        }
+        String primitive = toPrimitiveName(cls);
+
+        if( primitive != null ) {
+            return "xsd:" + primitive;
+        }
+        return cls.getSimpleName();
+    }
+
+    static private @Nonnull String capitalize(@Nonnull String name) {
+        return Character.toUpperCase(name.charAt(0)) + name.substring(1);
+    }
+
+    static private @Nullable String toPrimitiveName(@Nonnull Class<?> cls) {
+        if( cls.equals(String.class) ) {
+            return "string";
+        }
+        else if( cls.equals(Integer.class) || cls.equals(int.class) ) {
+            return "int";
+        }
+        else if( cls.equals(Long.class) || cls.equals(long.class) ) {
+            return "long";
+        }
+        else if( cls.equals(Short.class) || cls.equals(short.class) ) {
+            return "short";
+        }
+        else if( cls.equals(Byte.class) || cls.equals(byte.class) ) {
+            return "byte";
+        }
+        else if( cls.equals(Boolean.class) || cls.equals(boolean.class) ) {
+            return "boolean";
+        }
+        else if( cls.equals(Float.class) || cls.equals(float.class) ) {
+            return "float";
+        }
+        else if( cls.equals(Double.class) || cls.equals(double.class) ) {
+            return "double";
+        }
+        else if( Calendar.class.isAssignableFrom(cls) ) {
+            return "dateTime";
+        }
+        return null;
+    }
+
+    static private @Nonnull String toItemName(@Nonnull Class<?> cls) {
+        String primitive = toPrimitiveName(cls);
+
+        return (primitive == null ? cls.getSimpleName() : primitive);
+    }
+
+    static private @Nonnull String toText(@Nonnull Object value) {
+        if( value instanceof Calendar ) {
+            return DatatypeConverter.printDateTime((Calendar)value);
+        }
+        return escape(value.toString());
+    }
+
+    static private boolean isSimple(@Nonnull Class<?> cls) {
+        return (toPrimitiveName(cls) != null || cls.isEnum());
+    }
+
+    private final StringBuilder xml;
+
+    public SoapSerializer(@Nonnull StringBuilder xml) {
+        this.xml = xml;
+    }
+
+    /**
+     * Writes a value into a slot whose declared type is known to the client.
+     * @param tag the element name
+     * @param value the value to write, arrays are written as repeated elements
+     */
+    public void write(@Nonnull String tag, @Nullable Object value) {
+        write(tag, value, false);
+    }
+
+    /**
+     * Writes a value into an untyped slot, tagging it with its XML schema type.
+     * @param tag the element name
+     * @param value the value to write
+     */
+    public void writeAny(@Nonnull String tag, @Nullable Object value) {
+        if( value == null ) {
+            return;
+        }
+        if( value.getClass().isArray() ) {
+            String itemName = toItemName(value.getClass().getComponentType());
+            int len = Array.getLength(value);
+
+            xml.append('<').append(tag).append(" xsi:type=\"").append(toXsiType(value)).append("\">");
+            for( int i=0; i<len; i++ ) {
+                write(itemName, Array.get(value, i), false);
+            }
+            xml.append("</").append(tag).append('>');
+            return;
+        }
+        write(tag, value, true);
+    }
+
+    private void write(@Nonnull String tag, @Nullable Object value, boolean typed) {
+        if( value == null ) {
+            return;
+        }
+        Class<?> cls = value.getClass();
+
+        if( cls.isArray() ) {
+            int len = Array.getLength(value);
+
+            for( int i=0; i<len; i++ ) {
+                write(tag, Array.get(value, i), false);
+            }
+            return;
+        }
+        if( value instanceof ManagedObjectReference ) {
+            ManagedObjectReference mor = (ManagedObjectReference)value;
+
+            xml.append('<').append(tag).append(" type=\"").append(mor.getType()).append('"');
+            if( typed ) {
+                xml.append(" xsi:type=\"ManagedObjectReference\"");
+            }
+            xml.append('>').append(escape(mor.getVal())).append("</").append(tag).append('>');
+            return;
+        }
+        if( isSimple(cls) ) {
+            xml.append('<').append(tag);
+            if( typed ) {
+                xml.append(" xsi:type=\"").append(toXsiType(value)).append('"');
+            }
+            xml.append('>').append(toText(value)).append("</").append(tag).append('>');
+            return;
+        }
+        xml.append('<').append(tag).append(" xsi:type=\"").append(cls.getSimpleName()).append("\">");
+        for( Field f : getFields(cls) ) {
+            Object v;
+
+            try {
+                v = f.get(value);
+            }
+            catch( IllegalAccessException e ) {
+                continue;
+            }
+            if( v == null ) {
+                continue;
+            }
+            if( f.getType().equals(Object.class) ) {
+                writeAny(toElementName(f), v);
+            }
+            else {
+                write(toElementName(f), v, false);
+            }
+        }
+        xml.append("</").append(tag).append('>');
+    }
+}
@@ -0,0 +1,1231 @@
+/**
+ * Copyright (C) 2010-2015 Dell, Inc
+ *
+ * ====================================================================
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ * ====================================================================
+ */
+
+package org.dasein.cloud.vsphere.sim;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+import com.vmware.vim25.AboutInfo;
+import com.vmware.vim25.FileInfo;
+import com.vmware.vim25.HostDatastoreBrowserSearchResults;
+import com.vmware.vim25.HostListSummary;
+import com.vmware.vim25.HostNotConnected;
+import com.vmware.vim25.InvalidState;
+import com.vmware.vim25.LocalizedMethodFault;
+import com.vmware.vim25.ManagedObjectReference;
+import com.vmware.vim25.MethodFault;
+import com.vmware.vim25.NoDiskSpace;
+import com.vmware.vim25.ObjectContent;
+import com.vmware.vim25.PerfEntityMetric;
+import com.vmware.vim25.PerfMetricId;
+import com.vmware.vim25.PerfMetricIntSeries;
+import com.vmware.vim25.PerfMetricSeries;
+import com.vmware.vim25.PerfSampleInfo;
+import com.vmware.vim25.RetrieveResult;
+import com.vmware.vim25.ServiceContent;
+import com.vmware.vim25.TaskInfo;
+import com.vmware.vim25.TaskInfoState;
+import com.vmware.vim25.TaskReasonUser;
+import com.vmware.vim25.UserSession;
+import com.vmware.vim25.VirtualDevice;
+import com.vmware.vim25.VirtualDisk;
+import com.vmware.vim25.VirtualDiskFlatVer2BackingInfo;
+import com.vmware.vim25.VirtualEthernetCardNetworkBackingInfo;
+import com.vmware.vim25.VirtualHardware;
+import com.vmware.vim25.VirtualMachineConfigInfo;
+import com.vmware.vim25.VirtualMachinePowerState;
+import com.vmware.vim25.VirtualMachineRuntimeInfo;
+import com.vmware.vim25.VirtualMachineSnapshotInfo;
+import com.vmware.vim25.VirtualMachineSnapshotTree;
+import com.vmware.vim25.VirtualVmxnet3;
+import com.vmware.vim25.VmConfigFileInfo;
+import com.vmware.vim25.VmDiskFileInfo;
+import org.dasein.cloud.Cloud;
+import org.dasein.cloud.CloudException;
+import org.dasein.cloud.ContextRequirements;
+import org.dasein.cloud.InternalException;
+import org.dasein.cloud.ProviderContext;
+import org.dasein.cloud.vsphere.PrivateCloud;
+import org.dom4j.DocumentException;
+import org.dom4j.Element;
+
+import javax.annotation.Nonnull;
+import javax.annotation.Nullable;
+import javax.xml.bind.DatatypeConverter;
+
+/**
+ * An in-process vCenter that speaks enough of the vim25 SOAP API for the Dasein vSphere provider to run against
+ * a synthetic inventory: login, the property collector (including traversal specs and paged retrievals), the
+ * search index, datastore browsing and the VM tasks the provider issues, which complete immediately. Every call
+ * is counted per SOAP method and can be delayed by a configurable latency so that tests and benchmarks can
+ * measure round trips and their cost without a real vCenter.
+ * <p>
+ * Run {@link #main(String[])} to serve an inventory for the integration test suite; the sizes are read from the
+ * <code>sim.*</code> system properties (e.g. <code>-Dsim.vms=10000 -Dsim.hosts=200 -Dsim.datastores=50</code>).
+ * </p>
+ */
+public class VSphereSimulator {
+    static public final String USER     = "simulator";
+    static public final String PASSWORD = "simulator";
+    static public final String PATH     = "/sdk";
+
+    static private final Charset UTF8 = Charset.forName("utf-8");
+
+    static public void main(String ... args) throws Exception {
+        int port = (args.length > 0 ? Integer.parseInt(args[0]) : 8989);
+        SimInventory.Spec spec = SimInventory.Spec.getInstance()
+                .withDatacenters(Integer.getInteger("sim.datacenters", 1))
+                .withClusters(Integer.getInteger("sim.clusters", 4))
+                .withHosts(Integer.getInteger("sim.hosts", 16))
+                .withDatastores(Integer.getInteger("sim.datastores", 8))
+                .withNetworks(Integer.getInteger("sim.networks", 4))
+                .withFolders(Integer.getInteger("sim.folders", 4))
+                .withTemplates(Integer.getInteger("sim.templates", 4))
+                .withVms(Integer.getInteger("sim.vms", 100));
+        VSphereSimulator simulator = new VSphereSimulator(SimInventory.generate(spec), port);
+
+        simulator.setLatency(Long.getLong("sim.latency", 0L));
+        simulator.start();
+        System.out.println("Simulating " + spec + " at " + simulator.getEndpoint() + " (user " + USER + ", password " + PASSWORD + ")");
+        Thread.currentThread().join();
+    }
+
+    /**
+     * Starts a simulator for the given inventory on an ephemeral port.
+     * @param inventory the inventory to serve
+     * @return the running simulator
+     * @throws IOException the server socket could not be opened
+     */
+    static public @Nonnull VSphereSimulator start(@Nonnull SimInventory inventory) throws IOException {
+        VSphereSimulator simulator = new VSphereSimulator(inventory, 0);
+
+        simulator.start();
+        return simulator;
+    }
+
+    static private class SimFault extends Exception {
+        private final String faultType;
+
+        SimFault(@Nonnull String faultType, @Nonnull String message) {
+            super(message);
+            this.faultType = faultType;
+        }
+    }
+
+    private final SimInventory              inventory;
+    private final SimPropertyCollector      collector;
+    private final HttpServer                server;
+    private final Map<String,Long>          latencies = new ConcurrentHashMap<String, Long>();
+    private final Map<String,AtomicInteger> calls     = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String,String>        sessions  = new ConcurrentHashMap<String, String>();
+    private final AtomicInteger             eventChain = new AtomicInteger();
+    private final List<String>              linkedClones = new CopyOnWriteArrayList<String>();
+    private volatile long                   latency   = 0L;
+    private final Set<String>               failingTargets = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    private final Map<String,MethodFault>   failingMethods = new ConcurrentHashMap<String, MethodFault>();
+    private final Map<String,AtomicInteger> droppedCalls = new ConcurrentHashMap<String, AtomicInteger>();
+    private final Map<String,AtomicInteger> faultingCalls = new ConcurrentHashMap<String, AtomicInteger>();
+
+    public VSphereSimulator(@Nonnull SimInventory inventory, int port) throws IOException {
+        this.inventory = inventory;
+        this.collector = new SimPropertyCollector(inventory);
+        server = HttpServer.create(new InetSocketAddress("127.0.0.1", port), 0);
+        server.createContext(PATH, new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                VSphereSimulator.this.handle(exchange);
+            }
+        });
+        server.setExecutor(Executors.newCachedThreadPool());
+    }
+
+    public void start() {
+        server.start();
+    }
+
+    public void stop() {
+        server.stop(0);
+    }
+
+    public @Nonnull String getEndpoint() {
+        return "http://127.0.0.1:" + server.getAddress().getPort() + PATH;
+    }
+
+    public @Nonnull SimInventory getInventory() {
+        return inventory;
+    }
+
+    /**
+     * Sets the latency added to every call that has no method-specific latency.
+     * @param millis the delay before each response
+     */
+    public void setLatency(long millis) {
+        latency = Math.max(0L, millis);
+    }
+
+    /**
+     * Sets the latency added to calls of one SOAP method, e.g. <code>RetrievePropertiesEx</code>.
+     * @param method the SOAP method name
+     * @param millis the delay before each response
+     */
+    public void setLatency(@Nonnull String method, long millis) {
+        latencies.put(method, Math.max(0L, millis));
+    }
+
+    public int getCallCount(@Nonnull String method) {
+        AtomicInteger count = calls.get(method);
+
+        return (count == null ? 0 : count.get());
+    }
+
+    /**
+     * @return the number of calls per SOAP method since the last {@link #resetCounters()}
+     */
+    public @Nonnull Map<String,Integer> getCallCounts() {
+        TreeMap<String,Integer> counts = new TreeMap<String, Integer>();
+
+        for( Map.Entry<String,AtomicInteger> entry : calls.entrySet() ) {
+            counts.put(entry.getKey(), entry.getValue().get());
+        }
+        return Collections.unmodifiableMap(counts);
+    }
+
+    public int getTotalCalls() {
+        int total = 0;
+
+        for( AtomicInteger count : calls.values() ) {
+            total += count.get();
+        }
+        return total;
+    }
+
+    /**
+     * @return the names of the VMs cloned with delta disks on a snapshot of their source, in creation order
+     */
+    public @Nonnull List<String> getLinkedClones() {
+        return Collections.unmodifiableList(linkedClones);
+    }
+
+    /**
+     * Makes clones placed on a host, resource pool or datastore fail, or stops doing so. Clones on a failing
+     * datastore fail with <code>NoDiskSpace</code>, all others with <code>HostNotConnected</code>.
+     * @param target the placement target
+     * @param failing whether clones placed on the target fail
+     */
+    public void setFailing(@Nonnull SimObject target, boolean failing) {
+        if( failing ) {
+            failingTargets.add(target.getId());
+        }
+        else {
+            failingTargets.remove(target.getId());
+        }
+    }
+
+    /**
+     * Makes every call of a task method, e.g. <code>PowerOnVM_Task</code>, return a task that fails without
+     * changing the inventory, or stops doing so.
+     * @param method the SOAP method name of a task method
+     * @param failing whether the method's tasks fail
+     */
+    public void setFailing(@Nonnull String method, boolean failing) {
+        setFailing(method, failing ? new InvalidState() : null);
+    }
+
+    /**
+     * Makes every call of a task method return a task that fails with the given fault without changing the
+     * inventory, or stops doing so.
+     * @param method the SOAP method name of a task method
+     * @param fault the fault the method's tasks fail with or <code>null</code> to stop failing them
+     */
+    public void setFailing(@Nonnull String method, @Nullable MethodFault fault) {
+        if( fault == null ) {
+            failingMethods.remove(method);
+        }
+        else {
+            failingMethods.put(method, fault);
+        }
+    }
+
+    /**
+     * Makes the next calls of a SOAP method close the connection without sending a response, as a dead pooled
+     * keep-alive connection or a broken network would. Dropped calls are still counted.
+     * @param method the SOAP method name
+     * @param count the number of calls to drop
+     */
+    public void dropConnections(@Nonnull String method, int count) {
+        droppedCalls.put(method, new AtomicInteger(count));
+    }
+
+    /**
+     * Makes the calls of a SOAP method after the first few answer with a <code>SystemError</code> fault, or stops
+     * doing so.
+     * @param method the SOAP method name
+     * @param successes the number of further calls to serve normally before failing, negative to stop failing
+     */
+    public void failAfter(@Nonnull String method, int successes) {
+        if( successes < 0 ) {
+            faultingCalls.remove(method);
+        }
+        else {
+            faultingCalls.put(method, new AtomicInteger(successes));
+        }
+    }
+
+    public void resetCounters() {
+        calls.clear();
+    }
+
+    /**
+     * Connects a Dasein vSphere provider to this simulator.
+     * @param regionId the data center to use as region
+     * @return the connected provider
+     * @throws CloudException the provider failed to connect
+     * @throws InternalException the provider failed to connect
+     */
+    public @Nonnull PrivateCloud connect(@Nonnull String regionId) throws CloudException, InternalException {
+        return connect(getEndpoint(), regionId);
+    }
+
+    /**
+     * Connects a Dasein vSphere provider to a simulated or replayed vCenter with the simulator credentials.
+     * @param endpoint the SOAP endpoint
+     * @param regionId the data center to use as region
+     * @return the connected provider
+     * @throws CloudException the provider failed to connect
+     * @throws InternalException the provider failed to connect
+     */
+    static public @Nonnull PrivateCloud connect(@Nonnull String endpoint, @Nonnull String regionId) throws CloudException, InternalException {
+        Cloud cloud = Cloud.register("VMware", "vSphere Simulator", endpoint, PrivateCloud.class);
+        ContextRequirements.Field apiKey = null;
+
+        for( ContextRequirements.Field f : new PrivateCloud().getContextRequirements().getConfigurableValues() ) {
+            if( f.type.equals(ContextRequirements.FieldType.KEYPAIR) ) {
+                apiKey = f;
+            }
+        }
+        if( apiKey == null ) {
+            throw new InternalException("No key pair field in the context requirements");
+        }
+        ProviderContext ctx = cloud.createContext("simulator", regionId, ProviderContext.Value.parseValue(apiKey, USER, PASSWORD));
+
+        return (PrivateCloud)ctx.connect();
+    }
+
+    private void handle(@Nonnull HttpExchange exchange) throws IOException {
+        StringBuilder xml = new StringBuilder(4096);
+        int status = 200;
+
+        xml.append("<?xml version=\"1.0\" encoding=\"UTF-8\"?>");
+        xml.append("<soapenv:Envelope xmlns:soapenv=\"http://schemas.xmlsoap.org/soap/envelope/\" xmlns:xsd=\"http://www.w3.org/2001/XMLSchema\" xmlns:xsi=\"http://www.w3.org/2001/XMLSchema-instance\"><soapenv:Body>");
+        try {
+            SoapRequest request;
+            InputStream input = exchange.getRequestBody();
+
+            try {
+                request = SoapRequest.parse(input);
+            }
+            finally {
+                input.close();
+            }
+            String method = request.getMethod();
+
+            count(method);
+            if( isDropped(method) ) {
+                // closing before the response headers are sent drops the connection under the client
+                exchange.close();
+                return;
+            }
+            delay(method);
+            StringBuilder body = new StringBuilder(4096);
+
+            invoke(exchange, request, new SoapSerializer(body));
+            xml.append('<').append(method).append("Response xmlns=\"urn:vim25\">");
+            xml.append(body);
+            xml.append("</").append(method).append("Response>");
+        }
+        catch( SimFault fault ) {
+            status = 500;
+            appendFault(xml, fault.faultType, fault.getMessage());
+        }
+        catch( DocumentException e ) {
+            status = 500;
+            appendFault(xml, "InvalidRequest", String.valueOf(e.getMessage()));
+        }
+        catch( RuntimeException e ) {
+            status = 500;
+            appendFault(xml, "SystemError", e.getClass().getSimpleName() + ": " + e.getMessage());
+        }
+        xml.append("</soapenv:Body></soapenv:Envelope>");
+
+        byte[] bytes = xml.toString().getBytes(UTF8);
+
+        exchange.getResponseHeaders().set("Content-Type", "text/xml; charset=utf-8");
+        exchange.sendResponseHeaders(status, bytes.length);
+        OutputStream output = exchange.getResponseBody();
+
+        try {
+            output.write(bytes);
+        }
+        finally {
+            output.close();
+        }
+    }
+
+    private void appendFault(@Nonnull StringBuilder xml, @Nonnull String faultType, @Nonnull String message) {
+        xml.append("<soapenv:Fault><faultcode>ServerFaultCode</faultcode><faultstring>");
+        xml.append(SoapSerializer.escape(message));
+        xml.append("</faultstring><detail><").append(faultType).append("Fault xmlns=\"urn:vim25\" xsi:type=\"").append(faultType).append("\"/></detail></soapenv:Fault>");
+    }
+
+    private boolean isDropped(@Nonnull String method) {
+        AtomicInteger remaining = droppedCalls.get(method);
+
+        return (remaining != null && remaining.getAndDecrement() > 0);
+    }
+
+    private void count(@Nonnull String method) {
+        AtomicInteger count = calls.get(method);
+
+        if( count == null ) {
+            synchronized( calls ) {
+                count = calls.get(method);
+                if( count == null ) {
+                    count = new AtomicInteger();
+                    calls.put(method, count);
+                }
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    private void delay(@Nonnull String method) {
+        Long millis = latencies.get(method);
+        long delay = (millis == null ? latency : millis);
+
+        if( delay > 0L ) {
+            try { Thread.sleep(delay); }
+            catch( InterruptedException ignore ) { }
+        }
+    }
+
+    private void invoke(@Nonnull HttpExchange exchange, @Nonnull SoapRequest request, @Nonnull SoapSerializer out) throws SimFault {
+        String method = request.getMethod();
+
+        AtomicInteger successes = faultingCalls.get(method);
+
+        if( successes != null && successes.getAndDecrement() <= 0 ) {
+            throw new SimFault("SystemError", "Simulated failure of " + method);
+        }
+        if( failingMethods.containsKey(method) ) {
+            out.write("returnval", createTask(method, inventory.get(request.getThis()), null, failingMethods.get(method), "Simulated failure of " + method));
+        }
+        else if( method.equals("RetrieveServiceContent") ) {
+            out.write("returnval", getServiceContent());
+        }
+        else if( method.equals("Login") ) {
+            String user = request.getText("userName");
+            String password = request.getText("password");
+
+            if( !USER.equals(user) || !PASSWORD.equals(password) ) {
+                throw new SimFault("InvalidLogin", "Cannot complete login due to an incorrect user name or password.");
+            }
+            String key = UUID.randomUUID().toString();
+            UserSession session = new UserSession();
+            Calendar now = Calendar.getInstance();
+
+            session.setKey(key);
+            session.setUserName(user);
+            session.setFullName(user);
+            session.setLoginTime(now);
+            session.setLastActiveTime(now);
+            session.setLocale("en");
+            session.setMessageLocale("en");
+            sessions.put(key, user);
+            exchange.getResponseHeaders().add("Set-Cookie", "vmware_soap_session=\"" + key + "\"; Path=/; HttpOnly");
+            out.write("returnval", session);
+        }
+        else if( method.equals("Logout") ) {
+            // sessions are not enforced
+        }
+        else if( method.equals("CurrentTime") ) {
+            out.write("returnval", Calendar.getInstance());
+        }
+        else if( method.equals("RetrieveProperties") ) {
+            for( ObjectContent content : collector.retrieve(request.getAll("specSet")) ) {
+                out.write("returnval", content);
+            }
+        }
+        else if( method.equals("RetrievePropertiesEx") ) {
+            String max = SoapRequest.text(request.get("options"), "maxObjects");
+
+            out.write("returnval", collector.retrieveEx(request.getAll("specSet"), max == null ? 0 : Integer.parseInt(max)));
+        }
+        else if( method.equals("ContinueRetrievePropertiesEx") ) {
+            RetrieveResult result = collector.next(String.valueOf(request.getText("token")));
+
+            if( result == null ) {
+                throw new SimFault("InvalidArgument", "Unknown or expired token");
+            }
+            out.write("returnval", result);
+        }
+        else if( method.equals("CancelRetrievePropertiesEx") ) {
+            collector.cancel(String.valueOf(request.getText("token")));
+        }
+        else if( method.equals("CreatePropertyCollector") ) {
+            out.write("returnval", SimInventory.toReference("PropertyCollector", collector.createCollector()));
+        }
+        else if( method.equals("DestroyPropertyCollector") ) {
+            collector.destroyCollector(request.getThis().getVal());
+        }
+        else if( method.equals("CreateFilter") ) {
+            Element spec = request.get("spec");
+
+            if( spec == null ) {
+                throw new SimFault("InvalidArgument", "A filter spec is required");
+            }
+            out.write("returnval", SimInventory.toReference("PropertyFilter", collector.createFilter(request.getThis().getVal(), spec)));
+        }
+        else if( method.equals("DestroyPropertyFilter") ) {
+            collector.destroyFilter(request.getThis().getVal());
+        }
+        else if( method.equals("WaitForUpdatesEx") ) {
+            String wait = SoapRequest.text(request.get("options"), "maxWaitSeconds");
+
+            out.write("returnval", collector.waitForUpdates(request.getThis().getVal(), wait == null ? -1 : Integer.parseInt(wait)));
+        }
+        else if( method.equals("FindByUuid") ) {
+            out.write("returnval", findByUuid(request));
+        }
+        else if( method.equals("FindByIp") ) {
+            out.write("returnval", findVm(request.getReference("datacenter"), "ipAddress", request.getText("ip")));
+        }
+        else if( method.equals("FindByDnsName") ) {
+            out.write("returnval", findVm(request.getReference("datacenter"), "hostName", request.getText("dnsName")));
+        }
+        else if( method.equals("FindByInventoryPath") ) {
+            out.write("returnval", findByInventoryPath(String.valueOf(request.getText("inventoryPath"))));
+        }
+        else if( method.equals("FindChild") ) {
+            out.write("returnval", findChild(inventory.get(request.getReference("entity")), String.valueOf(request.getText("name"))));
+        }
+        else if( method.equals("CloneVM_Task") ) {
+            out.write("returnval", cloneVm(getObject(request.getThis()), request));
+        }
+        else if( method.equals("CreateVM_Task") ) {
+            out.write("returnval", createVm(getObject(request.getThis()), request));
+        }
+        else if( method.equals("ReconfigVM_Task") ) {
+            out.write("returnval", reconfigure(getObject(request.getThis()), request.get("spec")));
+        }
+        else if( method.equals("PowerOnVM_Task") || method.equals("ResetVM_Task") ) {
+            out.write("returnval", setPowerState(method, getObject(request.getThis()), VirtualMachinePowerState.poweredOn));
+        }
+        else if( method.equals("PowerOffVM_Task") ) {
+            out.write("returnval", setPowerState(method, getObject(request.getThis()), VirtualMachinePowerState.poweredOff));
+        }
+        else if( method.equals("SuspendVM_Task") ) {
+            out.write("returnval", setPowerState(method, getObject(request.getThis()), VirtualMachinePowerState.suspended));
+        }
+        else if( method.equals("ShutdownGuest") ) {
+            inventory.setPowerState(getObject(request.getThis()), VirtualMachinePowerState.poweredOff);
+        }
+        else if( method.equals("RebootGuest") ) {
+            inventory.setPowerState(getObject(request.getThis()), VirtualMachinePowerState.poweredOn);
+        }
+        else if( method.equals("StandbyGuest") ) {
+            inventory.setPowerState(getObject(request.getThis()), VirtualMachinePowerState.suspended);
+        }
+        else if( method.equals("MarkAsTemplate") ) {
+            markAsTemplate(getObject(request.getThis()), null);
+        }
+        else if( method.equals("MarkAsVirtualMachine") ) {
+            markAsTemplate(getObject(request.getThis()), getObject(request.getReference("pool")));
+        }
+        else if( method.equals("CreateFolder") ) {
+            out.write("returnval", createFolder(getObject(request.getThis()), String.valueOf(request.getText("name"))));
+        }
+        else if( method.equals("MoveIntoFolder_Task") ) {
+            out.write("returnval", moveIntoFolder(getObject(request.getThis()), request));
+        }
+        else if( method.equals("Rename_Task") ) {
+            out.write("returnval", rename(getObject(request.getThis()), String.valueOf(request.getText("newName"))));
+        }
+        else if( method.equals("Destroy_Task") ) {
+            out.write("returnval", destroy(getObject(request.getThis())));
+        }
+        else if( method.equals("SearchDatastoreSubFolders_Task") ) {
+            SimObject browser = getObject(request.getThis());
+
+            out.write("returnval", createTask(method, browser, searchDatastore(browser, String.valueOf(request.getText("datastorePath")), true)));
+        }
+        else if( method.equals("SearchDatastore_Task") ) {
+            SimObject browser = getObject(request.getThis());
+            HostDatastoreBrowserSearchResults[] results = searchDatastore(browser, String.valueOf(request.getText("datastorePath")), false);
+
+            out.write("returnval", createTask(method, browser, results.length > 0 ? results[0] : new HostDatastoreBrowserSearchResults()));
+        }
+        else if( method.equals("QueryPerf") ) {
+            for( Element spec : request.getAll("querySpec") ) {
+                PerfEntityMetric metric = queryPerf(spec);
+
+                if( metric != null ) {
+                    out.write("returnval", metric);
+                }
+            }
+        }
+        else if( method.equals("DeleteDatastoreFile_Task") ) {
+            out.write("returnval", createTask(method, null, null));
+        }
+        else {
+            throw new SimFault("NotImplemented", method + " is not implemented by the simulator");
+        }
+    }
+
+    private @Nonnull SimObject getObject(@Nullable ManagedObjectReference mor) throws SimFault {
+        SimObject object = inventory.get(mor);
+
+        if( object == null ) {
+            throw new SimFault("ManagedObjectNotFound", "The object " + (mor == null ? null : mor.getVal()) + " has already been deleted or has not been completely created");
+        }
+        return object;
+    }
+
+    private @Nonnull ServiceContent getServiceContent() {
+        ServiceContent content = new ServiceContent();
+        AboutInfo about = new AboutInfo();
+
+        about.setName("VMware vCenter Server");
+        about.setFullName("VMware vCenter Server 5.5.0 build-0 (simulated)");
+        about.setVendor("VMware, Inc.");
+        about.setVersion("5.5.0");
+        about.setBuild("0");
+        about.setLocaleVersion("INTL");
+        about.setLocaleBuild("000");
+        about.setOsType("linux-x64");
+        about.setProductLineId("vpx");
+        about.setApiType("VirtualCenter");
+        about.setApiVersion("5.5");
+        about.setInstanceUuid(UUID.nameUUIDFromBytes(getEndpoint().getBytes(UTF8)).toString());
+        content.setAbout(about);
+        content.setRootFolder(inventory.getRootFolder().getReference());
+        content.setPropertyCollector(SimInventory.toReference("PropertyCollector", SimInventory.PROPERTY_COLLECTOR));
+        content.setViewManager(SimInventory.toReference("ViewManager", SimInventory.VIEW_MANAGER));
+        content.setSearchIndex(SimInventory.toReference("SearchIndex", SimInventory.SEARCH_INDEX));
+        content.setSessionManager(SimInventory.toReference("SessionManager", SimInventory.SESSION_MANAGER));
+        content.setFileManager(SimInventory.toReference("FileManager", SimInventory.FILE_MANAGER));
+        content.setPerfManager(SimInventory.toReference("PerformanceManager", SimInventory.PERF_MANAGER));
+        content.setTaskManager(SimInventory.toReference("TaskManager", SimInventory.TASK_MANAGER));
+        content.setEventManager(SimInventory.toReference("EventManager", SimInventory.EVENT_MANAGER));
+        return content;
+    }
+
+    /**
+     * Records a task that has already finished.
+     * @param method the SOAP method that started the task
+     * @param entity the entity the task operated on
+     * @param result the task result
+     * @return the reference to the task
+     */
+    private @Nonnull ManagedObjectReference createTask(@Nonnull String method, @Nullable SimObject entity, @Nullable Object result) {
+        return createTask(method, entity, result, null);
+    }
+
+    private @Nonnull ManagedObjectReference createTask(@Nonnull String method, @Nullable SimObject entity, @Nullable Object result, @Nullable String error) {
+        return createTask(method, entity, result, error == null ? null : new InvalidState(), error);
+    }
+
+    private @Nonnull ManagedObjectReference createTask(@Nonnull String method, @Nullable SimObject entity, @Nullable Object result, @Nullable MethodFault error, @Nullable String message) {
+        SimObject task = inventory.add(new SimObject("Task", inventory.nextId("task")));
+        TaskInfo info = new TaskInfo();
+        TaskReasonUser reason = new TaskReasonUser();
+        Calendar now = Calendar.getInstance();
+
+        reason.setUserName(USER);
+        info.setKey(task.getId());
+        info.setTask(task.getReference());
+        info.setName(method.endsWith("_Task") ? method.substring(0, method.length() - 5) : method);
+        info.setDescriptionId(method);
+        info.setReason(reason);
+        info.setCancelable(false);
+        info.setCancelled(false);
+        info.setQueueTime(now);
+        info.setStartTime(now);
+        info.setCompleteTime(now);
+        info.setEventChainId(eventChain.incrementAndGet());
+        if( entity != null ) {
+            info.setEntity(entity.getReference());
+            info.setEntityName((String)entity.get("name"));
+        }
+        if( error == null ) {
+            info.setState(TaskInfoState.success);
+            info.setResult(result);
+        }
+        else {
+            LocalizedMethodFault fault = new LocalizedMethodFault();
+
+            fault.setFault(error);
+            fault.setLocalizedMessage(message);
+            info.setState(TaskInfoState.error);
+            info.setError(fault);
+        }
+        task.set("info", info);
+        return task.getReference();
+    }
+
+    /**
+     * Answers one performance query spec with a flat series per requested counter: 25% CPU and 100 KB/s of disk and
+     * network traffic, one sample per interval over the requested range or the last <code>maxSample</code> intervals.
+     * Powered off VMs have no samples.
+     */
+    private @Nullable PerfEntityMetric queryPerf(@Nonnull Element spec) throws SimFault {
+        SimObject entity = getObject(SoapRequest.toReference(SoapRequest.child(spec, "entity")));
+        Object runtime = entity.get("runtime");
+        String max = SoapRequest.text(spec, "maxSample");
+        String interval = SoapRequest.text(spec, "intervalId");
+        String start = SoapRequest.text(spec, "startTime");
+        String end = SoapRequest.text(spec, "endTime");
+        int seconds = (interval == null ? 20 : Integer.parseInt(interval));
+        long to = (end == null ? System.currentTimeMillis() : DatatypeConverter.parseDateTime(end).getTimeInMillis());
+        long from = (start == null ? to - (seconds * 1000L * (max == null ? 1 : Integer.parseInt(max))) : DatatypeConverter.parseDateTime(start).getTimeInMillis());
+        List<PerfSampleInfo> samples = new ArrayList<PerfSampleInfo>();
+        PerfEntityMetric metric = new PerfEntityMetric();
+
+        metric.setEntity(entity.getReference());
+        if( runtime instanceof VirtualMachineRuntimeInfo && !VirtualMachinePowerState.poweredOn.equals(((VirtualMachineRuntimeInfo)runtime).getPowerState()) ) {
+            return metric;
+        }
+        for( long t = from - (from % (seconds * 1000L)) + (seconds * 1000L); t <= to; t += seconds * 1000L ) {
+            PerfSampleInfo info = new PerfSampleInfo();
+            Calendar timestamp = Calendar.getInstance();
+
+            timestamp.setTimeInMillis(t);
+            info.setTimestamp(timestamp);
+            info.setInterval(seconds);
+            samples.add(info);
+        }
+        if( max != null && samples.size() > Integer.parseInt(max) ) {
+            samples = samples.subList(samples.size() - Integer.parseInt(max), samples.size());
+        }
+        List<PerfMetricSeries> values = new ArrayList<PerfMetricSeries>();
+
+        for( Element m : SoapRequest.children(spec, "metricId") ) {
+            PerfMetricId id = new PerfMetricId();
+            PerfMetricIntSeries series = new PerfMetricIntSeries();
+            long[] value = new long[samples.size()];
+
+            id.setCounterId(Integer.parseInt(String.valueOf(SoapRequest.text(m, "counterId"))));
+            id.setInstance("");
+            Arrays.fill(value, id.getCounterId() == SimInventory.PERF_COUNTERS.get("cpu.usage.average") ? 2500L : 100L);
+            series.setId(id);
+            series.setValue(value);
+            values.add(series);
+        }
+        metric.setSampleInfo(samples.toArray(new PerfSampleInfo[samples.size()]));
+        metric.setValue(values.toArray(new PerfMetricSeries[values.size()]));
+        return metric;
+    }
+
+    private @Nullable ManagedObjectReference findByUuid(@Nonnull SoapRequest request) {
+        String uuid = request.getText("uuid");
+        boolean vmSearch = "true".equals(request.getText("vmSearch"));
+        boolean instanceUuid = "true".equals(request.getText("instanceUuid"));
+        SimObject dc = inventory.get(request.getReference("datacenter"));
+
+        if( uuid == null ) {
+            return null;
+        }
+        if( !vmSearch ) {
+            for( SimObject host : inventory.list("HostSystem") ) {
+                HostListSummary summary = (HostListSummary)host.get("summary");
+
+                if( uuid.equalsIgnoreCase(summary.getHardware().getUuid()) && (dc == null || dc.equals(inventory.getDatacenter(host))) ) {
+                    return host.getReference();
+                }
+            }
+            return null;
+        }
+        for( SimObject vm : inventory.list("VirtualMachine") ) {
+            VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+            String id = (instanceUuid ? config.getInstanceUuid() : config.getUuid());
+
+            if( uuid.equalsIgnoreCase(id) && (dc == null || dc.equals(inventory.getDatacenter(vm))) ) {
+                return vm.getReference();
+            }
+        }
+        return null;
+    }
+
+    private @Nullable ManagedObjectReference findVm(@Nullable ManagedObjectReference datacenter, @Nonnull String guestProperty, @Nullable String value) {
+        SimObject dc = inventory.get(datacenter);
+
+        if( value == null ) {
+            return null;
+        }
+        for( SimObject vm : inventory.list("VirtualMachine") ) {
+            Object v = SoapSerializer.getPath(vm, "guest." + guestProperty);
+
+            if( value.equalsIgnoreCase(String.valueOf(v)) && (dc == null || dc.equals(inventory.getDatacenter(vm))) ) {
+                return vm.getReference();
+            }
+        }
+        return null;
+    }
+
+    private @Nullable ManagedObjectReference findByInventoryPath(@Nonnull String path) {
+        SimObject current = inventory.getRootFolder();
+
+        for( String name : path.split("/") ) {
+            if( name.length() < 1 ) {
+                continue;
+            }
+            ManagedObjectReference child = findChild(current, name);
+
+            if( child == null ) {
+                return null;
+            }
+            current = inventory.get(child);
+        }
+        return (current == null ? null : current.getReference());
+    }
+
+    private @Nullable ManagedObjectReference findChild(@Nullable SimObject parent, @Nonnull String name) {
+        if( parent == null ) {
+            return null;
+        }
+        List<ManagedObjectReference> children = new ArrayList<ManagedObjectReference>();
+
+        if( parent.getType().equals("Datacenter") ) {
+            for( String folder : new String[] { "vmFolder", "hostFolder", "datastoreFolder", "networkFolder" } ) {
+                children.add((ManagedObjectReference)parent.get(folder));
+            }
+        }
+        else {
+            for( String property : new String[] { "childEntity", "host", "resourcePool", "vm" } ) {
+                ManagedObjectReference[] refs = (ManagedObjectReference[])parent.get(property);
+
+                if( refs != null ) {
+                    Collections.addAll(children, refs);
+                }
+            }
+        }
+        for( ManagedObjectReference mor : children ) {
+            SimObject child = inventory.get(mor);
+
+            if( child != null && name.equals(child.get("name")) ) {
+                return mor;
+            }
+        }
+        return null;
+    }
+
+    private @Nullable SimObject getFirst(@Nullable SimObject holder, @Nonnull String property) {
+        ManagedObjectReference[] refs = (holder == null ? null : (ManagedObjectReference[])holder.get(property));
+
+        return (refs == null || refs.length < 1 ? null : inventory.get(refs[0]));
+    }
+
+    private @Nullable SimObject getHostForPool(@Nullable SimObject pool) {
+        return (pool == null ? null : getFirst(inventory.get((ManagedObjectReference)pool.get("owner")), "host"));
+    }
+
+    private @Nonnull ManagedObjectReference cloneVm(@Nonnull SimObject source, @Nonnull SoapRequest request) throws SimFault {
+        VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)source.get("config");
+        VirtualMachineRuntimeInfo runtime = (VirtualMachineRuntimeInfo)source.get("runtime");
+        Element spec = request.get("spec");
+        Element location = SoapRequest.child(spec, "location");
+        Element configSpec = SoapRequest.child(spec, "config");
+        SimObject folder = getObject(request.getReference("folder"));
+        SimObject pool = inventory.get(SoapRequest.toReference(SoapRequest.child(location, "pool")));
+        SimObject host = inventory.get(SoapRequest.toReference(SoapRequest.child(location, "host")));
+        SimObject datastore = inventory.get(SoapRequest.toReference(SoapRequest.child(location, "datastore")));
+        String name = String.valueOf(request.getText("name"));
+        int cpuCount = config.getHardware().getNumCPU();
+        int memory = config.getHardware().getMemoryMB();
+        long diskKB = 0L;
+
+        if( pool == null ) {
+            pool = inventory.get((ManagedObjectReference)source.get("resourcePool"));
+        }
+        if( host == null ) {
+            host = getHostForPool(pool);
+        }
+        if( host == null ) {
+            host = inventory.get(runtime.getHost());
+        }
+        if( datastore == null ) {
+            datastore = getFirst(source, "datastore");
+        }
+        if( SoapRequest.text(configSpec, "numCPUs") != null ) {
+            cpuCount = Integer.parseInt(SoapRequest.text(configSpec, "numCPUs"));
+        }
+        if( SoapRequest.text(configSpec, "memoryMB") != null ) {
+            memory = (int)Long.parseLong(SoapRequest.text(configSpec, "memoryMB"));
+        }
+        for( VirtualDevice device : config.getHardware().getDevice() ) {
+            if( device instanceof VirtualDisk ) {
+                diskKB += ((VirtualDisk)device).getCapacityInKB();
+            }
+        }
+        for( SimObject target : new SimObject[] { pool, host, datastore } ) {
+            if( target != null && failingTargets.contains(target.getId()) ) {
+                MethodFault fault = (target == datastore ? new NoDiskSpace() : new HostNotConnected());
+
+                return createTask("CloneVM_Task", source, null, fault, "Simulated failure placing " + name + " on " + target.get("name"));
+            }
+        }
+        boolean template = "true".equals(SoapRequest.text(spec, "template"));
+        boolean powerOn = "true".equals(SoapRequest.text(spec, "powerOn"));
+        boolean linked = "createNewChildDiskBacking".equals(SoapRequest.text(location, "diskMoveType"));
+
+        if( linked && !hasSnapshot(source, SoapRequest.toReference(SoapRequest.child(spec, "snapshot"))) ) {
+            throw new SimFault("InvalidArgument", "A linked clone requires a snapshot of the source virtual machine");
+        }
+        SimObject vm = inventory.createVm(name, folder, template ? null : pool, host, datastore, getFirst(source, "network"), cpuCount, memory, diskKB, 0, template, powerOn);
+
+        if( linked ) {
+            linkedClones.add(name);
+        }
+
+        copyGuest(config, vm);
+        if( SoapRequest.text(configSpec, "annotation") != null ) {
+            ((VirtualMachineConfigInfo)vm.get("config")).setAnnotation(SoapRequest.text(configSpec, "annotation"));
+        }
+        return createTask("CloneVM_Task", source, vm.getReference());
+    }
+
+    private boolean hasSnapshot(@Nonnull SimObject vm, @Nullable ManagedObjectReference snapshot) {
+        VirtualMachineSnapshotInfo info = (VirtualMachineSnapshotInfo)vm.get("snapshot");
+
+        if( snapshot == null || info == null || info.getRootSnapshotList() == null ) {
+            return false;
+        }
+        for( VirtualMachineSnapshotTree tree : info.getRootSnapshotList() ) {
+            if( tree.getSnapshot().getVal().equals(snapshot.getVal()) ) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private @Nonnull ManagedObjectReference createVm(@Nonnull SimObject folder, @Nonnull SoapRequest request) throws SimFault {
+        Element config = request.get("config");
+        SimObject pool = getObject(request.getReference("pool"));
+        SimObject host = inventory.get(request.getReference("host"));
+        String name = String.valueOf(SoapRequest.text(config, "name"));
+        String cpus = SoapRequest.text(config, "numCPUs");
+        String memory = SoapRequest.text(config, "memoryMB");
+        String vmPath = SoapRequest.text(SoapRequest.child(config, "files"), "vmPathName");
+        SimObject datastore = null;
+        long diskKB = 0L;
+
+        if( host == null ) {
+            host = getHostForPool(pool);
+        }
+        if( vmPath != null && vmPath.startsWith("[") && vmPath.indexOf(']') > 0 ) {
+            String dsName = vmPath.substring(1, vmPath.indexOf(']'));
+
+            for( SimObject ds : inventory.list("Datastore") ) {
+                if( dsName.equals(ds.get("name")) ) {
+                    datastore = ds;
+                    break;
+                }
+            }
+        }
+        if( datastore == null ) {
+            datastore = getFirst(host, "datastore");
+        }
+        for( Element change : SoapRequest.children(config, "deviceChange") ) {
+            String capacity = SoapRequest.text(SoapRequest.child(change, "device"), "capacityInKB");
+
+            if( capacity != null ) {
+                diskKB += Long.parseLong(capacity);
+            }
+        }
+        SimObject vm = inventory.createVm(name, folder, pool, host, datastore, getFirst(host, "network"), cpus == null ? 1 : Integer.parseInt(cpus), memory == null ? 512 : (int)Long.parseLong(memory), diskKB, 0, false, false);
+        VirtualMachineConfigInfo info = (VirtualMachineConfigInfo)vm.get("config");
+        String guestId = SoapRequest.text(config, "guestId");
+
+        if( guestId != null ) {
+            info.setGuestId(guestId);
+            info.setGuestFullName(guestId);
+            inventory.setPowerState(vm, VirtualMachinePowerState.poweredOff);
+        }
+        return createTask("CreateVM_Task", folder, vm.getReference());
+    }
+
+    private void copyGuest(@Nonnull VirtualMachineConfigInfo source, @Nonnull SimObject vm) {
+        VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+        VirtualMachineRuntimeInfo runtime = (VirtualMachineRuntimeInfo)vm.get("runtime");
+
+        config.setGuestId(source.getGuestId());
+        config.setGuestFullName(source.getGuestFullName());
+        config.setAnnotation(source.getAnnotation());
+        inventory.setPowerState(vm, runtime.getPowerState());
+    }
+
+    private @Nonnull ManagedObjectReference reconfigure(@Nonnull SimObject vm, @Nullable Element spec) {
+        VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+        VirtualHardware hardware = config.getHardware();
+        String cpus = SoapRequest.text(spec, "numCPUs");
+        String memory = SoapRequest.text(spec, "memoryMB");
+        String annotation = SoapRequest.text(spec, "annotation");
+        String name = SoapRequest.text(spec, "name");
+
+        if( name != null ) {
+            vm.set("name", name);
+            config.setName(name);
+        }
+        if( cpus != null ) {
+            hardware.setNumCPU(Integer.parseInt(cpus));
+        }
+        if( memory != null ) {
+            hardware.setMemoryMB((int)Long.parseLong(memory));
+        }
+        if( annotation != null ) {
+            config.setAnnotation(annotation);
+        }
+        List<VirtualDevice> devices = new ArrayList<VirtualDevice>();
+        int nextKey = 0;
+
+        Collections.addAll(devices, hardware.getDevice());
+        for( VirtualDevice device : devices ) {
+            nextKey = Math.max(nextKey, device.getKey() + 1);
+        }
+        for( Element change : SoapRequest.children(spec, "deviceChange") ) {
+            String operation = SoapRequest.text(change, "operation");
+            Element device = SoapRequest.child(change, "device");
+            String key = SoapRequest.text(device, "key");
+
+            if( "remove".equals(operation) && key != null ) {
+                for( VirtualDevice d : new ArrayList<VirtualDevice>(devices) ) {
+                    if( String.valueOf(d.getKey()).equals(key) ) {
+                        devices.remove(d);
+                        if( d instanceof VirtualDisk ) {
+                            inventory.allocate(getFirst(vm, "datastore"), -((VirtualDisk)d).getCapacityInKB());
+                        }
+                    }
+                }
+            }
+            else if( "add".equals(operation) && device != null ) {
+                VirtualDevice added = toDevice(vm, device);
+
+                if( added != null ) {
+                    added.setKey(nextKey++);
+                    devices.add(added);
+                }
+            }
+        }
+        hardware.setDevice(devices.toArray(new VirtualDevice[devices.size()]));
+        config.setChangeVersion(String.valueOf(System.currentTimeMillis()));
+        return createTask("ReconfigVM_Task", vm, null);
+    }
+
+    private @Nullable VirtualDevice toDevice(@Nonnull SimObject vm, @Nonnull Element device) {
+        String capacity = SoapRequest.text(device, "capacityInKB");
+
+        if( capacity != null ) {
+            VirtualDisk disk = new VirtualDisk();
+            VirtualDiskFlatVer2BackingInfo backing = new VirtualDiskFlatVer2BackingInfo();
+            SimObject datastore = getFirst(vm, "datastore");
+            String fileName = SoapRequest.text(SoapRequest.child(device, "backing"), "fileName");
+            String controller = SoapRequest.text(device, "controllerKey");
+            String unit = SoapRequest.text(device, "unitNumber");
+
+            backing.setFileName(fileName == null ? "[" + (datastore == null ? "datastore1" : datastore.get("name")) + "] " + vm.get("name") + "/" + vm.get("name") + "_" + UUID.randomUUID() + ".vmdk" : fileName);
+            backing.setDiskMode("persistent");
+            if( datastore != null ) {
+                backing.setDatastore(datastore.getReference());
+            }
+            disk.setCapacityInKB(Long.parseLong(capacity));
+            disk.setControllerKey(controller == null ? 1000 : Integer.parseInt(controller));
+            disk.setUnitNumber(unit == null ? 1 : Integer.parseInt(unit));
+            disk.setBacking(backing);
+            inventory.allocate(datastore, disk.getCapacityInKB());
+            return disk;
+        }
+        String type = SoapRequest.getXsiType(device);
+
+        if( type != null && (type.contains("Vmxnet") || type.contains("E1000") || type.contains("Pcnet")) ) {
+            VirtualVmxnet3 nic = new VirtualVmxnet3();
+            VirtualEthernetCardNetworkBackingInfo backing = new VirtualEthernetCardNetworkBackingInfo();
+
+            backing.setDeviceName(SoapRequest.text(SoapRequest.child(device, "backing"), "deviceName"));
+            nic.setBacking(backing);
+            nic.setAddressType("generated");
+            nic.setMacAddress((String)vm.get("_macAddress"));
+            return nic;
+        }
+        return null;
+    }
+
+    private @Nonnull ManagedObjectReference setPowerState(@Nonnull String method, @Nonnull SimObject vm, @Nonnull VirtualMachinePowerState state) {
+        VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+
+        if( config != null && config.isTemplate() ) {
+            return createTask(method, vm, null, "The operation is not allowed in the current state: the virtual machine is a template.");
+        }
+        inventory.setPowerState(vm, state);
+        return createTask(method, vm, null);
+    }
+
+    private void markAsTemplate(@Nonnull SimObject vm, @Nullable SimObject pool) {
+        VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+
+        config.setTemplate(pool == null);
+        if( pool == null ) {
+            inventory.removeReference(inventory.get((ManagedObjectReference)vm.get("resourcePool")), "vm", vm.getReference());
+            vm.set("resourcePool", null);
+        }
+        else {
+            vm.set("resourcePool", pool.getReference());
+            inventory.addReference(pool, "vm", vm.getReference());
+        }
+    }
+
+    private @Nonnull ManagedObjectReference createFolder(@Nonnull SimObject parent, @Nonnull String name) throws SimFault {
+        ManagedObjectReference[] children = (ManagedObjectReference[])parent.get("childEntity");
+
+        if( children != null ) {
+            for( ManagedObjectReference child : children ) {
+                SimObject c = inventory.get(child);
+
+                if( c != null && name.equals(c.get("name")) ) {
+                    throw new SimFault("DuplicateName", "The name '" + name + "' already exists.");
+                }
+            }
+        }
+        return inventory.createFolder(name, parent, "Folder", "VirtualMachine", "VirtualApp").getReference();
+    }
+
+    private @Nonnull ManagedObjectReference moveIntoFolder(@Nonnull SimObject folder, @Nonnull SoapRequest request) throws SimFault {
+        for( Element e : request.getAll("list") ) {
+            SimObject entity = getObject(SoapRequest.toReference(e));
+
+            inventory.removeReference(inventory.get((ManagedObjectReference)entity.get("parent")), "childEntity", entity.getReference());
+            entity.set("parent", folder.getReference());
+            inventory.addReference(folder, "childEntity", entity.getReference());
+        }
+        return createTask("MoveIntoFolder_Task", folder, null);
+    }
+
+    private @Nonnull ManagedObjectReference rename(@Nonnull SimObject entity, @Nonnull String name) {
+        entity.set("name", name);
+        if( entity.get("config") instanceof VirtualMachineConfigInfo ) {
+            ((VirtualMachineConfigInfo)entity.get("config")).setName(name);
+        }
+        return createTask("Rename_Task", entity, null);
+    }
+
+    private @Nonnull ManagedObjectReference destroy(@Nonnull SimObject entity) {
+        if( !entity.getType().equals("VirtualMachine") ) {
+            return createTask("Destroy_Task", entity, null, "The simulator only destroys virtual machines.");
+        }
+        VirtualMachineRuntimeInfo runtime = (VirtualMachineRuntimeInfo)entity.get("runtime");
+
+        if( runtime != null && VirtualMachinePowerState.poweredOn.equals(runtime.getPowerState()) ) {
+            return createTask("Destroy_Task", entity, null, "The operation is not allowed in the current state (Powered on).");
+        }
+        ManagedObjectReference task = createTask("Destroy_Task", entity, null);
+
+        inventory.removeVm(entity);
+        return task;
+    }
+
+    private @Nonnull HostDatastoreBrowserSearchResults[] searchDatastore(@Nonnull SimObject browser, @Nonnull String datastorePath, boolean subFolders) {
+        SimObject ds = getFirst(browser, "datastore");
+
+        if( ds == null ) {
+            return new HostDatastoreBrowserSearchResults[0];
+        }
+        String dsName = (String)ds.get("name");
+        String folder = datastorePath;
+        int idx = folder.indexOf(']');
+
+        folder = (idx > -1 ? folder.substring(idx+1) : folder).trim();
+        if( folder.endsWith("/") ) {
+            folder = folder.substring(0, folder.length()-1);
+        }
+        List<HostDatastoreBrowserSearchResults> results = new ArrayList<HostDatastoreBrowserSearchResults>();
+        ManagedObjectReference[] vms = (ManagedObjectReference[])ds.get("vm");
+
+        for( ManagedObjectReference ref : (vms == null ? new ManagedObjectReference[0] : vms) ) {
+            SimObject vm = inventory.get(ref);
+
+            if( vm == null ) {
+                continue;
+            }
+            String name = (String)vm.get("name");
+
+            if( folder.length() > 0 && !(subFolders ? name.startsWith(folder) : name.equals(folder)) ) {
+                continue;
+            }
+            VirtualMachineConfigInfo config = (VirtualMachineConfigInfo)vm.get("config");
+            List<FileInfo> files = new ArrayList<FileInfo>();
+            VmConfigFileInfo vmx = new VmConfigFileInfo();
+
+            vmx.setPath(name + ".vmx");
+            vmx.setFileSize(4096L);
+            vmx.setModification(Calendar.getInstance());
+            files.add(vmx);
+            for( VirtualDevice device : config.getHardware().getDevice() ) {
+                if( device instanceof VirtualDisk ) {
+                    VirtualDisk disk = (VirtualDisk)device;
+                    String fileName = ((VirtualDiskFlatVer2BackingInfo)disk.getBacking()).getFileName();
+                    VmDiskFileInfo vmdk = new VmDiskFileInfo();
+                    FileInfo flat = new FileInfo();
+
+                    vmdk.setPath(fileName.substring(fileName.lastIndexOf('/') + 1));
+                    vmdk.setFileSize(disk.getCapacityInKB() * 1024L);
+                    vmdk.setCapacityKb(disk.getCapacityInKB());
+                    vmdk.setModification(Calendar.getInstance());
+                    flat.setPath(vmdk.getPath().replace(".vmdk", "-flat.vmdk"));
+                    flat.setFileSize(vmdk.getFileSize());
+                    files.add(vmdk);
+                    files.add(flat);
+                }
+            }
+            HostDatastoreBrowserSearchResults result = new HostDatastoreBrowserSearchResults();
+
+            result.setDatastore(ds.getReference());
+            result.setFolderPath("[" + dsName + "] " + name + "/");
+            result.setFile(files.toArray(new FileInfo[files.size()]));
+            results.add(result);
+        }
+        return results.toArray(new HostDatastoreBrowserSearchResults[results.size()]);
+    }
+}